@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index;
+
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node wide counters of what the lattice token filters and tokenizers have done.  Token streams count locally and add
+ * their counts here when each field value is finished, so the hot path never touches shared state.
+ */
+public final class LatticeAnalysisStats implements ToXContentFragment {
+    private final LongAdder arcsPrunedByRank = new LongAdder();
+    private final LongAdder arcsPrunedByScore = new LongAdder();
+    private final LongAdder epsilonArcsSkipped = new LongAdder();
+
+    void addPrunedArcs(long byRank, long byScore) {
+        if (byRank != 0) {
+            arcsPrunedByRank.add(byRank);
+        }
+        if (byScore != 0) {
+            arcsPrunedByScore.add(byScore);
+        }
+    }
+
+    void addSkippedEpsilonArcs(long count) {
+        if (count != 0) {
+            epsilonArcsSkipped.add(count);
+        }
+    }
+
+    /**
+     * @return the number of arcs dropped for having a rank above {@code max_rank}
+     */
+    public long arcsPrunedByRank() {
+        return arcsPrunedByRank.sum();
+    }
+
+    /**
+     * @return the number of arcs dropped for having a score below {@code min_score}
+     */
+    public long arcsPrunedByScore() {
+        return arcsPrunedByScore.sum();
+    }
+
+    /**
+     * @return the number of {@code epsilon_token} arcs that were not indexed
+     */
+    public long epsilonArcsSkipped() {
+        return epsilonArcsSkipped.sum();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("analysis");
+        builder.field("arcs_pruned_by_rank", arcsPrunedByRank());
+        builder.field("arcs_pruned_by_score", arcsPrunedByScore());
+        builder.field("epsilon_arcs_skipped", epsilonArcsSkipped());
+        builder.endObject();
+        return builder;
+    }
+}
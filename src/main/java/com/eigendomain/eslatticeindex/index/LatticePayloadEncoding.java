@@ -0,0 +1,332 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index;
+
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+
+import java.util.Locale;
+
+/**
+ * How a lattice arc's score is encoded into its payload.
+ *
+ * The quantized encodings trade precision for payload size.  For scores in [0, 1]:
+ * <ul>
+ *     <li>{@code linear_8} and {@code linear_16} store {@code round(score * (2^bits - 1))}, so the decoded score is off
+ *     by at most {@code 0.5 / (2^bits - 1)}: 0.00196 and 0.0000077 respectively.</li>
+ *     <li>{@code log_8} and {@code log_16} store {@code round(-ln(score) / step)} with {@code step = 16 / (2^bits - 1)},
+ *     so the decoded score is within a factor of {@code exp(step / 2)} of the original: 3.2% and 0.012%
+ *     respectively.  Scores below {@code exp(-16)} (about 1.1e-7), including 0, decode to {@code exp(-16)}.</li>
+ * </ul>
+ * Scores outside [0, 1] are clamped by the quantized encodings.
+ *
+ * The log encodings, {@code log_8}, {@code log_16} and the unquantized {@code log_float}, store the natural log of the
+ * score so queries can read it with {@link #decodeLog(byte[], int)} and combine scores by addition alone.
+ * {@code log_float} floors scores at {@code exp(-16)} as well.
+ */
+public enum LatticePayloadEncoding {
+    FLOAT("float", 4) {
+        @Override
+        public void encode(float score, byte[] bytes, int offset) {
+            PayloadHelper.encodeFloat(score, bytes, offset);
+        }
+
+        @Override
+        public float decode(byte[] bytes, int offset) {
+            return PayloadHelper.decodeFloat(bytes, offset);
+        }
+
+        @Override
+        public float maxError() {
+            return 0.0f;
+        }
+    },
+    LINEAR_8("linear_8", 1) {
+        @Override
+        public void encode(float score, byte[] bytes, int offset) {
+            bytes[offset] = (byte) linearLevel(score, LEVELS_8);
+        }
+
+        @Override
+        public float decode(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xFF) / (float) LEVELS_8;
+        }
+
+        @Override
+        public float decodeLog(byte[] bytes, int offset) {
+            return LogTables.LINEAR_8_LOGS[bytes[offset] & 0xFF];
+        }
+
+        @Override
+        public boolean fastLog() {
+            return true;
+        }
+
+        @Override
+        public float maxError() {
+            return 0.5f / LEVELS_8;
+        }
+
+        @Override
+        public float maxScore() {
+            return 1.0f;
+        }
+    },
+    LINEAR_16("linear_16", 2) {
+        @Override
+        public void encode(float score, byte[] bytes, int offset) {
+            encodeShort(linearLevel(score, LEVELS_16), bytes, offset);
+        }
+
+        @Override
+        public float decode(byte[] bytes, int offset) {
+            return decodeShort(bytes, offset) / (float) LEVELS_16;
+        }
+
+        @Override
+        public float decodeLog(byte[] bytes, int offset) {
+            return LogTables.LINEAR_16_LOGS[decodeShort(bytes, offset)];
+        }
+
+        @Override
+        public boolean fastLog() {
+            return true;
+        }
+
+        @Override
+        public float maxError() {
+            return 0.5f / LEVELS_16;
+        }
+
+        @Override
+        public float maxScore() {
+            return 1.0f;
+        }
+    },
+    LOG_8("log_8", 1) {
+        @Override
+        public void encode(float score, byte[] bytes, int offset) {
+            bytes[offset] = (byte) logLevel(score, LEVELS_8);
+        }
+
+        @Override
+        public float decode(byte[] bytes, int offset) {
+            return (float) Math.exp(decodeLog(bytes, offset));
+        }
+
+        @Override
+        public float decodeLog(byte[] bytes, int offset) {
+            return (float) ((bytes[offset] & 0xFF) * (MIN_LOG_SCORE / LEVELS_8));
+        }
+
+        @Override
+        public boolean logDomain() {
+            return true;
+        }
+
+        @Override
+        public float maxError() {
+            return (float) Math.expm1(-MIN_LOG_SCORE / LEVELS_8 / 2);
+        }
+
+        @Override
+        public float maxScore() {
+            return 1.0f;
+        }
+    },
+    LOG_16("log_16", 2) {
+        @Override
+        public void encode(float score, byte[] bytes, int offset) {
+            encodeShort(logLevel(score, LEVELS_16), bytes, offset);
+        }
+
+        @Override
+        public float decode(byte[] bytes, int offset) {
+            return (float) Math.exp(decodeLog(bytes, offset));
+        }
+
+        @Override
+        public float decodeLog(byte[] bytes, int offset) {
+            return (float) (decodeShort(bytes, offset) * (MIN_LOG_SCORE / LEVELS_16));
+        }
+
+        @Override
+        public boolean logDomain() {
+            return true;
+        }
+
+        @Override
+        public float maxError() {
+            return (float) Math.expm1(-MIN_LOG_SCORE / LEVELS_16 / 2);
+        }
+
+        @Override
+        public float maxScore() {
+            return 1.0f;
+        }
+    },
+    LOG_FLOAT("log_float", 4) {
+        @Override
+        public void encode(float score, byte[] bytes, int offset) {
+            float logScore = score > 0.0f ? (float) Math.max(Math.log(score), MIN_LOG_SCORE) : (float) MIN_LOG_SCORE;
+            PayloadHelper.encodeFloat(logScore, bytes, offset);
+        }
+
+        @Override
+        public float decode(byte[] bytes, int offset) {
+            return (float) Math.exp(decodeLog(bytes, offset));
+        }
+
+        @Override
+        public float decodeLog(byte[] bytes, int offset) {
+            return PayloadHelper.decodeFloat(bytes, offset);
+        }
+
+        @Override
+        public boolean logDomain() {
+            return true;
+        }
+
+        @Override
+        public float maxError() {
+            return 0.0f;
+        }
+    };
+
+    private static final int LEVELS_8 = (1 << 8) - 1;
+    private static final int LEVELS_16 = (1 << 16) - 1;
+    // natural log of the smallest score the log encodings can represent
+    private static final double MIN_LOG_SCORE = -16.0;
+
+    private final String name;
+    private final int numBytes;
+
+    LatticePayloadEncoding(String name, int numBytes) {
+        this.name = name;
+        this.numBytes = numBytes;
+    }
+
+    /**
+     * Writes {@link #numBytes()} bytes encoding {@code score} at {@code bytes[offset]}.
+     */
+    public abstract void encode(float score, byte[] bytes, int offset);
+
+    public abstract float decode(byte[] bytes, int offset);
+
+    /**
+     * @return the natural log of the decoded score; free of transcendental calls for the {@link #logDomain()} encodings
+     */
+    public float decodeLog(byte[] bytes, int offset) {
+        return (float) Math.log(decode(bytes, offset));
+    }
+
+    /**
+     * @return true if the score's log is stored in the payload
+     */
+    public boolean logDomain() {
+        return false;
+    }
+
+    /**
+     * @return true if {@link #decodeLog(byte[], int)} needs no transcendental calls, because the log is either stored
+     * in the payload or looked up in a table
+     */
+    public boolean fastLog() {
+        return logDomain();
+    }
+
+    /**
+     * @return the largest absolute error of a decoded score in [0, 1] for the linear encodings, or the largest relative
+     * error of a decoded score in [exp(-16), 1] for the log encodings
+     */
+    public abstract float maxError();
+
+    /**
+     * @return the largest score a payload can decode to, or {@link Float#POSITIVE_INFINITY} if scores are not clamped
+     */
+    public float maxScore() {
+        return Float.POSITIVE_INFINITY;
+    }
+
+    public int numBytes() {
+        return numBytes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    public static LatticePayloadEncoding fromString(String name) {
+        for (LatticePayloadEncoding encoding : values()) {
+            if (encoding.name.equals(name.toLowerCase(Locale.ROOT))) {
+                return encoding;
+            }
+        }
+        throw new IllegalArgumentException("Invalid payload encoding '" + name + "'");
+    }
+
+    /**
+     * The log of every linear level, built on first use
+     */
+    private static final class LogTables {
+        static final float[] LINEAR_8_LOGS = linearLogs(LINEAR_8, LEVELS_8);
+        static final float[] LINEAR_16_LOGS = linearLogs(LINEAR_16, LEVELS_16);
+
+        private static float[] linearLogs(LatticePayloadEncoding encoding, int levels) {
+            float[] logs = new float[levels + 1];
+            byte[] bytes = new byte[encoding.numBytes()];
+            for (int level = 0; level <= levels; level++) {
+                if (bytes.length == 1) {
+                    bytes[0] = (byte) level;
+                } else {
+                    encodeShort(level, bytes, 0);
+                }
+                logs[level] = (float) Math.log(encoding.decode(bytes, 0));
+            }
+            return logs;
+        }
+    }
+
+    private static int linearLevel(float score, int levels) {
+        if (score >= 1.0f) {
+            return levels;
+        } else if (score > 0.0f) {
+            return Math.round(score * levels);
+        }
+        return 0;
+    }
+
+    private static int logLevel(float score, int levels) {
+        if (score >= 1.0f) {
+            return 0;
+        } else if (score > 0.0f) {
+            return (int) Math.min(levels, Math.round(Math.log(score) / (MIN_LOG_SCORE / levels)));
+        }
+        return levels;
+    }
+
+    private static void encodeShort(int value, byte[] bytes, int offset) {
+        bytes[offset] = (byte) (value >>> 8);
+        bytes[offset + 1] = (byte) value;
+    }
+
+    private static int decodeShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.eigendomain.eslatticeindex.index;
+
+import org.apache.lucene.util.Attribute;
+
+/**
+ * The rank of the lattice arc a token was parsed from, 0 for the best arc of its bin and for tokens that aren't arcs.
+ * Set by the {@code lattice} filter and tokenizer, so filters after them can tell arcs of different ranks apart.
+ */
+public interface LatticeRankAttribute extends Attribute {
+    int getRank();
+
+    void setRank(int rank);
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.eigendomain.eslatticeindex.index;
+
+import org.apache.lucene.util.AttributeImpl;
+import org.apache.lucene.util.AttributeReflector;
+
+public class LatticeRankAttributeImpl extends AttributeImpl implements LatticeRankAttribute {
+    private int rank = 0;
+
+    @Override
+    public int getRank() {
+        return rank;
+    }
+
+    @Override
+    public void setRank(int rank) {
+        this.rank = rank;
+    }
+
+    @Override
+    public void clear() {
+        rank = 0;
+    }
+
+    @Override
+    public void copyTo(AttributeImpl target) {
+        ((LatticeRankAttribute) target).setRank(rank);
+    }
+
+    @Override
+    public void reflectWith(AttributeReflector reflector) {
+        reflector.reflect(LatticeRankAttribute.class, "rank", rank);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof LatticeRankAttributeImpl && ((LatticeRankAttributeImpl) other).rank == rank;
+    }
+
+    @Override
+    public int hashCode() {
+        return rank;
+    }
+}
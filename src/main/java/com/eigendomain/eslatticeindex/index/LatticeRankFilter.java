@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.eigendomain.eslatticeindex.index;
+
+import org.apache.lucene.analysis.FilteringTokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+
+/**
+ * Drops the arcs of a lattice token stream whose rank is above {@code maxRank}, carrying their position increments
+ * over to the arcs kept, so a field indexed through it holds only a lattice's most likely arcs, at the positions they
+ * have in the full lattice.
+ */
+public final class LatticeRankFilter extends FilteringTokenFilter {
+    private final LatticeRankAttribute rankAtt = addAttribute(LatticeRankAttribute.class);
+    private final int maxRank;
+
+    /**
+     * @param maxRank the highest rank of arc to keep, 0 keeping only the best arc of each bin
+     */
+    public LatticeRankFilter(TokenStream input, int maxRank) {
+        super(input);
+        if (maxRank < 0) {
+            throw new IllegalArgumentException("maxRank must not be negative, got " + maxRank);
+        }
+        this.maxRank = maxRank;
+    }
+
+    @Override
+    protected boolean accept() {
+        return rankAtt.getRank() <= maxRank;
+    }
+}
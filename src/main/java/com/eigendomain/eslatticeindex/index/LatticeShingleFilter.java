@@ -0,0 +1,296 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns the arcs of a lattice token stream into shingles: one token for every path through 2 to {@code maxShingleSize}
+ * adjacent positions, the words of the path joined by {@link #SEPARATOR}.  A shingle is indexed at the position of its
+ * first arc, with the product of its arcs' scores as its payload, so a phrase of that many words is a single term
+ * whose occurrences are the phrase's paths.  Paths scoring below {@code minPathScore} are dropped.
+ *
+ * Registered phrases, such as the hot phrases of a watchlist, are materialized the same way whatever their length: a
+ * path whose words are those of a registered phrase is emitted even if it is longer than {@code maxShingleSize}, so
+ * searching the phrase reads a single postings list.  Paths longer than {@code maxShingleSize} are only followed while
+ * they are the start of a registered phrase.
+ *
+ * Only the shingles are emitted, not the arcs themselves.  Score bucket duplicates of an arc count once, and paths
+ * never cross a gap in positions, such as one left by a pruned bin or between the values of a field.
+ */
+public final class LatticeShingleFilter extends TokenFilter {
+    public static final char SEPARATOR = ' ';
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final PayloadAttribute payAtt = addAttribute(PayloadAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+
+    private final LatticePayloadEncoding encoding;
+    private final int maxShingleSize;
+    private final float minPathScore;
+    private final Set<String> phrases;
+    // the words each registered phrase starts with, its first word, its first two words, and so on
+    private final Set<String> phrasePrefixes;
+    // the most bins a path may run through
+    private final int maxPathLength;
+    // scores can only shrink as a path grows, so a path that falls short can't be extended into one that doesn't
+    private final boolean pruneEarly;
+    private final BytesRef payload;
+
+    // the bins still needed to build shingles, the first of which starts the next shingles emitted
+    private final ArrayDeque<Bin> window = new ArrayDeque<>();
+    private final ArrayDeque<Shingle> pending = new ArrayDeque<>();
+    // the next arc of the input, read while finishing the bin before it
+    private State nextArc;
+    private boolean exhausted;
+    private int inputPosition;
+    private int emittedPosition;
+
+    /**
+     * @param encoding how the arcs' scores are encoded, and the shingles' scores are to be
+     * @param maxShingleSize the most words a shingle joins, at least 2
+     * @param minPathScore the lowest path score to emit a shingle for, 0 keeps every path
+     */
+    public LatticeShingleFilter(TokenStream input, LatticePayloadEncoding encoding, int maxShingleSize,
+                                float minPathScore) {
+        this(input, encoding, maxShingleSize, minPathScore, Collections.emptySet());
+    }
+
+    /**
+     * @param encoding how the arcs' scores are encoded, and the shingles' scores are to be
+     * @param maxShingleSize the most words a shingle joins, at least 2, or 0 to only emit registered phrases
+     * @param minPathScore the lowest path score to emit a shingle for, 0 keeps every path
+     * @param phrases the registered phrases, each of at least two words joined by {@link #SEPARATOR}
+     */
+    public LatticeShingleFilter(TokenStream input, LatticePayloadEncoding encoding, int maxShingleSize,
+                                float minPathScore, Set<String> phrases) {
+        super(input);
+        if (maxShingleSize < 2 && maxShingleSize != 0) {
+            throw new IllegalArgumentException("maxShingleSize must be >= 2, or 0, got " + maxShingleSize);
+        }
+        this.encoding = encoding;
+        this.maxShingleSize = maxShingleSize;
+        this.minPathScore = minPathScore;
+        this.phrases = phrases;
+        this.phrasePrefixes = new HashSet<>();
+        int maxPathLength = maxShingleSize;
+        for (String phrase : phrases) {
+            String[] words = phrase.split(String.valueOf(SEPARATOR));
+            if (words.length < 2) {
+                throw new IllegalArgumentException("A registered phrase needs at least two words, got [" + phrase
+                        + "]");
+            }
+            maxPathLength = Math.max(maxPathLength, words.length);
+            for (int end = phrase.indexOf(SEPARATOR); end >= 0; end = phrase.indexOf(SEPARATOR, end + 1)) {
+                phrasePrefixes.add(phrase.substring(0, end));
+            }
+        }
+        this.maxPathLength = maxPathLength;
+        this.pruneEarly = minPathScore > 0.0f && encoding.maxScore() <= 1.0f;
+        this.payload = new BytesRef(new byte[encoding.numBytes()]);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        while (pending.isEmpty()) {
+            while (window.size() < maxPathLength && exhausted == false) {
+                Bin bin = readBin();
+                if (bin != null) {
+                    window.addLast(bin);
+                }
+            }
+            if (window.isEmpty()) {
+                return false;
+            }
+            addShingles(window.pollFirst());
+        }
+        Shingle shingle = pending.pollFirst();
+        clearAttributes();
+        termAtt.setEmpty().append(shingle.text);
+        posIncAtt.setPositionIncrement(shingle.position - emittedPosition);
+        emittedPosition = shingle.position;
+        encoding.encode(shingle.score, payload.bytes, 0);
+        payAtt.setPayload(payload);
+        offsetAtt.setOffset(shingle.startOffset, shingle.endOffset);
+        return true;
+    }
+
+    /**
+     * Adds the shingles of every path that starts in {@code first} and runs through the adjacent bins after it
+     */
+    private void addShingles(Bin first) {
+        List<Bin> path = new ArrayList<>(maxPathLength);
+        path.add(first);
+        for (Bin bin : window) {
+            if (path.size() == maxPathLength || bin.position != path.get(path.size() - 1).position + 1) {
+                break;
+            }
+            path.add(bin);
+        }
+        if (path.size() < 2) {
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        for (Arc arc : first.arcs.values()) {
+            text.setLength(0);
+            text.append(arc.text);
+            if (mayExtend(1, text)) {
+                extend(path, 1, text, arc.score, arc.startOffset);
+            }
+        }
+    }
+
+    private void extend(List<Bin> path, int depth, StringBuilder text, float score, int startOffset) {
+        int length = text.length();
+        for (Arc arc : path.get(depth).arcs.values()) {
+            float pathScore = score * arc.score;
+            if (pruneEarly && pathScore < minPathScore) {
+                continue;
+            }
+            text.setLength(length);
+            text.append(SEPARATOR).append(arc.text);
+            int numWords = depth + 1;
+            if (pathScore >= minPathScore && (numWords <= maxShingleSize || phrases.contains(text.toString()))) {
+                pending.addLast(new Shingle(text.toString(), path.get(0).position, pathScore, startOffset,
+                        arc.endOffset));
+            }
+            if (numWords < path.size() && mayExtend(numWords, text)) {
+                extend(path, numWords, text, pathScore, startOffset);
+            }
+        }
+        text.setLength(length);
+    }
+
+    /**
+     * @return true if a path of {@code numWords} words may lead to a shingle, either because longer shingles are
+     * emitted or because its words start a registered phrase
+     */
+    private boolean mayExtend(int numWords, StringBuilder text) {
+        return numWords < maxShingleSize || phrasePrefixes.contains(text.toString());
+    }
+
+    /**
+     * @return the arcs at the next position of the input, or null once it has none left
+     */
+    private Bin readBin() throws IOException {
+        if (nextArc != null) {
+            restoreState(nextArc);
+            nextArc = null;
+        } else if (input.incrementToken() == false) {
+            exhausted = true;
+            return null;
+        }
+        inputPosition += posIncAtt.getPositionIncrement();
+        Bin bin = new Bin(inputPosition);
+        while (true) {
+            BytesRef arcPayload = payAtt.getPayload();
+            // a token without a payload is certain
+            float score = arcPayload == null ? 1.0f : encoding.decode(arcPayload.bytes, arcPayload.offset);
+            bin.add(termAtt.toString(), score, offsetAtt.startOffset(), offsetAtt.endOffset());
+            if (input.incrementToken() == false) {
+                exhausted = true;
+                return bin;
+            }
+            if (posIncAtt.getPositionIncrement() > 0) {
+                nextArc = captureState();
+                return bin;
+            }
+        }
+    }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        // positions the input moved past without a shingle, so positions after this stream line up with the arcs'
+        posIncAtt.setPositionIncrement(posIncAtt.getPositionIncrement() + inputPosition - emittedPosition);
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        window.clear();
+        pending.clear();
+        nextArc = null;
+        exhausted = false;
+        inputPosition = -1;
+        emittedPosition = -1;
+    }
+
+    private static final class Bin {
+        final int position;
+        // score bucket duplicates of an arc share its text
+        final Map<String, Arc> arcs = new LinkedHashMap<>();
+
+        Bin(int position) {
+            this.position = position;
+        }
+
+        void add(String text, float score, int startOffset, int endOffset) {
+            Arc arc = arcs.get(text);
+            if (arc == null) {
+                arcs.put(text, new Arc(text, score, startOffset, endOffset));
+            } else if (score > arc.score) {
+                arc.score = score;
+            }
+        }
+    }
+
+    private static final class Arc {
+        final String text;
+        float score;
+        final int startOffset;
+        final int endOffset;
+
+        Arc(String text, float score, int startOffset, int endOffset) {
+            this.text = text;
+            this.score = score;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+        }
+    }
+
+    private static final class Shingle {
+        final String text;
+        final int position;
+        final float score;
+        final int startOffset;
+        final int endOffset;
+
+        Shingle(String text, int position, float score, int startOffset, int endOffset) {
+            this.text = text;
+            this.position = position;
+            this.score = score;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+        }
+    }
+}
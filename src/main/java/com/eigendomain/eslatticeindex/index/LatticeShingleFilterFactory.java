@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Builds {@link LatticeShingleFilter}s, to follow a {@code lattice} filter or tokenizer with the same
+ * {@code payload_encoding}.  The registered {@code phrases} are given as they are indexed, after any filters before
+ * this one.
+ */
+public class LatticeShingleFilterFactory extends AbstractTokenFilterFactory {
+    public static final int DEFAULT_MAX_SHINGLE_SIZE = 3;
+
+    private final LatticePayloadEncoding payloadEncoding;
+    private final int maxShingleSize;
+    private final float minPathScore;
+    private final Set<String> phrases;
+
+    public LatticeShingleFilterFactory(IndexSettings indexSettings, Environment env, String name, Settings settings) {
+        super(indexSettings, name, settings);
+        this.payloadEncoding = LatticePayloadEncoding.fromString(settings.get("payload_encoding", "float"));
+        this.maxShingleSize = settings.getAsInt("max_shingle_size", DEFAULT_MAX_SHINGLE_SIZE);
+        if (maxShingleSize < 2 && maxShingleSize != 0) {
+            throw new IllegalArgumentException("'max_shingle_size' must be at least 2, or 0 to only emit 'phrases'");
+        }
+        this.minPathScore = settings.getAsFloat("min_path_score", 0.0f);
+        if (minPathScore < 0.0f) {
+            throw new IllegalArgumentException("'min_path_score' must not be negative");
+        }
+        this.phrases = new HashSet<>();
+        for (String phrase : settings.getAsList("phrases")) {
+            String[] words = Strings.tokenizeToStringArray(phrase, " \t\n\r");
+            if (words.length < 2) {
+                throw new IllegalArgumentException("'phrases' must have at least two words each, got [" + phrase + "]");
+            }
+            phrases.add(String.join(String.valueOf(LatticeShingleFilter.SEPARATOR), words));
+        }
+    }
+
+    @Override
+    public TokenStream create(TokenStream input) {
+        return new LatticeShingleFilter(input, payloadEncoding, maxShingleSize, minPathScore, phrases);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index;
+
+import com.eigendomain.eslatticeindex.mapper.LatticeFieldMapper;
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The lattice parsing settings shared by the {@code lattice} token filter and the {@code lattice} tokenizer.
+ */
+final class LatticeTokenConfig {
+    static final String FREQUENCY_MODE_DUPLICATE = "duplicate";
+    static final String FREQUENCY_MODE_TERM_FREQUENCY = "term_frequency";
+
+    private final SortedMap<Float, Integer> buckets;
+    private final float frequencyScale;
+    private final boolean termFrequencyMode;
+    private final String latticeFormat;
+    private final float audioSecondsPositionIncrementInterval;
+    // TODO
+    // private final int imagePixelPositionIncrementInterval;
+    private final char fieldDelimiter;
+    private final LatticePayloadEncoding payloadEncoding;
+    private final int maxRank;
+    private final float minScore;
+    private final char[] epsilonToken;
+    private final LatticeAnalysisStats stats;
+
+    /**
+     * The defaults, with the given delimiter and score buckets
+     */
+    LatticeTokenConfig(char fieldDelimiter, SortedMap<Float, Integer> buckets) {
+        this.buckets = buckets;
+        this.frequencyScale = 0.0f;
+        this.termFrequencyMode = false;
+        this.latticeFormat = LatticeFieldMapper.FORMAT_LATTICE;
+        this.audioSecondsPositionIncrementInterval = 0.01f;
+        this.fieldDelimiter = fieldDelimiter;
+        this.payloadEncoding = LatticePayloadEncoding.FLOAT;
+        this.maxRank = -1;
+        this.minScore = Float.NEGATIVE_INFINITY;
+        this.epsilonToken = null;
+        this.stats = new LatticeAnalysisStats();
+    }
+
+    /**
+     * @param stats where the filters and tokenizers built from this configuration report what they did
+     */
+    LatticeTokenConfig(Settings settings, LatticeAnalysisStats stats) {
+        this.buckets = parseBucketList(settings.getAsList("score_buckets"));
+        this.frequencyScale = settings.getAsFloat("score_frequency_scale", 0.0f);
+        if (frequencyScale < 0.0f) {
+            throw new IllegalArgumentException("'score_frequency_scale' must not be negative");
+        }
+        if (frequencyScale > 0.0f && buckets.isEmpty() == false) {
+            throw new IllegalArgumentException("'score_frequency_scale' cannot be used together with 'score_buckets'");
+        }
+        String frequencyMode = settings.get("score_frequency_mode", FREQUENCY_MODE_DUPLICATE);
+        switch (frequencyMode) {
+            case FREQUENCY_MODE_DUPLICATE:
+                this.termFrequencyMode = false;
+                break;
+            case FREQUENCY_MODE_TERM_FREQUENCY:
+                this.termFrequencyMode = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid score frequency mode '" + frequencyMode + "'");
+        }
+        this.latticeFormat = settings.get("lattice_format", "lattice");
+        this.audioSecondsPositionIncrementInterval = settings.getAsFloat("audio_position_increment_seconds", 0.01f);
+
+        String delimiter = settings.get("field_delimiter", "|");
+        if (delimiter.length() != 1) {
+            throw new IllegalArgumentException("'field_delimiter' must be a single character");
+        }
+        this.fieldDelimiter = delimiter.charAt(0);
+        this.payloadEncoding = LatticePayloadEncoding.fromString(settings.get("payload_encoding", "float"));
+        this.maxRank = settings.getAsInt("max_rank", -1);
+        if (settings.get("max_rank") != null && maxRank < 0) {
+            throw new IllegalArgumentException("'max_rank' must not be negative");
+        }
+        this.minScore = settings.getAsFloat("min_score", Float.NEGATIVE_INFINITY);
+        String epsilon = settings.get("epsilon_token");
+        if (epsilon != null && epsilon.isEmpty()) {
+            throw new IllegalArgumentException("'epsilon_token' must not be empty");
+        }
+        this.epsilonToken = epsilon == null ? null : epsilon.toCharArray();
+        this.stats = stats;
+        // fail on a bad format when the analysis chain is built rather than on the first document
+        getLatticeTokenPartsFactory();
+    }
+
+    LatticeTokenSequencer<?> newSequencer() {
+        return newSequencer(getLatticeTokenPartsFactory());
+    }
+
+    private <T extends LatticeTokenParts<T>> LatticeTokenSequencer<T> newSequencer(LatticeTokenPartsFactory<T> f) {
+        return new LatticeTokenSequencer<>(f, this);
+    }
+
+    SortedMap<Float, Integer> buckets() {
+        return buckets;
+    }
+
+    float frequencyScale() {
+        return frequencyScale;
+    }
+
+    boolean termFrequencyMode() {
+        return termFrequencyMode;
+    }
+
+    char fieldDelimiter() {
+        return fieldDelimiter;
+    }
+
+    LatticePayloadEncoding payloadEncoding() {
+        return payloadEncoding;
+    }
+
+    /**
+     * @return the highest rank of arc to index, or -1 to index every rank
+     */
+    int maxRank() {
+        return maxRank;
+    }
+
+    /**
+     * @return the text of arcs that mark the absence of a word, or null if there is none
+     */
+    char[] epsilonToken() {
+        return epsilonToken;
+    }
+
+    /**
+     * @return the lowest score of arc to index
+     */
+    float minScore() {
+        return minScore;
+    }
+
+    LatticeAnalysisStats stats() {
+        return stats;
+    }
+
+    private LatticeTokenPartsFactory<?> getLatticeTokenPartsFactory() {
+        String f = LatticeFieldMapper.parseLatticeFormat(this.latticeFormat);
+        IllegalArgumentException invalidFormat = new IllegalArgumentException("Invalid lattice format '" + latticeFormat + "'");
+        if (null == f) {
+            throw invalidFormat;
+        }
+        switch (f) {
+            case LatticeFieldMapper.FORMAT_LATTICE:
+                return new BaseLatticeTokenParts.Factory();
+            case LatticeFieldMapper.FORMAT_AUDIO:
+                return new AudioLatticeTokenParts.Factory(this.audioSecondsPositionIncrementInterval);
+        }
+        throw invalidFormat;
+    }
+
+    private static SortedMap<Float, Integer> parseBucketList(List<String> bucketsStrings) {
+        SortedMap<Float, Integer> buckets = new TreeMap<>(new Comparator<Float>() {
+            @Override
+            public int compare(Float o1, Float o2) {
+                float d = o1 - o2;
+                if (d < 0.0) {
+                    return 1;
+                } else if (d > 0.0) {
+                    return -1;
+                } else {
+                    return 0;
+                }
+            }
+        });
+        float threshold = 1.0f;
+        for (int i = 0; i < bucketsStrings.size(); ++i) {
+            if (i % 2 == 0) {
+                threshold = Float.parseFloat(bucketsStrings.get(i));
+                buckets.put(threshold, 1);
+            } else {
+               buckets.put(threshold, Integer.parseInt(bucketsStrings.get(i)));
+            }
+        }
+
+        return buckets;
+    }
+}
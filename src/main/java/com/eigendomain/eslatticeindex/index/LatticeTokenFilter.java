@@ -17,98 +17,73 @@ package com.eigendomain.eslatticeindex.index;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermFrequencyAttribute;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Map;
 import java.util.SortedMap;
 
 public class LatticeTokenFilter<T extends LatticeTokenParts<T>> extends TokenFilter {
-    private final char delimiter;
     private final PayloadAttribute payAtt = addAttribute(PayloadAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
     private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final TermFrequencyAttribute termFreqAtt = addAttribute(TermFrequencyAttribute.class);
+    private final LatticeRankAttribute rankAtt = addAttribute(LatticeRankAttribute.class);
 
-    private final LatticeTokenPartsFactory<T> tokenPartsFactory;
+    private final LatticeTokenSequencer<T> sequencer;
 
-    private T currTokParts;
-    private T lastTokParts;
-    private T tmpTok;
-    private boolean firstTok;
-
-    private final ArrayList<Map.Entry<Float, Integer>> bucketEntries;
-    private int repeatTok;
+    // duplicates share the offsets of the original token; Lucene rejects offsets that go backwards
+    private int startOffset;
+    private int endOffset;
 
     public LatticeTokenFilter(TokenStream input, SortedMap<Float, Integer> buckets, char fieldDelimiter,
                               LatticeTokenPartsFactory<T> tokenPartsFactory) {
-        super(input);
-        this.tokenPartsFactory = tokenPartsFactory;
-
-        currTokParts = this.tokenPartsFactory.create(fieldDelimiter);
-        lastTokParts = this.tokenPartsFactory.create(fieldDelimiter);
-        tmpTok = null;
-        firstTok = true;
-        repeatTok = 0;
-
-        delimiter = fieldDelimiter;
+        this(input, new LatticeTokenSequencer<>(tokenPartsFactory, fieldDelimiter, buckets));
+    }
 
-        this.bucketEntries = new ArrayList<>(buckets.entrySet());
+    LatticeTokenFilter(TokenStream input, LatticeTokenSequencer<T> sequencer) {
+        super(input);
+        this.sequencer = sequencer;
     }
 
     @Override
     public final boolean incrementToken() throws IOException {
         clearAttributes();
-        if (repeatTok > 0) {
-            posIncAtt.setPositionIncrement(0);
-            payAtt.setPayload(lastTokParts.encodedScore());
-            termAtt.append(lastTokParts.token());
-            termAtt.setLength(lastTokParts.tokenLen());
-            repeatTok--;
+        if (sequencer.emitRepeat(termAtt, posIncAtt, payAtt, rankAtt)) {
+            offsetAtt.setOffset(startOffset, endOffset);
             return true;
-        } else if (input.incrementToken()) {
-            if (currTokParts.parseToken(termAtt.buffer(), termAtt.length())) {
-                payAtt.setPayload(currTokParts.encodedScore());
-                termAtt.setLength(currTokParts.tokenLen());
-
-                if (firstTok) {
-                    posIncAtt.setPositionIncrement(currTokParts.firstTokenIncrement());
-                } else {
-                   posIncAtt.setPositionIncrement(currTokParts.positionIncrement(lastTokParts));
+        }
+        while (input.incrementToken()) {
+            final T parts = sequencer.current();
+            final boolean parsed = parts.parseToken(termAtt.buffer(), termAtt.length());
+            if (sequencer.skipEpsilon(termAtt.buffer(), parsed ? parts.tokenLen() : termAtt.length())) {
+                continue;
+            }
+            if (parsed) {
+                if (sequencer.prune()) {
+                    continue;
                 }
-
-                firstTok = false;
-                repeatTok = tokRepeats(currTokParts.score()) - 1;
-
-                tmpTok = lastTokParts;
-                lastTokParts = currTokParts;
-                currTokParts = tmpTok;
-                currTokParts.reset();
+                sequencer.emit(termAtt, posIncAtt, payAtt, termFreqAtt, rankAtt);
             }
+            startOffset = offsetAtt.startOffset();
+            endOffset = offsetAtt.endOffset();
             return true;
-        } else {
-            return false;
         }
+        return false;
     }
 
     @Override
-    public void reset() throws IOException {
-        super.reset();
-        currTokParts.reset();
-        lastTokParts.reset();
-        tmpTok = null;
-
-        firstTok = true;
-        repeatTok = 0;
+    public void end() throws IOException {
+        super.end();
+        sequencer.flushStats();
     }
 
-    private int tokRepeats(float score) {
-        for (Map.Entry<Float, Integer> e : bucketEntries) {
-            if (score >= e.getKey()) {
-                return e.getValue();
-            }
-        }
-        return 1;
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        sequencer.reset();
     }
 }
@@ -14,87 +14,24 @@
 
 package com.eigendomain.eslatticeindex.index;
 
-import com.eigendomain.eslatticeindex.mapper.LatticeFieldMapper;
 import org.apache.lucene.analysis.TokenStream;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
 
-import java.util.Comparator;
-import java.util.List;
-import java.util.SortedMap;
-import java.util.TreeMap;
-
 
 public class LatticeTokenFilterFactory extends AbstractTokenFilterFactory {
-    private SortedMap<Float, Integer> buckets;
-
-    private final String latticeFormat;
-    private final float audioSecondsPositionIncrementInterval;
-    // TODO
-    // private final int imagePixelPositionIncrementInterval;
-    private final String fieldDelimiter;
+    private final LatticeTokenConfig config;
 
-    public LatticeTokenFilterFactory(IndexSettings indexSettings, Environment env, String name, Settings settings) {
+    public LatticeTokenFilterFactory(IndexSettings indexSettings, Environment env, String name, Settings settings,
+                                     LatticeAnalysisStats stats) {
         super(indexSettings, name, settings);
-        this.buckets = parseBucketList(settings.getAsList("score_buckets"));
-        this.fieldDelimiter = settings.get("field_delimiter", "|");
-        this.latticeFormat = settings.get("lattice_format", "lattice");
-        this.audioSecondsPositionIncrementInterval = settings.getAsFloat("audio_position_increment_seconds", 0.01f);
+        this.config = new LatticeTokenConfig(settings, stats);
     }
 
     @Override
     public LatticeTokenFilter<?> create(TokenStream input) {
-        if (this.fieldDelimiter.length() != 1) {
-            throw new IllegalArgumentException("'field_delimiter' must be a single character");
-        }
-        char delim = this.fieldDelimiter.toCharArray()[0];
-
-        return new LatticeTokenFilter<>(input, this.buckets, delim, getLatticeTokenPartsFactory());
-    }
-
-    private LatticeTokenPartsFactory<?> getLatticeTokenPartsFactory() {
-        String f = LatticeFieldMapper.parseLatticeFormat(this.latticeFormat);
-        IllegalArgumentException invalidFormat = new IllegalArgumentException("Invalid lattice format '" + latticeFormat + "'");
-        if (null == f) {
-            throw invalidFormat;
-        }
-        switch (f) {
-            case LatticeFieldMapper.FORMAT_LATTICE:
-                //System.out.println("Creating lattice format");
-                return new BaseLatticeTokenParts.Factory();
-            case LatticeFieldMapper.FORMAT_AUDIO:
-                //System.out.println("Creating audio format");
-                return new AudioLatticeTokenParts.Factory(this.audioSecondsPositionIncrementInterval);
-        }
-        throw invalidFormat;
-    }
-
-    private SortedMap<Float, Integer> parseBucketList(List<String> bucketsStrings) {
-        SortedMap<Float, Integer> buckets = new TreeMap<>(new Comparator<Float>() {
-            @Override
-            public int compare(Float o1, Float o2) {
-                float d = o1 - o2;
-                if (d < 0.0) {
-                    return 1;
-                } else if (d > 0.0) {
-                    return -1;
-                } else {
-                    return 0;
-                }
-            }
-        });
-        float threshold = 1.0f;
-        for (int i = 0; i < bucketsStrings.size(); ++i) {
-            if (i % 2 == 0) {
-                threshold = Float.parseFloat(bucketsStrings.get(i));
-                buckets.put(threshold, 1);
-            } else {
-               buckets.put(threshold, Integer.parseInt(bucketsStrings.get(i)));
-            }
-        }
-
-        return buckets;
+        return new LatticeTokenFilter<>(input, config.newSequencer());
     }
 }
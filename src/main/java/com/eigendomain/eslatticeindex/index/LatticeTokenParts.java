@@ -14,32 +14,57 @@
 
 package com.eigendomain.eslatticeindex.index;
 
-import org.apache.lucene.analysis.payloads.FloatEncoder;
-import org.apache.lucene.analysis.payloads.PayloadEncoder;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 
 import java.io.IOException;
-import java.util.Arrays;
 
+/**
+ * Parses a single lattice token of the form {@code token|pos|rank|score[|...]}.
+ *
+ * Instances are reused from token to token, so parsing writes straight into primitive fields, a private copy of the
+ * token characters and a fixed payload buffer rather than allocating per token.
+ */
 abstract class LatticeTokenParts<T extends LatticeTokenParts<T>> {
-    private static final PayloadEncoder encoder =  new FloatEncoder();
+    // powers of ten that are exactly representable as floats
+    private static final float[] FLOAT_POW10 = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+    private static final int MAX_EXACT_FLOAT_INT = 1 << 24;
 
     private final char fieldDelimiter;
+    private final int[] delimiterLocs;
+    private final byte[] payloadBytes;
+    private final BytesRef encodedScore;
+    private LatticePayloadEncoding payloadEncoding;
 
+    private char[] tokenBuffer;
     private int pos;
     private int rank;
     private int tokenLen;
-    private BytesRef encodedScore;
-    private Float score;
-    private String token;
+    private float score;
+    private boolean hasScore;
 
     LatticeTokenParts(char fieldDelimiter) {
         this.fieldDelimiter = fieldDelimiter;
+        this.delimiterLocs = new int[numFields()];
+        this.payloadBytes = new byte[4];
+        this.encodedScore = new BytesRef(payloadBytes);
+        this.payloadEncoding(LatticePayloadEncoding.FLOAT);
+        this.tokenBuffer = new char[16];
         this.reset();
     }
 
+    /**
+     * @return a new String holding the token text; prefer {@link #tokenBuffer()} on hot paths
+     */
     public String token() {
-        return token;
+        return new String(tokenBuffer, 0, tokenLen);
+    }
+
+    /**
+     * @return the reused buffer holding the token text in its first {@link #tokenLen()} chars
+     */
+    public char[] tokenBuffer() {
+        return tokenBuffer;
     }
 
     public char delimiter() {
@@ -62,14 +87,23 @@ abstract class LatticeTokenParts<T extends LatticeTokenParts<T>> {
         return tokenLen;
     }
 
+    /**
+     * @return the encoded score, backed by a buffer that is overwritten by the next parse, or null if nothing has
+     * been parsed since the last reset
+     */
     public BytesRef encodedScore() {
-        return encodedScore;
+        return hasScore ? encodedScore : null;
     }
 
-    public Float score() {
+    public float score() {
         return score;
     }
 
+    void payloadEncoding(LatticePayloadEncoding payloadEncoding) {
+        this.payloadEncoding = payloadEncoding;
+        this.encodedScore.length = payloadEncoding.numBytes();
+    }
+
     public int positionIncrement(T lastTokenParts) {
         if (lastTokenParts.pos() == pos()) {
             return 0;
@@ -82,70 +116,150 @@ abstract class LatticeTokenParts<T extends LatticeTokenParts<T>> {
     }
 
     protected boolean parseFields(char[] token, int len, int[] delimiterLocs) {
-        this.token = getToken(token, delimiterLocs);
         this.tokenLen = getTokenLen(delimiterLocs);
+        this.tokenBuffer = ArrayUtil.grow(this.tokenBuffer, this.tokenLen);
+        System.arraycopy(token, 0, this.tokenBuffer, 0, this.tokenLen);
         this.pos = parseInteger(token, len, delimiterLocs, 1);
         this.rank = parseInteger(token, len, delimiterLocs, 2);
         this.score = parseFloat(token, len, delimiterLocs, 3);
-        this.encodedScore = encodeFloat(token, len, delimiterLocs, 3);
+        payloadEncoding.encode(this.score, payloadBytes, 0);
+        this.hasScore = true;
         return true;
     }
 
     public final boolean parseToken(char[] token, int len) throws IOException {
-        final int[] delimiterLocs = findDelimiters(token, len);
-        if (delimiterLocs == null) {
+        return parseToken(token, len, findDelimiters(token, len));
+    }
+
+    /**
+     * Parses a token whose delimiters the caller has already written to {@link #delimiterLocs()}.
+     * @param numDelimiters the number of delimiter locations written
+     * @return false if the token has no delimiters and should be passed through as is
+     */
+    final boolean parseToken(char[] token, int len, int numDelimiters) throws IOException {
+        if (numDelimiters == 0) {
             return false;
+        } else if (numDelimiters != delimiterLocs.length) {
+            throw new IOException("Failed to parse token: " + String.valueOf(token, 0, len));
         }
         return parseFields(token, len, delimiterLocs);
     }
 
-    protected static int getTokenLen(int[] delimiterLocs) {
-        return delimiterLocs[0];
+    /**
+     * @return the reused array of delimiter offsets, sized to {@link #numFields()}
+     */
+    final int[] delimiterLocs() {
+        return delimiterLocs;
     }
 
-    protected static String getToken(char[] token, int[] delimiterLocs) {
-        return String.copyValueOf(token, 0, delimiterLocs[0]);
+    protected static int getTokenLen(int[] delimiterLocs) {
+        return delimiterLocs[0];
     }
 
     protected static int parseInteger(char[] token, int len, int[] delimiterLocs, int fieldNum) {
         int end = fieldNum < delimiterLocs.length ? delimiterLocs[fieldNum] : len;
-        return Integer.parseInt(String.valueOf(Arrays.copyOfRange(token, delimiterLocs[fieldNum-1]+1, end)));
+        return parseInteger(token, delimiterLocs[fieldNum-1]+1, end);
     }
 
-    protected static Float parseFloat(char[] token, int len, int[] delimiterLocs, int fieldNum) {
+    protected static float parseFloat(char[] token, int len, int[] delimiterLocs, int fieldNum) {
         int end = fieldNum < delimiterLocs.length ? delimiterLocs[fieldNum] : len;
-        return Float.parseFloat(String.valueOf(Arrays.copyOfRange(token, delimiterLocs[fieldNum-1]+1, end)));
+        return parseFloat(token, delimiterLocs[fieldNum-1]+1, end);
     }
 
-    protected static BytesRef encodeFloat(char[] token, int len, int[] delimiterLocs, int fieldNum) {
-        int end = fieldNum < delimiterLocs.length ? delimiterLocs[fieldNum] : len;
-        return encoder.encode(token, delimiterLocs[fieldNum-1]+1, end - (delimiterLocs[fieldNum-1]+1));
+    /**
+     * Parses {@code buf[start:end]} exactly as {@link Integer#parseInt(String)} would, without allocating for plain
+     * ASCII input.
+     */
+    static int parseInteger(char[] buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        int limit = -Integer.MAX_VALUE;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            if (negative) {
+                limit = Integer.MIN_VALUE;
+            }
+            i++;
+        }
+        if (i == end) {
+            return Integer.parseInt(String.valueOf(buf, start, end - start));
+        }
+        final int multMin = limit / 10;
+        int result = 0;
+        for (; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9 || result < multMin) {
+                // non-ascii digits, garbage or overflow; let the JDK decide
+                return Integer.parseInt(String.valueOf(buf, start, end - start));
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                return Integer.parseInt(String.valueOf(buf, start, end - start));
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Parses {@code buf[start:end]} exactly as {@link Float#parseFloat(String)} would.
+     *
+     * Plain decimals whose significant digits fit in a float (at most 2^24) with at most 10 fractional digits are
+     * computed as a single correctly rounded float division, which gives the same result as the JDK.  Everything
+     * else (exponents, long mantissas, NaN, ...) falls back to {@link Float#parseFloat(String)}.
+     */
+    static float parseFloat(char[] buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int fracDigits = 0;
+        boolean seenDot = false;
+        boolean seenDigit = false;
+        for (; i < end; i++) {
+            char c = buf[i];
+            if (c >= '0' && c <= '9') {
+                seenDigit = true;
+                mantissa = mantissa * 10 + (c - '0');
+                if (seenDot) {
+                    fracDigits++;
+                }
+                if (mantissa > MAX_EXACT_FLOAT_INT || fracDigits >= FLOAT_POW10.length) {
+                    return Float.parseFloat(String.valueOf(buf, start, end - start));
+                }
+            } else if (c == '.' && seenDot == false) {
+                seenDot = true;
+            } else {
+                return Float.parseFloat(String.valueOf(buf, start, end - start));
+            }
+        }
+        if (seenDigit == false) {
+            return Float.parseFloat(String.valueOf(buf, start, end - start));
+        }
+        float value = (float) mantissa / FLOAT_POW10[fracDigits];
+        return negative ? -value : value;
     }
 
     public void reset() {
         pos = 0;
         rank = 0;
         tokenLen = 0;
-        encodedScore = null;
-        score = null;
+        score = 0;
+        hasScore = false;
     }
 
-    private int[] findDelimiters(char[] token, int len) throws IOException {
-        int nFields = numFields();
+    private int findDelimiters(char[] token, int len) {
+        int nFields = delimiterLocs.length;
         char d = delimiter();
-        final int[] locs = new int[nFields];
         int i = 0;
         for (int j = 0; j < len && i < nFields; j++) {
             if (d == token[j]) {
-                locs[i++] = j;
+                delimiterLocs[i++] = j;
             }
         }
-        if (i == 0) {
-            return null;
-        } else if (i == nFields) {
-            return locs;
-        } else {
-            throw new IOException("Failed to parse token: " + String.valueOf(token));
-        }
+        return i;
     }
 }
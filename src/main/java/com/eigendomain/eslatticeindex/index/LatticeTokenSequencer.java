@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index;
+
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermFrequencyAttribute;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Turns a sequence of parsed lattice arcs into token attributes: position increments relative to the previous arc,
+ * score payloads and score frequencies.  Shared by {@link LatticeTokenFilter} and {@link LatticeTokenizer} so
+ * both emit the same token stream.
+ *
+ * An arc's score frequency comes from the score buckets, or failing those from the linear frequency scale.  It is
+ * either indexed as that many duplicate tokens, or, in term frequency mode, as a single token carrying a custom
+ * {@link TermFrequencyAttribute}.
+ *
+ * Each token carries the rank of its arc in a {@link LatticeRankAttribute}.
+ *
+ * Arcs can be pruned by rank and score.  A pruned arc still takes part in position bookkeeping, so the arcs that are
+ * kept are indexed at exactly the positions they would have had without pruning.  Epsilon arcs, on the other hand, are
+ * skipped without moving the lattice forward.  For the lattice format a bin holding nothing but epsilon arcs then
+ * takes up no position at all.  Audio positions are derived from each token's start time instead, so the time such a
+ * bin covers still separates its neighbours and costs slop.
+ */
+final class LatticeTokenSequencer<T extends LatticeTokenParts<T>> {
+    private final float[] bucketThresholds;
+    private final int[] bucketRepeats;
+    private final float frequencyScale;
+    private final boolean termFrequencyMode;
+    private final int maxRank;
+    private final float minScore;
+    private final char[] epsilonToken;
+    private final LatticeAnalysisStats stats;
+
+    private T currTokParts;
+    private T lastTokParts;
+    private boolean firstTok;
+    private int repeatTok;
+    private int pendingPositionIncrement;
+    private long prunedByRank;
+    private long prunedByScore;
+    private long epsilonsSkipped;
+
+    LatticeTokenSequencer(LatticeTokenPartsFactory<T> tokenPartsFactory, char fieldDelimiter,
+                          SortedMap<Float, Integer> buckets) {
+        this(tokenPartsFactory, new LatticeTokenConfig(fieldDelimiter, buckets));
+    }
+
+    LatticeTokenSequencer(LatticeTokenPartsFactory<T> tokenPartsFactory, LatticeTokenConfig config) {
+        this.frequencyScale = config.frequencyScale();
+        this.termFrequencyMode = config.termFrequencyMode();
+        this.maxRank = config.maxRank();
+        this.minScore = config.minScore();
+        this.epsilonToken = config.epsilonToken();
+        this.stats = config.stats();
+        this.currTokParts = tokenPartsFactory.create(config.fieldDelimiter());
+        this.lastTokParts = tokenPartsFactory.create(config.fieldDelimiter());
+        this.currTokParts.payloadEncoding(config.payloadEncoding());
+        this.lastTokParts.payloadEncoding(config.payloadEncoding());
+
+        SortedMap<Float, Integer> buckets = config.buckets();
+        this.bucketThresholds = new float[buckets.size()];
+        this.bucketRepeats = new int[buckets.size()];
+        int i = 0;
+        for (Map.Entry<Float, Integer> e : buckets.entrySet()) {
+            bucketThresholds[i] = e.getKey();
+            bucketRepeats[i] = e.getValue();
+            i++;
+        }
+        reset();
+    }
+
+    /**
+     * @return the parts the next arc should be parsed into
+     */
+    T current() {
+        return currTokParts;
+    }
+
+    /**
+     * Drops the token in the first {@code length} chars of {@code buffer} if it is the epsilon token.  Unlike a pruned
+     * arc, an epsilon arc is not used to work out the next arc's position increment.
+     * @return true if the token was an epsilon and must not be emitted
+     */
+    boolean skipEpsilon(char[] buffer, int length) {
+        if (epsilonToken == null || length != epsilonToken.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] != epsilonToken[i]) {
+                return false;
+            }
+        }
+        epsilonsSkipped++;
+        currTokParts.reset();
+        return true;
+    }
+
+    /**
+     * Drops the arc just parsed into {@link #current()} if it fails the rank or score limits.  Its position increment
+     * is carried over to the next arc that is emitted.
+     * @return true if the arc was dropped and must not be emitted
+     */
+    boolean prune() {
+        if (maxRank >= 0 && currTokParts.rank() > maxRank) {
+            prunedByRank++;
+        } else if (currTokParts.score() < minScore) {
+            prunedByScore++;
+        } else {
+            return false;
+        }
+        pendingPositionIncrement += positionIncrement();
+        repeatTok = 0;
+        advance();
+        return true;
+    }
+
+    /**
+     * Sets the attributes for the arc just parsed into {@link #current()}.  The token text is expected to already be
+     * at the start of the term buffer.
+     */
+    void emit(CharTermAttribute termAtt, PositionIncrementAttribute posIncAtt, PayloadAttribute payAtt,
+              TermFrequencyAttribute termFreqAtt, LatticeRankAttribute rankAtt) {
+        payAtt.setPayload(currTokParts.encodedScore());
+        rankAtt.setRank(currTokParts.rank());
+        termAtt.setLength(currTokParts.tokenLen());
+        posIncAtt.setPositionIncrement(positionIncrement() + pendingPositionIncrement);
+        pendingPositionIncrement = 0;
+
+        int freq = tokFrequency(currTokParts.score());
+        if (termFrequencyMode) {
+            termFreqAtt.setTermFrequency(freq);
+        } else {
+            repeatTok = freq - 1;
+        }
+        advance();
+    }
+
+    /**
+     * Emits the next score bucket duplicate of the last arc, if any are pending.
+     * @return false if there is no duplicate left to emit
+     */
+    boolean emitRepeat(CharTermAttribute termAtt, PositionIncrementAttribute posIncAtt, PayloadAttribute payAtt,
+                       LatticeRankAttribute rankAtt) {
+        if (repeatTok <= 0) {
+            return false;
+        }
+        posIncAtt.setPositionIncrement(0);
+        payAtt.setPayload(lastTokParts.encodedScore());
+        rankAtt.setRank(lastTokParts.rank());
+        termAtt.copyBuffer(lastTokParts.tokenBuffer(), 0, lastTokParts.tokenLen());
+        repeatTok--;
+        return true;
+    }
+
+    /**
+     * Adds what this stream counted to the shared {@link LatticeAnalysisStats}
+     */
+    void flushStats() {
+        stats.addPrunedArcs(prunedByRank, prunedByScore);
+        stats.addSkippedEpsilonArcs(epsilonsSkipped);
+        prunedByRank = 0;
+        prunedByScore = 0;
+        epsilonsSkipped = 0;
+    }
+
+    void reset() {
+        currTokParts.reset();
+        lastTokParts.reset();
+        firstTok = true;
+        repeatTok = 0;
+        pendingPositionIncrement = 0;
+    }
+
+    private int positionIncrement() {
+        return firstTok ? currTokParts.firstTokenIncrement() : currTokParts.positionIncrement(lastTokParts);
+    }
+
+    private void advance() {
+        firstTok = false;
+        T tmpTok = lastTokParts;
+        lastTokParts = currTokParts;
+        currTokParts = tmpTok;
+        currTokParts.reset();
+    }
+
+    private int tokFrequency(float score) {
+        for (int i = 0; i < bucketThresholds.length; i++) {
+            if (score >= bucketThresholds[i]) {
+                return bucketRepeats[i];
+            }
+        }
+        if (frequencyScale > 0.0f) {
+            return Math.max(1, Math.round(score * frequencyScale));
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermFrequencyAttribute;
+
+import java.io.IOException;
+
+/**
+ * Tokenizes whitespace separated lattice records straight from the field's Reader.  Each record is copied into the
+ * term buffer once, and its field delimiters are located during that same copy, so it emits the same tokens as a
+ * whitespace tokenizer followed by a {@link LatticeTokenFilter} without the second scan over every record.
+ */
+public class LatticeTokenizer<T extends LatticeTokenParts<T>> extends Tokenizer {
+    private static final int IO_BUFFER_SIZE = 4096;
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final PayloadAttribute payAtt = addAttribute(PayloadAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final TermFrequencyAttribute termFreqAtt = addAttribute(TermFrequencyAttribute.class);
+    private final LatticeRankAttribute rankAtt = addAttribute(LatticeRankAttribute.class);
+
+    private final LatticeTokenSequencer<T> sequencer;
+    private final char[] ioBuffer = new char[IO_BUFFER_SIZE];
+
+    private int offset = 0;
+    private int bufferIndex = 0;
+    private int dataLen = 0;
+    private int finalOffset = 0;
+    private int recordStart = 0;
+    private int recordEnd = 0;
+
+    LatticeTokenizer(LatticeTokenSequencer<T> sequencer) {
+        this.sequencer = sequencer;
+    }
+
+    @Override
+    public final boolean incrementToken() throws IOException {
+        clearAttributes();
+        if (sequencer.emitRepeat(termAtt, posIncAtt, payAtt, rankAtt)) {
+            offsetAtt.setOffset(recordStart, recordEnd);
+            return true;
+        }
+
+        while (true) {
+            final T parts = sequencer.current();
+            final int numDelimiters = readRecord(parts.delimiterLocs(), parts.delimiter());
+            if (numDelimiters < 0) {
+                return false;
+            }
+            final boolean parsed = parts.parseToken(termAtt.buffer(), termAtt.length(), numDelimiters);
+            if (sequencer.skipEpsilon(termAtt.buffer(), parsed ? parts.tokenLen() : termAtt.length())) {
+                continue;
+            }
+            if (parsed) {
+                if (sequencer.prune()) {
+                    continue;
+                }
+                sequencer.emit(termAtt, posIncAtt, payAtt, termFreqAtt, rankAtt);
+            }
+            offsetAtt.setOffset(recordStart, recordEnd);
+            return true;
+        }
+    }
+
+    /**
+     * Copies the next whitespace separated record into the term buffer, noting its offsets and the locations of its
+     * field delimiters.
+     * @return the number of delimiters found, or -1 at the end of the input
+     */
+    private int readRecord(int[] delimiterLocs, char delimiter) throws IOException {
+        char[] buffer = termAtt.buffer();
+        int numDelimiters = 0;
+        int length = 0;
+        int start = -1;
+        while (true) {
+            if (bufferIndex >= dataLen) {
+                offset += dataLen;
+                dataLen = input.read(ioBuffer);
+                bufferIndex = 0;
+                if (dataLen <= 0) {
+                    dataLen = 0;
+                    if (length > 0) {
+                        break;
+                    }
+                    finalOffset = correctOffset(offset);
+                    return -1;
+                }
+            }
+            final char c = ioBuffer[bufferIndex++];
+            if (Character.isWhitespace(c)) {
+                if (length > 0) {
+                    break;
+                }
+                continue;
+            }
+            if (length == 0) {
+                start = offset + bufferIndex - 1;
+            }
+            if (length == buffer.length) {
+                buffer = termAtt.resizeBuffer(length + 1);
+            }
+            if (c == delimiter && numDelimiters < delimiterLocs.length) {
+                delimiterLocs[numDelimiters++] = length;
+            }
+            buffer[length++] = c;
+        }
+
+        termAtt.setLength(length);
+        recordStart = correctOffset(start);
+        recordEnd = finalOffset = correctOffset(start + length);
+        return numDelimiters;
+    }
+
+    @Override
+    public final void end() throws IOException {
+        super.end();
+        offsetAtt.setOffset(finalOffset, finalOffset);
+        sequencer.flushStats();
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        sequencer.reset();
+        offset = 0;
+        bufferIndex = 0;
+        dataLen = 0;
+        finalOffset = 0;
+        recordStart = 0;
+        recordEnd = 0;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index;
+
+import org.apache.lucene.analysis.Tokenizer;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AbstractTokenizerFactory;
+
+/*
+Takes the same settings as the lattice token filter, and replaces a whitespace tokenizer followed by that filter
+ */
+public class LatticeTokenizerFactory extends AbstractTokenizerFactory {
+    private final LatticeTokenConfig config;
+
+    public LatticeTokenizerFactory(IndexSettings indexSettings, Environment environment, String name, Settings settings,
+                                   LatticeAnalysisStats stats) {
+        super(indexSettings, settings);
+        this.config = new LatticeTokenConfig(settings, stats);
+    }
+
+    @Override
+    public Tokenizer create() {
+        return new LatticeTokenizer<>(config.newSequencer());
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index.query;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.TwoPhaseIterator;
+
+import java.io.IOException;
+
+/**
+ * Wraps a scorer's iterator so that it runs out of docs once the collector needs better scores than the scorer's
+ * {@code getMaxScore} can give
+ */
+final class CompetitiveIterator extends DocIdSetIterator {
+    private final DocIdSetIterator in;
+    private final float maxScore;
+    private float minCompetitiveScore = 0.0f;
+
+    CompetitiveIterator(DocIdSetIterator in, float maxScore) {
+        this.in = in;
+        this.maxScore = maxScore;
+    }
+
+    void setMinCompetitiveScore(float minScore) {
+        this.minCompetitiveScore = minScore;
+    }
+
+    /**
+     * @return a two phase iterator that checks {@code twoPhase}'s matches over this iterator
+     */
+    TwoPhaseIterator wrap(TwoPhaseIterator twoPhase) {
+        return new TwoPhaseIterator(this) {
+            @Override
+            public boolean matches() throws IOException {
+                return twoPhase.matches();
+            }
+
+            @Override
+            public float matchCost() {
+                return twoPhase.matchCost();
+            }
+        };
+    }
+
+    @Override
+    public int docID() {
+        return in.docID();
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+        return minCompetitiveScore > maxScore ? in.advance(NO_MORE_DOCS) : in.nextDoc();
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+        return in.advance(minCompetitiveScore > maxScore ? NO_MORE_DOCS : target);
+    }
+
+    @Override
+    public long cost() {
+        return in.cost();
+    }
+}
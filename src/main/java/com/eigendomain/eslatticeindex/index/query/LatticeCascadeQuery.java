@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.eigendomain.eslatticeindex.index.query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Searches the same query against tiers of a lattice, those holding only the most likely arcs first, and searches
+ * the first tier that matches at least {@code minHits} docs, or else the last tier.  Each tier must match every
+ * doc the tiers before it match, as the {@code rank_tiers} sub-fields of a lattice field and the field itself do, so
+ * falling through to a deeper tier only adds hits.
+ *
+ * The hits of each tier but the last are counted by the searcher the weight is created for, stopping at
+ * {@code minHits}, so a query whose top tier has enough hits never reads the postings of the less likely arcs.  Docs
+ * are scored by the arcs of the tier searched.
+ */
+public class LatticeCascadeQuery extends Query {
+
+    private final Query[] tiers;
+    private final int minHits;
+
+    /**
+     * @param tiers the query against each tier, the one with the fewest arcs first and that against every arc last
+     * @param minHits the fewest hits a tier needs to be searched rather than the next one
+     */
+    public LatticeCascadeQuery(Query[] tiers, int minHits) {
+        if (tiers.length == 0) {
+            throw new IllegalArgumentException("A cascade needs at least one tier");
+        }
+        if (minHits < 1) {
+            throw new IllegalArgumentException("minHits must be at least 1, got " + minHits);
+        }
+        this.tiers = tiers.clone();
+        this.minHits = minHits;
+    }
+
+    public Query[] getTiers() {
+        return tiers.clone();
+    }
+
+    public int getMinHits() {
+        return minHits;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        if (tiers.length == 1) {
+            return tiers[0];
+        }
+        Query[] rewritten = new Query[tiers.length];
+        boolean changed = false;
+        for (int i = 0; i < tiers.length; i++) {
+            rewritten[i] = tiers[i].rewrite(reader);
+            changed |= rewritten[i] != tiers[i];
+        }
+        return changed ? new LatticeCascadeQuery(rewritten, minHits) : super.rewrite(reader);
+    }
+
+    /**
+     * Counts the hits of each tier but the last with {@code searcher}, so the counts are subject to the same timeouts
+     * and cancellation as the search itself, and returns the weight of the tier to search.
+     */
+    @Override
+    public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        for (int i = 0; i < tiers.length - 1; i++) {
+            HitCountUpToCollector collector = new HitCountUpToCollector(minHits);
+            searcher.search(tiers[i], collector);
+            if (collector.count >= minHits) {
+                return searcher.createWeight(searcher.rewrite(tiers[i]), scoreMode, boost);
+            }
+        }
+        return searcher.createWeight(searcher.rewrite(tiers[tiers.length - 1]), scoreMode, boost);
+    }
+
+    @Override
+    public void visit(QueryVisitor visitor) {
+        QueryVisitor tierVisitor = visitor.getSubVisitor(BooleanClause.Occur.SHOULD, this);
+        for (Query tier : tiers) {
+            tier.visit(tierVisitor);
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("LatticeCascadeQuery(minHits: ");
+        buffer.append(minHits);
+        buffer.append(", tiers: [");
+        for (int i = 0; i < tiers.length; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(tiers[i].toString(field));
+        }
+        buffer.append("])");
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) &&
+                equalsTo(getClass().cast(other));
+    }
+
+    private boolean equalsTo(LatticeCascadeQuery other) {
+        return minHits == other.minHits && Arrays.equals(tiers, other.tiers);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), Arrays.hashCode(tiers), minHits);
+    }
+
+    /**
+     * Counts hits until there are {@code limit} of them, then stops collecting
+     */
+    private static final class HitCountUpToCollector extends SimpleCollector {
+        private final int limit;
+        private int count;
+
+        HitCountUpToCollector(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) {
+            if (count >= limit) {
+                throw new CollectionTerminatedException();
+            }
+        }
+
+        @Override
+        public void collect(int doc) {
+            if (++count >= limit) {
+                throw new CollectionTerminatedException();
+            }
+        }
+
+        @Override
+        public ScoreMode scoreMode() {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+    }
+}
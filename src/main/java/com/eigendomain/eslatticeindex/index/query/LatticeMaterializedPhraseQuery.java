@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.eigendomain.eslatticeindex.index.query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Searches a phrase materialized by a mapping update, whose term only the docs indexed since have.  The docs marked
+ * by one of {@code markers} are searched by the phrase's term, the others by the phrase query.  Once every doc with a
+ * value in {@code field} is marked, as after a reindex, this rewrites to the term query alone.
+ */
+public class LatticeMaterializedPhraseQuery extends Query {
+
+    private final Query termQuery;
+    private final Query phraseQuery;
+    private final String field;
+    private final List<Term> markers;
+
+    /**
+     * @param termQuery the query for the phrase's term in the {@code index_phrases} sub-field, which must score a doc
+     *                  as {@code phraseQuery} does, so marked and unmarked docs rank together
+     * @param phraseQuery the query matching the same phrase against {@code field}
+     * @param field the lattice field
+     * @param markers the terms marking the docs indexed with the phrase's term, all of the same field
+     */
+    public LatticeMaterializedPhraseQuery(Query termQuery, Query phraseQuery, String field, List<Term> markers) {
+        this.termQuery = Objects.requireNonNull(termQuery);
+        this.phraseQuery = Objects.requireNonNull(phraseQuery);
+        this.field = Objects.requireNonNull(field);
+        this.markers = new ArrayList<>(markers);
+    }
+
+    public Query getTermQuery() {
+        return termQuery;
+    }
+
+    public Query getPhraseQuery() {
+        return phraseQuery;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        long marked = 0;
+        for (Term marker : markers) {
+            marked += reader.docFreq(marker);
+        }
+        if (marked >= reader.getDocCount(field)) {
+            return termQuery;
+        }
+        BooleanQuery.Builder unmarked = new BooleanQuery.Builder();
+        unmarked.add(phraseQuery, BooleanClause.Occur.MUST);
+        if (markers.isEmpty() == false) {
+            List<BytesRef> markerBytes = new ArrayList<>(markers.size());
+            for (Term marker : markers) {
+                markerBytes.add(marker.bytes());
+            }
+            unmarked.add(new TermInSetQuery(markers.get(0).field(), markerBytes), BooleanClause.Occur.MUST_NOT);
+        }
+        return new BooleanQuery.Builder()
+                .add(termQuery, BooleanClause.Occur.SHOULD)
+                .add(unmarked.build(), BooleanClause.Occur.SHOULD)
+                .build();
+    }
+
+    @Override
+    public void visit(QueryVisitor visitor) {
+        QueryVisitor subVisitor = visitor.getSubVisitor(BooleanClause.Occur.SHOULD, this);
+        termQuery.visit(subVisitor);
+        phraseQuery.visit(subVisitor);
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("LatticeMaterializedPhraseQuery(");
+        buffer.append(termQuery.toString(field));
+        buffer.append(", unmarked: ");
+        buffer.append(phraseQuery.toString(field));
+        buffer.append(")");
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) &&
+                equalsTo(getClass().cast(other));
+    }
+
+    private boolean equalsTo(LatticeMaterializedPhraseQuery other) {
+        return termQuery.equals(other.termQuery) && phraseQuery.equals(other.phraseQuery)
+                && field.equals(other.field) && markers.equals(other.markers);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), termQuery, phraseQuery, field, markers);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.eigendomain.eslatticeindex.index.query;
+
+import com.eigendomain.eslatticeindex.index.LatticePayloadEncoding;
+import org.apache.lucene.queries.payloads.PayloadDecoder;
+import org.apache.lucene.util.BytesRef;
+
+import java.util.Objects;
+
+/**
+ * Decodes lattice score payloads written with any {@link LatticePayloadEncoding}.
+ */
+public class LatticePayloadDecoder implements PayloadDecoder {
+    private static final float NULL_PAYLOAD_SCORE = 0.00001f;
+    private static final float NULL_PAYLOAD_LOG_SCORE = (float) Math.log(NULL_PAYLOAD_SCORE);
+
+    private final LatticePayloadEncoding encoding;
+    private final float scale;
+    private final float logScale;
+
+    public LatticePayloadDecoder(LatticePayloadEncoding encoding, float scale) {
+        this.encoding = encoding;
+        this.scale = scale;
+        this.logScale = (float) Math.log(scale);
+    }
+
+    public LatticePayloadDecoder(LatticePayloadEncoding encoding) {
+        this(encoding, 1.0f);
+    }
+
+    public LatticePayloadEncoding encoding() {
+        return encoding;
+    }
+
+    /**
+     * @return true if {@link #computeLogPayloadFactor(BytesRef)} is cheaper than taking the log of
+     * {@link #computePayloadFactor(BytesRef)}
+     */
+    public boolean logDomain() {
+        return encoding.fastLog();
+    }
+
+    @Override
+    public float computePayloadFactor(BytesRef payload) {
+        if (payload == null) {
+            return NULL_PAYLOAD_SCORE;
+        } else {
+            return encoding.decode(payload.bytes, payload.offset) * scale;
+        }
+    }
+
+    /**
+     * @return the natural log of {@link #computePayloadFactor(BytesRef)}
+     */
+    public float computeLogPayloadFactor(BytesRef payload) {
+        if (payload == null) {
+            return NULL_PAYLOAD_LOG_SCORE;
+        } else {
+            return encoding.decodeLog(payload.bytes, payload.offset) + logScale;
+        }
+    }
+
+    /**
+     * @return the largest value {@link #computePayloadFactor(BytesRef)} can return
+     */
+    public float maxPayloadFactor() {
+        return Math.max(encoding.maxScore() * scale, NULL_PAYLOAD_SCORE);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other == null || getClass() != other.getClass()) {
+            return false;
+        }
+        LatticePayloadDecoder that = (LatticePayloadDecoder) other;
+        return encoding == that.encoding && scale == that.scale;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(encoding, scale);
+    }
+}
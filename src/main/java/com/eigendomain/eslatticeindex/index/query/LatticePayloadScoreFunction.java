@@ -60,6 +60,19 @@ public abstract class LatticePayloadScoreFunction {
     public abstract float currentLeafScore(int docId, String field, int start, int end, int numPayloadsSeen,
                                            float currentScore, float currentPayloadScore);
 
+    /**
+     * As {@link #currentLeafScore}, but given the natural log of the payload score, as decoded from payloads stored
+     * in the log domain.  Functions that work on log scores should override this to skip the round trip through
+     * {@link Math#exp(double)}.
+     * @param currentLogPayloadScore The natural log of the score for the current payload
+     * @return The new current Score
+     */
+    public float currentLeafLogScore(int docId, String field, int start, int end, int numPayloadsSeen,
+                                     float currentScore, float currentLogPayloadScore) {
+        return currentLeafScore(docId, field, start, end, numPayloadsSeen, currentScore,
+                (float) Math.exp(currentLogPayloadScore));
+    }
+
     /**
      * Calculate the final score for all the payloads seen so far for this doc/field
      * @param docId The current doc
@@ -70,6 +83,49 @@ public abstract class LatticePayloadScoreFunction {
      */
     public abstract float docScore(int docId, String field, int numSpansSeen, float payloadScore);
 
+    /**
+     * Whether a query that can see several paths through the lattice between the same start and end should add them
+     * up, by {@link #sumPaths}, rather than keep only the best, and score every end reached from a start rather than
+     * the best one.  Functions that return true must keep current span scores as natural logs.
+     */
+    public boolean sumsPaths() {
+        return false;
+    }
+
+    /**
+     * @return the log of the sum of two paths' scores, given as natural logs
+     */
+    public static float sumPaths(float logScore, float otherLogScore) {
+        float max = Math.max(logScore, otherLogScore);
+        float min = Math.min(logScore, otherLogScore);
+        if (min == Float.NEGATIVE_INFINITY) {
+            return max;
+        }
+        return (float) (max + Math.log1p(Math.exp(min - max)));
+    }
+
+    /**
+     * An upper bound on {@link #docScore} for any matching document, used to skip documents that cannot make the top
+     * hits
+     * @param minSpanLength The least {@code end - start} of any matching span
+     * @param maxSpanLogScore An upper bound on the current span score passed to {@link #spanScore}
+     * @return The bound, or {@link Float#POSITIVE_INFINITY} if the score cannot be bounded
+     */
+    public float maxDocScore(int minSpanLength, float maxSpanLogScore) {
+        return Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * As {@link #maxDocScore(int, float)}, for a document known to have at most {@code maxSpans} matching spans, such
+     * as a single term's frequency in a block of postings.  Functions whose doc score grows with the number of spans
+     * should override this, the default ignores it.
+     * @param maxSpans The most spans the document can match
+     * @return The bound, or {@link Float#POSITIVE_INFINITY} if the score cannot be bounded
+     */
+    public float maxDocScore(int minSpanLength, float maxSpanLogScore, int maxSpans) {
+        return maxDocScore(minSpanLength, maxSpanLogScore);
+    }
+
     public Explanation explain(int docId, String field, int numSpansSeen, float payloadScore){
         return Explanation.match(
                 docScore(docId, field, numSpansSeen, payloadScore),
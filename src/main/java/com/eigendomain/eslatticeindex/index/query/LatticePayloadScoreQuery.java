@@ -18,8 +18,6 @@
 package com.eigendomain.eslatticeindex.index.query;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -32,16 +30,21 @@ import org.apache.lucene.index.TermStates;
 import org.apache.lucene.queries.payloads.PayloadDecoder;
 import org.apache.lucene.queries.payloads.PayloadFunction;
 import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.LeafSimScorer;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.QueryVisitor;
 import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.TwoPhaseIterator;
 import org.apache.lucene.search.spans.FilterSpans;
 import org.apache.lucene.search.spans.SpanCollector;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
 import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.search.spans.SpanScorer;
+import org.apache.lucene.search.spans.SpanTermQuery;
 import org.apache.lucene.search.spans.SpanWeight;
 import org.apache.lucene.search.spans.Spans;
 import org.apache.lucene.util.BytesRef;
@@ -55,6 +58,7 @@ public class LatticePayloadScoreQuery extends SpanQuery {
     private final LatticePayloadScoreFunction function;
     private final PayloadDecoder decoder;
     private final boolean includeSpanScore;
+    private final float minSpanScore;
 
     /**
      * Creates a new LatticePayloadScoreQuery
@@ -62,13 +66,28 @@ public class LatticePayloadScoreQuery extends SpanQuery {
      * @param function a PayloadFunction to use to modify the scores
      * @param decoder a PayloadDecoder to convert payloads into float values
      * @param includeSpanScore include both span score and payload score in the scoring algorithm
+     * @param minSpanScore spans are rejected once the function's running score for them is below the log of this and
+     *                     can't recover, 0 keeps every span
      */
     public LatticePayloadScoreQuery(SpanQuery wrappedQuery, LatticePayloadScoreFunction function,
-                                    PayloadDecoder decoder, boolean includeSpanScore) {
+                                    PayloadDecoder decoder, boolean includeSpanScore, float minSpanScore) {
         this.wrappedQuery = Objects.requireNonNull(wrappedQuery);
         this.function = Objects.requireNonNull(function);
         this.decoder = Objects.requireNonNull(decoder);
         this.includeSpanScore = includeSpanScore;
+        this.minSpanScore = checkMinSpanScore(minSpanScore);
+    }
+
+    /**
+     * Creates a new LatticePayloadScoreQuery that keeps every span
+     * @param wrappedQuery the query to wrap
+     * @param function a PayloadFunction to use to modify the scores
+     * @param decoder a PayloadDecoder to convert payloads into float values
+     * @param includeSpanScore include both span score and payload score in the scoring algorithm
+     */
+    public LatticePayloadScoreQuery(SpanQuery wrappedQuery, LatticePayloadScoreFunction function,
+                                    PayloadDecoder decoder, boolean includeSpanScore) {
+        this(wrappedQuery, function, decoder, includeSpanScore, 0.0f);
     }
 
     /**
@@ -91,7 +110,8 @@ public class LatticePayloadScoreQuery extends SpanQuery {
     public Query rewrite(IndexReader reader) throws IOException {
         Query matchRewritten = wrappedQuery.rewrite(reader);
         if (wrappedQuery != matchRewritten && matchRewritten instanceof SpanQuery) {
-            return new LatticePayloadScoreQuery((SpanQuery)matchRewritten, function, decoder, includeSpanScore);
+            return new LatticePayloadScoreQuery((SpanQuery)matchRewritten, function, decoder, includeSpanScore,
+                    minSpanScore);
         }
         return super.rewrite(reader);
     }
@@ -111,6 +131,10 @@ public class LatticePayloadScoreQuery extends SpanQuery {
         buffer.append(function.getClass().getSimpleName());
         buffer.append(", includeSpanScore: ");
         buffer.append(includeSpanScore);
+        if (minSpanScore > 0) {
+            buffer.append(", minSpanScore: ");
+            buffer.append(minSpanScore);
+        }
         buffer.append(")");
         return buffer.toString();
     }
@@ -118,7 +142,8 @@ public class LatticePayloadScoreQuery extends SpanQuery {
     @Override
     public SpanWeight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
         SpanWeight innerWeight = wrappedQuery.createWeight(searcher, scoreMode, boost);
-        if (!scoreMode.needsScores())
+        // span scores are needed to find matches when spans can be rejected
+        if (!scoreMode.needsScores() && minSpanScore == 0)
             return innerWeight;
         return new PayloadSpanWeight(searcher, innerWeight, boost);
     }
@@ -132,21 +157,76 @@ public class LatticePayloadScoreQuery extends SpanQuery {
     private boolean equalsTo(LatticePayloadScoreQuery other) {
         return wrappedQuery.equals(other.wrappedQuery) &&
                 function.equals(other.function) && (includeSpanScore == other.includeSpanScore) &&
+                minSpanScore == other.minSpanScore &&
                 Objects.equals(decoder, other.decoder);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(wrappedQuery, function, decoder, includeSpanScore);
+        return Objects.hash(wrappedQuery, function, decoder, includeSpanScore, minSpanScore);
+    }
+
+    static float checkMinSpanScore(float minSpanScore) {
+        if (minSpanScore >= 0 == false) {
+            throw new IllegalArgumentException("minSpanScore must be >= 0, got " + minSpanScore);
+        }
+        return minSpanScore;
+    }
+
+    /**
+     * @return the least {@code end - start} of any span matched by {@code query}
+     */
+    static int minSpanLength(SpanQuery query) {
+        if (query instanceof SpanTermQuery) {
+            return 1;
+        } else if (query instanceof SpanNearQuery) {
+            SpanNearQuery nearQuery = (SpanNearQuery) query;
+            int length = 0;
+            for (SpanQuery clause : nearQuery.getClauses()) {
+                // ordered clauses follow one another, unordered ones may overlap
+                length = nearQuery.isInOrder() ? length + minSpanLength(clause)
+                        : Math.max(length, minSpanLength(clause));
+            }
+            return length;
+        } else if (query instanceof SpanOrQuery) {
+            int length = Integer.MAX_VALUE;
+            for (SpanQuery clause : ((SpanOrQuery) query).getClauses()) {
+                length = Math.min(length, minSpanLength(clause));
+            }
+            return length == Integer.MAX_VALUE ? 0 : length;
+        }
+        return 0;
+    }
+
+    /**
+     * @return an upper bound on the payload score {@code function} gives any doc, or
+     * {@link Float#POSITIVE_INFINITY} if there is none
+     */
+    static float maxPayloadScore(LatticePayloadScoreFunction function, PayloadDecoder decoder, int minSpanLength) {
+        // the score of a span only has a bound if none of its leaves can score above 1
+        if (leavesBounded(decoder)) {
+            return function.maxDocScore(Math.max(1, minSpanLength), 0.0f);
+        }
+        return Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return whether no payload {@code decoder} decodes can score above 1
+     */
+    static boolean leavesBounded(PayloadDecoder decoder) {
+        return decoder instanceof LatticePayloadDecoder && ((LatticePayloadDecoder) decoder).maxPayloadFactor() <= 1.0f;
     }
 
     private class PayloadSpanWeight extends SpanWeight {
 
         private final SpanWeight innerWeight;
+        // an upper bound on the payload score of any doc
+        private final float maxPayloadScore;
 
         PayloadSpanWeight(IndexSearcher searcher, SpanWeight innerWeight, float boost) throws IOException {
             super(LatticePayloadScoreQuery.this, searcher, null, boost);
             this.innerWeight = innerWeight;
+            this.maxPayloadScore = maxPayloadScore(function, decoder, minSpanLength(wrappedQuery));
         }
 
         @Override
@@ -167,7 +247,13 @@ public class LatticePayloadScoreQuery extends SpanQuery {
             LeafSimScorer docScorer = innerWeight.getSimScorer(context);
             PayloadSpans payloadSpans = new PayloadSpans(spans, decoder);
             //System.out.println("spans=" + payloadSpans.toString());
-            return new PayloadSpanScorer(this, payloadSpans, docScorer);
+            float maxScore = maxPayloadScore;
+            if (includeSpanScore) {
+                // span scores grow with freq and shrink with field length, so norm 1 gives the best possible score
+                maxScore *= docScorer == null ? Float.POSITIVE_INFINITY
+                        : docScorer.getSimScorer().score(Float.MAX_VALUE, 1L);
+            }
+            return new PayloadSpanScorer(this, payloadSpans, docScorer, maxScore);
         }
 
         @Override
@@ -204,41 +290,78 @@ public class LatticePayloadScoreQuery extends SpanQuery {
     private class PayloadSpans extends FilterSpans implements SpanCollector {
 
         private final PayloadDecoder decoder;
+        // set when payloads hold log scores, so leaves can be combined without Math.log
+        private final LatticePayloadDecoder logDecoder;
         public int payloadsSeen;
         public float payloadScore;
 
-        public List<Float> spanScores = new ArrayList<>();
         public float currentSpanScore;
         public int numSpansSeen = 0;
 
+        // looked up once rather than for every leaf
+        private final String field;
+        private final float minSpanLogScore;
+        // set when no leaf scores above 1, so a span below the threshold can't recover before it is complete
+        private final boolean rejectEarly;
+        private int doc;
+        private int spanStart;
+        private int spanEnd;
+        private boolean rejected;
+
         private PayloadSpans(Spans in, PayloadDecoder decoder) {
             super(in);
             this.decoder = decoder;
+            this.field = getField();
+            this.minSpanLogScore = (float) Math.log(minSpanScore);
+            this.rejectEarly = leavesBounded(decoder);
+            if (decoder instanceof LatticePayloadDecoder && ((LatticePayloadDecoder) decoder).logDomain()) {
+                this.logDecoder = (LatticePayloadDecoder) decoder;
+            } else {
+                this.logDecoder = null;
+            }
         }
 
         @Override
         protected AcceptStatus accept(Spans candidate) throws IOException {
-            return AcceptStatus.YES;
+            // every span is accepted just before it is used, so score it here and reject it if it scores too little
+            doc = candidate.docID();
+            spanStart = candidate.startPosition();
+            spanEnd = candidate.endPosition();
+            currentSpanScore = 0.0f;
+            payloadsSeen = 0;
+            rejected = false;
+            candidate.collect(this);
+            // a span rejected early was left below the threshold
+            return currentSpanScore < minSpanLogScore ? AcceptStatus.NO : AcceptStatus.YES;
         }
 
         @Override
         protected void doStartCurrentDoc() {
+            // the current span was accepted, and scored, before the doc was started
             payloadScore = 0;
-            payloadsSeen = 0;
-            spanScores = new ArrayList<>();
-            currentSpanScore = 0.0f;
             numSpansSeen = 0;
         }
 
         @Override
         public void collectLeaf(PostingsEnum postings, int position, Term term) throws IOException {
+            if (rejected) {
+                // no leaf scores above 1, so a rejected span can't recover; skip decoding its remaining leaves
+                return;
+            }
             BytesRef payload = postings.getPayload();
-            float payloadFactor = decoder.computePayloadFactor(payload);
-            currentSpanScore = function.currentLeafScore(docID(), getField(), in.startPosition(), in.endPosition(),
-                    payloadsSeen, currentSpanScore, payloadFactor);
+            if (logDecoder != null) {
+                float logPayloadFactor = logDecoder.computeLogPayloadFactor(payload);
+                currentSpanScore = function.currentLeafLogScore(doc, field, spanStart, spanEnd, payloadsSeen,
+                        currentSpanScore, logPayloadFactor);
+            } else {
+                float payloadFactor = decoder.computePayloadFactor(payload);
+                currentSpanScore = function.currentLeafScore(doc, field, spanStart, spanEnd, payloadsSeen,
+                        currentSpanScore, payloadFactor);
+            }
 
             //System.out.println("term=" + term + "; payload=" + payloadFactor);
             payloadsSeen++;
+            rejected = rejectEarly && currentSpanScore < minSpanLogScore;
         }
 
         @Override
@@ -246,13 +369,10 @@ public class LatticePayloadScoreQuery extends SpanQuery {
 
         @Override
         protected void doCurrentSpans() throws IOException {
-            currentSpanScore = 0.0f;
-            payloadsSeen = 0;
-            in.collect(this);
             //System.out.println("span=" + in + "; width=" + in.width());
-            if (in.startPosition() != Spans.NO_MORE_POSITIONS) {
-                payloadScore = function.spanScore(docID(), getField(), in.startPosition(), in.endPosition(),
-                        in.width(), payloadsSeen, payloadScore, currentSpanScore);
+            if (spanStart != Spans.NO_MORE_POSITIONS) {
+                payloadScore = function.spanScore(doc, field, spanStart, spanEnd, in.width(), payloadsSeen,
+                        payloadScore, currentSpanScore);
                 numSpansSeen++;
             }
         }
@@ -263,10 +383,54 @@ public class LatticePayloadScoreQuery extends SpanQuery {
         private final PayloadSpans spans;
         private final float MIN_LOG_SCORE = (float)Math.log(10e-7f);
         private final float SCORE_MULT = (float)Math.log(10e4f);
+        private final float maxScore;
+        // null when scores have no bound
+        private final CompetitiveIterator competitiveIterator;
+        private final TwoPhaseIterator twoPhaseIterator;
 
-        private PayloadSpanScorer(SpanWeight weight, PayloadSpans spans, LeafSimScorer docScorer) throws IOException {
+        private PayloadSpanScorer(SpanWeight weight, PayloadSpans spans, LeafSimScorer docScorer, float maxScore)
+                throws IOException {
             super(weight, spans, docScorer);
             this.spans = spans;
+            this.maxScore = Float.isNaN(maxScore) ? Float.POSITIVE_INFINITY : maxScore;
+            TwoPhaseIterator twoPhase = super.twoPhaseIterator();
+            if (this.maxScore == Float.POSITIVE_INFINITY) {
+                this.competitiveIterator = null;
+                this.twoPhaseIterator = twoPhase;
+            } else if (twoPhase == null) {
+                this.competitiveIterator = new CompetitiveIterator(super.iterator(), this.maxScore);
+                this.twoPhaseIterator = null;
+            } else {
+                this.competitiveIterator = new CompetitiveIterator(twoPhase.approximation(), this.maxScore);
+                this.twoPhaseIterator = competitiveIterator.wrap(twoPhase);
+            }
+        }
+
+        @Override
+        public float getMaxScore(int upTo) {
+            return maxScore;
+        }
+
+        @Override
+        public void setMinCompetitiveScore(float minScore) {
+            if (competitiveIterator != null) {
+                competitiveIterator.setMinCompetitiveScore(minScore);
+            }
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            if (competitiveIterator == null) {
+                return super.iterator();
+            } else if (twoPhaseIterator != null) {
+                return TwoPhaseIterator.asDocIdSetIterator(twoPhaseIterator);
+            }
+            return competitiveIterator;
+        }
+
+        @Override
+        public TwoPhaseIterator twoPhaseIterator() {
+            return twoPhaseIterator;
         }
 
         protected float getPayloadScore_() {
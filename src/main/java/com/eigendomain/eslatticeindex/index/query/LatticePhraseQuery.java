@@ -0,0 +1,1477 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index.query;
+
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.TermStates;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.queries.payloads.PayloadDecoder;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.ConjunctionDISI;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.ImpactsDISI;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafSimScorer;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Matches terms within {@code slop} positions of each other, in order or not, as a
+ * {@link org.apache.lucene.search.spans.SpanNearQuery} wrapped in a {@link LatticePayloadScoreQuery} would, and
+ * scores the matches by their payloads.
+ *
+ * Where a span query takes the first match it finds for each start position, this query looks at every path through
+ * the lattice: the positions and payloads of each term in a document are read once, then a single forward pass over
+ * them finds, for each occurrence of the first term, the path that scores best with the {@link
+ * LatticePayloadScoreFunction}.  Each of those paths counts as one matching span.  Functions that
+ * {@link LatticePayloadScoreFunction#sumsPaths() sum paths} instead get, for each start and end, the sum over all the
+ * paths between them.
+ *
+ * Unordered matches slide a window of {@code slop} plus the number of terms positions over the document instead,
+ * keeping the best scoring occurrence of each term in the window.  Each window whose best occurrences start at its
+ * first position counts as one matching span, so every combination is counted once however many windows hold it.
+ *
+ * In order matches can leave out all but {@code minTermsMatched} of the terms, each missing term multiplying the
+ * path's score by {@code missingTermPenalty}.  The forward pass then also tracks how many terms each path has left
+ * out, and every occurrence of the terms that may start a match starts one, so a single pass scores the full phrase
+ * and every phrase with terms left out.
+ *
+ * Each term may have alternatives at the same position, as a token graph's synonyms are, any one of which matches in
+ * its place.  The occurrences of all the alternatives are read together, each with its own payload, so a path takes
+ * whichever alternative scores best at each position.
+ *
+ * A term may also have a {@link MultiTermQuery}, such as a prefix, wildcard or fuzzy query, that expands it.  Rewriting
+ * the query walks each segment's terms once per expansion, and adds the {@code maxExpansions} of the matching terms that
+ * are in the most docs to the term's alternatives.  A lattice field that indexes prefixes has an alternative instead:
+ * the prefix's term in its {@code index_prefixes} sub-field, at the same positions and with the same payloads as the
+ * arcs it prefixes, which the query reads in place of the field's own terms.
+ */
+public class LatticePhraseQuery extends Query {
+
+    private final String field;
+    private final Term[][] terms;
+    // null if no term is expanded
+    private final MultiTermQuery[] expansions;
+    private final int maxExpansions;
+    private final int slop;
+    private final boolean inOrder;
+    private final int minTermsMatched;
+    private final float missingTermPenalty;
+    private final LatticePayloadScoreFunction function;
+    private final PayloadDecoder decoder;
+    private final boolean includeSpanScore;
+    private final float minSpanScore;
+
+    /**
+     * Creates a new LatticePhraseQuery whose terms may come from other fields than the one it scores, such as the
+     * {@code index_prefixes} sub-field of a lattice field, which has the same positions and payloads
+     * @param field the field whose statistics and norms score the matches
+     * @param terms the alternatives of each term to match, any one of which matches in its place; a term without
+     *              alternatives or an expansion never matches
+     * @param expansions null, or for each term a MultiTermQuery whose terms are added to the term's alternatives when
+     *                   the query is rewritten, null for terms that aren't expanded
+     * @param maxExpansions the most terms each expansion adds, those in the most docs
+     * @param slop the most positions allowed between the matched terms of a match, in total
+     * @param inOrder whether the terms must match in the order given
+     * @param minTermsMatched the fewest terms a match may have, fewer than all of them only if {@code inOrder}
+     * @param missingTermPenalty what the score of a match is multiplied by for each term it leaves out
+     * @param function a LatticePayloadScoreFunction to combine the payloads of each match with
+     * @param decoder a PayloadDecoder to convert payloads into float values
+     * @param includeSpanScore include both the phrase's similarity score and payload score in the scoring algorithm
+     * @param minSpanScore paths are dropped once their running score is below the log of this and can't recover, 0
+     *                     keeps every path
+     */
+    public LatticePhraseQuery(String field, Term[][] terms, MultiTermQuery[] expansions, int maxExpansions, int slop,
+                              boolean inOrder, int minTermsMatched, float missingTermPenalty,
+                              LatticePayloadScoreFunction function, PayloadDecoder decoder, boolean includeSpanScore,
+                              float minSpanScore) {
+        this.field = Objects.requireNonNull(field);
+        if (terms.length == 0) {
+            throw new IllegalArgumentException("LatticePhraseQuery needs at least one term");
+        }
+        if (slop < 0) {
+            throw new IllegalArgumentException("slop must be >= 0, got " + slop);
+        }
+        if (expansions != null && expansions.length != terms.length) {
+            throw new IllegalArgumentException("Expected an expansion, or null, for each of the " + terms.length
+                    + " terms, got " + expansions.length);
+        }
+        this.terms = new Term[terms.length][];
+        for (int i = 0; i < terms.length; i++) {
+            if (new HashSet<>(Arrays.asList(terms[i])).size() < terms[i].length) {
+                throw new IllegalArgumentException("The alternatives of a term must be distinct, got "
+                        + Arrays.toString(terms[i]));
+            }
+            this.terms[i] = terms[i].clone();
+        }
+        if (expansions != null && Arrays.stream(expansions).anyMatch(Objects::nonNull)) {
+            if (maxExpansions < 1) {
+                throw new IllegalArgumentException("maxExpansions must be >= 1, got " + maxExpansions);
+            }
+            this.expansions = expansions.clone();
+            this.maxExpansions = maxExpansions;
+        } else {
+            this.expansions = null;
+            this.maxExpansions = 0;
+        }
+        this.slop = slop;
+        this.inOrder = inOrder;
+        if (minTermsMatched < 1 || minTermsMatched > terms.length) {
+            throw new IllegalArgumentException("minTermsMatched must be between 1 and the number of terms, got "
+                    + minTermsMatched);
+        }
+        if (minTermsMatched < terms.length && inOrder == false) {
+            throw new IllegalArgumentException("minTermsMatched less than the number of terms requires inOrder");
+        }
+        if (missingTermPenalty > 0 == false || missingTermPenalty > 1) {
+            throw new IllegalArgumentException("missingTermPenalty must be in (0, 1], got " + missingTermPenalty);
+        }
+        this.minTermsMatched = minTermsMatched;
+        this.missingTermPenalty = missingTermPenalty;
+        this.function = Objects.requireNonNull(function);
+        this.decoder = Objects.requireNonNull(decoder);
+        this.includeSpanScore = includeSpanScore;
+        this.minSpanScore = LatticePayloadScoreQuery.checkMinSpanScore(minSpanScore);
+    }
+
+    /**
+     * Creates a new LatticePhraseQuery whose terms and expansions are all in the same field
+     * @param terms the alternatives of each term to match, any one of which matches in its place; a term without
+     *              alternatives or an expansion never matches
+     * @param expansions null, or for each term a MultiTermQuery whose terms are added to the term's alternatives when
+     *                   the query is rewritten, null for terms that aren't expanded
+     * @param maxExpansions the most terms each expansion adds, those in the most docs
+     * @param slop the most positions allowed between the matched terms of a match, in total
+     * @param inOrder whether the terms must match in the order given
+     * @param minTermsMatched the fewest terms a match may have, fewer than all of them only if {@code inOrder}
+     * @param missingTermPenalty what the score of a match is multiplied by for each term it leaves out
+     * @param function a LatticePayloadScoreFunction to combine the payloads of each match with
+     * @param decoder a PayloadDecoder to convert payloads into float values
+     * @param includeSpanScore include both the phrase's similarity score and payload score in the scoring algorithm
+     * @param minSpanScore paths are dropped once their running score is below the log of this and can't recover, 0
+     *                     keeps every path
+     */
+    public LatticePhraseQuery(Term[][] terms, MultiTermQuery[] expansions, int maxExpansions, int slop,
+                              boolean inOrder, int minTermsMatched, float missingTermPenalty,
+                              LatticePayloadScoreFunction function, PayloadDecoder decoder, boolean includeSpanScore,
+                              float minSpanScore) {
+        this(commonField(terms, expansions), terms, expansions, maxExpansions, slop, inOrder, minTermsMatched,
+                missingTermPenalty, function, decoder, includeSpanScore, minSpanScore);
+    }
+
+    /**
+     * Creates a new LatticePhraseQuery without expansions
+     * @param terms the alternatives of each term to match, any one of which matches in its place
+     * @param slop the most positions allowed between the matched terms of a match, in total
+     * @param inOrder whether the terms must match in the order given
+     * @param minTermsMatched the fewest terms a match may have, fewer than all of them only if {@code inOrder}
+     * @param missingTermPenalty what the score of a match is multiplied by for each term it leaves out
+     * @param function a LatticePayloadScoreFunction to combine the payloads of each match with
+     * @param decoder a PayloadDecoder to convert payloads into float values
+     * @param includeSpanScore include both the phrase's similarity score and payload score in the scoring algorithm
+     * @param minSpanScore paths are dropped once their running score is below the log of this and can't recover, 0
+     *                     keeps every path
+     */
+    public LatticePhraseQuery(Term[][] terms, int slop, boolean inOrder, int minTermsMatched,
+                              float missingTermPenalty, LatticePayloadScoreFunction function, PayloadDecoder decoder,
+                              boolean includeSpanScore, float minSpanScore) {
+        this(terms, null, 0, slop, inOrder, minTermsMatched, missingTermPenalty, function, decoder, includeSpanScore,
+                minSpanScore);
+    }
+
+    /**
+     * Creates a new LatticePhraseQuery without alternatives
+     * @param terms the terms to match
+     * @param slop the most positions allowed between the matched terms of a match, in total
+     * @param inOrder whether the terms must match in the order given
+     * @param minTermsMatched the fewest terms a match may have, fewer than all of them only if {@code inOrder}
+     * @param missingTermPenalty what the score of a match is multiplied by for each term it leaves out
+     * @param function a LatticePayloadScoreFunction to combine the payloads of each match with
+     * @param decoder a PayloadDecoder to convert payloads into float values
+     * @param includeSpanScore include both the phrase's similarity score and payload score in the scoring algorithm
+     * @param minSpanScore paths are dropped once their running score is below the log of this and can't recover, 0
+     *                     keeps every path
+     */
+    public LatticePhraseQuery(Term[] terms, int slop, boolean inOrder, int minTermsMatched, float missingTermPenalty,
+                              LatticePayloadScoreFunction function, PayloadDecoder decoder, boolean includeSpanScore,
+                              float minSpanScore) {
+        this(withoutAlternatives(terms), slop, inOrder, minTermsMatched, missingTermPenalty, function, decoder,
+                includeSpanScore, minSpanScore);
+    }
+
+    /**
+     * Creates a new LatticePhraseQuery that matches every term
+     * @param terms the terms to match
+     * @param slop the most positions allowed between the terms of a match, in total
+     * @param inOrder whether the terms must match in the order given
+     * @param function a LatticePayloadScoreFunction to combine the payloads of each match with
+     * @param decoder a PayloadDecoder to convert payloads into float values
+     * @param includeSpanScore include both the phrase's similarity score and payload score in the scoring algorithm
+     * @param minSpanScore paths are dropped once their running score is below the log of this and can't recover, 0
+     *                     keeps every path
+     */
+    public LatticePhraseQuery(Term[] terms, int slop, boolean inOrder, LatticePayloadScoreFunction function,
+                              PayloadDecoder decoder, boolean includeSpanScore, float minSpanScore) {
+        this(terms, slop, inOrder, terms.length, 1.0f, function, decoder, includeSpanScore, minSpanScore);
+    }
+
+    /**
+     * Creates a new LatticePhraseQuery that matches terms in order
+     * @param terms the terms to match, in order
+     * @param slop the most positions allowed between the terms of a match, in total
+     * @param function a LatticePayloadScoreFunction to combine the payloads of each match with
+     * @param decoder a PayloadDecoder to convert payloads into float values
+     * @param includeSpanScore include both the phrase's similarity score and payload score in the scoring algorithm
+     * @param minSpanScore paths are dropped once their running score is below the log of this and can't recover, 0
+     *                     keeps every path
+     */
+    public LatticePhraseQuery(Term[] terms, int slop, LatticePayloadScoreFunction function, PayloadDecoder decoder,
+                              boolean includeSpanScore, float minSpanScore) {
+        this(terms, slop, true, function, decoder, includeSpanScore, minSpanScore);
+    }
+
+    /**
+     * Creates a new LatticePhraseQuery that keeps every path
+     * @param terms the terms to match, in order
+     * @param slop the most positions allowed between the terms of a match, in total
+     * @param function a LatticePayloadScoreFunction to combine the payloads of each match with
+     * @param decoder a PayloadDecoder to convert payloads into float values
+     * @param includeSpanScore include both the phrase's similarity score and payload score in the scoring algorithm
+     */
+    public LatticePhraseQuery(Term[] terms, int slop, LatticePayloadScoreFunction function, PayloadDecoder decoder,
+                              boolean includeSpanScore) {
+        this(terms, slop, function, decoder, includeSpanScore, 0.0f);
+    }
+
+    private static String commonField(Term[][] terms, MultiTermQuery[] expansions) {
+        String field = null;
+        for (int i = 0; i < terms.length; i++) {
+            for (Term term : terms[i]) {
+                field = checkField(field, term.field());
+            }
+            if (expansions != null && i < expansions.length && expansions[i] != null) {
+                field = checkField(field, expansions[i].getField());
+            }
+        }
+        if (field == null) {
+            throw new IllegalArgumentException("LatticePhraseQuery needs at least one term");
+        }
+        return field;
+    }
+
+    private static String checkField(String field, String termField) {
+        if (field != null && termField.equals(field) == false) {
+            throw new IllegalArgumentException("All terms must have the same field, got [" + field + "] and ["
+                    + termField + "]");
+        }
+        return termField;
+    }
+
+    private static Term[][] withoutAlternatives(Term[] terms) {
+        Term[][] alternatives = new Term[terms.length][];
+        for (int i = 0; i < terms.length; i++) {
+            alternatives[i] = new Term[]{terms[i]};
+        }
+        return alternatives;
+    }
+
+    /**
+     * @return the field whose statistics and norms score the matches
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return the alternatives of each term
+     */
+    public Term[][] getTermArrays() {
+        Term[][] copy = new Term[terms.length][];
+        for (int i = 0; i < terms.length; i++) {
+            copy[i] = terms[i].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * @return the expansion of each term, null for those that aren't expanded, or null if none are
+     */
+    public MultiTermQuery[] getExpansions() {
+        return expansions == null ? null : expansions.clone();
+    }
+
+    public int getMaxExpansions() {
+        return maxExpansions;
+    }
+
+    public int getSlop() {
+        return slop;
+    }
+
+    public boolean isInOrder() {
+        return inOrder;
+    }
+
+    public int getMinTermsMatched() {
+        return minTermsMatched;
+    }
+
+    public float getMissingTermPenalty() {
+        return missingTermPenalty;
+    }
+
+    @Override
+    public void visit(QueryVisitor visitor) {
+        if (visitor.acceptField(field)) {
+            QueryVisitor v = visitor.getSubVisitor(BooleanClause.Occur.MUST, this);
+            for (int i = 0; i < terms.length; i++) {
+                if (terms[i].length == 1 && (expansions == null || expansions[i] == null)) {
+                    v.consumeTerms(this, terms[i]);
+                    continue;
+                }
+                QueryVisitor alternatives = v.getSubVisitor(BooleanClause.Occur.SHOULD, this);
+                alternatives.consumeTerms(this, terms[i]);
+                if (expansions != null && expansions[i] != null) {
+                    expansions[i].visit(alternatives);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("LatticePhraseQuery(");
+        if (this.field.equals(field) == false) {
+            buffer.append(this.field).append(':');
+        }
+        buffer.append('"');
+        for (int i = 0; i < terms.length; i++) {
+            if (i > 0) {
+                buffer.append(' ');
+            }
+            List<String> alternatives = new ArrayList<>(terms[i].length + 1);
+            for (Term term : terms[i]) {
+                alternatives.add(term.field().equals(this.field) ? term.text() : term.toString());
+            }
+            if (expansions != null && expansions[i] != null) {
+                alternatives.add(expansions[i].toString(this.field));
+            }
+            if (alternatives.size() == 1) {
+                buffer.append(alternatives.get(0));
+            } else {
+                buffer.append('(').append(String.join("|", alternatives)).append(')');
+            }
+        }
+        buffer.append('"');
+        if (slop != 0) {
+            buffer.append('~').append(slop);
+        }
+        if (inOrder == false) {
+            buffer.append(", inOrder: false");
+        }
+        if (expansions != null) {
+            buffer.append(", maxExpansions: ").append(maxExpansions);
+        }
+        if (minTermsMatched < terms.length) {
+            buffer.append(", minTermsMatched: ").append(minTermsMatched);
+            buffer.append(", missingTermPenalty: ").append(missingTermPenalty);
+        }
+        buffer.append(", function: ");
+        buffer.append(function.getClass().getSimpleName());
+        buffer.append(", includeSpanScore: ");
+        buffer.append(includeSpanScore);
+        if (minSpanScore > 0) {
+            buffer.append(", minSpanScore: ");
+            buffer.append(minSpanScore);
+        }
+        buffer.append(")");
+        return buffer.toString();
+    }
+
+    /**
+     * Adds the terms each expansion matches to the term's alternatives
+     */
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        if (expansions == null) {
+            return this;
+        }
+        Term[][] expanded = new Term[terms.length][];
+        int numExpanded = 0;
+        for (int i = 0; i < terms.length; i++) {
+            expanded[i] = terms[i];
+            if (expansions[i] != null) {
+                Set<Term> alternatives = new LinkedHashSet<>(Arrays.asList(terms[i]));
+                alternatives.addAll(Arrays.asList(new TopDocFreqRewrite(maxExpansions).expand(reader,
+                        expansions[i])));
+                expanded[i] = alternatives.toArray(new Term[0]);
+            }
+            if (expanded[i].length > 0) {
+                numExpanded++;
+            }
+        }
+        if (numExpanded < minTermsMatched) {
+            return new MatchNoDocsQuery("fewer than " + minTermsMatched + " terms have matching expansions");
+        }
+        return new LatticePhraseQuery(field, expanded, null, 0, slop, inOrder, minTermsMatched, missingTermPenalty,
+                function, decoder, includeSpanScore, minSpanScore);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        if (expansions != null) {
+            throw new IllegalStateException("LatticePhraseQuery must be rewritten to expand its terms");
+        }
+        if (!scoreMode.needsScores() && minSpanScore == 0 && terms.length == 1 && terms[0].length == 1) {
+            return new TermQuery(terms[0][0]).createWeight(searcher, scoreMode, boost);
+        }
+        return new PhraseWeight(searcher, scoreMode, boost);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) &&
+                equalsTo(getClass().cast(other));
+    }
+
+    private boolean equalsTo(LatticePhraseQuery other) {
+        return field.equals(other.field) && Arrays.deepEquals(terms, other.terms) &&
+                Arrays.equals(expansions, other.expansions) &&
+                maxExpansions == other.maxExpansions && slop == other.slop && inOrder == other.inOrder &&
+                minTermsMatched == other.minTermsMatched && missingTermPenalty == other.missingTermPenalty &&
+                function.equals(other.function) && (includeSpanScore == other.includeSpanScore) &&
+                minSpanScore == other.minSpanScore &&
+                Objects.equals(decoder, other.decoder);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), field, Arrays.deepHashCode(terms), Arrays.hashCode(expansions), maxExpansions,
+                slop, inOrder, minTermsMatched, missingTermPenalty, function, decoder, includeSpanScore, minSpanScore);
+    }
+
+    private class PhraseWeight extends Weight {
+
+        private final ScoreMode scoreMode;
+        private final boolean needsScores;
+        // payloads are read to score docs, or to drop paths while matching
+        private final boolean needsPayloads;
+        private final TermStates[][] termStates;
+        private final Similarity.SimScorer simScorer;
+        // expected number of positions read to check a candidate doc
+        private final float matchCost;
+        // an upper bound on the payload score of any doc
+        private final float maxPayloadScore;
+
+        PhraseWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+            super(LatticePhraseQuery.this);
+            this.scoreMode = scoreMode;
+            this.needsScores = scoreMode.needsScores();
+            this.needsPayloads = needsScores || minSpanScore > 0;
+            IndexReaderContext context = searcher.getTopReaderContext();
+            // the similarity sees each distinct term once, as it does for a span query
+            Map<Term, TermStates> distinctStates = new LinkedHashMap<>();
+            this.termStates = new TermStates[terms.length][];
+            float cost = 0;
+            int numExist = 0;
+            for (int i = 0; i < terms.length; i++) {
+                termStates[i] = new TermStates[terms[i].length];
+                long totalTermFreq = 0;
+                int docFreq = 0;
+                for (int j = 0; j < terms[i].length; j++) {
+                    TermStates states = distinctStates.get(terms[i][j]);
+                    if (states == null) {
+                        states = TermStates.build(context, terms[i][j], true);
+                        distinctStates.put(terms[i][j], states);
+                    }
+                    termStates[i][j] = states;
+                    totalTermFreq += states.totalTermFreq();
+                    docFreq += states.docFreq();
+                }
+                if (docFreq > 0) {
+                    // alternatives are read together, and mostly match different docs
+                    cost += (float) totalTermFreq / docFreq;
+                    numExist++;
+                }
+            }
+            this.matchCost = cost;
+
+            CollectionStatistics collectionStats = searcher.collectionStatistics(field);
+            // partial matches only need the terms they match
+            if (needsScores && numExist >= minTermsMatched && numExist > 0 && collectionStats != null) {
+                List<TermStatistics> termStats = new ArrayList<>(distinctStates.size());
+                for (Map.Entry<Term, TermStates> e : distinctStates.entrySet()) {
+                    if (e.getValue().docFreq() > 0) {
+                        termStats.add(searcher.termStatistics(e.getKey(), e.getValue()));
+                    }
+                }
+                this.simScorer = searcher.getSimilarity().scorer(boost, collectionStats,
+                        termStats.toArray(new TermStatistics[0]));
+            } else {
+                this.simScorer = null;
+            }
+            // unordered matches may overlap, down to a single position
+            this.maxPayloadScore = LatticePayloadScoreQuery.maxPayloadScore(function, decoder,
+                    inOrder ? minTermsMatched : 1);
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+            for (Term[] alternatives : LatticePhraseQuery.this.terms) {
+                terms.addAll(Arrays.asList(alternatives));
+            }
+        }
+
+        @Override
+        public PhraseScorer scorer(LeafReaderContext context) throws IOException {
+            if (needsScores && simScorer == null) {
+                return null;
+            }
+            // terms of other fields, such as index prefixes, are read from their own field
+            Map<String, TermsEnum> termsEnums = new HashMap<>();
+            PostingsEnum[][] postings = new PostingsEnum[terms.length][];
+            ImpactsDISI impactsDisi = null;
+            int numExist = 0;
+            for (int i = 0; i < terms.length; i++) {
+                postings[i] = new PostingsEnum[terms[i].length];
+                boolean exists = false;
+                for (int j = 0; j < terms[i].length; j++) {
+                    TermState state = termStates[i][j].get(context);
+                    if (state == null) {
+                        // neither alternatives nor terms a match may leave out need be in the segment
+                        continue;
+                    }
+                    exists = true;
+                    TermsEnum termsEnum = termsEnums.get(terms[i][j].field());
+                    if (termsEnum == null) {
+                        termsEnum = context.reader().terms(terms[i][j].field()).iterator();
+                        termsEnums.put(terms[i][j].field(), termsEnum);
+                    }
+                    termsEnum.seekExact(terms[i][j].bytes(), state);
+                    if (i == 0 && boundsByImpacts()) {
+                        // every span starts at an occurrence of the first term, so its impacts bound the number of
+                        // spans, and so the score, of every doc in a block
+                        ImpactsEnum impacts = termsEnum.impacts(PostingsEnum.PAYLOADS);
+                        impactsDisi = new ImpactsDISI(impacts, impacts, new ImpactsSimScorer());
+                        postings[i][j] = impacts;
+                        continue;
+                    }
+                    postings[i][j] = termsEnum.postings(null,
+                            needsPayloads ? PostingsEnum.PAYLOADS : PostingsEnum.POSITIONS);
+                }
+                if (exists) {
+                    numExist++;
+                }
+            }
+            if (numExist < minTermsMatched) {
+                return null;
+            }
+            LeafSimScorer docScorer = null;
+            float maxScore = Float.POSITIVE_INFINITY;
+            if (needsScores) {
+                docScorer = new LeafSimScorer(simScorer, context.reader(), field, true);
+                maxScore = maxPayloadScore;
+                if (includeSpanScore) {
+                    // span scores grow with freq and shrink with field length, so norm 1 gives the best possible score
+                    maxScore *= simScorer.score(Float.MAX_VALUE, 1L);
+                }
+            }
+            return new PhraseScorer(this, postings, impactsDisi, docScorer, needsPayloads, maxScore, matchCost);
+        }
+
+        /**
+         * @return whether the impacts of the first term's postings can bound the scores of the docs they hold: only
+         * when all terms must match in order, the first has no alternatives and no leaf scores above 1
+         */
+        private boolean boundsByImpacts() {
+            return scoreMode == ScoreMode.TOP_SCORES && inOrder && minTermsMatched == terms.length
+                    && terms[0].length == 1 && LatticePayloadScoreQuery.leavesBounded(decoder);
+        }
+
+        /**
+         * Bounds the score of a doc whose first term has the given freq and norm, for {@link ImpactsDISI}
+         */
+        private class ImpactsSimScorer extends Similarity.SimScorer {
+            @Override
+            public float score(float freq, long norm) {
+                // each occurrence of the first term starts at most one span, or one for each end within the slop
+                // when the paths to each end are summed, and no span is shorter than the phrase
+                long maxSpans = function.sumsPaths() ? (long) freq * (slop + 1L) : (long) freq;
+                maxSpans = Math.min(maxSpans, Integer.MAX_VALUE);
+                float maxScore = function.maxDocScore(terms.length, 0.0f, (int) maxSpans);
+                if (includeSpanScore) {
+                    // the phrase's freq is at most its number of spans; terms of other fields have other norms
+                    maxScore *= simScorer.score(maxSpans, terms[0][0].field().equals(field) ? norm : 1L);
+                }
+                return Float.isNaN(maxScore) ? Float.POSITIVE_INFINITY : maxScore;
+            }
+        }
+
+        @Override
+        public boolean isCacheable(LeafReaderContext ctx) {
+            return true;
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            PhraseScorer scorer = scorer(context);
+            if (scorer == null || scorer.iterator().advance(doc) != doc)
+                return Explanation.noMatch("No match");
+
+            float score = scorer.score();
+            Explanation payloadExpl = scorer.getPayloadExplanation();
+
+            if (includeSpanScore) {
+                Explanation freqExpl = Explanation.match(scorer.freq, "phraseFreq=" + scorer.freq);
+                Explanation innerExpl = scorer.docScorer.explain(doc, freqExpl);
+                return Explanation.match(score, "PayloadSpanQuery, product of:",
+                        Explanation.match(innerExpl.getValue(), "weight(" + getQuery() + " in " + doc + ") ["
+                                + simScorer.getClass().getSimpleName() + "], result of:", innerExpl),
+                        payloadExpl);
+            }
+
+            return payloadExpl;
+        }
+    }
+
+    private class PhraseScorer extends Scorer {
+
+        // the postings of each alternative of each term, null for those not in the segment
+        private final PostingsEnum[][] postings;
+        // the docs each term matches, null for those not in the segment
+        private final DocIdSetIterator[] termIterators;
+        private final int numTerms;
+        private final DocIdSetIterator approximation;
+        private final TwoPhaseIterator twoPhaseIterator;
+        // null unless the first term's impacts bound scores block by block
+        private final ImpactsDISI impactsDisi;
+        private final LeafSimScorer docScorer;
+        // set when payloads hold log scores, so leaves can be combined without Math.log
+        private final LatticePayloadDecoder logDecoder;
+        private final boolean decodePayloads;
+        private final float maxScore;
+        private final float minSpanLogScore;
+        // set when no leaf scores above 1, so a path below the threshold can't recover before it is complete
+        private final boolean pruneEarly;
+        private final boolean sumsPaths;
+        // null when scores have no bound, or are bounded by impacts
+        private final CompetitiveIterator competitiveIterator;
+
+        // the positions of each term in the current doc, and their decoded payloads
+        private final int[][] positions;
+        private final float[][] leafScores;
+        private final int[] counts;
+        // the best score of a path ending at each position of each term, for the current start
+        private final float[][] pathScores;
+        // the first position of each term still in reach of the current start
+        private final int[] windowStarts;
+        // for unordered matches, the occurrences of each term in the current window, best score first
+        private final int[][] windows;
+        private final int[] windowHeads;
+        private final int[] windowTails;
+        // the next occurrence of each term to add to the window
+        private final int[] windowEnds;
+        // for partial matches, the best score of a path ending at each position of each term, for the current start,
+        // by the number of terms the path has left out since the start
+        private final float[][][] skipScores;
+        // for partial matches, the occurrence of each earlier term reached so far, and the best path through them
+        private final int[] sweepIndexes;
+        private final float[] sweepScores;
+        // for terms with alternatives, where their occurrences are merged into position order
+        private int[] mergedPositions = new int[8];
+        private float[] mergedLeafScores = new float[8];
+
+        private int freqDoc = -1;
+        private int numSpansSeen;
+        private float freq;
+        private float payloadScore;
+
+        private PhraseScorer(Weight weight, PostingsEnum[][] postings, ImpactsDISI impactsDisi,
+                             LeafSimScorer docScorer, boolean decodePayloads, float maxScore, float matchCost) {
+            super(weight);
+            this.postings = postings;
+            this.numTerms = postings.length;
+            this.termIterators = new DocIdSetIterator[numTerms];
+            for (int i = 0; i < numTerms; i++) {
+                List<PostingsEnum> existing = new ArrayList<>(postings[i].length);
+                for (PostingsEnum alternative : postings[i]) {
+                    if (alternative != null) {
+                        existing.add(alternative);
+                    }
+                }
+                if (existing.size() == 1) {
+                    termIterators[i] = existing.get(0);
+                } else if (existing.size() > 1) {
+                    termIterators[i] = new DisjunctionIterator(existing.toArray(new DocIdSetIterator[0]));
+                }
+            }
+            if (impactsDisi != null) {
+                // skips the blocks of the first term's postings that can't compete
+                termIterators[0] = impactsDisi;
+            }
+            this.impactsDisi = impactsDisi;
+            this.docScorer = docScorer;
+            if (decoder instanceof LatticePayloadDecoder && ((LatticePayloadDecoder) decoder).logDomain()) {
+                this.logDecoder = (LatticePayloadDecoder) decoder;
+            } else {
+                this.logDecoder = null;
+            }
+            this.decodePayloads = decodePayloads;
+            this.maxScore = Float.isNaN(maxScore) ? Float.POSITIVE_INFINITY : maxScore;
+            this.minSpanLogScore = (float) Math.log(minSpanScore);
+            this.pruneEarly = LatticePayloadScoreQuery.leavesBounded(decoder);
+            this.sumsPaths = function.sumsPaths();
+            this.positions = new int[numTerms][8];
+            this.leafScores = new float[numTerms][8];
+            this.pathScores = new float[numTerms][8];
+            this.counts = new int[numTerms];
+            this.windowStarts = new int[numTerms];
+            this.windows = new int[inOrder ? 0 : numTerms][8];
+            this.windowHeads = new int[numTerms];
+            this.windowTails = new int[numTerms];
+            this.windowEnds = new int[numTerms];
+            final boolean partial = minTermsMatched < numTerms;
+            this.skipScores = new float[partial ? numTerms - minTermsMatched + 1 : 0][numTerms][8];
+            this.sweepIndexes = new int[numTerms];
+            this.sweepScores = new float[numTerms];
+
+            DocIdSetIterator conjunction;
+            if (partial) {
+                conjunction = new DisjunctionIterator(termIterators);
+            } else {
+                conjunction = numTerms == 1 ? termIterators[0]
+                        : ConjunctionDISI.intersectIterators(Arrays.asList(termIterators));
+            }
+            TwoPhaseIterator twoPhase = new TwoPhaseIterator(conjunction) {
+                @Override
+                public boolean matches() throws IOException {
+                    if (partial) {
+                        return findPartialPaths();
+                    }
+                    return inOrder ? findPaths() : findWindows();
+                }
+
+                @Override
+                public float matchCost() {
+                    return matchCost;
+                }
+            };
+            if (impactsDisi != null || this.maxScore == Float.POSITIVE_INFINITY) {
+                this.competitiveIterator = null;
+                this.approximation = conjunction;
+                this.twoPhaseIterator = twoPhase;
+            } else {
+                this.competitiveIterator = new CompetitiveIterator(conjunction, this.maxScore);
+                this.approximation = competitiveIterator;
+                this.twoPhaseIterator = competitiveIterator.wrap(twoPhase);
+            }
+        }
+
+        @Override
+        public int docID() {
+            return approximation.docID();
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return TwoPhaseIterator.asDocIdSetIterator(twoPhaseIterator);
+        }
+
+        @Override
+        public TwoPhaseIterator twoPhaseIterator() {
+            return twoPhaseIterator;
+        }
+
+        @Override
+        public int advanceShallow(int target) throws IOException {
+            if (impactsDisi != null) {
+                return impactsDisi.advanceShallow(target);
+            }
+            return super.advanceShallow(target);
+        }
+
+        @Override
+        public float getMaxScore(int upTo) throws IOException {
+            if (impactsDisi != null) {
+                return Math.min(maxScore, impactsDisi.getMaxScore(upTo));
+            }
+            return maxScore;
+        }
+
+        @Override
+        public void setMinCompetitiveScore(float minScore) {
+            if (impactsDisi != null) {
+                impactsDisi.setMinCompetitiveScore(minScore);
+            } else if (competitiveIterator != null) {
+                competitiveIterator.setMinCompetitiveScore(minScore);
+            }
+        }
+
+        @Override
+        public float score() throws IOException {
+            int doc = docID();
+            assert freqDoc == doc : "score() called before matches()";
+            float score = function.docScore(doc, field, numSpansSeen, payloadScore);
+            if (score < 0) {
+                score = 0;
+            }
+            return includeSpanScore ? docScorer.score(doc, freq) * score : score;
+        }
+
+        protected Explanation getPayloadExplanation() {
+            Explanation expl = function.explain(docID(), field, numSpansSeen, payloadScore);
+            if (expl.getValue().floatValue() < 0) {
+                expl = Explanation.match(0, "truncated score, max of:", Explanation.match(0f, "minimum score"), expl);
+            } else if (Float.isNaN(expl.getValue().floatValue())) {
+                expl = Explanation.match(0,
+                        "payload score, computed as (score == NaN ? 0 : score) since NaN is an illegal score from:",
+                        expl);
+            }
+            return expl;
+        }
+
+        /**
+         * Reads the positions and payloads of every term in the current doc, then scores the paths from each position
+         * of the first term
+         * @return true if any path is within the slop
+         */
+        private boolean findPaths() throws IOException {
+            final int doc = startDoc();
+            for (int start = 0; start < counts[0]; start++) {
+                final int startPosition = positions[0][start];
+                pathScores[0][start] = pathScore(leafScore(doc, startPosition, startPosition + 1, 0, 0.0f, 0, start),
+                        numTerms == 1);
+                // the previous term's positions that a path through this start can use
+                int prevFrom = start;
+                int prevTo = start + 1;
+                for (int i = 1; i < numTerms && prevFrom < prevTo; i++) {
+                    // each earlier term takes up at least one position, and the gaps add up to at most slop
+                    final int minPosition = startPosition + i;
+                    final int maxPosition = minPosition + slop;
+                    int from = windowStarts[i];
+                    while (from < counts[i] && positions[i][from] < minPosition) {
+                        from++;
+                    }
+                    windowStarts[i] = from;
+
+                    float best = Float.NEGATIVE_INFINITY;
+                    int prev = prevFrom;
+                    int to = from;
+                    boolean reachable = false;
+                    for (; to < counts[i] && positions[i][to] <= maxPosition; to++) {
+                        final int position = positions[i][to];
+                        while (prev < prevTo && positions[i - 1][prev] < position) {
+                            best = sumsPaths ? LatticePayloadScoreFunction.sumPaths(best, pathScores[i - 1][prev])
+                                    : Math.max(best, pathScores[i - 1][prev]);
+                            prev++;
+                        }
+                        if (best == Float.NEGATIVE_INFINITY) {
+                            pathScores[i][to] = Float.NEGATIVE_INFINITY;
+                        } else {
+                            pathScores[i][to] = pathScore(leafScore(doc, startPosition, position + 1, i, best, i, to),
+                                    i == numTerms - 1);
+                            reachable |= pathScores[i][to] != Float.NEGATIVE_INFINITY;
+                        }
+                    }
+                    prevFrom = from;
+                    prevTo = reachable ? to : from;
+                }
+                if (prevFrom < prevTo && sumsPaths) {
+                    collectAllPaths(doc, startPosition, prevFrom, prevTo);
+                } else if (prevFrom < prevTo) {
+                    collectBestPath(doc, startPosition, prevFrom, prevTo);
+                }
+            }
+            return numSpansSeen > 0;
+        }
+
+        /**
+         * Reads the positions and payloads of every term in the current doc, then slides a window over them, keeping
+         * the best scoring occurrence of each term in the window
+         * @return true if all the terms are within the slop of each other anywhere
+         */
+        private boolean findWindows() throws IOException {
+            final int doc = startDoc();
+            // the furthest the last position of a match can be from its first
+            final int reach = slop + numTerms - 1;
+            for (int i = 0; i < numTerms; i++) {
+                if (windows[i].length < counts[i]) {
+                    windows[i] = ArrayUtil.grow(windows[i], counts[i]);
+                }
+                windowHeads[i] = 0;
+                windowTails[i] = 0;
+                windowEnds[i] = 0;
+            }
+            while (true) {
+                // windows start at each position any term occurs at
+                int windowStart = Integer.MAX_VALUE;
+                for (int i = 0; i < numTerms; i++) {
+                    if (windowStarts[i] < counts[i]) {
+                        windowStart = Math.min(windowStart, positions[i][windowStarts[i]]);
+                    }
+                }
+                if (windowStart == Integer.MAX_VALUE) {
+                    break;
+                }
+                boolean allTerms = true;
+                for (int i = 0; i < numTerms; i++) {
+                    final int[] window = windows[i];
+                    int head = windowHeads[i];
+                    int tail = windowTails[i];
+                    while (head < tail && positions[i][window[head]] < windowStart) {
+                        head++;
+                    }
+                    // an occurrence never beats a later one that scores as well, so it leaves the window
+                    int next = windowEnds[i];
+                    for (; next < counts[i] && positions[i][next] <= windowStart + reach; next++) {
+                        while (tail > head && leafScores[i][window[tail - 1]] <= leafScores[i][next]) {
+                            tail--;
+                        }
+                        window[tail++] = next;
+                    }
+                    windowHeads[i] = head;
+                    windowTails[i] = tail;
+                    windowEnds[i] = next;
+                    allTerms &= head < tail;
+                    while (windowStarts[i] < counts[i] && positions[i][windowStarts[i]] <= windowStart) {
+                        windowStarts[i]++;
+                    }
+                }
+                if (allTerms) {
+                    collectWindow(doc, windowStart);
+                }
+            }
+            return numSpansSeen > 0;
+        }
+
+        private void collectWindow(int doc, int windowStart) {
+            int start = Integer.MAX_VALUE;
+            int end = 0;
+            for (int i = 0; i < numTerms; i++) {
+                int position = positions[i][windows[i][windowHeads[i]]];
+                start = Math.min(start, position);
+                end = Math.max(end, position + 1);
+            }
+            if (start != windowStart) {
+                // the window starting at the best occurrences' first position collects them
+                return;
+            }
+            float pathScore = 0.0f;
+            for (int i = 0; i < numTerms; i++) {
+                pathScore = pathScore(leafScore(doc, start, end, i, pathScore, i, windows[i][windowHeads[i]]),
+                        i == numTerms - 1);
+                if (pathScore == Float.NEGATIVE_INFINITY) {
+                    return;
+                }
+            }
+            // terms may share positions, but a span is never narrower than a single term
+            int width = Math.max(0, end - start - numTerms);
+            payloadScore = function.spanScore(doc, field, start, end, width, numTerms, payloadScore, pathScore);
+            freq += 1.0 / (1.0 + width);
+            numSpansSeen++;
+        }
+
+        /**
+         * Reads the positions and payloads of the terms in the current doc, then scores the paths from each position
+         * of the terms a match can start with, leaving out terms as allowed
+         * @return true if any path with enough terms is within the slop
+         */
+        private boolean findPartialPaths() throws IOException {
+            int numPresent = 0;
+            for (int i = 0; i < numTerms; i++) {
+                if (termIterators[i] != null && termIterators[i].docID() == docID()) {
+                    numPresent++;
+                }
+            }
+            if (numPresent < minTermsMatched) {
+                return false;
+            }
+            final int doc = startDoc();
+            final int maxMissing = numTerms - minTermsMatched;
+            // a match may leave out the terms before its first
+            for (int first = 0; first <= maxMissing; first++) {
+                for (int start = 0; start < counts[first]; start++) {
+                    final int startPosition = positions[first][start];
+                    float startScore = pathScore(leafScore(doc, startPosition, startPosition + 1, 0, 0.0f, first,
+                            start), false);
+                    if (startScore == Float.NEGATIVE_INFINITY) {
+                        continue;
+                    }
+                    for (int i = first + 1; i < numTerms; i++) {
+                        for (int skipped = 0; skipped <= Math.min(maxMissing - first, i - first - 1); skipped++) {
+                            scoreSkipStates(doc, first, startPosition, startScore, i, skipped);
+                        }
+                    }
+                    collectPartialPaths(doc, first, startPosition, startScore);
+                }
+            }
+            return numSpansSeen > 0;
+        }
+
+        /**
+         * Scores the paths from {@code startPosition} that end at each occurrence of {@code term} in reach, having left
+         * out {@code skipped} of the terms between {@code first} and {@code term}
+         */
+        private void scoreSkipStates(int doc, int first, int startPosition, float startScore, int term, int skipped) {
+            // terms matched before this one, each taking up at least one position
+            final int matched = term - first - skipped;
+            final int minPosition = startPosition + matched;
+            final int maxPosition = minPosition + slop;
+            // the previous matched term is d terms back, leaving out the d terms in between
+            for (int d = 0; d <= skipped; d++) {
+                int prevTerm = term - 1 - d;
+                int prevSkipped = skipped - d;
+                int prevMinPosition = startPosition + prevTerm - first - prevSkipped;
+                sweepScores[d] = Float.NEGATIVE_INFINITY;
+                sweepIndexes[d] = prevTerm == first ? counts[prevTerm]
+                        : lowerBound(positions[prevTerm], counts[prevTerm], prevMinPosition);
+            }
+            final float[] scores = skipScores[skipped][term];
+            for (int j = lowerBound(positions[term], counts[term], minPosition);
+                 j < counts[term] && positions[term][j] <= maxPosition; j++) {
+                final int position = positions[term][j];
+                float best = Float.NEGATIVE_INFINITY;
+                for (int d = 0; d <= skipped; d++) {
+                    int prevTerm = term - 1 - d;
+                    int prevSkipped = skipped - d;
+                    if (prevTerm == first) {
+                        // straight from the start, leaving out every term in between
+                        if (prevSkipped == 0 && startPosition < position) {
+                            best = combinePaths(best, startScore);
+                        }
+                        continue;
+                    }
+                    if (prevSkipped > prevTerm - first - 1) {
+                        // can't leave out more terms than there are
+                        continue;
+                    }
+                    int prevMaxPosition = startPosition + prevTerm - first - prevSkipped + slop;
+                    int k = sweepIndexes[d];
+                    while (k < counts[prevTerm] && positions[prevTerm][k] < position
+                            && positions[prevTerm][k] <= prevMaxPosition) {
+                        sweepScores[d] = combinePaths(sweepScores[d], skipScores[prevSkipped][prevTerm][k]);
+                        k++;
+                    }
+                    sweepIndexes[d] = k;
+                    best = combinePaths(best, sweepScores[d]);
+                }
+                scores[j] = best == Float.NEGATIVE_INFINITY ? Float.NEGATIVE_INFINITY
+                        : pathScore(leafScore(doc, startPosition, position + 1, matched, best, term, j), false);
+            }
+        }
+
+        /**
+         * Collects the paths from {@code startPosition} that match enough terms, penalized for the terms they leave
+         * out: all of them if the function sums paths, else the best
+         */
+        private void collectPartialPaths(int doc, int first, int startPosition, float startScore) {
+            final int maxMissing = numTerms - minTermsMatched;
+            final float logPenalty = (float) Math.log(missingTermPenalty);
+            int bestEnd = -1;
+            int bestMatched = 0;
+            float bestPathScore = 0.0f;
+            float bestSpanScore = Float.NEGATIVE_INFINITY;
+            for (int term = first; term < numTerms; term++) {
+                for (int skipped = 0; skipped <= Math.min(maxMissing - first, Math.max(0, term - first - 1));
+                     skipped++) {
+                    final int missing = first + skipped + numTerms - 1 - term;
+                    if (missing > maxMissing) {
+                        continue;
+                    }
+                    final int matched = numTerms - missing;
+                    final int minPosition = startPosition + term - first - skipped;
+                    int from = term == first ? 0 : lowerBound(positions[term], counts[term], minPosition);
+                    int to = term == first ? 1 : counts[term];
+                    for (int j = from; j < to && (term == first || positions[term][j] <= minPosition + slop); j++) {
+                        float pathScore = term == first ? startScore : skipScores[skipped][term][j];
+                        if (pathScore == Float.NEGATIVE_INFINITY) {
+                            continue;
+                        }
+                        pathScore = pathScore(pathScore + missing * logPenalty, true);
+                        if (pathScore == Float.NEGATIVE_INFINITY) {
+                            continue;
+                        }
+                        int end = (term == first ? startPosition : positions[term][j]) + 1;
+                        if (sumsPaths) {
+                            collectSpan(doc, startPosition, end, matched, pathScore);
+                            continue;
+                        }
+                        float spanScore = function.spanScore(doc, field, startPosition, end,
+                                end - startPosition - matched, matched, 0.0f, pathScore);
+                        if (spanScore > bestSpanScore) {
+                            bestSpanScore = spanScore;
+                            bestPathScore = pathScore;
+                            bestEnd = end;
+                            bestMatched = matched;
+                        }
+                    }
+                }
+            }
+            if (bestEnd >= 0) {
+                collectSpan(doc, startPosition, bestEnd, bestMatched, bestPathScore);
+            }
+        }
+
+        private void collectSpan(int doc, int start, int end, int numTerms, float pathScore) {
+            int width = end - start - numTerms;
+            payloadScore = function.spanScore(doc, field, start, end, width, numTerms, payloadScore, pathScore);
+            freq += 1.0 / (1.0 + width);
+            numSpansSeen++;
+        }
+
+        private float combinePaths(float pathScore, float otherPathScore) {
+            return sumsPaths ? LatticePayloadScoreFunction.sumPaths(pathScore, otherPathScore)
+                    : Math.max(pathScore, otherPathScore);
+        }
+
+        /**
+         * Resets the current doc's scores and reads the positions of its terms
+         * @return the current doc
+         */
+        private int startDoc() throws IOException {
+            int doc = docID();
+            freqDoc = doc;
+            numSpansSeen = 0;
+            freq = 0;
+            payloadScore = 0;
+            for (int i = 0; i < numTerms; i++) {
+                readPositions(i);
+                windowStarts[i] = 0;
+            }
+            return doc;
+        }
+
+        private void collectAllPaths(int doc, int startPosition, int from, int to) {
+            final int last = numTerms - 1;
+            for (int j = from; j < to; j++) {
+                float pathScore = pathScores[last][j];
+                // ends shared by several arcs are only counted once, with their paths summed
+                while (j + 1 < to && positions[last][j + 1] == positions[last][j]) {
+                    j++;
+                    pathScore = LatticePayloadScoreFunction.sumPaths(pathScore, pathScores[last][j]);
+                }
+                if (pathScore == Float.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                int end = positions[last][j] + 1;
+                int width = end - startPosition - numTerms;
+                payloadScore = function.spanScore(doc, field, startPosition, end, width, numTerms, payloadScore,
+                        pathScore);
+                freq += 1.0 / (1.0 + width);
+                numSpansSeen++;
+            }
+        }
+
+        private void collectBestPath(int doc, int startPosition, int from, int to) {
+            final int last = numTerms - 1;
+            int bestEnd = -1;
+            float bestPathScore = 0.0f;
+            float bestSpanScore = Float.NEGATIVE_INFINITY;
+            for (int j = from; j < to; j++) {
+                float pathScore = pathScores[last][j];
+                if (pathScore == Float.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                int end = positions[last][j] + 1;
+                // paths ending at different positions are normalized by different lengths
+                float spanScore = function.spanScore(doc, field, startPosition, end, end - startPosition - numTerms,
+                        numTerms, 0.0f, pathScore);
+                if (spanScore > bestSpanScore) {
+                    bestSpanScore = spanScore;
+                    bestPathScore = pathScore;
+                    bestEnd = end;
+                }
+            }
+            if (bestEnd < 0) {
+                return;
+            }
+            int width = bestEnd - startPosition - numTerms;
+            payloadScore = function.spanScore(doc, field, startPosition, bestEnd, width, numTerms, payloadScore,
+                    bestPathScore);
+            freq += 1.0 / (1.0 + width);
+            numSpansSeen++;
+        }
+
+        /**
+         * @param complete whether {@code score} is that of a whole path, rather than of one still to be extended
+         * @return {@code score}, or negative infinity, marking the state unreachable, if it is below the threshold and
+         * either completes a path or no later leaf can raise it
+         */
+        private float pathScore(float score, boolean complete) {
+            return (complete || pruneEarly) && score < minSpanLogScore ? Float.NEGATIVE_INFINITY : score;
+        }
+
+        private float leafScore(int doc, int start, int end, int numPayloadsSeen, float currentScore, int term,
+                                int index) {
+            if (logDecoder != null) {
+                return function.currentLeafLogScore(doc, field, start, end, numPayloadsSeen, currentScore,
+                        leafScores[term][index]);
+            }
+            return function.currentLeafScore(doc, field, start, end, numPayloadsSeen, currentScore,
+                    leafScores[term][index]);
+        }
+
+        /**
+         * Reads the positions and payloads of every alternative of a term in the current doc, in position order;
+         * none if the term is one a partial match can leave out
+         */
+        private void readPositions(int term) throws IOException {
+            counts[term] = 0;
+            for (PostingsEnum alternative : postings[term]) {
+                if (alternative != null && alternative.docID() == docID()) {
+                    readPositions(term, alternative);
+                }
+            }
+        }
+
+        private void readPositions(int term, PostingsEnum termPostings) throws IOException {
+            final int from = counts[term];
+            final int freq = termPostings.freq();
+            final int to = from + freq;
+            if (positions[term].length < to) {
+                positions[term] = ArrayUtil.grow(positions[term], to);
+                leafScores[term] = ArrayUtil.grow(leafScores[term], to);
+                pathScores[term] = ArrayUtil.grow(pathScores[term], to);
+                for (float[][] scores : skipScores) {
+                    scores[term] = ArrayUtil.grow(scores[term], to);
+                }
+            }
+            for (int i = from; i < to; i++) {
+                positions[term][i] = termPostings.nextPosition();
+                BytesRef payload = termPostings.getPayload();
+                if (decodePayloads == false) {
+                    continue;
+                }
+                leafScores[term][i] = logDecoder != null ? logDecoder.computeLogPayloadFactor(payload)
+                        : decoder.computePayloadFactor(payload);
+            }
+            counts[term] = to;
+            if (from > 0 && positions[term][from - 1] > positions[term][from]) {
+                mergeOccurrences(term, from, to);
+            }
+        }
+
+        /**
+         * Merges the occurrences of one alternative, from {@code mid} to {@code to}, into those of the alternatives
+         * read before it, both in position order
+         */
+        private void mergeOccurrences(int term, int mid, int to) {
+            if (mergedPositions.length < to) {
+                mergedPositions = ArrayUtil.grow(mergedPositions, to);
+                mergedLeafScores = ArrayUtil.grow(mergedLeafScores, to);
+            }
+            final int[] termPositions = positions[term];
+            final float[] termLeafScores = leafScores[term];
+            int left = 0;
+            int right = mid;
+            for (int i = 0; i < to; i++) {
+                if (right == to || (left < mid && termPositions[left] <= termPositions[right])) {
+                    mergedPositions[i] = termPositions[left];
+                    mergedLeafScores[i] = termLeafScores[left++];
+                } else {
+                    mergedPositions[i] = termPositions[right];
+                    mergedLeafScores[i] = termLeafScores[right++];
+                }
+            }
+            System.arraycopy(mergedPositions, 0, termPositions, 0, to);
+            System.arraycopy(mergedLeafScores, 0, termLeafScores, 0, to);
+        }
+    }
+
+    /**
+     * @return the index of the first of the {@code count} sorted {@code positions} that is at least {@code position}
+     */
+    private static int lowerBound(int[] positions, int count, int position) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (positions[mid] < position) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Expands a {@link MultiTermQuery} into the terms it matches that are in the most docs, walking each segment's
+     * terms once
+     */
+    static final class TopDocFreqRewrite extends MultiTermQuery.RewriteMethod {
+        private final int maxExpansions;
+
+        TopDocFreqRewrite(int maxExpansions) {
+            this.maxExpansions = maxExpansions;
+        }
+
+        @Override
+        public Query rewrite(IndexReader reader, MultiTermQuery query) throws IOException {
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            for (Term term : expand(reader, query)) {
+                builder.add(new TermQuery(term), BooleanClause.Occur.SHOULD);
+            }
+            return new ConstantScoreQuery(builder.build());
+        }
+
+        /**
+         * @return the {@code maxExpansions} terms {@code query} matches that are in the most docs, in term order
+         */
+        Term[] expand(IndexReader reader, MultiTermQuery query) throws IOException {
+            BytesRefHash matched = new BytesRefHash();
+            int[] docFreqs = new int[16];
+            for (LeafReaderContext context : reader.leaves()) {
+                Terms fieldTerms = context.reader().terms(query.getField());
+                if (fieldTerms == null) {
+                    continue;
+                }
+                TermsEnum termsEnum = getTermsEnum(query, fieldTerms, new AttributeSource());
+                for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                    int id = matched.add(term);
+                    if (id < 0) {
+                        // already matched in an earlier segment
+                        id = -id - 1;
+                    } else if (id >= docFreqs.length) {
+                        docFreqs = ArrayUtil.grow(docFreqs, id + 1);
+                    }
+                    docFreqs[id] += termsEnum.docFreq();
+                }
+            }
+            final int[] counts = docFreqs;
+            final int[] sorted = matched.sort();
+            int[] ids = sorted;
+            int numMatched = matched.size();
+            if (numMatched > maxExpansions) {
+                // the terms in the fewest docs, and then the last in term order, go first, so the most frequent are kept
+                PriorityQueue<Integer> top = new PriorityQueue<>(maxExpansions + 1,
+                        Comparator.<Integer>comparingInt(i -> counts[sorted[i]])
+                                .thenComparing(Comparator.reverseOrder()));
+                for (int i = 0; i < numMatched; i++) {
+                    top.add(i);
+                    if (top.size() > maxExpansions) {
+                        top.poll();
+                    }
+                }
+                int[] kept = new int[top.size()];
+                int n = 0;
+                for (int position : top) {
+                    kept[n++] = position;
+                }
+                Arrays.sort(kept);
+                for (int i = 0; i < kept.length; i++) {
+                    kept[i] = sorted[kept[i]];
+                }
+                ids = kept;
+                numMatched = kept.length;
+            }
+            Term[] expanded = new Term[numMatched];
+            BytesRef scratch = new BytesRef();
+            for (int i = 0; i < numMatched; i++) {
+                expanded[i] = new Term(query.getField(), BytesRef.deepCopyOf(matched.get(ids[i], scratch)));
+            }
+            return expanded;
+        }
+    }
+
+    /**
+     * The docs any of a handful of iterators match, for the alternatives of a term, and for partial matches that may
+     * leave terms out
+     */
+    private static final class DisjunctionIterator extends DocIdSetIterator {
+        // null for those not in the segment
+        private final DocIdSetIterator[] iterators;
+        private int doc = -1;
+
+        private DisjunctionIterator(DocIdSetIterator[] iterators) {
+            this.iterators = iterators;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            int next = NO_MORE_DOCS;
+            for (DocIdSetIterator iterator : iterators) {
+                if (iterator == null) {
+                    continue;
+                }
+                if (iterator.docID() < target) {
+                    iterator.advance(target);
+                }
+                next = Math.min(next, iterator.docID());
+            }
+            return doc = next;
+        }
+
+        @Override
+        public long cost() {
+            long cost = 0;
+            for (DocIdSetIterator iterator : iterators) {
+                if (iterator != null) {
+                    cost += iterator.cost();
+                }
+            }
+            return cost;
+        }
+    }
+}
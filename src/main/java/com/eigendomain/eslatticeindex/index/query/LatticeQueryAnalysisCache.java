@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index.query;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.QueryShardContext;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A node wide LRU cache of the terms {@link MatchLatticeQueryBuilder} analyzes query text into, so that query strings
+ * that are repeated over and over are only run through the search analyzer once per shard copy's index.
+ *
+ * Entries are keyed by index, field, analyzer and text, along with the index's mapping and settings versions, so any
+ * change to the mappings or analysis settings of an index makes its old entries unreachable and they are evicted in
+ * time by newer ones.
+ */
+public final class LatticeQueryAnalysisCache implements ToXContentFragment {
+    public static final Setting<Integer> SIZE_SETTING =
+            Setting.intSetting("lattice.query_analysis_cache.size", 10000, 0, Property.NodeScope);
+
+    private final Cache<Key, List<BytesRef[]>> cache;
+
+    public LatticeQueryAnalysisCache(Settings settings) {
+        this(SIZE_SETTING.get(settings));
+    }
+
+    /**
+     * @param size the maximum number of query strings to keep, 0 to disable caching
+     */
+    public LatticeQueryAnalysisCache(int size) {
+        this.cache = size > 0 ? CacheBuilder.<Key, List<BytesRef[]>>builder().setMaximumWeight(size).build() : null;
+    }
+
+    /**
+     * @param analyzerName the name of the analyzer {@code analyze} runs, or null if it can not be named, in which case
+     *                     the result is not cached
+     * @param analyze analyzes the text into the terms at each position, none of which may be changed once returned
+     */
+    <E extends Exception> List<BytesRef[]> terms(QueryShardContext context, String fieldName, String analyzerName,
+                                                 String text, CheckedSupplier<List<BytesRef[]>, E> analyze) throws E {
+        if (cache == null || analyzerName == null) {
+            return analyze.get();
+        }
+        IndexMetaData indexMetaData = context.getIndexSettings().getIndexMetaData();
+        Key key = new Key(context.index().getUUID(), indexMetaData.getMappingVersion(),
+                indexMetaData.getSettingsVersion(), fieldName, analyzerName, text);
+        List<BytesRef[]> terms = cache.get(key);
+        if (terms == null) {
+            terms = analyze.get();
+            cache.put(key, terms);
+        }
+        return terms;
+    }
+
+    public long count() {
+        return cache == null ? 0 : cache.count();
+    }
+
+    public long hits() {
+        return cache == null ? 0 : cache.stats().getHits();
+    }
+
+    public long misses() {
+        return cache == null ? 0 : cache.stats().getMisses();
+    }
+
+    public long evictions() {
+        return cache == null ? 0 : cache.stats().getEvictions();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("query_analysis_cache");
+        builder.field("count", count());
+        builder.field("hits", hits());
+        builder.field("misses", misses());
+        builder.field("evictions", evictions());
+        builder.endObject();
+        return builder;
+    }
+
+    private static final class Key {
+        private final String indexUUID;
+        private final long mappingVersion;
+        private final long settingsVersion;
+        private final String fieldName;
+        private final String analyzerName;
+        private final String text;
+        private final int hashCode;
+
+        Key(String indexUUID, long mappingVersion, long settingsVersion, String fieldName, String analyzerName,
+            String text) {
+            this.indexUUID = indexUUID;
+            this.mappingVersion = mappingVersion;
+            this.settingsVersion = settingsVersion;
+            this.fieldName = fieldName;
+            this.analyzerName = analyzerName;
+            this.text = text;
+            this.hashCode = Objects.hash(indexUUID, mappingVersion, settingsVersion, fieldName, analyzerName, text);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mappingVersion == key.mappingVersion
+                    && settingsVersion == key.settingsVersion
+                    && indexUUID.equals(key.indexUUID)
+                    && fieldName.equals(key.fieldName)
+                    && analyzerName.equals(key.analyzerName)
+                    && text.equals(key.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index.query;
+
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.TermStates;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.queries.payloads.PayloadDecoder;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.ImpactsDISI;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafSimScorer;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Scores a single term by its payloads, as a {@link LatticePayloadScoreQuery} wrapping a
+ * {@link org.apache.lucene.search.spans.SpanTermQuery} would, but reading positions and payloads straight from the
+ * postings rather than through spans.  A term holding the paths of a phrase, such as those of the
+ * {@code index_phrases} sub-field, can be scored as {@link LatticePhraseQuery} would score the phrase itself.
+ */
+public class LatticeTermPayloadQuery extends Query {
+
+    private final Term term;
+    // the phrase whose paths the term holds, or null
+    private final Term[] phrase;
+    private final LatticePayloadScoreFunction function;
+    private final PayloadDecoder decoder;
+    private final boolean includeSpanScore;
+    private final float minSpanScore;
+
+    /**
+     * Creates a new LatticeTermPayloadQuery
+     * @param term the term to match
+     * @param function a LatticePayloadScoreFunction to combine the payloads of each position with
+     * @param decoder a PayloadDecoder to convert payloads into float values
+     * @param includeSpanScore include both the term's similarity score and payload score in the scoring algorithm
+     * @param minSpanScore positions scoring below this are ignored, and docs left without positions don't match;
+     *                     0 keeps every position
+     */
+    public LatticeTermPayloadQuery(Term term, LatticePayloadScoreFunction function, PayloadDecoder decoder,
+                                   boolean includeSpanScore, float minSpanScore) {
+        this(term, null, function, decoder, includeSpanScore, minSpanScore);
+    }
+
+    /**
+     * Creates a new LatticeTermPayloadQuery over a term holding the paths of a phrase, each with the product of its
+     * arcs' scores as payload
+     * @param term the term to match
+     * @param phrase the terms of the phrase, in the field it was indexed from; each position of {@code term} is
+     *               scored as a span as long as the phrase, and its similarity score uses the statistics and norms
+     *               of the phrase's terms, as a {@link LatticePhraseQuery} with no slop would score them; null scores
+     *               {@code term} on its own
+     * @param function a LatticePayloadScoreFunction to combine the payloads of each position with
+     * @param decoder a PayloadDecoder to convert payloads into float values
+     * @param includeSpanScore include both the term's similarity score and payload score in the scoring algorithm
+     * @param minSpanScore positions scoring below this are ignored, and docs left without positions don't match;
+     *                     0 keeps every position
+     */
+    public LatticeTermPayloadQuery(Term term, Term[] phrase, LatticePayloadScoreFunction function,
+                                   PayloadDecoder decoder, boolean includeSpanScore, float minSpanScore) {
+        this.term = Objects.requireNonNull(term);
+        if (phrase != null && phrase.length == 0) {
+            throw new IllegalArgumentException("phrase must have at least one term");
+        }
+        this.phrase = phrase == null ? null : phrase.clone();
+        this.function = Objects.requireNonNull(function);
+        this.decoder = Objects.requireNonNull(decoder);
+        this.includeSpanScore = includeSpanScore;
+        this.minSpanScore = LatticePayloadScoreQuery.checkMinSpanScore(minSpanScore);
+    }
+
+    /**
+     * Creates a new LatticeTermPayloadQuery that keeps every position
+     * @param term the term to match
+     * @param function a LatticePayloadScoreFunction to combine the payloads of each position with
+     * @param decoder a PayloadDecoder to convert payloads into float values
+     * @param includeSpanScore include both the term's similarity score and payload score in the scoring algorithm
+     */
+    public LatticeTermPayloadQuery(Term term, LatticePayloadScoreFunction function, PayloadDecoder decoder,
+                                   boolean includeSpanScore) {
+        this(term, function, decoder, includeSpanScore, 0.0f);
+    }
+
+    public Term getTerm() {
+        return term;
+    }
+
+    @Override
+    public void visit(QueryVisitor visitor) {
+        if (visitor.acceptField(term.field())) {
+            visitor.consumeTerms(this, term);
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("LatticeTermPayloadQuery(");
+        buffer.append(term.field().equals(field) ? term.text() : term.toString());
+        if (phrase != null) {
+            buffer.append(", phrase: ");
+            buffer.append(Arrays.toString(phrase));
+        }
+        buffer.append(", function: ");
+        buffer.append(function.getClass().getSimpleName());
+        buffer.append(", includeSpanScore: ");
+        buffer.append(includeSpanScore);
+        if (minSpanScore > 0) {
+            buffer.append(", minSpanScore: ");
+            buffer.append(minSpanScore);
+        }
+        buffer.append(")");
+        return buffer.toString();
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        // payloads are needed to find matches when positions can be ignored
+        if (!scoreMode.needsScores() && minSpanScore == 0) {
+            return new TermQuery(term).createWeight(searcher, scoreMode, boost);
+        }
+        IndexReaderContext context = searcher.getTopReaderContext();
+        return new TermPayloadWeight(searcher, scoreMode, TermStates.build(context, term, true), boost);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) &&
+                equalsTo(getClass().cast(other));
+    }
+
+    private boolean equalsTo(LatticeTermPayloadQuery other) {
+        return term.equals(other.term) && Arrays.equals(phrase, other.phrase) &&
+                function.equals(other.function) && (includeSpanScore == other.includeSpanScore) &&
+                minSpanScore == other.minSpanScore &&
+                Objects.equals(decoder, other.decoder);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hash(classHash(), term, function, decoder, includeSpanScore, minSpanScore)
+                + Arrays.hashCode(phrase);
+    }
+
+    private class TermPayloadWeight extends Weight {
+
+        private final ScoreMode scoreMode;
+        private final TermStates termStates;
+        private final Similarity.SimScorer simScorer;
+        // the field whose norms the similarity score reads
+        private final String normsField;
+        // the number of positions each match spans
+        private final int spanLength;
+        // an upper bound on the payload score of any doc
+        private final float maxPayloadScore;
+
+        TermPayloadWeight(IndexSearcher searcher, ScoreMode scoreMode, TermStates termStates, float boost)
+                throws IOException {
+            super(LatticeTermPayloadQuery.this);
+            this.scoreMode = scoreMode;
+            this.termStates = termStates;
+            if (phrase == null) {
+                // built the same way as a SpanWeight's, so span scores match those of a SpanTermQuery
+                CollectionStatistics collectionStats = searcher.collectionStatistics(term.field());
+                if (collectionStats != null && termStates.docFreq() > 0) {
+                    this.simScorer = searcher.getSimilarity().scorer(boost, collectionStats,
+                            searcher.termStatistics(term, termStates));
+                } else {
+                    this.simScorer = null;
+                }
+                this.normsField = term.field();
+                this.spanLength = 1;
+            } else {
+                // built the same way as a LatticePhraseQuery's, from the distinct terms of the phrase
+                this.simScorer = termStates.docFreq() > 0 ? phraseSimScorer(searcher, boost) : null;
+                this.normsField = phrase[0].field();
+                this.spanLength = phrase.length;
+            }
+            this.maxPayloadScore = LatticePayloadScoreQuery.maxPayloadScore(function, decoder, spanLength);
+        }
+
+        private Similarity.SimScorer phraseSimScorer(IndexSearcher searcher, float boost) throws IOException {
+            CollectionStatistics collectionStats = searcher.collectionStatistics(phrase[0].field());
+            if (collectionStats == null) {
+                return null;
+            }
+            IndexReaderContext context = searcher.getTopReaderContext();
+            Set<Term> distinct = new LinkedHashSet<>(Arrays.asList(phrase));
+            List<TermStatistics> termStats = new ArrayList<>(distinct.size());
+            for (Term phraseTerm : distinct) {
+                TermStates states = TermStates.build(context, phraseTerm, true);
+                if (states.docFreq() > 0) {
+                    termStats.add(searcher.termStatistics(phraseTerm, states));
+                }
+            }
+            if (termStats.isEmpty()) {
+                return null;
+            }
+            return searcher.getSimilarity().scorer(boost, collectionStats, termStats.toArray(new TermStatistics[0]));
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+            terms.add(term);
+        }
+
+        @Override
+        public TermPayloadScorer scorer(LeafReaderContext context) throws IOException {
+            TermState state = termStates.get(context);
+            if (state == null || simScorer == null) {
+                return null;
+            }
+            Terms terms = context.reader().terms(term.field());
+            if (terms == null) {
+                return null;
+            }
+            TermsEnum termsEnum = terms.iterator();
+            termsEnum.seekExact(term.bytes(), state);
+            LeafSimScorer docScorer = new LeafSimScorer(simScorer, context.reader(), normsField, true);
+            // positions read to check a candidate doc
+            float matchCost = (float) termsEnum.totalTermFreq() / termsEnum.docFreq();
+            if (scoreMode == ScoreMode.TOP_SCORES && LatticePayloadScoreQuery.leavesBounded(decoder)) {
+                // the postings' impacts bound the freq, and so the score, of every doc in a block
+                ImpactsEnum impacts = termsEnum.impacts(PostingsEnum.PAYLOADS);
+                ImpactsDISI impactsDisi = new ImpactsDISI(impacts, impacts, new ImpactsSimScorer());
+                return new TermPayloadScorer(this, impacts, impactsDisi, docScorer, Float.POSITIVE_INFINITY, matchCost);
+            }
+            PostingsEnum postings = termsEnum.postings(null, PostingsEnum.PAYLOADS);
+            float maxScore = maxPayloadScore;
+            if (includeSpanScore) {
+                // span scores grow with freq and shrink with field length, so norm 1 gives the best possible score
+                maxScore *= simScorer.score(Float.MAX_VALUE, 1L);
+            }
+            maxScore = Float.isNaN(maxScore) ? Float.POSITIVE_INFINITY : maxScore;
+            DocIdSetIterator approximation = maxScore == Float.POSITIVE_INFINITY ? postings
+                    : new CompetitiveIterator(postings, maxScore);
+            return new TermPayloadScorer(this, postings, approximation, docScorer, maxScore, matchCost);
+        }
+
+        @Override
+        public boolean isCacheable(LeafReaderContext ctx) {
+            return true;
+        }
+
+        /**
+         * Bounds the score of a doc with the given freq and norm, for {@link ImpactsDISI}
+         */
+        private class ImpactsSimScorer extends Similarity.SimScorer {
+            @Override
+            public float score(float freq, long norm) {
+                // every position is a span of one leaf scoring at most 1
+                float maxScore = function.maxDocScore(spanLength, 0.0f, (int) freq);
+                if (includeSpanScore) {
+                    // the impacts' norms are those of the term's field, not of the phrase's
+                    maxScore *= simScorer.score(freq, phrase == null ? norm : 1L);
+                }
+                return Float.isNaN(maxScore) ? Float.POSITIVE_INFINITY : maxScore;
+            }
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            TermPayloadScorer scorer = scorer(context);
+            if (scorer == null || scorer.iterator().advance(doc) != doc)
+                return Explanation.noMatch("No match");
+
+            float score = scorer.score();
+            Explanation payloadExpl = scorer.getPayloadExplanation();
+
+            if (includeSpanScore) {
+                Explanation freqExpl = Explanation.match(scorer.freq, "termFreq=" + scorer.freq);
+                Explanation innerExpl = scorer.docScorer.explain(doc, freqExpl);
+                return Explanation.match(score, "PayloadSpanQuery, product of:",
+                        Explanation.match(innerExpl.getValue(), "weight(" + getQuery() + " in " + doc + ") ["
+                                + simScorer.getClass().getSimpleName() + "], result of:", innerExpl),
+                        payloadExpl);
+            }
+
+            return payloadExpl;
+        }
+    }
+
+    private class TermPayloadScorer extends Scorer {
+
+        private final PostingsEnum postings;
+        // skips docs that can't compete, either postings wrapped in a CompetitiveIterator or an ImpactsDISI, which
+        // bounds scores block by block
+        private final DocIdSetIterator approximation;
+        // null unless positions can be ignored, in which case a doc only matches once it has been scored
+        private final TwoPhaseIterator twoPhaseIterator;
+        private final LeafSimScorer docScorer;
+        // set when payloads hold log scores, so positions can be combined without Math.log
+        private final LatticePayloadDecoder logDecoder;
+        // the bound on every doc's score, unless the approximation is an ImpactsDISI
+        private final float maxScore;
+        private final float minSpanLogScore;
+
+        private int scoredDoc = -1;
+        private int freq;
+        private float payloadScore;
+        private float score;
+
+        private TermPayloadScorer(Weight weight, PostingsEnum postings, DocIdSetIterator approximation,
+                                  LeafSimScorer docScorer, float maxScore, float matchCost) {
+            super(weight);
+            this.postings = postings;
+            this.approximation = approximation;
+            this.docScorer = docScorer;
+            if (decoder instanceof LatticePayloadDecoder && ((LatticePayloadDecoder) decoder).logDomain()) {
+                this.logDecoder = (LatticePayloadDecoder) decoder;
+            } else {
+                this.logDecoder = null;
+            }
+            this.maxScore = maxScore;
+            this.minSpanLogScore = (float) Math.log(minSpanScore);
+            if (minSpanScore == 0) {
+                this.twoPhaseIterator = null;
+            } else {
+                this.twoPhaseIterator = new TwoPhaseIterator(approximation) {
+                    @Override
+                    public boolean matches() throws IOException {
+                        ensureScored();
+                        return freq > 0;
+                    }
+
+                    @Override
+                    public float matchCost() {
+                        return matchCost;
+                    }
+                };
+            }
+        }
+
+        @Override
+        public int docID() {
+            return postings.docID();
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return twoPhaseIterator == null ? approximation : TwoPhaseIterator.asDocIdSetIterator(twoPhaseIterator);
+        }
+
+        @Override
+        public TwoPhaseIterator twoPhaseIterator() {
+            return twoPhaseIterator;
+        }
+
+        @Override
+        public int advanceShallow(int target) throws IOException {
+            if (approximation instanceof ImpactsDISI) {
+                return ((ImpactsDISI) approximation).advanceShallow(target);
+            }
+            return super.advanceShallow(target);
+        }
+
+        @Override
+        public float getMaxScore(int upTo) throws IOException {
+            if (approximation instanceof ImpactsDISI) {
+                return ((ImpactsDISI) approximation).getMaxScore(upTo);
+            }
+            return maxScore;
+        }
+
+        @Override
+        public void setMinCompetitiveScore(float minScore) {
+            if (approximation instanceof ImpactsDISI) {
+                ((ImpactsDISI) approximation).setMinCompetitiveScore(minScore);
+            } else if (approximation instanceof CompetitiveIterator) {
+                ((CompetitiveIterator) approximation).setMinCompetitiveScore(minScore);
+            }
+        }
+
+        @Override
+        public float score() throws IOException {
+            ensureScored();
+            return score;
+        }
+
+        private void ensureScored() throws IOException {
+            int doc = postings.docID();
+            if (doc != scoredDoc) {
+                scoreCurrentDoc(doc);
+                scoredDoc = doc;
+            }
+        }
+
+        private void scoreCurrentDoc(int doc) throws IOException {
+            String field = term.field();
+            int spanLength = phrase == null ? 1 : phrase.length;
+            int positions = postings.freq();
+            freq = 0;
+            payloadScore = 0.0f;
+            for (int i = 0; i < positions; i++) {
+                int position = postings.nextPosition();
+                BytesRef payload = postings.getPayload();
+                // each position is a span of one leaf, the product of a phrase's path
+                int end = position + spanLength;
+                float currentSpanScore;
+                if (logDecoder != null) {
+                    currentSpanScore = function.currentLeafLogScore(doc, field, position, end, 0, 0.0f,
+                            logDecoder.computeLogPayloadFactor(payload));
+                } else {
+                    currentSpanScore = function.currentLeafScore(doc, field, position, end, 0, 0.0f,
+                            decoder.computePayloadFactor(payload));
+                }
+                if (currentSpanScore < minSpanLogScore) {
+                    continue;
+                }
+                freq++;
+                payloadScore = function.spanScore(doc, field, position, end, 0, spanLength, payloadScore,
+                        currentSpanScore);
+            }
+
+            float docPayloadScore = function.docScore(doc, field, freq, payloadScore);
+            if (docPayloadScore < 0) {
+                docPayloadScore = 0;
+            }
+            score = includeSpanScore ? docScorer.score(doc, freq) * docPayloadScore : docPayloadScore;
+        }
+
+        protected Explanation getPayloadExplanation() {
+            Explanation expl = function.explain(docID(), term.field(), freq, payloadScore);
+            if (expl.getValue().floatValue() < 0) {
+                expl = Explanation.match(0, "truncated score, max of:", Explanation.match(0f, "minimum score"), expl);
+            } else if (Float.isNaN(expl.getValue().floatValue())) {
+                expl = Explanation.match(0,
+                        "payload score, computed as (score == NaN ? 0 : score) since NaN is an illegal score from:",
+                        expl);
+            }
+            return expl;
+        }
+    }
+}
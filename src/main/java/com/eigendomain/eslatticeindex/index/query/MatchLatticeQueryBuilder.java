@@ -17,31 +17,42 @@
 
 package com.eigendomain.eslatticeindex.index.query;
 
+import com.eigendomain.eslatticeindex.index.LatticePayloadEncoding;
 import com.eigendomain.eslatticeindex.mapper.LatticeFieldMapper;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.CachingTokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
 import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queries.payloads.PayloadDecoder;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FuzzyQuery;
 import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.spans.SpanNearQuery;
-import org.apache.lucene.search.spans.SpanQuery;
-import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.SynonymQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.ParseField;
 import org.elasticsearch.common.ParsingException;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.lucene.Lucene;
+import org.elasticsearch.common.unit.Fuzziness;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.analysis.NamedAnalyzer;
 import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.query.AbstractQueryBuilder;
 import org.elasticsearch.index.query.MatchPhraseQueryBuilder;
 import org.elasticsearch.index.query.MatchQueryBuilder;
+import org.elasticsearch.index.query.Operator;
 import org.elasticsearch.index.query.QueryShardContext;
 import org.elasticsearch.index.query.QueryShardException;
 import org.elasticsearch.index.query.SpanNearQueryBuilder;
@@ -50,9 +61,13 @@ import org.elasticsearch.index.search.MatchQuery;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import static org.elasticsearch.common.lucene.search.Queries.maybeApplyMinimumShouldMatch;
 import static org.elasticsearch.common.lucene.search.Queries.newUnmappedFieldQuery;
 
 public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQueryBuilder> implements SpanQueryBuilder {
@@ -63,6 +78,9 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
     public static final float DEFAULT_PHRASE_GAP = 0.16f;
     private static final PayloadDecoder FLOAT_DECODER = new FloatDecoder(1.0f);
     private static final float DEFAULT_LEN_NORM = 1.0f;
+    public static final float DEFAULT_MISSING_TERM_PENALTY = 0.5f;
+    public static final int DEFAULT_MAX_EXPANSIONS = FuzzyQuery.defaultMaxExpansions;
+    public static final int DEFAULT_CASCADE_MIN_HITS = 10;
 
     private final String fieldName;
     private final Object value;
@@ -74,9 +92,30 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
     private boolean inOrder = true;
     private int slop = DEFAULT_SLOP;
     private float slopSeconds = DEFAULT_SLOP_SECS;
+    private float minSpanScore = 0.0f;
+    // 0 matches every term
+    private int minimumTermsMatched = 0;
+    private float missingTermPenalty = DEFAULT_MISSING_TERM_PENALTY;
+    // either being set matches the terms as a bag of words rather than a phrase
+    private Operator operator = null;
+    private String minimumShouldMatch = null;
+    // words with wildcards or a fuzzy suffix expand to the terms they match
+    private boolean expandTerms = false;
+    private int maxExpansions = DEFAULT_MAX_EXPANSIONS;
+    // searches the field's rank tiers first, until one has enough hits
+    private boolean cascade = false;
+    private int cascadeMinHits = DEFAULT_CASCADE_MIN_HITS;
 
     private MatchQuery.ZeroTermsQuery zeroTermsQuery = MatchQuery.DEFAULT_ZERO_TERMS_QUERY;
 
+    // node local, so neither serialized nor part of equality
+    private LatticeQueryAnalysisCache analysisCache = null;
+
+    // a word, then a ~ and an optional number of edits
+    private static final Pattern FUZZY_WORD = Pattern.compile("(.+)~([0-9]*)");
+
+    private static final LatticePayloadScoreFunction BAG_OF_WORDS_FUNCTION = new PosteriorLatticePayloadFunction();
+
     private LatticePayloadScoreFunction payloadFunction = new SumLatticePayloadFunction(1.0f);
     private PayloadDecoder payloadDecoder = new FloatDecoder(1.0f);
 
@@ -86,6 +125,12 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
     private static final ParseField INCLUDE_SPAN_SCORE_FIELD = new ParseField("include_span_score");
     private static final ParseField PAYLOAD_FUNCTION_FIELD = new ParseField("payload_function");
     private static final ParseField PAYLOAD_LEN_NORM_FIELD = new ParseField("payload_length_norm_factor");
+    private static final ParseField MIN_SPAN_SCORE_FIELD = new ParseField("min_span_score");
+    private static final ParseField MINIMUM_TERMS_MATCHED_FIELD = new ParseField("minimum_terms_matched");
+    private static final ParseField MISSING_TERM_PENALTY_FIELD = new ParseField("missing_term_penalty");
+    private static final ParseField EXPAND_TERMS_FIELD = new ParseField("expand_terms");
+    private static final ParseField CASCADE_FIELD = new ParseField("cascade");
+    private static final ParseField CASCADE_MIN_HITS_FIELD = new ParseField("cascade_min_hits");
 
     public MatchLatticeQueryBuilder(String fieldName, Object value) {
         super();
@@ -113,6 +158,15 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
         this.zeroTermsQuery = MatchQuery.ZeroTermsQuery.readFromStream(in);
 
         this.analyzerString = in.readOptionalString();
+        this.minSpanScore = in.readFloat();
+        this.operator = in.readOptionalWriteable(Operator::readFromStream);
+        this.minimumShouldMatch = in.readOptionalString();
+        this.minimumTermsMatched = in.readVInt();
+        this.missingTermPenalty = in.readFloat();
+        this.expandTerms = in.readBoolean();
+        this.maxExpansions = in.readVInt();
+        this.cascade = in.readBoolean();
+        this.cascadeMinHits = in.readVInt();
     }
 
     private static LatticePayloadScoreFunction parsePayloadFuncString(String name, float lenNormFactor) {
@@ -123,6 +177,8 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
                 return new MaxLatticePayloadFunction(lenNormFactor);
             case "min":
                 return new MinLatticePayloadFunction(lenNormFactor);
+            case "posterior":
+                return new PosteriorLatticePayloadFunction();
         }
         throw new IllegalArgumentException("Invalid payload function: " + name);
     }
@@ -160,6 +216,14 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
         return this;
     }
 
+    /**
+     * Sets the cache that analyzed query text is looked up in, if any
+     */
+    public MatchLatticeQueryBuilder analysisCache(LatticeQueryAnalysisCache analysisCache) {
+        this.analysisCache = analysisCache;
+        return this;
+    }
+
     public MatchLatticeQueryBuilder payloadFuncString(String payloadFuncString) {
         this.payloadFuncString = payloadFuncString;
         return this;
@@ -173,8 +237,17 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
         return parsePayloadFuncString(payloadFuncString(), payloadLengthNormFactor());
     }
 
-    public PayloadDecoder payloadDecoder() {
-       return FLOAT_DECODER;
+    /**
+     * @return a decoder for payloads written with the field's {@code payload_encoding}
+     */
+    public PayloadDecoder payloadDecoder(MappedFieldType fieldType) {
+        if (fieldType instanceof LatticeFieldMapper.LatticeFieldType) {
+            LatticePayloadEncoding encoding = ((LatticeFieldMapper.LatticeFieldType) fieldType).payloadEncoding();
+            if (encoding != LatticePayloadEncoding.FLOAT) {
+                return new LatticePayloadDecoder(encoding);
+            }
+        }
+        return FLOAT_DECODER;
     }
 
     public boolean includeSpanScore() {
@@ -208,6 +281,149 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
         return this;
     }
 
+    public float minSpanScore() {
+        return minSpanScore;
+    }
+
+    /**
+     * Drops spans whose running payload score falls below {@code minSpanScore} while they are matched, 0 keeps every
+     * span
+     */
+    public MatchLatticeQueryBuilder minSpanScore(float minSpanScore) {
+        if (minSpanScore >= 0 == false) {
+            throw new IllegalArgumentException("[" + NAME + "] requires " + MIN_SPAN_SCORE_FIELD.getPreferredName()
+                    + " to be >= 0, got " + minSpanScore);
+        }
+        this.minSpanScore = minSpanScore;
+        return this;
+    }
+
+    public int minimumTermsMatched() {
+        return minimumTermsMatched;
+    }
+
+    /**
+     * Lets in order matches leave out all but {@code minimumTermsMatched} of the query's terms, 0 requires every term
+     */
+    public MatchLatticeQueryBuilder minimumTermsMatched(int minimumTermsMatched) {
+        if (minimumTermsMatched < 0) {
+            throw new IllegalArgumentException("[" + NAME + "] requires "
+                    + MINIMUM_TERMS_MATCHED_FIELD.getPreferredName()
+                    + " to be >= 0, got " + minimumTermsMatched);
+        }
+        this.minimumTermsMatched = minimumTermsMatched;
+        return this;
+    }
+
+    public float missingTermPenalty() {
+        return missingTermPenalty;
+    }
+
+    /**
+     * What the score of a match is multiplied by for each query term it leaves out
+     */
+    public MatchLatticeQueryBuilder missingTermPenalty(float missingTermPenalty) {
+        if (missingTermPenalty > 0 == false || missingTermPenalty > 1) {
+            throw new IllegalArgumentException("[" + NAME + "] requires "
+                    + MISSING_TERM_PENALTY_FIELD.getPreferredName()
+                    + " to be in (0, 1], got " + missingTermPenalty);
+        }
+        this.missingTermPenalty = missingTermPenalty;
+        return this;
+    }
+
+    public Operator operator() {
+        return operator;
+    }
+
+    /**
+     * Matches the terms as a bag of words, all of them with {@link Operator#AND} or any of them with
+     * {@link Operator#OR}, rather than as a phrase
+     */
+    public MatchLatticeQueryBuilder operator(Operator operator) {
+        this.operator = operator;
+        return this;
+    }
+
+    public String minimumShouldMatch() {
+        return minimumShouldMatch;
+    }
+
+    /**
+     * Matches the terms as a bag of words, at least {@code minimumShouldMatch} of them, rather than as a phrase
+     */
+    public MatchLatticeQueryBuilder minimumShouldMatch(String minimumShouldMatch) {
+        this.minimumShouldMatch = minimumShouldMatch;
+        return this;
+    }
+
+    public boolean expandTerms() {
+        return expandTerms;
+    }
+
+    /**
+     * Expands the query's words ending in {@code *} to the terms they prefix, those with {@code *} or {@code ?}
+     * elsewhere to the terms they match as wildcards, and those ending in {@code ~} or {@code ~N} to the terms within
+     * {@code N}, by default {@code AUTO}, edits
+     */
+    public MatchLatticeQueryBuilder expandTerms(boolean expandTerms) {
+        this.expandTerms = expandTerms;
+        return this;
+    }
+
+    public int maxExpansions() {
+        return maxExpansions;
+    }
+
+    /**
+     * The most terms each expanded word matches, those in the most docs
+     */
+    public MatchLatticeQueryBuilder maxExpansions(int maxExpansions) {
+        if (maxExpansions < 1) {
+            throw new IllegalArgumentException("[" + NAME + "] requires "
+                    + MatchQueryBuilder.MAX_EXPANSIONS_FIELD.getPreferredName()
+                    + " to be >= 1, got " + maxExpansions);
+        }
+        this.maxExpansions = maxExpansions;
+        return this;
+    }
+
+    public boolean cascade() {
+        return cascade;
+    }
+
+    /**
+     * Searches the field's {@code rank_tiers} sub-fields first, those holding the fewest arcs first, and only falls
+     * through to the next tier, and last to the field itself, while a tier has fewer than {@code cascade_min_hits} hits
+     */
+    public MatchLatticeQueryBuilder cascade(boolean cascade) {
+        this.cascade = cascade;
+        return this;
+    }
+
+    public int cascadeMinHits() {
+        return cascadeMinHits;
+    }
+
+    /**
+     * The fewest hits, on each shard, a rank tier needs for the cascade to stop at it
+     */
+    public MatchLatticeQueryBuilder cascadeMinHits(int cascadeMinHits) {
+        if (cascadeMinHits < 1) {
+            throw new IllegalArgumentException("[" + NAME + "] requires " + CASCADE_MIN_HITS_FIELD.getPreferredName()
+                    + " to be >= 1, got " + cascadeMinHits);
+        }
+        this.cascadeMinHits = cascadeMinHits;
+        return this;
+    }
+
+    /**
+     * @return whether the terms are matched as a bag of words rather than a phrase
+     */
+    public boolean bagOfWords() {
+        return operator != null || minimumShouldMatch != null;
+    }
+
     public MatchLatticeQueryBuilder inOrder(boolean inOrder) {
         this.inOrder = inOrder;
         return this;
@@ -235,7 +451,15 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
         zeroTermsQuery.writeTo(out);
 
         out.writeOptionalString(analyzerString);
-
+        out.writeFloat(minSpanScore);
+        out.writeOptionalWriteable(operator);
+        out.writeOptionalString(minimumShouldMatch);
+        out.writeVInt(minimumTermsMatched);
+        out.writeFloat(missingTermPenalty);
+        out.writeBoolean(expandTerms);
+        out.writeVInt(maxExpansions);
+        out.writeBoolean(cascade);
+        out.writeVInt(cascadeMinHits);
     }
 
     @Override
@@ -254,6 +478,19 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
         builder.field(INCLUDE_SPAN_SCORE_FIELD.getPreferredName(), includeSpanScore);
         builder.field(PAYLOAD_FUNCTION_FIELD.getPreferredName(), payloadFuncString);
         builder.field(PAYLOAD_LEN_NORM_FIELD.getPreferredName(), payloadLenNormFactor);
+        builder.field(MIN_SPAN_SCORE_FIELD.getPreferredName(), minSpanScore);
+        builder.field(MINIMUM_TERMS_MATCHED_FIELD.getPreferredName(), minimumTermsMatched);
+        builder.field(MISSING_TERM_PENALTY_FIELD.getPreferredName(), missingTermPenalty);
+        builder.field(EXPAND_TERMS_FIELD.getPreferredName(), expandTerms);
+        builder.field(MatchQueryBuilder.MAX_EXPANSIONS_FIELD.getPreferredName(), maxExpansions);
+        builder.field(CASCADE_FIELD.getPreferredName(), cascade);
+        builder.field(CASCADE_MIN_HITS_FIELD.getPreferredName(), cascadeMinHits);
+        if (operator != null) {
+            builder.field(MatchQueryBuilder.OPERATOR_FIELD.getPreferredName(), operator.toString());
+        }
+        if (minimumShouldMatch != null) {
+            builder.field(MatchQueryBuilder.MINIMUM_SHOULD_MATCH_FIELD.getPreferredName(), minimumShouldMatch);
+        }
         printBoostAndQueryName(builder);
         builder.endObject();
         builder.endObject();
@@ -294,40 +531,110 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
             return fieldType.termQuery(term.bytes(), context);
         }
 
-        SpanNearQuery.Builder builder =  new SpanNearQuery.Builder(fieldName, inOrder);
-
-        List<SpanTermQuery> termQueries = new ArrayList<>();
+        final Analyzer queryAnalyzer = analyzer;
+        final String analyzerName = analyzerString != null ? analyzerString
+                : analyzer instanceof NamedAnalyzer ? ((NamedAnalyzer) analyzer).name() : null;
+        final String text = value.toString();
+        final List<BytesRef[]> positions = new ArrayList<>();
+        // the expansion of each position, null for those analyzed as usual
+        final List<MultiTermQuery> positionExpansions = new ArrayList<>();
+        if (expandTerms) {
+            StringBuilder unexpanded = new StringBuilder();
+            for (String word : Strings.tokenizeToStringArray(text, " \t\n\r")) {
+                MultiTermQuery expansion = expansion(queryAnalyzer, word);
+                if (expansion == null) {
+                    // runs of words without expansions are analyzed together, so multi-word synonyms still apply
+                    unexpanded.append(word).append(' ');
+                    continue;
+                }
+                addPositions(context, queryAnalyzer, analyzerName, unexpanded.toString(), positions,
+                        positionExpansions);
+                unexpanded.setLength(0);
+                positions.add(new BytesRef[0]);
+                positionExpansions.add(expansion);
+            }
+            addPositions(context, queryAnalyzer, analyzerName, unexpanded.toString(), positions, positionExpansions);
+        } else {
+            addPositions(context, queryAnalyzer, analyzerName, text, positions, positionExpansions);
+        }
 
-        TokenStream source = analyzer.tokenStream(fieldName, value.toString());
-        try (CachingTokenFilter stream = new CachingTokenFilter(source)) {
-            TermToBytesRefAttribute termAtt = stream.getAttribute(TermToBytesRefAttribute.class);
-            PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+        Query query = fieldQuery(fieldType, fieldName, positions, positionExpansions);
+        List<String> tierFields = fieldType instanceof LatticeFieldMapper.LatticeFieldType
+                ? ((LatticeFieldMapper.LatticeFieldType) fieldType).rankTierFields() : Collections.emptyList();
+        if (cascade == false || tierFields.isEmpty() || positions.isEmpty()
+                || positionExpansions.stream().anyMatch(Objects::nonNull)) {
+            // expanded words read the terms of the whole lattice, so their tiers would cost as much as the field
+            return query;
+        }
+        // the same query against each tier, the most likely arcs first, falling through to the whole lattice
+        Query[] tiers = new Query[tierFields.size() + 1];
+        for (int i = 0; i < tierFields.size(); i++) {
+            tiers[i] = fieldQuery(fieldType, tierFields.get(i), positions, positionExpansions);
+        }
+        tiers[tierFields.size()] = query;
+        return new LatticeCascadeQuery(tiers, cascadeMinHits);
+    }
 
-            if (termAtt.getBytesRef() == null) {
-                throw new IllegalArgumentException("Null term while building query");
+    /**
+     * @param field the field whose terms are searched, the lattice field or one of its {@code rank_tiers} sub-fields
+     * @return the query for the analyzed positions of the query text, and the expansions of its words, against
+     * {@code field}
+     */
+    private Query fieldQuery(MappedFieldType fieldType, String field, List<BytesRef[]> positions,
+                             List<MultiTermQuery> positionExpansions) {
+        // the alternatives at each position of the query's token graph
+        Term[][] phraseTerms = new Term[positions.size()][];
+        MultiTermQuery[] expansions = null;
+        for (int i = 0; i < phraseTerms.length; i++) {
+            BytesRef[] alternatives = positions.get(i);
+            phraseTerms[i] = new Term[alternatives.length];
+            for (int j = 0; j < alternatives.length; j++) {
+                phraseTerms[i][j] = new Term(field, alternatives[j]);
             }
-            stream.reset();
-            while (stream.incrementToken()) {
-                int posInc = posIncAtt.getPositionIncrement();
-                if (posInc == 0) {
-                    throw new IllegalArgumentException("graph queries are not supported");
-                }
-                termQueries.add(new SpanTermQuery(new Term(fieldName, termAtt.getBytesRef())));
+            MultiTermQuery expansion = positionExpansions.get(i);
+            Term prefixTerm = null;
+            if (expansion instanceof PrefixQuery && fieldType instanceof LatticeFieldMapper.LatticeFieldType) {
+                prefixTerm = ((LatticeFieldMapper.LatticeFieldType) fieldType)
+                        .indexedPrefixTerm(((PrefixQuery) expansion).getPrefix().text());
+            }
+            if (prefixTerm != null) {
+                // the index_prefixes sub-field has the prefix's arcs under a single term, with their positions and
+                // payloads, so there is nothing to expand
+                phraseTerms[i] = new Term[]{prefixTerm};
+            } else if (expansion != null) {
+                expansions = expansions == null ? new MultiTermQuery[phraseTerms.length] : expansions;
+                expansions[i] = expansion;
             }
         }
 
-        if (termQueries.size() == 0) {
+        if (phraseTerms.length == 0) {
             return new MatchNoDocsQuery();
         }
-        if (termQueries.size() == 1) {
-           return new LatticePayloadScoreQuery(
-                   termQueries.get(0),
-                   this.payloadFunction(),
-                   this.payloadDecoder(),
-                   this.includeSpanScore());
+        boolean hasPositions = fieldType instanceof LatticeFieldMapper.LatticeFieldType == false
+                || fieldType.indexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
+        if (bagOfWords()) {
+            return bagOfWordsQuery(field, phraseTerms, expansions, hasPositions, this.payloadDecoder(fieldType));
+        }
+        if (hasPositions == false) {
+            // lattices indexed with score_frequency_mode=term_frequency can't have positions, so there are neither
+            // spans nor payloads to score; the score frequency alone ranks single term matches
+            if (phraseTerms.length == 1) {
+                return termFrequencyQuery(phraseTerms[0], expansions == null ? null : expansions[0]);
+            }
+            throw new IllegalArgumentException("[" + NAME + "] field [" + fieldName
+                    + "] is indexed without positions and only supports single term queries");
+        }
+        if (phraseTerms.length == 1 && phraseTerms[0].length == 1 && expansions == null) {
+            // a single term has no spans to match, so its payloads are read straight from the postings
+            return new LatticeTermPayloadQuery(
+                    phraseTerms[0][0],
+                    this.payloadFunction(),
+                    this.payloadDecoder(fieldType),
+                    this.includeSpanScore(),
+                    this.minSpanScore());
         }
 
-        int numTerms = termQueries.size();
+        int numTerms = phraseTerms.length;
         int querySlop = slop;
         if (fieldType instanceof LatticeFieldMapper.LatticeFieldType) {
             LatticeFieldMapper.LatticeFieldType latFieldType = (LatticeFieldMapper.LatticeFieldType) fieldType;
@@ -337,13 +644,214 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
                 //System.out.println("querySlop: " + querySlop);
             }
         }
-        builder.setSlop(querySlop);
+        if (querySlop < 0) {
+            // slop_seconds too short to hold this many terms
+            return new MatchNoDocsQuery();
+        }
+        int minTermsMatched = minimumTermsMatched == 0 ? numTerms : Math.min(minimumTermsMatched, numTerms);
+        if (minTermsMatched < numTerms && inOrder == false) {
+            throw new IllegalArgumentException("[" + NAME + "] " + MINIMUM_TERMS_MATCHED_FIELD.getPreferredName()
+                    + " requires " + IN_ORDER_FIELD.getPreferredName());
+        }
+        Term phraseTerm = indexedPhraseTerm(fieldType, phraseTerms, expansions, querySlop, minTermsMatched);
+        Query termQuery = null;
+        List<Term> markers = null;
+        if (phraseTerm != null) {
+            // the index_phrases sub-field has the phrase's paths under a single term, scored by their path scores
+            // as spans of the phrase's length, so they score as the phrase query below would
+            Term[] phrase = new Term[numTerms];
+            for (int i = 0; i < numTerms; i++) {
+                phrase[i] = phraseTerms[i][0];
+            }
+            termQuery = new LatticeTermPayloadQuery(
+                    phraseTerm,
+                    phrase,
+                    this.payloadFunction(),
+                    this.payloadDecoder(fieldType),
+                    this.includeSpanScore(),
+                    this.minSpanScore());
+            markers = ((LatticeFieldMapper.LatticeFieldType) fieldType).indexedPhraseMarkers(phraseWords(phraseTerms));
+            if (markers == null) {
+                return termQuery;
+            }
+        }
+        // unordered matches slide a window over the terms' postings rather than enumerating span combinations, and
+        // synonyms are read together as alternatives of the same term, each scored by its own payloads
+        Query phraseQuery = new LatticePhraseQuery(field, phraseTerms, expansions, maxExpansions, querySlop, inOrder,
+                minTermsMatched, missingTermPenalty, this.payloadFunction(), this.payloadDecoder(fieldType),
+                this.includeSpanScore(), this.minSpanScore());
+        if (termQuery == null) {
+            return phraseQuery;
+        }
+        // docs indexed before the phrase was added to materialized_phrases don't have its term
+        return new LatticeMaterializedPhraseQuery(termQuery, phraseQuery, field, markers);
+    }
 
-        for (SpanTermQuery tq : termQueries) {
-            builder.addClause(tq);
+    /**
+     * @return the term of the field's {@code index_phrases} sub-field that matches exactly what the phrase query would,
+     * or null if the phrase isn't indexed as a single term
+     */
+    private Term indexedPhraseTerm(MappedFieldType fieldType, Term[][] phraseTerms, MultiTermQuery[] expansions,
+                                   int querySlop, int minTermsMatched) {
+        if (fieldType instanceof LatticeFieldMapper.LatticeFieldType == false || expansions != null
+                || querySlop != 0 || inOrder == false || minTermsMatched < phraseTerms.length) {
+            return null;
+        }
+        for (Term[] alternatives : phraseTerms) {
+            if (alternatives.length != 1 || alternatives[0].field().equals(fieldName) == false) {
+                return null;
+            }
+        }
+        return ((LatticeFieldMapper.LatticeFieldType) fieldType).indexedPhraseTerm(phraseWords(phraseTerms),
+                minSpanScore());
+    }
+
+    /**
+     * @return the single term at each position of a phrase
+     */
+    private static List<BytesRef> phraseWords(Term[][] phraseTerms) {
+        List<BytesRef> words = new ArrayList<>(phraseTerms.length);
+        for (Term[] alternatives : phraseTerms) {
+            words.add(alternatives[0].bytes());
+        }
+        return words;
+    }
+
+    /**
+     * @return a disjunction, or with {@link Operator#AND} a conjunction, of the terms, each scored by the summed
+     * posteriors of its occurrences, and those of its alternatives
+     */
+    private Query bagOfWordsQuery(String field, Term[][] phraseTerms, MultiTermQuery[] expansions,
+                                  boolean hasPositions, PayloadDecoder decoder) {
+        BooleanClause.Occur occur = operator == null ? BooleanClause.Occur.SHOULD : operator.toBooleanClauseOccur();
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (int i = 0; i < phraseTerms.length; i++) {
+            Term[] alternatives = phraseTerms[i];
+            MultiTermQuery expansion = expansions == null ? null : expansions[i];
+            if (hasPositions == false) {
+                // without positions there are no payloads, so the score frequency alone ranks each term
+                builder.add(termFrequencyQuery(alternatives, expansion), occur);
+                continue;
+            }
+            Query clause;
+            if (expansion != null) {
+                // a single term phrase scores each occurrence of the expanded terms as a span of its own
+                clause = new LatticePhraseQuery(field, new Term[][]{alternatives},
+                        new MultiTermQuery[]{expansion}, maxExpansions, 0, true, 1, 1.0f, BAG_OF_WORDS_FUNCTION,
+                        decoder, this.includeSpanScore(), this.minSpanScore());
+            } else if (alternatives.length == 1) {
+                clause = new LatticeTermPayloadQuery(alternatives[0], BAG_OF_WORDS_FUNCTION, decoder,
+                        this.includeSpanScore(), this.minSpanScore());
+            } else {
+                // alternatives at the same position are arcs of the same lattice slot, so their posteriors add up
+                BooleanQuery.Builder alternativesBuilder = new BooleanQuery.Builder();
+                for (Term term : alternatives) {
+                    alternativesBuilder.add(new LatticeTermPayloadQuery(term, BAG_OF_WORDS_FUNCTION, decoder,
+                            this.includeSpanScore(), this.minSpanScore()), BooleanClause.Occur.SHOULD);
+                }
+                clause = alternativesBuilder.build();
+            }
+            builder.add(clause, occur);
+        }
+        return maybeApplyMinimumShouldMatch(builder.build(), minimumShouldMatch);
+    }
+
+    /**
+     * @return a query ranking the alternatives of a term, or the terms its expansion matches, by their summed score
+     * frequencies
+     */
+    private Query termFrequencyQuery(Term[] alternatives, MultiTermQuery expansion) {
+        if (expansion != null) {
+            expansion.setRewriteMethod(new MultiTermQuery.TopTermsBlendedFreqScoringRewrite(maxExpansions));
+            return expansion;
+        }
+        if (alternatives.length == 1) {
+            return new TermQuery(alternatives[0]);
+        }
+        SynonymQuery.Builder synonyms = new SynonymQuery.Builder(alternatives[0].field());
+        for (Term term : alternatives) {
+            synonyms.addTerm(term);
+        }
+        return synonyms.build();
+    }
+
+    /**
+     * Analyzes {@code text}, through the analysis cache if there is one, and adds the terms at each of its positions
+     */
+    private void addPositions(QueryShardContext context, Analyzer analyzer, String analyzerName, String text,
+                              List<BytesRef[]> positions, List<MultiTermQuery> expansions) throws IOException {
+        List<BytesRef[]> analyzed = analysisCache == null ? analyze(analyzer, text)
+                : analysisCache.terms(context, fieldName, analyzerName, text, () -> analyze(analyzer, text));
+        positions.addAll(analyzed);
+        expansions.addAll(Collections.nCopies(analyzed.size(), null));
+    }
+
+    /**
+     * @return the expansion {@code word} asks for with a wildcard or a fuzzy suffix, or null if it asks for none
+     */
+    private MultiTermQuery expansion(Analyzer analyzer, String word) {
+        Matcher fuzzy = FUZZY_WORD.matcher(word);
+        if (fuzzy.matches()) {
+            String term = analyzer.normalize(fieldName, fuzzy.group(1)).utf8ToString();
+            Fuzziness fuzziness = fuzzy.group(2).isEmpty() ? Fuzziness.AUTO : Fuzziness.build(fuzzy.group(2));
+            return new FuzzyQuery(new Term(fieldName, term), fuzziness.asDistance(term), 0, maxExpansions, true);
+        }
+        int wildcard = indexOfWildcard(word);
+        if (wildcard < 0) {
+            return null;
+        }
+        // normalizing keeps the wildcards, but lowercases or folds the rest as the analyzer would
+        String pattern = analyzer.normalize(fieldName, word).utf8ToString();
+        if (indexOfWildcard(pattern) == pattern.length() - 1 && pattern.endsWith("*")) {
+            return new PrefixQuery(new Term(fieldName, pattern.substring(0, pattern.length() - 1)));
+        }
+        return new WildcardQuery(new Term(fieldName, pattern));
+    }
+
+    private static int indexOfWildcard(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (word.charAt(i) == WildcardQuery.WILDCARD_STRING || word.charAt(i) == WildcardQuery.WILDCARD_CHAR) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return deep copies of the terms the analyzer produces for the text, grouped by position, with the terms a
+     * token graph stacks on the same position as alternatives of each other
+     */
+    private List<BytesRef[]> analyze(Analyzer analyzer, String text) throws IOException {
+        List<BytesRef[]> positions = new ArrayList<>();
+        List<BytesRef> alternatives = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream(fieldName, text)) {
+            TermToBytesRefAttribute termAtt = stream.getAttribute(TermToBytesRefAttribute.class);
+            PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+            PositionLengthAttribute posLenAtt = stream.addAttribute(PositionLengthAttribute.class);
+
+            if (termAtt.getBytesRef() == null) {
+                throw new IllegalArgumentException("Null term while building query");
+            }
+            stream.reset();
+            while (stream.incrementToken()) {
+                if (posLenAtt.getPositionLength() > 1) {
+                    throw new IllegalArgumentException("[" + NAME + "] multi-position synonyms are not supported");
+                }
+                if (posIncAtt.getPositionIncrement() > 0 && alternatives.isEmpty() == false) {
+                    positions.add(alternatives.toArray(new BytesRef[0]));
+                    alternatives.clear();
+                }
+                BytesRef term = termAtt.getBytesRef();
+                if (alternatives.contains(term) == false) {
+                    alternatives.add(BytesRef.deepCopyOf(term));
+                }
+            }
+            stream.end();
+        }
+        if (alternatives.isEmpty() == false) {
+            positions.add(alternatives.toArray(new BytesRef[0]));
         }
-        final SpanQuery spanQuery = builder.build();
-        return new LatticePayloadScoreQuery(spanQuery, this.payloadFunction(), this.payloadDecoder(), this.includeSpanScore());
+        return positions;
     }
 
     private int secsToSlop(float posIncSecs, int numTerms) {
@@ -364,13 +872,24 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
                 && Objects.equals(inOrder, other.inOrder)
                 && Objects.equals(includeSpanScore, other.includeSpanScore)
                 && Objects.equals(payloadFuncString, other.payloadFuncString)
-                && Objects.equals(payloadLenNormFactor, other.payloadLenNormFactor);
+                && Objects.equals(payloadLenNormFactor, other.payloadLenNormFactor)
+                && Objects.equals(minSpanScore, other.minSpanScore)
+                && Objects.equals(operator, other.operator)
+                && Objects.equals(minimumShouldMatch, other.minimumShouldMatch)
+                && Objects.equals(minimumTermsMatched, other.minimumTermsMatched)
+                && Objects.equals(missingTermPenalty, other.missingTermPenalty)
+                && Objects.equals(expandTerms, other.expandTerms)
+                && Objects.equals(maxExpansions, other.maxExpansions)
+                && Objects.equals(cascade, other.cascade)
+                && Objects.equals(cascadeMinHits, other.cascadeMinHits);
     }
 
     @Override
     protected int doHashCode() {
         return Objects.hash(fieldName, analyzerString, value, slop, slopSeconds,
-                includeSpanScore, inOrder, payloadFuncString, payloadLenNormFactor, zeroTermsQuery);
+                includeSpanScore, inOrder, payloadFuncString, payloadLenNormFactor, minSpanScore, operator,
+                minimumShouldMatch, minimumTermsMatched, missingTermPenalty, expandTerms, maxExpansions, zeroTermsQuery,
+                cascade, cascadeMinHits);
     }
 
     public static MatchLatticeQueryBuilder fromXContent(XContentParser parser) throws IOException {
@@ -384,6 +903,15 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
         boolean includeSpanScore = true;
         String payloadFunc = "sum";
         float lenNorm = DEFAULT_LEN_NORM;
+        float minSpanScore = 0.0f;
+        Operator operator = null;
+        String minimumShouldMatch = null;
+        int minimumTermsMatched = 0;
+        float missingTermPenalty = DEFAULT_MISSING_TERM_PENALTY;
+        boolean expandTerms = false;
+        int maxExpansions = DEFAULT_MAX_EXPANSIONS;
+        boolean cascade = false;
+        int cascadeMinHits = DEFAULT_CASCADE_MIN_HITS;
         String fieldName = null;
         Object value = null;
         String queryName = null;
@@ -421,6 +949,24 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
                             payloadFunc = parser.text();
                         } else if (PAYLOAD_LEN_NORM_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
                             lenNorm = parser.floatValue();
+                        } else if (MIN_SPAN_SCORE_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            minSpanScore = parser.floatValue();
+                        } else if (MatchQueryBuilder.OPERATOR_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            operator = Operator.fromString(parser.text());
+                        } else if (MatchQueryBuilder.MINIMUM_SHOULD_MATCH_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            minimumShouldMatch = parser.textOrNull();
+                        } else if (MINIMUM_TERMS_MATCHED_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            minimumTermsMatched = parser.intValue();
+                        } else if (MISSING_TERM_PENALTY_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            missingTermPenalty = parser.floatValue();
+                        } else if (EXPAND_TERMS_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            expandTerms = parser.booleanValue();
+                        } else if (MatchQueryBuilder.MAX_EXPANSIONS_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            maxExpansions = parser.intValue();
+                        } else if (CASCADE_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            cascade = parser.booleanValue();
+                        } else if (CASCADE_MIN_HITS_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            cascadeMinHits = parser.intValue();
                         } else if (MatchPhraseQueryBuilder.ZERO_TERMS_QUERY_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
                             String zeroTermsValue = parser.text();
                             if ("none".equalsIgnoreCase(zeroTermsValue)) {
@@ -458,6 +1004,15 @@ public class MatchLatticeQueryBuilder extends AbstractQueryBuilder<MatchLatticeQ
         builder.includeSpanScore(includeSpanScore);
         builder.payloadFuncString(payloadFunc);
         builder.payloadLengthNormFactor(lenNorm);
+        builder.minSpanScore(minSpanScore);
+        builder.operator(operator);
+        builder.minimumShouldMatch(minimumShouldMatch);
+        builder.minimumTermsMatched(minimumTermsMatched);
+        builder.missingTermPenalty(missingTermPenalty);
+        builder.expandTerms(expandTerms);
+        builder.maxExpansions(maxExpansions);
+        builder.cascade(cascade);
+        builder.cascadeMinHits(cascadeMinHits);
 
         return builder;
     }
@@ -27,14 +27,13 @@ public class MaxLatticePayloadFunction extends SumLatticePayloadFunction {
                            float currentScore, float currentSpanScore) {
         // the scores are normalized by the length of the span
         // this incorporates that number of tokens in the query plus the number of skipped tokens
-        if (lengthNormalizationFactor() == 0.0) {
-            return Math.max(currentScore, (float) Math.exp(SCORE_MULT + currentSpanScore));
-        } else {
-            return Math.max(
-                    currentScore,
-                    (float) Math.exp(
-                            (SCORE_MULT + currentSpanScore) - Math.log((end - start) * lengthNormalizationFactor())));
-        }
+        return Math.max(currentScore, normalizedSpanScore(end - start, currentSpanScore));
+    }
+
+    @Override
+    public float maxDocScore(int minSpanLength, float maxSpanLogScore) {
+        // the doc scores the best span
+        return maxSpanScore(minSpanLength, maxSpanLogScore);
     }
 
     @Override
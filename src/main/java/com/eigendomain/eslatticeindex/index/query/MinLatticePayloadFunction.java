@@ -27,16 +27,16 @@ public class MinLatticePayloadFunction extends SumLatticePayloadFunction {
                            float currentScore, float currentSpanScore) {
         // the scores are normalized by the length of the span
         // this incorporates that number of tokens in the query plus the number of skipped tokens
-        float score;
-        if (lengthNormalizationFactor() == 0.0) {
-            score = (float) Math.exp(SCORE_MULT + currentSpanScore);
-        } else {
-            score = (float) Math.exp(
-                    (SCORE_MULT + currentSpanScore) - Math.log((end - start) * lengthNormalizationFactor()));
-        }
+        float score = normalizedSpanScore(end - start, currentSpanScore);
         return currentScore == 0.0 ? score : Math.min(currentScore, score);
     }
 
+    @Override
+    public float maxDocScore(int minSpanLength, float maxSpanLogScore) {
+        // the doc scores the worst span, which is no better than any other
+        return maxSpanScore(minSpanLength, maxSpanLogScore);
+    }
+
     @Override
     public int hashCode() {
         return 0;
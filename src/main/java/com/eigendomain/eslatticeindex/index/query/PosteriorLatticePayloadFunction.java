@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index.query;
+
+/**
+ * Scores a doc by the expected number of times the query occurs in its lattice: the sum, over every path through the
+ * lattice that matches the query, of the product of the path's arc scores.  Arc scores should be posteriors for this
+ * to be a true expectation.
+ *
+ * {@link LatticePhraseQuery} sums alternative paths as it goes, so the cost stays linear in the number of matching
+ * positions however high the slop.  Span queries only score the spans they enumerate, so for them the score is a
+ * lower bound.  The length normalization factor is not used.
+ */
+public class PosteriorLatticePayloadFunction extends LatticePayloadScoreFunction {
+
+    public PosteriorLatticePayloadFunction() {
+        super(0.0f);
+    }
+
+    @Override
+    public float spanScore(int docId, String field, int start, int end, int width, int numPayloadsSeen,
+                           float currentScore, float currentSpanScore) {
+        return currentScore + (float) Math.exp(currentSpanScore);
+    }
+
+    @Override
+    public float currentLeafScore(int docId, String field, int start, int end, int numPayloadsSeen, float currentScore,
+                                  float currentPayloadScore) {
+        return currentLeafLogScore(docId, field, start, end, numPayloadsSeen, currentScore,
+                (float) Math.log(currentPayloadScore));
+    }
+
+    @Override
+    public float currentLeafLogScore(int docId, String field, int start, int end, int numPayloadsSeen,
+                                     float currentScore, float currentLogPayloadScore) {
+        // paths through arcs scored 0 still match, they just add nothing
+        return Math.max(currentScore + currentLogPayloadScore, -Float.MAX_VALUE);
+    }
+
+    @Override
+    public boolean sumsPaths() {
+        return true;
+    }
+
+    @Override
+    public float maxDocScore(int minSpanLength, float maxSpanLogScore, int maxSpans) {
+        // every span adds at most the best path's score
+        return maxSpans * (float) Math.exp(maxSpanLogScore);
+    }
+
+    @Override
+    public float docScore(int docId, String field, int numSpansSeen, float payloadScore) {
+        return numSpansSeen > 0 ? payloadScore : 0.0f;
+    }
+
+    @Override
+    public int hashCode() {
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == null) {
+            return false;
+        }
+        if (this == o) {
+            return true;
+        }
+        return o instanceof PosteriorLatticePayloadFunction;
+    }
+}
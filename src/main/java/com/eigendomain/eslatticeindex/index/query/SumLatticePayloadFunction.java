@@ -21,9 +21,32 @@ public class SumLatticePayloadFunction extends LatticePayloadScoreFunction {
     protected static final float MIN_SCORE = 10e-7f;
     protected static final float MIN_LOG_SCORE = (float)Math.log(MIN_SCORE);
     protected static final float SCORE_MULT = (float)Math.log(10e4);
+    private static final int NUM_CACHED_LENGTHS = 64;
+
+    // SCORE_MULT less the log of the length normalization, by span length
+    private final double[] logNorms = new double[NUM_CACHED_LENGTHS];
 
     public SumLatticePayloadFunction(float lengthNormalizationFactor) {
         super(lengthNormalizationFactor);
+        for (int length = 0; length < NUM_CACHED_LENGTHS; length++) {
+            logNorms[length] = computeLogNorm(length);
+        }
+    }
+
+    private double computeLogNorm(int length) {
+        if (lengthNormalizationFactor() == 0.0) {
+            return SCORE_MULT;
+        }
+        return SCORE_MULT - Math.log(length * (double) lengthNormalizationFactor());
+    }
+
+    /**
+     * @return the score of a span of {@code length} positions whose leaves' log scores add up to
+     * {@code currentSpanScore}, normalized by its length
+     */
+    protected final float normalizedSpanScore(int length, float currentSpanScore) {
+        double logNorm = length >= 0 && length < NUM_CACHED_LENGTHS ? logNorms[length] : computeLogNorm(length);
+        return (float) Math.exp(logNorm + currentSpanScore);
     }
 
     @Override
@@ -31,23 +54,37 @@ public class SumLatticePayloadFunction extends LatticePayloadScoreFunction {
                            float currentScore, float currentSpanScore) {
         // the scores are normalized by the length of the span
         // this incorporates that number of tokens in the query plus the number of skipped tokens
-        if (lengthNormalizationFactor() == 0.0) {
-            return currentScore + (float) Math.exp(SCORE_MULT + currentSpanScore);
-        } else {
-            return currentScore
-                    + (float) Math.exp(
-                    (SCORE_MULT + currentSpanScore) - Math.log((end - start) * lengthNormalizationFactor()));
-        }
+        return currentScore + normalizedSpanScore(end - start, currentSpanScore);
     }
 
     @Override
     public float currentLeafScore(int docId, String field, int start, int end, int numPayloadsSeen, float currentScore,
                                   float currentPayloadScore) {
-        float logPayload = (float)Math.log(currentPayloadScore);
-        float newScore = currentScore + logPayload;
+        return currentLeafLogScore(docId, field, start, end, numPayloadsSeen, currentScore,
+                (float) Math.log(currentPayloadScore));
+    }
+
+    @Override
+    public float currentLeafLogScore(int docId, String field, int start, int end, int numPayloadsSeen,
+                                     float currentScore, float currentLogPayloadScore) {
+        float newScore = currentScore + currentLogPayloadScore;
         return Math.max(newScore, MIN_LOG_SCORE);
     }
 
+    /**
+     * @return an upper bound on the value a single span adds in {@link #spanScore}
+     */
+    protected float maxSpanScore(int minSpanLength, float maxSpanLogScore) {
+        return Math.max(normalizedSpanScore(minSpanLength, maxSpanLogScore), MIN_SCORE);
+    }
+
+    @Override
+    public float maxDocScore(int minSpanLength, float maxSpanLogScore, int maxSpans) {
+        // the doc scores the sum of its spans, unless the subclass bounds it tighter
+        float sumOfSpans = Math.max(maxSpans * maxSpanScore(minSpanLength, maxSpanLogScore), MIN_SCORE);
+        return Math.min(maxDocScore(minSpanLength, maxSpanLogScore), sumOfSpans);
+    }
+
     @Override
     public float docScore(int docId, String field, int numSpansSeen, float payloadScore) {
         return numSpansSeen > 0 ? payloadScore : MIN_SCORE;
@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.mapper;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the chunks of a {@code chunked_values} lattice field as one continuous value, without ever joining them into
+ * a single String.  Chunks are dropped as soon as they have been read, so the heap held by a large document shrinks
+ * while it is analyzed.
+ *
+ * A field is only analyzed once, so the reader can not be rewound.
+ */
+final class ChunkedValueReader extends Reader {
+    private final List<String> chunks = new ArrayList<>();
+    private int chunk = 0;
+    private int chunkOffset = 0;
+
+    ChunkedValueReader(String firstChunk) {
+        append(firstChunk);
+    }
+
+    void append(String value) {
+        if (value.isEmpty() == false) {
+            chunks.add(value);
+        }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int read = 0;
+        while (read < len && chunk < chunks.size()) {
+            String current = chunks.get(chunk);
+            int n = Math.min(len - read, current.length() - chunkOffset);
+            current.getChars(chunkOffset, chunkOffset + n, cbuf, off + read);
+            read += n;
+            chunkOffset += n;
+            if (chunkOffset == current.length()) {
+                chunks.set(chunk++, null);
+                chunkOffset = 0;
+            }
+        }
+        return read == 0 ? -1 : read;
+    }
+
+    @Override
+    public void close() {
+        chunks.clear();
+        chunk = 0;
+        chunkOffset = 0;
+    }
+}
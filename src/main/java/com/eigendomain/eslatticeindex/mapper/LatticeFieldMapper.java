@@ -19,36 +19,63 @@
 
 package com.eigendomain.eslatticeindex.mapper;
 
+import com.eigendomain.eslatticeindex.index.LatticePayloadEncoding;
+import com.eigendomain.eslatticeindex.index.LatticeRankFilter;
+import com.eigendomain.eslatticeindex.index.LatticeShingleFilter;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.AnalyzerWrapper;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.ngram.EdgeNGramTokenFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.MultiTermQuery;
 import org.apache.lucene.search.NormsFieldExistsQuery;
 import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.spans.FieldMaskingSpanQuery;
 import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
 import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.analysis.AnalyzerScope;
 import org.elasticsearch.index.analysis.NamedAnalyzer;
+import org.elasticsearch.index.mapper.DocumentMapperParser;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.mapper.FieldNamesFieldMapper;
+import org.elasticsearch.index.mapper.IdFieldMapper;
 import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.mapper.Mapper;
 import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.mapper.NumberFieldMapper;
 import org.elasticsearch.index.mapper.ParseContext;
 import org.elasticsearch.index.mapper.StringFieldType;
 import org.elasticsearch.index.mapper.TextFieldMapper;
+import org.elasticsearch.index.mapper.TypeFieldMapper;
 import org.elasticsearch.index.query.QueryShardContext;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
 
 import static org.elasticsearch.index.mapper.TypeParsers.parseTextField;
 
@@ -72,6 +99,16 @@ public class LatticeFieldMapper extends FieldMapper {
     public static final String FORMAT_LATTICE = "lattice";
     public static final String FORMAT_AUDIO = "audio";
 
+    public static final String SEGMENT_START_POSITION_SUFFIX = "._segment_start_position";
+    public static final String SEGMENT_START_SECONDS_SUFFIX = "._segment_start_seconds";
+    public static final String INDEX_PREFIX_SUFFIX = "._index_prefix";
+    public static final int DEFAULT_INDEX_PREFIX_MIN_CHARS = 2;
+    public static final int DEFAULT_INDEX_PREFIX_MAX_CHARS = 5;
+    public static final String INDEX_PHRASE_SUFFIX = "._index_phrase";
+    public static final int DEFAULT_INDEX_PHRASE_MAX_SHINGLE_SIZE = 3;
+    private static final int MAX_INDEX_PHRASE_SHINGLE_SIZE = 4;
+    public static final String RANK_TIER_SUFFIX = "._rank_";
+
     public static class Defaults {
         public static final MappedFieldType FIELD_TYPE = new LatticeFieldType();
         static {
@@ -94,6 +131,21 @@ public class LatticeFieldMapper extends FieldMapper {
         private int positionIncrementGap = POSITION_INCREMENT_GAP_USE_ANALYZER;
         private String latticeFormat = "lattice";
         private float audioPositionIncrementSeconds = 0.01f;
+        private LatticePayloadEncoding payloadEncoding = LatticePayloadEncoding.FLOAT;
+        private boolean chunkedValues = false;
+        private String fieldDelimiter = "|";
+        private int segmentMaxPositions = -1;
+        private int segmentOverlapPositions = 0;
+        private float segmentMaxSeconds = -1.0f;
+        private float segmentOverlapSeconds = 0.0f;
+        // -1 without index_prefixes
+        private int indexPrefixMinChars = -1;
+        private int indexPrefixMaxChars = -1;
+        // -1 without index_phrases
+        private int indexPhraseMaxShingleSize = -1;
+        private float indexPhraseMinPathScore = 0.0f;
+        private List<String> materializedPhrases = Collections.emptyList();
+        private List<Integer> rankTiers = Collections.emptyList();
 
         public Builder(String name) {
             super(name, Defaults.FIELD_TYPE, Defaults.FIELD_TYPE);
@@ -127,6 +179,144 @@ public class LatticeFieldMapper extends FieldMapper {
             return this;
         }
 
+        public Builder payloadEncoding(String encoding) {
+            this.payloadEncoding = LatticePayloadEncoding.fromString(encoding);
+            return this;
+        }
+
+        public Builder chunkedValues(boolean chunkedValues) {
+            this.chunkedValues = chunkedValues;
+            return this;
+        }
+
+        public Builder fieldDelimiter(String fieldDelimiter) {
+            if (fieldDelimiter.length() != 1) {
+                throw new IllegalArgumentException("[field_delimiter] must be a single character");
+            }
+            this.fieldDelimiter = fieldDelimiter;
+            return this;
+        }
+
+        public Builder segmentMaxPositions(int positions) {
+            if (positions <= 0) {
+                throw new IllegalArgumentException("[segment_max_positions] must be positive, got " + positions);
+            }
+            this.segmentMaxPositions = positions;
+            return this;
+        }
+
+        public Builder segmentOverlapPositions(int positions) {
+            if (positions < 0) {
+                throw new IllegalArgumentException("[segment_overlap_positions] must not be negative, got " + positions);
+            }
+            this.segmentOverlapPositions = positions;
+            return this;
+        }
+
+        public Builder segmentMaxSeconds(float secs) {
+            if (secs <= 0.0f) {
+                throw new IllegalArgumentException("[segment_max_seconds] must be positive, got " + secs);
+            }
+            this.segmentMaxSeconds = secs;
+            return this;
+        }
+
+        public Builder segmentOverlapSeconds(float secs) {
+            if (secs < 0.0f) {
+                throw new IllegalArgumentException("[segment_overlap_seconds] must not be negative, got " + secs);
+            }
+            this.segmentOverlapSeconds = secs;
+            return this;
+        }
+
+        public Builder indexPrefixes(int minChars, int maxChars) {
+            if (minChars < 1) {
+                throw new IllegalArgumentException("[index_prefixes] min_chars must be at least 1, got " + minChars);
+            }
+            if (maxChars > 20) {
+                throw new IllegalArgumentException("[index_prefixes] max_chars must be at most 20, got " + maxChars);
+            }
+            if (maxChars < minChars) {
+                throw new IllegalArgumentException("[index_prefixes] max_chars [" + maxChars
+                        + "] must be at least min_chars [" + minChars + "]");
+            }
+            this.indexPrefixMinChars = minChars;
+            this.indexPrefixMaxChars = maxChars;
+            return this;
+        }
+
+        public Builder indexPhrases(int maxShingleSize, float minPathScore) {
+            if (maxShingleSize < 2 || maxShingleSize > MAX_INDEX_PHRASE_SHINGLE_SIZE) {
+                throw new IllegalArgumentException("[index_phrases] max_shingle_size must be between 2 and "
+                        + MAX_INDEX_PHRASE_SHINGLE_SIZE + ", got " + maxShingleSize);
+            }
+            if (minPathScore < 0.0f) {
+                throw new IllegalArgumentException("[index_phrases] min_path_score must not be negative, got "
+                        + minPathScore);
+            }
+            this.indexPhraseMaxShingleSize = maxShingleSize;
+            this.indexPhraseMinPathScore = minPathScore;
+            return this;
+        }
+
+        /**
+         * @param phrases phrases to index as single terms of the {@code index_phrases} sub-field, whatever their length
+         */
+        public Builder materializedPhrases(List<String> phrases) {
+            this.materializedPhrases = Collections.unmodifiableList(new ArrayList<>(phrases));
+            return this;
+        }
+
+        /**
+         * @param maxRanks the highest arc rank of each tier, ascending
+         */
+        public Builder rankTiers(List<Integer> maxRanks) {
+            for (int i = 0; i < maxRanks.size(); i++) {
+                if (maxRanks.get(i) < 0 || (i > 0 && maxRanks.get(i) <= maxRanks.get(i - 1))) {
+                    throw new IllegalArgumentException("[rank_tiers] must be ascending ranks of at least 0, got "
+                            + maxRanks);
+                }
+            }
+            this.rankTiers = Collections.unmodifiableList(new ArrayList<>(maxRanks));
+            return this;
+        }
+
+        private LatticeSegmenter buildSegmenter() {
+            if (segmentMaxPositions < 0 && segmentMaxSeconds < 0.0f) {
+                if (segmentOverlapPositions > 0 || segmentOverlapSeconds > 0.0f) {
+                    throw new IllegalArgumentException("[segment_overlap_positions] and [segment_overlap_seconds] "
+                            + "require [segment_max_positions] or [segment_max_seconds]");
+                }
+                return null;
+            }
+            if (segmentMaxPositions > 0 && segmentMaxSeconds > 0.0f) {
+                throw new IllegalArgumentException(
+                        "[segment_max_positions] cannot be used together with [segment_max_seconds]");
+            }
+            if (chunkedValues) {
+                throw new IllegalArgumentException("[chunked_values] cannot be used on segmented [" + CONTENT_TYPE
+                        + "] fields");
+            }
+            boolean audio = FORMAT_AUDIO.equals(latticeFormat);
+            if (segmentMaxPositions > 0) {
+                if (segmentOverlapPositions >= segmentMaxPositions) {
+                    throw new IllegalArgumentException(
+                            "[segment_overlap_positions] must be less than [segment_max_positions]");
+                }
+                return new LatticeSegmenter(fieldDelimiter.charAt(0), audio, false,
+                        segmentMaxPositions, segmentOverlapPositions);
+            }
+            if (audio == false) {
+                throw new IllegalArgumentException("[segment_max_seconds] requires [lattice_format] [" + FORMAT_AUDIO
+                        + "]");
+            }
+            if (segmentOverlapSeconds >= segmentMaxSeconds) {
+                throw new IllegalArgumentException("[segment_overlap_seconds] must be less than [segment_max_seconds]");
+            }
+            return new LatticeSegmenter(fieldDelimiter.charAt(0), true, true, segmentMaxSeconds,
+                    segmentOverlapSeconds);
+        }
+
         @Override
         public Builder docValues(boolean docValues) {
             if (docValues) {
@@ -140,6 +330,10 @@ public class LatticeFieldMapper extends FieldMapper {
             if (fieldType().indexOptions() == IndexOptions.NONE ) {
                 throw new IllegalArgumentException("[" + CONTENT_TYPE + "] fields must be indexed");
             }
+            if (chunkedValues && fieldType().stored()) {
+                throw new IllegalArgumentException("[chunked_values] cannot be used on stored [" + CONTENT_TYPE
+                        + "] fields");
+            }
             if (positionIncrementGap != POSITION_INCREMENT_GAP_USE_ANALYZER) {
                 if (fieldType.indexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) < 0) {
                     throw new IllegalArgumentException("Cannot set position_increment_gap on field ["
@@ -158,13 +352,64 @@ public class LatticeFieldMapper extends FieldMapper {
                     fieldType.setSearchQuoteAnalyzer(new NamedAnalyzer(fieldType.searchQuoteAnalyzer(),overrideInc));
                 }
             }
+            LatticeSegmenter segmenter = buildSegmenter();
+            NumberFieldMapper segmentStartPositionMapper = null;
+            NumberFieldMapper segmentStartSecondsMapper = null;
+            if (segmenter != null) {
+                segmentStartPositionMapper = new NumberFieldMapper.Builder(name + SEGMENT_START_POSITION_SUFFIX,
+                        NumberFieldMapper.NumberType.LONG).build(context);
+                if (FORMAT_AUDIO.equals(latticeFormat)) {
+                    segmentStartSecondsMapper = new NumberFieldMapper.Builder(name + SEGMENT_START_SECONDS_SUFFIX,
+                            NumberFieldMapper.NumberType.FLOAT).build(context);
+                }
+            }
             setupFieldType(context);
+            SubFieldMapper prefixMapper = null;
+            if (indexPrefixMinChars > 0) {
+                // the prefixes of each arc, at the arc's position and with its payload
+                PrefixFieldType prefixFieldType = new PrefixFieldType(fieldType().name() + INDEX_PREFIX_SUFFIX,
+                        indexPrefixMinChars, indexPrefixMaxChars, fieldType.indexOptions(), fieldType.indexAnalyzer());
+                prefixMapper = new SubFieldMapper(prefixFieldType, context.indexSettings());
+                fieldType().setPrefixFieldType(prefixFieldType);
+            }
+            SubFieldMapper phraseMapper = null;
+            if (indexPhraseMaxShingleSize > 0 || materializedPhrases.isEmpty() == false) {
+                String option = indexPhraseMaxShingleSize > 0 ? "index_phrases" : "materialized_phrases";
+                if (fieldType.indexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) < 0) {
+                    throw new IllegalArgumentException("[" + option + "] requires positions on field [" + name + "]");
+                }
+                if (FORMAT_AUDIO.equals(latticeFormat)) {
+                    // audio arcs are placed by time, so the words of a phrase are rarely at adjacent positions
+                    throw new IllegalArgumentException("[" + option + "] requires [lattice_format] [" + FORMAT_LATTICE
+                            + "]");
+                }
+                // the paths through adjacent bins, at the position of their first arc and with their path score
+                PhraseFieldType phraseFieldType = new PhraseFieldType(fieldType().name() + INDEX_PHRASE_SUFFIX,
+                        Math.max(indexPhraseMaxShingleSize, 0), indexPhraseMinPathScore, materializedPhrases,
+                        fieldType.indexOptions(), fieldType.indexAnalyzer(), payloadEncoding);
+                phraseMapper = new SubFieldMapper(phraseFieldType, context.indexSettings());
+                fieldType().setPhraseFieldType(phraseFieldType);
+            }
+            List<SubFieldMapper> rankTierMappers = new ArrayList<>(rankTiers.size());
+            List<RankTierFieldType> rankTierFieldTypes = new ArrayList<>(rankTiers.size());
+            for (int maxRank : rankTiers) {
+                // the arcs up to the tier's rank, at the positions they have in the full lattice
+                RankTierFieldType tierFieldType = new RankTierFieldType(fieldType().name() + RANK_TIER_SUFFIX + maxRank,
+                        maxRank, fieldType.indexOptions(), fieldType.indexAnalyzer());
+                rankTierMappers.add(new SubFieldMapper(tierFieldType, context.indexSettings()));
+                rankTierFieldTypes.add(tierFieldType);
+            }
+            fieldType().setRankTierFieldTypes(rankTierFieldTypes);
             ((LatticeFieldType)fieldType).setLatticeFormat(latticeFormat);
             ((LatticeFieldType)fieldType).setAudioPositionIncrementSeconds(audioPositionIncrementSeconds);
+            ((LatticeFieldType)fieldType).setPayloadEncoding(payloadEncoding);
             return new LatticeFieldMapper(
                     name, fieldType(), defaultFieldType,
-                    positionIncrementGap, latticeFormat, audioPositionIncrementSeconds,
-                    context.indexSettings(), multiFieldsBuilder.build(this, context), copyTo);
+                    positionIncrementGap, latticeFormat, audioPositionIncrementSeconds, payloadEncoding, chunkedValues,
+                    fieldDelimiter, segmentMaxPositions, segmentOverlapPositions, segmentMaxSeconds,
+                    segmentOverlapSeconds, segmenter, segmentStartPositionMapper, segmentStartSecondsMapper,
+                    prefixMapper, phraseMapper, rankTierMappers, context.indexSettings(),
+                    multiFieldsBuilder.build(this, context), copyTo);
         }
     }
 
@@ -194,6 +439,62 @@ public class LatticeFieldMapper extends FieldMapper {
                     float secs = XContentMapValues.nodeFloatValue(propNode, 0.01f);
                     builder.audioPositionIncrementSeconds(secs);
                     iterator.remove();
+                } else if (propName.equals("payload_encoding")) {
+                    builder.payloadEncoding(XContentMapValues.nodeStringValue(propNode, "float"));
+                    iterator.remove();
+                } else if (propName.equals("chunked_values")) {
+                    builder.chunkedValues(XContentMapValues.nodeBooleanValue(propNode, "chunked_values"));
+                    iterator.remove();
+                } else if (propName.equals("field_delimiter")) {
+                    builder.fieldDelimiter(XContentMapValues.nodeStringValue(propNode, "|"));
+                    iterator.remove();
+                } else if (propName.equals("segment_max_positions")) {
+                    builder.segmentMaxPositions(XContentMapValues.nodeIntegerValue(propNode, -1));
+                    iterator.remove();
+                } else if (propName.equals("segment_overlap_positions")) {
+                    builder.segmentOverlapPositions(XContentMapValues.nodeIntegerValue(propNode, 0));
+                    iterator.remove();
+                } else if (propName.equals("segment_max_seconds")) {
+                    builder.segmentMaxSeconds(XContentMapValues.nodeFloatValue(propNode, -1.0f));
+                    iterator.remove();
+                } else if (propName.equals("segment_overlap_seconds")) {
+                    builder.segmentOverlapSeconds(XContentMapValues.nodeFloatValue(propNode, 0.0f));
+                    iterator.remove();
+                } else if (propName.equals("index_prefixes")) {
+                    if (propNode != null) {
+                        Map<?, ?> indexPrefix = (Map<?, ?>) propNode;
+                        int minChars = XContentMapValues.nodeIntegerValue(indexPrefix.remove("min_chars"),
+                                DEFAULT_INDEX_PREFIX_MIN_CHARS);
+                        int maxChars = XContentMapValues.nodeIntegerValue(indexPrefix.remove("max_chars"),
+                                DEFAULT_INDEX_PREFIX_MAX_CHARS);
+                        DocumentMapperParser.checkNoRemainingFields(propName, indexPrefix,
+                                parserContext.indexVersionCreated());
+                        builder.indexPrefixes(minChars, maxChars);
+                    }
+                    iterator.remove();
+                } else if (propName.equals("index_phrases")) {
+                    if (propNode != null) {
+                        Map<?, ?> indexPhrases = (Map<?, ?>) propNode;
+                        int maxShingleSize = XContentMapValues.nodeIntegerValue(
+                                indexPhrases.remove("max_shingle_size"), DEFAULT_INDEX_PHRASE_MAX_SHINGLE_SIZE);
+                        float minPathScore = XContentMapValues.nodeFloatValue(indexPhrases.remove("min_path_score"),
+                                0.0f);
+                        DocumentMapperParser.checkNoRemainingFields(propName, indexPhrases,
+                                parserContext.indexVersionCreated());
+                        builder.indexPhrases(maxShingleSize, minPathScore);
+                    }
+                    iterator.remove();
+                } else if (propName.equals("materialized_phrases")) {
+                    builder.materializedPhrases(Arrays.asList(XContentMapValues.nodeStringArrayValue(propNode)));
+                    iterator.remove();
+                } else if (propName.equals("rank_tiers")) {
+                    List<Integer> maxRanks = new ArrayList<>();
+                    for (Object maxRank : XContentMapValues.isArray(propNode) ? (List<?>) propNode
+                            : Collections.singletonList(propNode)) {
+                        maxRanks.add(XContentMapValues.nodeIntegerValue(maxRank));
+                    }
+                    builder.rankTiers(maxRanks);
+                    iterator.remove();
                 }
             }
             return builder;
@@ -204,6 +505,10 @@ public class LatticeFieldMapper extends FieldMapper {
 
         private String latticeFormat = "lattice";
         private float audioPositionIncrementSeconds = 0.01f;
+        private LatticePayloadEncoding payloadEncoding = LatticePayloadEncoding.FLOAT;
+        private PrefixFieldType prefixFieldType = null;
+        private PhraseFieldType phraseFieldType = null;
+        private List<RankTierFieldType> rankTierFieldTypes = Collections.emptyList();
 
         public LatticeFieldType() {
             setTokenized(true);
@@ -211,6 +516,12 @@ public class LatticeFieldMapper extends FieldMapper {
 
         protected LatticeFieldType(LatticeFieldType ref) {
             super(ref);
+            this.latticeFormat = ref.latticeFormat;
+            this.audioPositionIncrementSeconds = ref.audioPositionIncrementSeconds;
+            this.payloadEncoding = ref.payloadEncoding;
+            this.prefixFieldType = ref.prefixFieldType;
+            this.phraseFieldType = ref.phraseFieldType;
+            this.rankTierFieldTypes = ref.rankTierFieldTypes;
         }
 
         public LatticeFieldType clone() {
@@ -233,11 +544,126 @@ public class LatticeFieldMapper extends FieldMapper {
             this.audioPositionIncrementSeconds = secs;
         }
 
+        public LatticePayloadEncoding payloadEncoding() {
+            return payloadEncoding;
+        }
+
+        public void setPayloadEncoding(LatticePayloadEncoding payloadEncoding) {
+            this.payloadEncoding = payloadEncoding;
+        }
+
+        void setPrefixFieldType(PrefixFieldType prefixFieldType) {
+            this.prefixFieldType = prefixFieldType;
+        }
+
+        /**
+         * @return the term of the {@code index_prefixes} sub-field that has the same docs, positions and payloads as
+         * the arcs that start with {@code prefix}, or null if prefixes of its length aren't indexed
+         */
+        public Term indexedPrefixTerm(String prefix) {
+            if (prefixFieldType == null || prefixFieldType.accept(prefix.codePointCount(0, prefix.length())) == false) {
+                return null;
+            }
+            return new Term(prefixFieldType.name(), indexedValueForSearch(prefix));
+        }
+
+        void setPhraseFieldType(PhraseFieldType phraseFieldType) {
+            this.phraseFieldType = phraseFieldType;
+        }
+
+        /**
+         * @param words the analyzed words of a phrase that must match at adjacent positions, in order
+         * @param minSpanScore the lowest path score the phrase's matches need
+         * @return the term of the {@code index_phrases} sub-field whose occurrences are the phrase's paths, with their
+         * path scores as payloads, or null if neither phrases of its length nor the phrase itself are indexed, or
+         * paths this low scoring aren't
+         */
+        public Term indexedPhraseTerm(List<BytesRef> words, float minSpanScore) {
+            if (phraseFieldType == null || words.size() < 2) {
+                return null;
+            }
+            BytesRef shingle = shingle(words);
+            if (phraseFieldType.accept(words.size(), shingle.utf8ToString(), minSpanScore) == false) {
+                return null;
+            }
+            return new Term(phraseFieldType.name(), shingle);
+        }
+
+        /**
+         * @param words the analyzed words of a phrase {@link #indexedPhraseTerm} returned a term for
+         * @return the terms of the {@code index_phrases} sub-field that mark the docs indexed with the phrase's term,
+         * or null if every doc is, as for shingles
+         */
+        public List<Term> indexedPhraseMarkers(List<BytesRef> words) {
+            return phraseFieldType.phraseCountMarkers(shingle(words).utf8ToString(), words.size());
+        }
+
+        private static BytesRef shingle(List<BytesRef> words) {
+            BytesRefBuilder shingle = new BytesRefBuilder();
+            for (BytesRef word : words) {
+                if (shingle.length() > 0) {
+                    shingle.append((byte) LatticeShingleFilter.SEPARATOR);
+                }
+                shingle.append(word);
+            }
+            return shingle.toBytesRef();
+        }
+
+        void setRankTierFieldTypes(List<RankTierFieldType> rankTierFieldTypes) {
+            this.rankTierFieldTypes = rankTierFieldTypes;
+        }
+
+        /**
+         * @return the {@code rank_tiers} sub-fields, those holding the fewest arcs first, each holding the arcs of the
+         * one before and those of the next ranks, at the same positions and with the same payloads as this field
+         */
+        public List<String> rankTierFields() {
+            List<String> fields = new ArrayList<>(rankTierFieldTypes.size());
+            for (RankTierFieldType tierFieldType : rankTierFieldTypes) {
+                fields.add(tierFieldType.name());
+            }
+            return fields;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (super.equals(o) == false) {
+                return false;
+            }
+            LatticeFieldType that = (LatticeFieldType) o;
+            return Objects.equals(latticeFormat, that.latticeFormat)
+                    && audioPositionIncrementSeconds == that.audioPositionIncrementSeconds
+                    && payloadEncoding == that.payloadEncoding
+                    && Objects.equals(prefixFieldType, that.prefixFieldType)
+                    && Objects.equals(phraseFieldType, that.phraseFieldType)
+                    && Objects.equals(rankTierFieldTypes, that.rankTierFieldTypes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(super.hashCode(), latticeFormat, audioPositionIncrementSeconds, payloadEncoding,
+                    prefixFieldType, phraseFieldType, rankTierFieldTypes);
+        }
+
         @Override
         public String typeName() {
             return CONTENT_TYPE;
         }
 
+        @Override
+        public Query prefixQuery(String value, MultiTermQuery.RewriteMethod method, QueryShardContext context) {
+            Term prefixTerm = indexedPrefixTerm(value);
+            if (prefixTerm == null) {
+                return super.prefixQuery(value, method, context);
+            }
+            Query query = new TermQuery(prefixTerm);
+            if (method == null || method == MultiTermQuery.CONSTANT_SCORE_REWRITE
+                    || method == MultiTermQuery.CONSTANT_SCORE_BOOLEAN_REWRITE) {
+                return new ConstantScoreQuery(query);
+            }
+            return query;
+        }
+
         @Override
         public Query existsQuery(QueryShardContext context) {
             if (omitNorms()) {
@@ -249,6 +675,11 @@ public class LatticeFieldMapper extends FieldMapper {
 
         @Override
         public SpanQuery spanPrefixQuery(String value, SpanMultiTermQueryWrapper.SpanRewriteMethod method, QueryShardContext context) {
+            Term prefixTerm = indexedPrefixTerm(value);
+            if (prefixTerm != null) {
+                // a single term, whose spans and payloads are those of the arcs it prefixes
+                return new FieldMaskingSpanQuery(new SpanTermQuery(prefixTerm), name());
+            }
             SpanMultiTermQueryWrapper<?> spanMulti =
                     new SpanMultiTermQueryWrapper<>(new PrefixQuery(new Term(name(), indexedValueForSearch(value))));
             spanMulti.setRewriteMethod(method);
@@ -271,12 +702,375 @@ public class LatticeFieldMapper extends FieldMapper {
         }
     }
 
+    /**
+     * Type of the hidden {@code index_prefixes} sub-field, which indexes the first {@code min_chars} to
+     * {@code max_chars} characters of each arc, so a prefix query becomes a single term lookup
+     */
+    static final class PrefixFieldType extends StringFieldType {
+
+        private final int minChars;
+        private final int maxChars;
+
+        PrefixFieldType(String name, int minChars, int maxChars, IndexOptions indexOptions, NamedAnalyzer analyzer) {
+            setTokenized(true);
+            setOmitNorms(true);
+            setIndexOptions(indexOptions);
+            setName(name);
+            this.minChars = minChars;
+            this.maxChars = maxChars;
+            if (analyzer != null) {
+                // edge n-grams keep the position and payload of the arc they are cut from
+                NamedAnalyzer prefixAnalyzer = wrapAnalyzer(analyzer, name,
+                        in -> new EdgeNGramTokenFilter(in, minChars, maxChars, false));
+                setIndexAnalyzer(prefixAnalyzer);
+                setSearchAnalyzer(prefixAnalyzer);
+            }
+        }
+
+        private PrefixFieldType(PrefixFieldType ref) {
+            super(ref);
+            this.minChars = ref.minChars;
+            this.maxChars = ref.maxChars;
+        }
+
+        boolean accept(int length) {
+            return length >= minChars && length <= maxChars;
+        }
+
+        int minChars() {
+            return minChars;
+        }
+
+        int maxChars() {
+            return maxChars;
+        }
+
+        @Override
+        public PrefixFieldType clone() {
+            return new PrefixFieldType(this);
+        }
+
+        @Override
+        public String typeName() {
+            return "prefix";
+        }
+
+        @Override
+        public Query existsQuery(QueryShardContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (super.equals(o) == false) {
+                return false;
+            }
+            PrefixFieldType that = (PrefixFieldType) o;
+            return minChars == that.minChars && maxChars == that.maxChars;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(super.hashCode(), minChars, maxChars);
+        }
+    }
+
+    /**
+     * Type of a hidden {@code rank_tiers} sub-field, which indexes the arcs of each bin up to a rank, so a query for
+     * likely matches only reads the postings of likely arcs
+     */
+    static final class RankTierFieldType extends StringFieldType {
+
+        private final int maxRank;
+
+        RankTierFieldType(String name, int maxRank, IndexOptions indexOptions, NamedAnalyzer analyzer) {
+            setTokenized(true);
+            setOmitNorms(true);
+            setIndexOptions(indexOptions);
+            setName(name);
+            this.maxRank = maxRank;
+            if (analyzer != null) {
+                NamedAnalyzer tierAnalyzer = wrapAnalyzer(analyzer, name, in -> new LatticeRankFilter(in, maxRank));
+                setIndexAnalyzer(tierAnalyzer);
+                setSearchAnalyzer(tierAnalyzer);
+            }
+        }
+
+        private RankTierFieldType(RankTierFieldType ref) {
+            super(ref);
+            this.maxRank = ref.maxRank;
+        }
+
+        int maxRank() {
+            return maxRank;
+        }
+
+        @Override
+        public RankTierFieldType clone() {
+            return new RankTierFieldType(this);
+        }
+
+        @Override
+        public String typeName() {
+            return "rank_tier";
+        }
+
+        @Override
+        public Query existsQuery(QueryShardContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (super.equals(o) == false) {
+                return false;
+            }
+            return maxRank == ((RankTierFieldType) o).maxRank;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(super.hashCode(), maxRank);
+        }
+    }
+
+    /**
+     * Type of the hidden {@code index_phrases} sub-field, which indexes the shingles of every path through 2 to
+     * {@code max_shingle_size} adjacent bins, and of every path through the words of a materialized phrase, so a short
+     * or registered exact phrase becomes a single term lookup
+     */
+    static final class PhraseFieldType extends StringFieldType {
+
+        // the marker terms sort before every shingle, and can't be one, as no word is empty
+        private static final String PHRASE_COUNT_MARKER_PREFIX = String.valueOf(LatticeShingleFilter.SEPARATOR);
+
+        // 0 if only the materialized phrases are indexed
+        private final int maxShingleSize;
+        private final float minPathScore;
+        // as they were mapped
+        private final List<String> materializedPhrases;
+        // as they are indexed, words joined by the shingle separator, to the index they were first listed at
+        private final Map<String, Integer> analyzedPhrases;
+        // untokenized, for the term marking how many materialized phrases a doc was indexed with
+        private final FieldType markerFieldType;
+
+        PhraseFieldType(String name, int maxShingleSize, float minPathScore, List<String> materializedPhrases,
+                        IndexOptions indexOptions, NamedAnalyzer analyzer, LatticePayloadEncoding payloadEncoding) {
+            setTokenized(true);
+            setOmitNorms(true);
+            setIndexOptions(indexOptions);
+            setName(name);
+            this.maxShingleSize = maxShingleSize;
+            this.minPathScore = minPathScore;
+            this.materializedPhrases = materializedPhrases;
+            this.analyzedPhrases = new HashMap<>();
+            if (analyzer != null) {
+                for (int i = 0; i < materializedPhrases.size(); i++) {
+                    analyzedPhrases.putIfAbsent(analyzePhrase(analyzer, name, materializedPhrases.get(i)), i);
+                }
+                NamedAnalyzer phraseAnalyzer = wrapAnalyzer(analyzer, name, in -> new LatticeShingleFilter(in,
+                        payloadEncoding, maxShingleSize, minPathScore, analyzedPhrases.keySet()));
+                setIndexAnalyzer(phraseAnalyzer);
+                setSearchAnalyzer(phraseAnalyzer);
+            }
+            this.markerFieldType = new FieldType();
+            markerFieldType.setTokenized(false);
+            markerFieldType.setOmitNorms(true);
+            markerFieldType.setIndexOptions(indexOptions);
+            markerFieldType.freeze();
+        }
+
+        private PhraseFieldType(PhraseFieldType ref) {
+            super(ref);
+            this.maxShingleSize = ref.maxShingleSize;
+            this.minPathScore = ref.minPathScore;
+            this.materializedPhrases = ref.materializedPhrases;
+            this.analyzedPhrases = ref.analyzedPhrases;
+            this.markerFieldType = ref.markerFieldType;
+        }
+
+        /**
+         * @param shingle the phrase's words joined by the shingle separator
+         * @return true if every path through the phrase's words scoring at least {@code minSpanScore} is indexed
+         */
+        boolean accept(int numWords, String shingle, float minSpanScore) {
+            if (minSpanScore < minPathScore) {
+                return false;
+            }
+            return (numWords >= 2 && numWords <= maxShingleSize) || analyzedPhrases.containsKey(shingle);
+        }
+
+        /**
+         * @return the field marking a doc as indexed with every materialized phrase mapped at the time
+         */
+        Field phraseCountMarker() {
+            return new Field(name(), PHRASE_COUNT_MARKER_PREFIX + materializedPhrases.size(), markerFieldType);
+        }
+
+        /**
+         * @param shingle the words of an accepted phrase joined by the shingle separator
+         * @return the terms marking the docs indexed with the phrase, or null if every doc is: a materialized phrase
+         * is only indexed for the docs indexed with a mapping that lists it, and phrases are only ever added to the
+         * end of the list
+         */
+        List<Term> phraseCountMarkers(String shingle, int numWords) {
+            if (numWords <= maxShingleSize) {
+                return null;
+            }
+            List<Term> markers = new ArrayList<>();
+            for (int count = analyzedPhrases.get(shingle) + 1; count <= materializedPhrases.size(); count++) {
+                markers.add(new Term(name(), PHRASE_COUNT_MARKER_PREFIX + count));
+            }
+            return markers;
+        }
+
+        int maxShingleSize() {
+            return maxShingleSize;
+        }
+
+        float minPathScore() {
+            return minPathScore;
+        }
+
+        List<String> materializedPhrases() {
+            return materializedPhrases;
+        }
+
+        @Override
+        public PhraseFieldType clone() {
+            return new PhraseFieldType(this);
+        }
+
+        @Override
+        public String typeName() {
+            return "phrase";
+        }
+
+        @Override
+        public Query existsQuery(QueryShardContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (super.equals(o) == false) {
+                return false;
+            }
+            PhraseFieldType that = (PhraseFieldType) o;
+            return maxShingleSize == that.maxShingleSize && minPathScore == that.minPathScore
+                    && materializedPhrases.equals(that.materializedPhrases);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(super.hashCode(), maxShingleSize, minPathScore, materializedPhrases);
+        }
+    }
+
+    /**
+     * @return the words {@code analyzer} indexes {@code phrase} as, joined by the shingle separator
+     */
+    private static String analyzePhrase(NamedAnalyzer analyzer, String field, String phrase) {
+        List<String> words = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream(field, phrase)) {
+            CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                if (posIncAtt.getPositionIncrement() != 1) {
+                    throw new IllegalArgumentException("[materialized_phrases] phrase [" + phrase
+                            + "] must analyze to words at adjacent positions");
+                }
+                words.add(termAtt.toString());
+            }
+            stream.end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (words.size() < 2) {
+            throw new IllegalArgumentException("[materialized_phrases] phrase [" + phrase
+                    + "] must have at least two words");
+        }
+        return String.join(String.valueOf(LatticeShingleFilter.SEPARATOR), words);
+    }
+
+    /**
+     * @return the analyzer of a sub-field, which runs {@code filter} over the tokens of the lattice field's analyzer
+     */
+    private static NamedAnalyzer wrapAnalyzer(NamedAnalyzer analyzer, String name,
+                                              Function<TokenStream, TokenStream> filter) {
+        // the sub-field's values are separated by the same gap as the lattice field's
+        return new NamedAnalyzer(new NamedAnalyzer(analyzer.name(), AnalyzerScope.INDEX,
+                new FilterWrappedAnalyzer(analyzer.analyzer(), filter)), analyzer.getPositionIncrementGap(name));
+    }
+
+    private static final class FilterWrappedAnalyzer extends AnalyzerWrapper {
+
+        private final Analyzer delegate;
+        private final Function<TokenStream, TokenStream> filter;
+
+        FilterWrappedAnalyzer(Analyzer delegate, Function<TokenStream, TokenStream> filter) {
+            super(delegate.getReuseStrategy());
+            this.delegate = delegate;
+            this.filter = filter;
+        }
+
+        @Override
+        protected Analyzer getWrappedAnalyzer(String fieldName) {
+            return delegate;
+        }
+
+        @Override
+        protected TokenStreamComponents wrapComponents(String fieldName, TokenStreamComponents components) {
+            return new TokenStreamComponents(components.getSource(), filter.apply(components.getTokenStream()));
+        }
+    }
+
+    /**
+     * Maps a hidden sub-field, whose values are indexed by the lattice field's mapper
+     */
+    static final class SubFieldMapper extends FieldMapper {
+
+        SubFieldMapper(StringFieldType fieldType, Settings indexSettings) {
+            super(fieldType.name(), fieldType, fieldType, indexSettings, MultiFields.empty(), CopyTo.empty());
+        }
+
+        @Override
+        protected void parseCreateField(ParseContext context, List<IndexableField> fields) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected String contentType() {
+            return fieldType().typeName();
+        }
+    }
+
     private int positionIncrementGap;
     private String latticeFormat = "lattice";
     private float audioPositionIncrementSeconds = 0.01f;
+    private LatticePayloadEncoding payloadEncoding = LatticePayloadEncoding.FLOAT;
+    private boolean chunkedValues = false;
+    private String fieldDelimiter = "|";
+    private int segmentMaxPositions;
+    private int segmentOverlapPositions;
+    private float segmentMaxSeconds;
+    private float segmentOverlapSeconds;
+    private LatticeSegmenter segmenter;
+    private NumberFieldMapper segmentStartPositionMapper;
+    private NumberFieldMapper segmentStartSecondsMapper;
+    private SubFieldMapper prefixMapper;
+    private SubFieldMapper phraseMapper;
+    private List<SubFieldMapper> rankTierMappers;
     protected LatticeFieldMapper(String simpleName, LatticeFieldType fieldType, MappedFieldType defaultFieldType,
                                        int positionIncrementGap, String latticeFormat,
-                                       float audioPositionIncrementSeconds,
+                                       float audioPositionIncrementSeconds, LatticePayloadEncoding payloadEncoding,
+                                       boolean chunkedValues, String fieldDelimiter,
+                                       int segmentMaxPositions, int segmentOverlapPositions,
+                                       float segmentMaxSeconds, float segmentOverlapSeconds,
+                                       LatticeSegmenter segmenter, NumberFieldMapper segmentStartPositionMapper,
+                                       NumberFieldMapper segmentStartSecondsMapper, SubFieldMapper prefixMapper,
+                                       SubFieldMapper phraseMapper, List<SubFieldMapper> rankTierMappers,
                                        Settings indexSettings, MultiFields multiFields, CopyTo copyTo) {
         super(simpleName, fieldType, defaultFieldType, indexSettings, multiFields, copyTo);
         assert fieldType.tokenized();
@@ -284,6 +1078,119 @@ public class LatticeFieldMapper extends FieldMapper {
         this.positionIncrementGap = positionIncrementGap;
         this.latticeFormat = latticeFormat;
         this.audioPositionIncrementSeconds = audioPositionIncrementSeconds;
+        this.payloadEncoding = payloadEncoding;
+        this.chunkedValues = chunkedValues;
+        this.fieldDelimiter = fieldDelimiter;
+        this.segmentMaxPositions = segmentMaxPositions;
+        this.segmentOverlapPositions = segmentOverlapPositions;
+        this.segmentMaxSeconds = segmentMaxSeconds;
+        this.segmentOverlapSeconds = segmentOverlapSeconds;
+        this.segmenter = segmenter;
+        this.segmentStartPositionMapper = segmentStartPositionMapper;
+        this.segmentStartSecondsMapper = segmentStartSecondsMapper;
+        this.prefixMapper = prefixMapper;
+        this.phraseMapper = phraseMapper;
+        this.rankTierMappers = rankTierMappers;
+    }
+
+    @Override
+    public Iterator<Mapper> iterator() {
+        List<Mapper> mappers = new ArrayList<>();
+        super.iterator().forEachRemaining(mappers::add);
+        if (segmentStartPositionMapper != null) {
+            mappers.add(segmentStartPositionMapper);
+        }
+        if (segmentStartSecondsMapper != null) {
+            mappers.add(segmentStartSecondsMapper);
+        }
+        mappers.addAll(indexedSubFields());
+        return mappers.iterator();
+    }
+
+    @Override
+    public FieldMapper updateFieldType(Map<String, MappedFieldType> fullNameToFieldType) {
+        LatticeFieldMapper mapper = (LatticeFieldMapper) super.updateFieldType(fullNameToFieldType);
+        if (segmentStartPositionMapper != null) {
+            mapper.segmentStartPositionMapper =
+                    (NumberFieldMapper) segmentStartPositionMapper.updateFieldType(fullNameToFieldType);
+        }
+        if (segmentStartSecondsMapper != null) {
+            mapper.segmentStartSecondsMapper =
+                    (NumberFieldMapper) segmentStartSecondsMapper.updateFieldType(fullNameToFieldType);
+        }
+        if (prefixMapper != null) {
+            mapper.prefixMapper = (SubFieldMapper) prefixMapper.updateFieldType(fullNameToFieldType);
+        }
+        if (phraseMapper != null) {
+            mapper.phraseMapper = (SubFieldMapper) phraseMapper.updateFieldType(fullNameToFieldType);
+        }
+        List<SubFieldMapper> updatedRankTierMappers = new ArrayList<>(rankTierMappers.size());
+        for (SubFieldMapper tierMapper : rankTierMappers) {
+            updatedRankTierMappers.add((SubFieldMapper) tierMapper.updateFieldType(fullNameToFieldType));
+        }
+        mapper.rankTierMappers = updatedRankTierMappers;
+        return mapper;
+    }
+
+    @Override
+    protected void doMerge(Mapper mergeWith) {
+        super.doMerge(mergeWith);
+        LatticeFieldMapper other = (LatticeFieldMapper) mergeWith;
+        // docs already indexed were parsed and encoded with these
+        checkSameSetting(latticeFormat, other.latticeFormat, "lattice_format");
+        checkSameSetting(audioPositionIncrementSeconds, other.audioPositionIncrementSeconds,
+                "audio_position_increment_seconds");
+        checkSameSetting(payloadEncoding, other.payloadEncoding, "payload_encoding");
+        // docs already indexed had their array values joined, or kept apart, by this
+        checkSameSetting(chunkedValues, other.chunkedValues, "chunked_values");
+        // docs already indexed were split into segments, and their start fields added, with these
+        checkSameSetting(segmentMaxPositions, other.segmentMaxPositions, "segment_max_positions");
+        checkSameSetting(segmentOverlapPositions, other.segmentOverlapPositions, "segment_overlap_positions");
+        checkSameSetting(segmentMaxSeconds, other.segmentMaxSeconds, "segment_max_seconds");
+        checkSameSetting(segmentOverlapSeconds, other.segmentOverlapSeconds, "segment_overlap_seconds");
+        checkSameSetting(fieldDelimiter, other.fieldDelimiter, "field_delimiter");
+        // docs already indexed would be missing their prefixes, phrases or tiers
+        checkSameSubField(prefixMapper, other.prefixMapper, "index_prefixes");
+        PhraseFieldType phraseFieldType = phraseMapper == null ? null : (PhraseFieldType) phraseMapper.fieldType();
+        PhraseFieldType otherPhraseFieldType = other.phraseMapper == null ? null
+                : (PhraseFieldType) other.phraseMapper.fieldType();
+        if ((phraseFieldType == null ? 0 : phraseFieldType.maxShingleSize())
+                != (otherPhraseFieldType == null ? 0 : otherPhraseFieldType.maxShingleSize())
+                || (phraseFieldType != null && otherPhraseFieldType != null
+                && phraseFieldType.minPathScore() != otherPhraseFieldType.minPathScore())) {
+            throw new IllegalArgumentException("mapper [" + name() + "] has different [index_phrases] settings");
+        }
+        List<String> phrases = phraseFieldType == null ? Collections.emptyList()
+                : phraseFieldType.materializedPhrases();
+        List<String> otherPhrases = otherPhraseFieldType == null ? Collections.emptyList()
+                : otherPhraseFieldType.materializedPhrases();
+        if (otherPhrases.size() < phrases.size() || otherPhrases.subList(0, phrases.size()).equals(phrases) == false) {
+            throw new IllegalArgumentException("mapper [" + name() + "] has different [materialized_phrases], "
+                    + "phrases can only be added to the end of the list, reindex to change them");
+        }
+        // only docs indexed from now on get the new phrases' terms, queries search the others by phrase
+        phraseMapper = other.phraseMapper;
+        if (rankTierMappers.size() != other.rankTierMappers.size()) {
+            throw new IllegalArgumentException("mapper [" + name() + "] has different [rank_tiers] settings");
+        }
+        for (int i = 0; i < rankTierMappers.size(); i++) {
+            checkSameSubField(rankTierMappers.get(i), other.rankTierMappers.get(i), "rank_tiers");
+        }
+    }
+
+    private void checkSameSetting(Object value, Object other, String option) {
+        if (Objects.equals(value, other) == false) {
+            throw new IllegalArgumentException("mapper [" + name() + "] has different [" + option + "], "
+                    + "reindex to change it");
+        }
+    }
+
+    private void checkSameSubField(SubFieldMapper mapper, SubFieldMapper other, String option) {
+        MappedFieldType fieldType = mapper == null ? null : mapper.fieldType();
+        MappedFieldType otherFieldType = other == null ? null : other.fieldType();
+        if (Objects.equals(fieldType, otherFieldType) == false) {
+            throw new IllegalArgumentException("mapper [" + name() + "] has different [" + option + "] settings");
+        }
     }
 
     @Override
@@ -308,15 +1215,136 @@ public class LatticeFieldMapper extends FieldMapper {
             return;
         }
 
+        if (segmenter != null) {
+            parseSegments(context, fields, value);
+            return;
+        }
+
+        if (chunkedValues) {
+            // every value of the field is one more chunk of the same lattice, analyzed as a single stream
+            IndexableField existing = context.doc().getField(fieldType().name());
+            if (existing != null && existing.readerValue() instanceof ChunkedValueReader) {
+                ((ChunkedValueReader) existing.readerValue()).append(value);
+                for (SubFieldMapper subField : indexedSubFields()) {
+                    // a reader is only read once, so each sub-field reads its own copy of the chunks
+                    IndexableField subFieldValue = context.doc().getField(subField.fieldType().name());
+                    ((ChunkedValueReader) subFieldValue.readerValue()).append(value);
+                }
+                return;
+            }
+            fields.add(new Field(fieldType().name(), new ChunkedValueReader(value), fieldType()));
+            for (SubFieldMapper subField : indexedSubFields()) {
+                fields.add(new Field(subField.fieldType().name(), new ChunkedValueReader(value),
+                        subField.fieldType()));
+            }
+            addPhraseCountMarker(context.doc(), fields);
+            if (fieldType().omitNorms()) {
+                createFieldNamesField(context, fields);
+            }
+            return;
+        }
+
         if (fieldType().indexOptions() != IndexOptions.NONE || fieldType().stored()) {
             Field field = new Field(fieldType().name(), value, fieldType());
             fields.add(field);
+            addSubFields(value, fields);
+            addPhraseCountMarker(context.doc(), fields);
             if (fieldType().omitNorms()) {
                 createFieldNamesField(context, fields);
             }
         }
     }
 
+    /**
+     * Indexes the first segment of the lattice in the nested document it was sent in, and every following segment in a
+     * new nested document alongside it.
+     */
+    private void parseSegments(ParseContext context, List<IndexableField> fields, String value) {
+        final ParseContext.Document doc = context.doc();
+        if (doc.getParent() == null) {
+            throw new IllegalArgumentException("segmented [" + CONTENT_TYPE + "] field [" + fieldType().name()
+                    + "] must be inside a [nested] object");
+        }
+        final List<LatticeSegmenter.Segment> segments = segmenter.segment(value);
+        for (int i = 0; i < segments.size(); i++) {
+            final LatticeSegmenter.Segment segment = segments.get(i);
+            final ParseContext segmentContext;
+            final List<IndexableField> segmentFields;
+            if (i == 0) {
+                segmentContext = context;
+                segmentFields = fields;
+            } else {
+                // the ids and nested type the nested query and deletes rely on
+                segmentContext = context.createNestedContext(doc.getPath());
+                segmentContext.doc().add(doc.getField(IdFieldMapper.NAME));
+                segmentContext.doc().add(doc.getField(TypeFieldMapper.NAME));
+                segmentFields = new ArrayList<>();
+            }
+
+            String segmentValue = value.substring(segment.startOffset(), segment.endOffset());
+            segmentFields.add(new Field(fieldType().name(), segmentValue, fieldType()));
+            addSubFields(segmentValue, segmentFields);
+            addPhraseCountMarker(segmentContext.doc(), segmentFields);
+            addSegmentStart(segmentStartPositionMapper, NumberFieldMapper.NumberType.LONG, segment.startPosition(),
+                    segmentFields);
+            addSegmentStart(segmentStartSecondsMapper, NumberFieldMapper.NumberType.FLOAT, segment.startSeconds(),
+                    segmentFields);
+            if (fieldType().omitNorms()) {
+                createFieldNamesField(segmentContext, segmentFields);
+            }
+
+            if (i > 0) {
+                for (IndexableField field : segmentFields) {
+                    segmentContext.doc().add(field);
+                }
+            }
+        }
+    }
+
+    private void addSubFields(String value, List<IndexableField> fields) {
+        for (SubFieldMapper subField : indexedSubFields()) {
+            fields.add(new Field(subField.fieldType().name(), value, subField.fieldType()));
+        }
+    }
+
+    /**
+     * Marks {@code doc}, once, with the number of {@code materialized_phrases} its values are indexed with
+     */
+    private void addPhraseCountMarker(ParseContext.Document doc, List<IndexableField> fields) {
+        if (phraseMapper == null) {
+            return;
+        }
+        PhraseFieldType phraseFieldType = (PhraseFieldType) phraseMapper.fieldType();
+        if (phraseFieldType.materializedPhrases().isEmpty() == false && doc.getField(phraseFieldType.name()) == null) {
+            fields.add(phraseFieldType.phraseCountMarker());
+        }
+    }
+
+    /**
+     * @return the mappers of the sub-fields that index each value again, in their own way
+     */
+    private List<SubFieldMapper> indexedSubFields() {
+        List<SubFieldMapper> subFields = new ArrayList<>(2 + rankTierMappers.size());
+        if (prefixMapper != null) {
+            subFields.add(prefixMapper);
+        }
+        if (phraseMapper != null) {
+            subFields.add(phraseMapper);
+        }
+        subFields.addAll(rankTierMappers);
+        return subFields;
+    }
+
+    private static void addSegmentStart(NumberFieldMapper mapper, NumberFieldMapper.NumberType numberType, Number value,
+                                        List<IndexableField> fields) {
+        if (mapper == null) {
+            return;
+        }
+        MappedFieldType type = mapper.fieldType();
+        fields.addAll(numberType.createFields(type.name(), value, type.indexOptions() != IndexOptions.NONE,
+                type.hasDocValues(), type.stored()));
+    }
+
     @Override
     protected String contentType() {
         return CONTENT_TYPE;
@@ -342,5 +1370,47 @@ public class LatticeFieldMapper extends FieldMapper {
         if (includeDefaults || fieldType().latticeFormat() != ((LatticeFieldType) defaultFieldType).latticeFormat()) {
             builder.field("lattice_format", latticeFormat);
         }
+        if (includeDefaults || payloadEncoding != ((LatticeFieldType) defaultFieldType).payloadEncoding()) {
+            builder.field("payload_encoding", payloadEncoding.getName());
+        }
+        if (includeDefaults || chunkedValues) {
+            builder.field("chunked_values", chunkedValues);
+        }
+        if (includeDefaults || fieldDelimiter.equals("|") == false) {
+            builder.field("field_delimiter", fieldDelimiter);
+        }
+        if (segmentMaxPositions > 0) {
+            builder.field("segment_max_positions", segmentMaxPositions);
+            builder.field("segment_overlap_positions", segmentOverlapPositions);
+        }
+        if (segmentMaxSeconds > 0.0f) {
+            builder.field("segment_max_seconds", segmentMaxSeconds);
+            builder.field("segment_overlap_seconds", segmentOverlapSeconds);
+        }
+        if (prefixMapper != null) {
+            builder.startObject("index_prefixes");
+            builder.field("min_chars", ((PrefixFieldType) prefixMapper.fieldType()).minChars());
+            builder.field("max_chars", ((PrefixFieldType) prefixMapper.fieldType()).maxChars());
+            builder.endObject();
+        }
+        if (phraseMapper != null) {
+            PhraseFieldType phraseFieldType = (PhraseFieldType) phraseMapper.fieldType();
+            if (phraseFieldType.maxShingleSize() > 0) {
+                builder.startObject("index_phrases");
+                builder.field("max_shingle_size", phraseFieldType.maxShingleSize());
+                builder.field("min_path_score", phraseFieldType.minPathScore());
+                builder.endObject();
+            }
+            if (phraseFieldType.materializedPhrases().isEmpty() == false) {
+                builder.field("materialized_phrases", phraseFieldType.materializedPhrases());
+            }
+        }
+        if (rankTierMappers.isEmpty() == false) {
+            List<Integer> maxRanks = new ArrayList<>(rankTierMappers.size());
+            for (SubFieldMapper tierMapper : rankTierMappers) {
+                maxRanks.add(((RankTierFieldType) tierMapper.fieldType()).maxRank());
+            }
+            builder.field("rank_tiers", maxRanks);
+        }
     }
 }
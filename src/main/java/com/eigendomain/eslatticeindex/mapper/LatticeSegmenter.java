@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.mapper;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits a lattice into overlapping segments of bins, bounded either by the number of positions or, for audio
+ * lattices, by seconds.  Each segment starts on a bin boundary and the next segment starts {@code overlap} before the
+ * end of the last one, so a phrase no longer than the overlap that crosses a boundary is whole in one of them.
+ *
+ * Only the position of each token, and its start time for audio lattices, is parsed: the segments are substrings of
+ * the original lattice that are analyzed as usual.
+ */
+final class LatticeSegmenter {
+    // token|pos|rank|score|start_time|stop_time
+    private static final int POS_FIELD = 1;
+    private static final int START_TIME_FIELD = 4;
+
+    private final char fieldDelimiter;
+    private final boolean audio;
+    private final boolean bySeconds;
+    private final float maxLength;
+    private final float overlap;
+
+    /**
+     * @param bySeconds whether {@code maxLength} and {@code overlap} are in seconds rather than positions
+     */
+    LatticeSegmenter(char fieldDelimiter, boolean audio, boolean bySeconds, float maxLength, float overlap) {
+        assert audio || bySeconds == false;
+        assert overlap < maxLength;
+        this.fieldDelimiter = fieldDelimiter;
+        this.audio = audio;
+        this.bySeconds = bySeconds;
+        this.maxLength = maxLength;
+        this.overlap = overlap;
+    }
+
+    static final class Segment {
+        private final int startOffset;
+        private final int endOffset;
+        private final int startPosition;
+        private final float startSeconds;
+
+        Segment(int startOffset, int endOffset, int startPosition, float startSeconds) {
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.startPosition = startPosition;
+            this.startSeconds = startSeconds;
+        }
+
+        /**
+         * @return the offset in the lattice of the first char of this segment
+         */
+        int startOffset() {
+            return startOffset;
+        }
+
+        /**
+         * @return the offset in the lattice just past the last char of this segment
+         */
+        int endOffset() {
+            return endOffset;
+        }
+
+        /**
+         * @return the lattice {@code pos} of the first bin in this segment
+         */
+        int startPosition() {
+            return startPosition;
+        }
+
+        /**
+         * @return the start time of the first bin in this segment, or 0 for non-audio lattices
+         */
+        float startSeconds() {
+            return startSeconds;
+        }
+    }
+
+    List<Segment> segment(String lattice) {
+        int numBins = 0;
+        int[] binOffsets = new int[16];
+        int[] binPositions = new int[16];
+        float[] binSeconds = new float[audio ? 16 : 0];
+        int[] delimiterLocs = new int[START_TIME_FIELD + 1];
+
+        final int len = lattice.length();
+        int i = 0;
+        while (i < len) {
+            while (i < len && Character.isWhitespace(lattice.charAt(i))) {
+                i++;
+            }
+            if (i == len) {
+                break;
+            }
+            final int recordStart = i;
+            int numDelimiters = 0;
+            while (i < len && Character.isWhitespace(lattice.charAt(i)) == false) {
+                if (lattice.charAt(i) == fieldDelimiter && numDelimiters < delimiterLocs.length) {
+                    delimiterLocs[numDelimiters++] = i;
+                }
+                i++;
+            }
+            if (numDelimiters == 0) {
+                // passed through as is by the token filter, it stays with the bin before it
+                continue;
+            }
+            final int pos = parsePosition(lattice, recordStart, i, delimiterLocs, numDelimiters);
+            if (numBins > 0 && binPositions[numBins - 1] == pos) {
+                continue;
+            }
+            binOffsets = ArrayUtil.grow(binOffsets, numBins + 1);
+            binPositions = ArrayUtil.grow(binPositions, numBins + 1);
+            binOffsets[numBins] = numBins == 0 ? 0 : recordStart;
+            binPositions[numBins] = pos;
+            if (audio) {
+                binSeconds = ArrayUtil.grow(binSeconds, numBins + 1);
+                binSeconds[numBins] = parseStartTime(lattice, recordStart, i, delimiterLocs, numDelimiters);
+            }
+            numBins++;
+        }
+
+        if (numBins == 0) {
+            return Collections.singletonList(new Segment(0, len, 0, 0.0f));
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        int first = 0;
+        while (true) {
+            final double end = key(binPositions, binSeconds, first) + maxLength;
+            int last = first + 1;
+            while (last < numBins && key(binPositions, binSeconds, last) < end) {
+                last++;
+            }
+            segments.add(new Segment(binOffsets[first], last < numBins ? binOffsets[last] : len,
+                    binPositions[first], audio ? binSeconds[first] : 0.0f));
+            if (last == numBins) {
+                return segments;
+            }
+            final double nextStart = end - overlap;
+            int next = first + 1;
+            while (next < last && key(binPositions, binSeconds, next) < nextStart) {
+                next++;
+            }
+            first = next;
+        }
+    }
+
+    private double key(int[] binPositions, float[] binSeconds, int bin) {
+        return bySeconds ? binSeconds[bin] : binPositions[bin];
+    }
+
+    private static int parsePosition(String lattice, int start, int end, int[] delimiterLocs, int numDelimiters) {
+        int from = delimiterLocs[POS_FIELD - 1] + 1;
+        int to = numDelimiters > POS_FIELD ? delimiterLocs[POS_FIELD] : end;
+        if (from == to) {
+            throw malformed(lattice, start, end);
+        }
+        int pos = 0;
+        for (int i = from; i < to; i++) {
+            int digit = lattice.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw malformed(lattice, start, end);
+            }
+            pos = pos * 10 + digit;
+        }
+        return pos;
+    }
+
+    private static float parseStartTime(String lattice, int start, int end, int[] delimiterLocs, int numDelimiters) {
+        if (numDelimiters <= START_TIME_FIELD) {
+            throw malformed(lattice, start, end);
+        }
+        try {
+            return Float.parseFloat(lattice.substring(delimiterLocs[START_TIME_FIELD - 1] + 1,
+                    delimiterLocs[START_TIME_FIELD]));
+        } catch (NumberFormatException e) {
+            throw malformed(lattice, start, end);
+        }
+    }
+
+    private static IllegalArgumentException malformed(String lattice, int start, int end) {
+        return new IllegalArgumentException("Failed to parse lattice token: " + lattice.substring(start, end));
+    }
+}
@@ -15,34 +15,62 @@
 package com.eigendomain.eslatticeindex.plugin;
 
 
+import com.eigendomain.eslatticeindex.index.LatticeAnalysisStats;
+import com.eigendomain.eslatticeindex.index.LatticeShingleFilterFactory;
 import com.eigendomain.eslatticeindex.index.LatticeTokenFilterFactory;
-//import com.eigendomain.eslatticeindex.index.LatticeWhiteSpaceTokenizerFactory;
+import com.eigendomain.eslatticeindex.index.LatticeTokenizerFactory;
 import com.eigendomain.eslatticeindex.index.LatticeWhiteSpaceTokenizerFactory;
+import com.eigendomain.eslatticeindex.index.query.LatticeQueryAnalysisCache;
 import com.eigendomain.eslatticeindex.index.query.MatchLatticeQueryBuilder;
 import com.eigendomain.eslatticeindex.mapper.LatticeFieldMapper;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
 import org.elasticsearch.index.analysis.TokenFilterFactory;
 //import org.elasticsearch.index.analysis.TokenizerFactory;
 import org.elasticsearch.index.analysis.TokenizerFactory;
 import org.elasticsearch.index.mapper.Mapper;
 import org.elasticsearch.indices.analysis.AnalysisModule.AnalysisProvider;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.AnalysisPlugin;
 import org.elasticsearch.plugins.MapperPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
 
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.function.Supplier;
 
 import static java.util.Collections.singletonList;
 
 
-public class LatticeIndexPlugin extends Plugin implements AnalysisPlugin, SearchPlugin, MapperPlugin {
+public class LatticeIndexPlugin extends Plugin implements AnalysisPlugin, SearchPlugin, MapperPlugin, ActionPlugin {
+    private final LatticeAnalysisStats analysisStats = new LatticeAnalysisStats();
+    private final LatticeQueryAnalysisCache queryAnalysisCache;
+
+    public LatticeIndexPlugin(Settings settings) {
+        this.queryAnalysisCache = new LatticeQueryAnalysisCache(settings);
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return singletonList(LatticeQueryAnalysisCache.SIZE_SETTING);
+    }
+
     @Override
     public Map<String, AnalysisProvider<TokenFilterFactory>> getTokenFilters() {
         return new HashMap<String, AnalysisProvider<TokenFilterFactory>>(){{
-            put("lattice", LatticeTokenFilterFactory::new);
+            put("lattice", (indexSettings, env, name, settings) ->
+                    new LatticeTokenFilterFactory(indexSettings, env, name, settings, analysisStats));
+            put("lattice_shingle", LatticeShingleFilterFactory::new);
         }};
     }
 
@@ -52,8 +80,8 @@ public class LatticeIndexPlugin extends Plugin implements AnalysisPlugin, Search
         return singletonList(
                 new QuerySpec<>(
                         "match_lattice",
-                        MatchLatticeQueryBuilder::new,
-                        MatchLatticeQueryBuilder::fromXContent)
+                        in -> new MatchLatticeQueryBuilder(in).analysisCache(queryAnalysisCache),
+                        parser -> MatchLatticeQueryBuilder.fromXContent(parser).analysisCache(queryAnalysisCache))
         );
     }
 
@@ -62,10 +90,37 @@ public class LatticeIndexPlugin extends Plugin implements AnalysisPlugin, Search
         return Collections.singletonMap(LatticeFieldMapper.CONTENT_TYPE, new LatticeFieldMapper.TypeParser());
     }
 
-    // TODO This exists only so that we can use a whitespace tokenizer in itests.  Apparently  the
-    //   analysis-common module is not accessible during the rest-api-spec tests?
     @Override
     public Map<String, AnalysisProvider<TokenizerFactory>> getTokenizers() {
-        return Collections.singletonMap("lattice_whitespace", LatticeWhiteSpaceTokenizerFactory::new);
+        return new HashMap<String, AnalysisProvider<TokenizerFactory>>(){{
+            put("lattice", (indexSettings, env, name, settings) ->
+                    new LatticeTokenizerFactory(indexSettings, env, name, settings, analysisStats));
+            // TODO This exists only so that we can use a whitespace tokenizer in itests.  Apparently  the
+            //   analysis-common module is not accessible during the rest-api-spec tests?
+            put("lattice_whitespace", LatticeWhiteSpaceTokenizerFactory::new);
+        }};
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController,
+                                             ClusterSettings clusterSettings, IndexScopedSettings indexScopedSettings,
+                                             SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return singletonList(new RestLatticeStatsAction(settings, restController, analysisStats, queryAnalysisCache));
+    }
+
+    /**
+     * @return the counters shared by this node's lattice filters and tokenizers
+     */
+    public LatticeAnalysisStats analysisStats() {
+        return analysisStats;
+    }
+
+    /**
+     * @return the cache of analyzed match_lattice query text shared by this node's shards
+     */
+    public LatticeQueryAnalysisCache queryAnalysisCache() {
+        return queryAnalysisCache;
     }
 }
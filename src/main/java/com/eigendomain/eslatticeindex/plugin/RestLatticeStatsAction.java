@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.plugin;
+
+import com.eigendomain.eslatticeindex.index.LatticeAnalysisStats;
+import com.eigendomain.eslatticeindex.index.query.LatticeQueryAnalysisCache;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * {@code GET _lattice/stats} reports the lattice plugin's counters for the node that receives the request.
+ */
+public class RestLatticeStatsAction extends BaseRestHandler {
+    private final LatticeAnalysisStats analysisStats;
+    private final LatticeQueryAnalysisCache queryAnalysisCache;
+
+    public RestLatticeStatsAction(Settings settings, RestController controller, LatticeAnalysisStats analysisStats,
+                                  LatticeQueryAnalysisCache queryAnalysisCache) {
+        super(settings);
+        this.analysisStats = analysisStats;
+        this.queryAnalysisCache = queryAnalysisCache;
+        controller.registerHandler(GET, "/_lattice/stats", this);
+    }
+
+    @Override
+    public String getName() {
+        return "lattice_stats_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        return channel -> {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            analysisStats.toXContent(builder, request);
+            queryAnalysisCache.toXContent(builder, request);
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+        };
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.benchmark;
+
+import com.eigendomain.eslatticeindex.plugin.LatticeIndexPlugin;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.analysis.AnalysisTestsHelper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * The lattices the microbenchmarks index, generated as the {@code test_scripts} benchmarks generate them, and an
+ * index of them analyzed by the plugin's {@code lattice} tokenizer
+ */
+final class BenchmarkLattices {
+
+    static final String FIELD = "lattices";
+    static final String TOKENIZER_SETTINGS = "index.analysis.tokenizer.lat_tok.";
+
+    private static final String[] WORDS =
+            "the quick brown fox jumped over lazy dog box brick sat on mat cat hat a an to of and".split(" ");
+
+    private BenchmarkLattices() {
+    }
+
+    /**
+     * @return confusion networks of {@code numPositions} positions, each of 1 to 4 arcs whose scores sum to about 1
+     */
+    static List<String> generate(int numDocs, int numPositions) {
+        Random random = new Random(42);
+        List<String> docs = new ArrayList<>(numDocs);
+        for (int d = 0; d < numDocs; d++) {
+            StringBuilder lattice = new StringBuilder();
+            for (int p = 0; p < numPositions; p++) {
+                appendPosition(random, p, lattice);
+            }
+            docs.add(lattice.toString());
+        }
+        return docs;
+    }
+
+    /**
+     * Appends the arcs of one position of a generated lattice
+     */
+    static void appendPosition(Random random, int position, StringBuilder lattice) {
+        int arcs = 1 + random.nextInt(4);
+        float remaining = 1.0f;
+        for (int rank = 0; rank < arcs; rank++) {
+            float score = rank == arcs - 1 ? remaining : remaining * random.nextFloat();
+            remaining -= score;
+            lattice.append(WORDS[random.nextInt(WORDS.length)]).append('|').append(position).append('|')
+                    .append(rank).append('|').append(String.format(Locale.ROOT, "%.4f", score)).append(' ');
+        }
+    }
+
+    /**
+     * @param tokenizerSettings settings of the {@code lattice} tokenizer, under {@link #TOKENIZER_SETTINGS}
+     * @return an analyzer of just the {@code lattice} tokenizer
+     */
+    @SuppressForbidden(reason = "benchmarks run outside of the test framework, which has no temp dirs to offer")
+    static Analyzer analyzer(Settings tokenizerSettings) throws IOException {
+        Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(Environment.PATH_HOME_SETTING.getKey(), Files.createTempDirectory("lattice-benchmark"))
+                .put("index.analysis.analyzer.lat_ana.type", "custom")
+                .put("index.analysis.analyzer.lat_ana.tokenizer", "lat_tok")
+                .put(TOKENIZER_SETTINGS + "type", "lattice")
+                .put(tokenizerSettings)
+                .build();
+        return AnalysisTestsHelper.createTestAnalysisFromSettings(settings, new LatticeIndexPlugin(Settings.EMPTY))
+                .indexAnalyzers.get("lat_ana");
+    }
+
+    /**
+     * @return a directory in a new temp dir, which {@link #delete} removes
+     */
+    @SuppressForbidden(reason = "benchmarks run outside of the test framework, which has no temp dirs to offer")
+    static FSDirectory newDirectory() throws IOException {
+        return FSDirectory.open(Files.createTempDirectory("lattice-benchmark-index"));
+    }
+
+    static void delete(FSDirectory directory) throws IOException {
+        Path path = directory.getDirectory();
+        directory.close();
+        IOUtils.rm(path);
+    }
+
+    /**
+     * Indexes {@code docs} into {@link #FIELD} of {@code directory}, without norms
+     */
+    static void index(Directory directory, Analyzer analyzer, IndexOptions indexOptions, List<String> docs)
+            throws IOException {
+        FieldType fieldType = new FieldType();
+        fieldType.setTokenized(true);
+        fieldType.setOmitNorms(true);
+        fieldType.setIndexOptions(indexOptions);
+        fieldType.freeze();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(analyzer))) {
+            for (String lattice : docs) {
+                Document doc = new Document();
+                doc.add(new Field(FIELD, lattice, fieldType));
+                writer.addDocument(doc);
+            }
+        }
+    }
+
+    static void forceMerge(Directory directory) throws IOException {
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+            writer.forceMerge(1);
+        }
+    }
+
+    static long sizeInBytes(Directory directory) throws IOException {
+        long size = 0;
+        for (String file : directory.listAll()) {
+            size += directory.fileLength(file);
+        }
+        return size;
+    }
+}
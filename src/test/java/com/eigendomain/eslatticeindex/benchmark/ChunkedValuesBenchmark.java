@@ -0,0 +1,181 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.benchmark;
+
+import com.eigendomain.eslatticeindex.plugin.LatticeIndexPlugin;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.compress.CompressedXContent;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AnalysisTestsHelper;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.mapper.ParsedDocument;
+import org.elasticsearch.index.mapper.SourceToParse;
+import org.elasticsearch.index.similarity.SimilarityService;
+import org.elasticsearch.indices.IndicesModule;
+import org.elasticsearch.test.IndexSettingsModule;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses and indexes large generated lattice documents through the {@code lattice} field mapper, first as a single
+ * string value and then as an array of chunks with {@code chunked_values}, as
+ * {@code test_scripts/bench_chunked_values.sh} does against a cluster.  Prints the docs/sec of each and the peak heap
+ * used while it runs, above the heap used before it starts, which includes the document source.  The heap is
+ * sampled, so run it with a heap small enough to be collected often, or with decreasing {@code -Xmx} to find the
+ * smallest heap each can index in.
+ *
+ * usage: ChunkedValuesBenchmark [num_docs] [doc_mb] [chunk_kb] [single|chunked|both]
+ */
+@SuppressForbidden(reason = "prints the results")
+public final class ChunkedValuesBenchmark {
+
+    private static final String TYPE = "type";
+
+    private ChunkedValuesBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int docMb = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int chunkKb = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        String modes = args.length > 3 ? args[3] : "both";
+        System.out.println(numDocs + " docs of " + docMb + "MB, " + chunkKb + "KB chunks, "
+                + Runtime.getRuntime().maxMemory() / 1048576 + "MB max heap");
+        if (modes.equals("chunked") == false) {
+            bench("single", false, numDocs, docMb, chunkKb);
+        }
+        if (modes.equals("single") == false) {
+            bench("chunked", true, numDocs, docMb, chunkKb);
+        }
+    }
+
+    private static void bench(String name, boolean chunked, int numDocs, int docMb, int chunkKb) throws IOException {
+        MapperService mapperService = mapperService();
+        DocumentMapper mapper = mapperService.merge(TYPE, new CompressedXContent(Strings.toString(
+                XContentFactory.jsonBuilder().startObject().startObject(TYPE).startObject("properties")
+                        .startObject(BenchmarkLattices.FIELD)
+                        .field("type", "lattice")
+                        .field("analyzer", "lat_ana")
+                        .field("chunked_values", chunked)
+                        .endObject()
+                        .endObject().endObject().endObject())), MapperService.MergeReason.MAPPING_UPDATE);
+        BytesReference source = source(chunked, docMb * 1048576, chunkKb * 1024);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        memory.gc();
+        long before = memory.getHeapMemoryUsage().getUsed();
+        AtomicLong peak = new AtomicLong(before);
+        Thread sampler = new Thread(() -> {
+            while (Thread.currentThread().isInterrupted() == false) {
+                peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.start();
+
+        FSDirectory directory = BenchmarkLattices.newDirectory();
+        long start = System.nanoTime();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(mapperService.indexAnalyzer()))) {
+            for (int d = 0; d < numDocs; d++) {
+                ParsedDocument doc = mapper.parse(new SourceToParse("bench", TYPE, Integer.toString(d), source,
+                        XContentType.JSON));
+                writer.addDocuments(doc.docs());
+            }
+            writer.commit();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        sampler.interrupt();
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        BenchmarkLattices.delete(directory);
+        mapperService.close();
+        System.out.println(String.format(Locale.ROOT, "%-16s %8.2f docs/sec %10.1f MB peak heap above %.1f MB", name,
+                numDocs / seconds, (peak.get() - before) / 1048576.0, before / 1048576.0));
+    }
+
+    /**
+     * @return a document of one generated lattice of about {@code bytes}, as one string or as chunks of about
+     * {@code chunkBytes}
+     */
+    private static BytesReference source(boolean chunked, int bytes, int chunkBytes) throws IOException {
+        Random random = new Random(42);
+        List<String> chunks = new ArrayList<>();
+        StringBuilder chunk = new StringBuilder();
+        int written = 0;
+        for (int p = 0; written < bytes; p++) {
+            int length = chunk.length();
+            BenchmarkLattices.appendPosition(random, p, chunk);
+            written += chunk.length() - length;
+            if (chunked && chunk.length() >= chunkBytes) {
+                chunks.add(chunk.toString());
+                chunk.setLength(0);
+            }
+        }
+        chunks.add(chunk.toString());
+        XContentBuilder doc = XContentFactory.jsonBuilder().startObject();
+        if (chunked) {
+            doc.array(BenchmarkLattices.FIELD, chunks.toArray(new String[0]));
+        } else {
+            doc.field(BenchmarkLattices.FIELD, chunks.get(0));
+        }
+        return BytesReference.bytes(doc.endObject());
+    }
+
+    @SuppressForbidden(reason = "benchmarks run outside of the test framework, which has no temp dirs to offer")
+    private static MapperService mapperService() throws IOException {
+        Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(Environment.PATH_HOME_SETTING.getKey(), Files.createTempDirectory("lattice-benchmark"))
+                .put("index.analysis.analyzer.lat_ana.type", "custom")
+                .put("index.analysis.analyzer.lat_ana.tokenizer", "lattice")
+                .build();
+        LatticeIndexPlugin plugin = new LatticeIndexPlugin(Settings.EMPTY);
+        IndexSettings indexSettings = IndexSettingsModule.newIndexSettings("bench", settings);
+        return new MapperService(indexSettings, AnalysisTestsHelper.createTestAnalysisFromSettings(settings, plugin)
+                .indexAnalyzers, NamedXContentRegistry.EMPTY, new SimilarityService(indexSettings, null,
+                Collections.emptyMap()), new IndicesModule(Collections.singletonList(plugin)).getMapperRegistry(),
+                () -> null);
+    }
+}
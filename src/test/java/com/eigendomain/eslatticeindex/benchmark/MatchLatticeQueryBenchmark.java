@@ -0,0 +1,165 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.benchmark;
+
+import com.eigendomain.eslatticeindex.index.LatticePayloadEncoding;
+import com.eigendomain.eslatticeindex.index.query.FloatDecoder;
+import com.eigendomain.eslatticeindex.index.query.LatticePayloadDecoder;
+import com.eigendomain.eslatticeindex.index.query.LatticePayloadScoreFunction;
+import com.eigendomain.eslatticeindex.index.query.LatticePhraseQuery;
+import com.eigendomain.eslatticeindex.index.query.LatticeTermPayloadQuery;
+import com.eigendomain.eslatticeindex.index.query.MatchLatticeQueryBuilder;
+import com.sun.management.ThreadMXBean;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.payloads.PayloadDecoder;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.FSDirectory;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Indexes the same generated lattices with several {@code payload_encoding}s and times the payload scoring queries
+ * {@code match_lattice} builds for the queries of {@code test_scripts/bench_match_lattice.sh}, with a slop of 2 and
+ * the {@code sum} function: a single term is scored from its postings by {@link LatticeTermPayloadQuery}, and a phrase
+ * by {@link LatticePhraseQuery}, in order and with {@code in_order} false.  Each set of queries is run once to warm up,
+ * then timed over several runs.  Prints the mean time per query with its standard deviation across runs and its
+ * fastest run, the bytes allocated by the searching thread per query, where the script can only count young GCs, and
+ * the mean time of each query.
+ *
+ * The encodings share the decoding call sites, so the JIT compiles them for every encoding run before; to compare
+ * encodings rather than their order, run each in its own JVM.
+ *
+ * usage: MatchLatticeQueryBenchmark [num_docs] [positions_per_doc] [queries_per_run] [num_runs] [encoding,...]
+ */
+@SuppressForbidden(reason = "prints the results")
+public final class MatchLatticeQueryBenchmark {
+
+    private static final String[] TERMS = {"fox", "quick"};
+    private static final String[] PHRASES = {"quick fox", "the lazy dog", "brown fox jumped"};
+    private static final int SLOP = 2;
+
+    private MatchLatticeQueryBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int numPositions = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int numRuns = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        String[] encodings = (args.length > 4 ? args[4] : "float,linear_8,log_8").split(",");
+        List<String> docs = BenchmarkLattices.generate(numDocs, numPositions);
+        System.out.println(numDocs + " docs, " + numPositions + " positions per doc, " + numQueries
+                + " queries per run, " + numRuns + " runs");
+        for (String encoding : encodings) {
+            bench(encoding, docs, numQueries, numRuns);
+        }
+    }
+
+    private static void bench(String encoding, List<String> docs, int numQueries, int numRuns) throws IOException {
+        Analyzer analyzer = BenchmarkLattices.analyzer(Settings.builder()
+                .put(BenchmarkLattices.TOKENIZER_SETTINGS + "payload_encoding", encoding)
+                .build());
+        FSDirectory directory = BenchmarkLattices.newDirectory();
+        BenchmarkLattices.index(directory, analyzer, IndexOptions.DOCS_AND_FREQS_AND_POSITIONS, docs);
+        BenchmarkLattices.forceMerge(directory);
+
+        LatticePayloadEncoding payloadEncoding = LatticePayloadEncoding.fromString(encoding);
+        PayloadDecoder decoder = payloadEncoding == LatticePayloadEncoding.FLOAT ? new FloatDecoder(1.0f)
+                : new LatticePayloadDecoder(payloadEncoding);
+        MatchLatticeQueryBuilder builder = new MatchLatticeQueryBuilder(BenchmarkLattices.FIELD, "")
+                .payloadFuncString("sum");
+        LatticePayloadScoreFunction function = builder.payloadFunction();
+        boolean includeSpanScore = builder.includeSpanScore();
+        Query[] terms = new Query[TERMS.length];
+        for (int i = 0; i < TERMS.length; i++) {
+            terms[i] = new LatticeTermPayloadQuery(new Term(BenchmarkLattices.FIELD, TERMS[i]), function, decoder,
+                    includeSpanScore);
+        }
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            searcher.setQueryCache(null);
+            time(searcher, encoding + " term", TERMS, terms, numQueries, numRuns);
+            time(searcher, encoding + " in_order", PHRASES, phrases(function, decoder, includeSpanScore, true),
+                    numQueries, numRuns);
+            time(searcher, encoding + " unordered", PHRASES, phrases(function, decoder, includeSpanScore, false),
+                    numQueries, numRuns);
+        }
+        BenchmarkLattices.delete(directory);
+    }
+
+    private static Query[] phrases(LatticePayloadScoreFunction function, PayloadDecoder decoder,
+                                   boolean includeSpanScore, boolean inOrder) {
+        Query[] queries = new Query[PHRASES.length];
+        for (int i = 0; i < PHRASES.length; i++) {
+            String[] words = PHRASES[i].split(" ");
+            Term[] terms = new Term[words.length];
+            for (int w = 0; w < words.length; w++) {
+                terms[w] = new Term(BenchmarkLattices.FIELD, words[w]);
+            }
+            queries[i] = new LatticePhraseQuery(terms, SLOP, inOrder, function, decoder, includeSpanScore, 0.0f);
+        }
+        return queries;
+    }
+
+    private static void time(IndexSearcher searcher, String name, String[] texts, Query[] queries, int numQueries,
+                             int numRuns) throws IOException {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        // warms up as many queries as a timed run
+        for (int q = 0; q < numQueries; q++) {
+            searcher.search(queries[q % queries.length], 10);
+        }
+        double[] microsPerQuery = new double[numRuns];
+        long[] nanosPerText = new long[queries.length];
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        for (int r = 0; r < numRuns; r++) {
+            long start = System.nanoTime();
+            for (int q = 0; q < numQueries; q++) {
+                long queryStart = System.nanoTime();
+                searcher.search(queries[q % queries.length], 10);
+                nanosPerText[q % queries.length] += System.nanoTime() - queryStart;
+            }
+            microsPerQuery[r] = (System.nanoTime() - start) / 1e3 / numQueries;
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        double mean = 0;
+        double min = Double.MAX_VALUE;
+        for (double micros : microsPerQuery) {
+            mean += micros / numRuns;
+            min = Math.min(min, micros);
+        }
+        double variance = 0;
+        for (double micros : microsPerQuery) {
+            variance += (micros - mean) * (micros - mean) / Math.max(1, numRuns - 1);
+        }
+        StringBuilder perQuery = new StringBuilder();
+        for (int i = 0; i < queries.length; i++) {
+            long runs = (long) numRuns * (numQueries / queries.length + (i < numQueries % queries.length ? 1 : 0));
+            perQuery.append(String.format(Locale.ROOT, "  \"%s\" %.0f", texts[i], nanosPerText[i] / 1e3 / runs));
+        }
+        System.out.println(String.format(Locale.ROOT, "%-20s %8.1f +- %6.1f us/query (min %8.1f) %8.1f KB/query%s",
+                name, mean, Math.sqrt(variance), min, allocated / 1024.0 / numQueries / numRuns, perQuery));
+    }
+}
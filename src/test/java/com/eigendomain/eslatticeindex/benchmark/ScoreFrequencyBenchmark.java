@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.benchmark;
+
+import com.eigendomain.eslatticeindex.index.query.FloatDecoder;
+import com.eigendomain.eslatticeindex.index.query.LatticeTermPayloadQuery;
+import com.eigendomain.eslatticeindex.index.query.MatchLatticeQueryBuilder;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Indexes the same generated lattices with {@code score_frequency_mode} {@code duplicate} and {@code term_frequency},
+ * as {@code test_scripts/bench_score_frequency.sh} does against a cluster, and prints the docs/sec, force merged
+ * index size and mean single term query time of each.  A {@code duplicate} field with positions is queried as
+ * {@code match_lattice} queries it, by payloads.  A {@code duplicate} field indexed with {@code freqs}, like a
+ * {@code term_frequency} one, is queried with the plain term query {@code match_lattice} falls back to, so those two
+ * compare like for like.  The
+ * lattices are analyzed by the {@code lattice} tokenizer alone, without the script's {@code lowercase} and
+ * {@code porter_stem} filters, which are in a module the tests don't load; follow-on filters add to the cost of each
+ * duplicate.
+ *
+ * usage: ScoreFrequencyBenchmark [num_docs] [positions_per_doc] [num_queries]
+ */
+@SuppressForbidden(reason = "prints the results")
+public final class ScoreFrequencyBenchmark {
+
+    private static final String[] BUCKETS =
+            {"0.9", "72", "0.8", "64", "0.7", "56", "0.6", "48", "0.5", "40", "0.4", "32", "0.2", "16", "0.1", "8",
+                    "0.01", "2"};
+    private static final String[] QUERIES = {"the", "fox", "quick", "lazy", "and"};
+
+    private ScoreFrequencyBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int numPositions = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        List<String> docs = BenchmarkLattices.generate(numDocs, numPositions);
+        System.out.println(numDocs + " docs, " + numPositions + " positions per doc, " + numQueries + " queries");
+        bench("duplicate", "duplicate", IndexOptions.DOCS_AND_FREQS_AND_POSITIONS, docs, numQueries);
+        bench("duplicate freqs", "duplicate", IndexOptions.DOCS_AND_FREQS, docs, numQueries);
+        bench("term_frequency", "term_frequency", IndexOptions.DOCS_AND_FREQS, docs, numQueries);
+    }
+
+    private static void bench(String name, String mode, IndexOptions indexOptions, List<String> docs, int numQueries)
+            throws IOException {
+        Analyzer analyzer = BenchmarkLattices.analyzer(Settings.builder()
+                .putList(BenchmarkLattices.TOKENIZER_SETTINGS + "score_buckets", BUCKETS)
+                .put(BenchmarkLattices.TOKENIZER_SETTINGS + "score_frequency_mode", mode)
+                .build());
+        FSDirectory directory = BenchmarkLattices.newDirectory();
+        long start = System.nanoTime();
+        BenchmarkLattices.index(directory, analyzer, indexOptions, docs);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        BenchmarkLattices.forceMerge(directory);
+
+        Query[] queries = new Query[QUERIES.length];
+        MatchLatticeQueryBuilder builder = new MatchLatticeQueryBuilder(BenchmarkLattices.FIELD, "");
+        for (int i = 0; i < queries.length; i++) {
+            Term term = new Term(BenchmarkLattices.FIELD, QUERIES[i]);
+            queries[i] = indexOptions == IndexOptions.DOCS_AND_FREQS ? new TermQuery(term)
+                    : new LatticeTermPayloadQuery(term, builder.payloadFunction(), new FloatDecoder(1.0f),
+                    builder.includeSpanScore());
+        }
+        double micros;
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            searcher.setQueryCache(null);
+            for (int q = 0; q < 200; q++) {
+                searcher.search(queries[q % queries.length], 10);
+            }
+            long queryStart = System.nanoTime();
+            for (int q = 0; q < numQueries; q++) {
+                searcher.search(queries[q % queries.length], 10);
+            }
+            micros = (System.nanoTime() - queryStart) / 1e3 / numQueries;
+        }
+        System.out.println(String.format(Locale.ROOT, "%-16s %10.1f docs/sec %10.1f MB %10.1f us/query", name,
+                docs.size() / seconds, BenchmarkLattices.sizeInBytes(directory) / 1048576.0, micros));
+        BenchmarkLattices.delete(directory);
+    }
+}
@@ -40,7 +40,7 @@ public class AudioLatticeTokenPartsTests extends ESTestCase {
         Assert.assertEquals(0, parts.tokenLen());
         Assert.assertEquals(0, parts.pos());
         Assert.assertEquals(0, parts.rank());
-        Assert.assertNull(parts.score());
+        Assert.assertEquals(0.0f, parts.score(), 0.0f);
         Assert.assertNull(parts.encodedScore());
         Assert.assertEquals(0.0, parts.startTime(), 0.0001);
         Assert.assertEquals(0.0, parts.stopTime(), 0.0001);
@@ -14,10 +14,13 @@
 
 package com.eigendomain.eslatticeindex.index;
 
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.test.ESTestCase;
 import org.junit.Assert;
 
 import java.io.IOException;
+import java.util.Locale;
 
 public class BaseLatticeTokenPartsTests extends ESTestCase {
 
@@ -38,7 +41,7 @@ public class BaseLatticeTokenPartsTests extends ESTestCase {
         Assert.assertEquals(0, parts.tokenLen());
         Assert.assertEquals(0, parts.pos());
         Assert.assertEquals(0, parts.rank());
-        Assert.assertNull(parts.score());
+        Assert.assertEquals(0.0f, parts.score(), 0.0f);
         Assert.assertNull(parts.encodedScore());
     }
 
@@ -63,4 +66,77 @@ public class BaseLatticeTokenPartsTests extends ESTestCase {
 
         Assert.assertEquals(1, curr.positionIncrement(last));
     }
+
+    public void testParseReusesBuffers() throws IOException {
+        BaseLatticeTokenParts parts = new BaseLatticeTokenParts('|');
+        char[] token = "quick|1|0|0.9".toCharArray();
+        parts.parseToken(token, token.length);
+        char[] tokenBuffer = parts.tokenBuffer();
+        BytesRef payload = parts.encodedScore();
+
+        token = "fox|2|1|0.25".toCharArray();
+        parts.parseToken(token, token.length);
+        Assert.assertSame(tokenBuffer, parts.tokenBuffer());
+        Assert.assertSame(payload, parts.encodedScore());
+        Assert.assertEquals("fox", parts.token());
+        Assert.assertEquals(2, parts.pos());
+        Assert.assertEquals(1, parts.rank());
+        Assert.assertArrayEquals(PayloadHelper.encodeFloat(0.25f),
+                BytesRef.deepCopyOf(parts.encodedScore()).bytes);
+    }
+
+    public void testParseFloatMatchesJdk() {
+        String[] values = new String[]{"0", "1", "0.5", "1.0", ".5", "5.", "-0.0", "+0.25", "0.1", "0.01", "0.3",
+                "0.333333333", "0.1234567", "16777216", "16777217", "0.00000000001", "1e-5", "1.5E3", "NaN",
+                "0.99999994", "0.0000001", "3.4028235e38"};
+        for (String value : values) {
+            assertParseFloat(value);
+        }
+        for (int i = 0; i < 10000; i++) {
+            String value;
+            switch (randomIntBetween(0, 2)) {
+                case 0:
+                    value = Float.toString(randomFloat());
+                    break;
+                case 1:
+                    value = String.format(Locale.ROOT, "%." + randomIntBetween(0, 12) + "f", randomDouble());
+                    break;
+                default:
+                    value = randomIntBetween(0, 99999) + "." + randomNumericString(randomIntBetween(1, 10));
+            }
+            assertParseFloat(value);
+        }
+    }
+
+    public void testParseIntegerMatchesJdk() {
+        String[] values = new String[]{"0", "7", "-7", "+7", "0042", "2147483647", "-2147483648"};
+        for (String value : values) {
+            char[] buf = ("x" + value + "|").toCharArray();
+            Assert.assertEquals(value, Integer.parseInt(value), BaseLatticeTokenParts.parseInteger(buf, 1, buf.length - 1));
+        }
+        for (int i = 0; i < 1000; i++) {
+            String value = Integer.toString(randomInt());
+            char[] buf = value.toCharArray();
+            Assert.assertEquals(value, Integer.parseInt(value), BaseLatticeTokenParts.parseInteger(buf, 0, buf.length));
+        }
+        for (String value : new String[]{"", "-", "2147483648", "12a", "1.5"}) {
+            char[] buf = value.toCharArray();
+            expectThrows(NumberFormatException.class, () -> BaseLatticeTokenParts.parseInteger(buf, 0, buf.length));
+        }
+    }
+
+    private static String randomNumericString(int len) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            builder.append(randomIntBetween(0, 9));
+        }
+        return builder.toString();
+    }
+
+    private static void assertParseFloat(String value) {
+        char[] buf = ("x" + value + "|").toCharArray();
+        float expected = Float.parseFloat(value);
+        float actual = BaseLatticeTokenParts.parseFloat(buf, 1, buf.length - 1);
+        Assert.assertEquals(value, Float.floatToRawIntBits(expected), Float.floatToRawIntBits(actual));
+    }
 }
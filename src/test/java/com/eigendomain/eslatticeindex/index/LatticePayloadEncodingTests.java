@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index;
+
+import org.elasticsearch.test.ESTestCase;
+
+public class LatticePayloadEncodingTests extends ESTestCase {
+    public void testNumBytes() {
+        assertEquals(4, LatticePayloadEncoding.FLOAT.numBytes());
+        assertEquals(1, LatticePayloadEncoding.LINEAR_8.numBytes());
+        assertEquals(2, LatticePayloadEncoding.LINEAR_16.numBytes());
+        assertEquals(1, LatticePayloadEncoding.LOG_8.numBytes());
+        assertEquals(2, LatticePayloadEncoding.LOG_16.numBytes());
+        assertEquals(4, LatticePayloadEncoding.LOG_FLOAT.numBytes());
+    }
+
+    public void testFromString() {
+        for (LatticePayloadEncoding encoding : LatticePayloadEncoding.values()) {
+            assertSame(encoding, LatticePayloadEncoding.fromString(encoding.getName()));
+        }
+        assertSame(LatticePayloadEncoding.LOG_8, LatticePayloadEncoding.fromString("LOG_8"));
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> LatticePayloadEncoding.fromString("int8"));
+        assertEquals("Invalid payload encoding 'int8'", e.getMessage());
+    }
+
+    public void testLinearErrorBound() {
+        for (LatticePayloadEncoding encoding : new LatticePayloadEncoding[]{
+                LatticePayloadEncoding.LINEAR_8, LatticePayloadEncoding.LINEAR_16}) {
+            byte[] bytes = new byte[encoding.numBytes() + 1];
+            int offset = randomIntBetween(0, 1);
+            for (int i = 0; i < 1000; i++) {
+                float score = randomFrom(0.0f, 1.0f, randomFloat());
+                encoding.encode(score, bytes, offset);
+                assertEquals(encoding + " " + score, score, encoding.decode(bytes, offset), encoding.maxError() + 0.0000001f);
+            }
+            encoding.encode(0.0f, bytes, offset);
+            assertEquals(0.0f, encoding.decode(bytes, offset), 0.0f);
+            encoding.encode(1.0f, bytes, offset);
+            assertEquals(1.0f, encoding.decode(bytes, offset), 0.0f);
+            encoding.encode(2.5f, bytes, offset);
+            assertEquals(1.0f, encoding.decode(bytes, offset), 0.0f);
+            encoding.encode(-1.0f, bytes, offset);
+            assertEquals(0.0f, encoding.decode(bytes, offset), 0.0f);
+        }
+        assertEquals(0.00196f, LatticePayloadEncoding.LINEAR_8.maxError(), 0.00001f);
+        assertEquals(0.0000077f, LatticePayloadEncoding.LINEAR_16.maxError(), 0.0000001f);
+    }
+
+    public void testLinearLogTables() {
+        for (LatticePayloadEncoding encoding : new LatticePayloadEncoding[]{
+                LatticePayloadEncoding.LINEAR_8, LatticePayloadEncoding.LINEAR_16}) {
+            assertTrue(encoding.fastLog());
+            byte[] bytes = new byte[encoding.numBytes() + 1];
+            int offset = randomIntBetween(0, 1);
+            for (int i = 0; i < 1000; i++) {
+                encoding.encode(randomFrom(0.0f, 1.0f, randomFloat()), bytes, offset);
+                assertEquals((float) Math.log(encoding.decode(bytes, offset)), encoding.decodeLog(bytes, offset), 0.0f);
+            }
+        }
+        assertFalse(LatticePayloadEncoding.FLOAT.fastLog());
+        assertTrue(LatticePayloadEncoding.LOG_8.fastLog());
+    }
+
+    public void testLogErrorBound() {
+        float minScore = (float) Math.exp(-16);
+        for (LatticePayloadEncoding encoding : new LatticePayloadEncoding[]{
+                LatticePayloadEncoding.LOG_8, LatticePayloadEncoding.LOG_16}) {
+            byte[] bytes = new byte[encoding.numBytes()];
+            for (int i = 0; i < 1000; i++) {
+                float score = randomBoolean() ? randomFloat() : (float) Math.exp(-16 * randomDouble());
+                if (score < minScore) {
+                    continue;
+                }
+                encoding.encode(score, bytes, 0);
+                float decoded = encoding.decode(bytes, 0);
+                // allow for the float rounding of the decoded score
+                assertEquals(encoding + " " + score, 1.0f, decoded / score, encoding.maxError() + 0.000002f);
+            }
+            encoding.encode(1.0f, bytes, 0);
+            assertEquals(1.0f, encoding.decode(bytes, 0), 0.0f);
+            encoding.encode(0.0f, bytes, 0);
+            assertEquals(minScore, encoding.decode(bytes, 0), minScore * 0.0001f);
+        }
+        assertEquals(0.032f, LatticePayloadEncoding.LOG_8.maxError(), 0.0005f);
+        assertEquals(0.000122f, LatticePayloadEncoding.LOG_16.maxError(), 0.000001f);
+    }
+
+    public void testLogDomain() {
+        assertFalse(LatticePayloadEncoding.FLOAT.logDomain());
+        assertFalse(LatticePayloadEncoding.LINEAR_8.logDomain());
+        assertFalse(LatticePayloadEncoding.LINEAR_16.logDomain());
+        assertTrue(LatticePayloadEncoding.LOG_8.logDomain());
+        assertTrue(LatticePayloadEncoding.LOG_16.logDomain());
+        assertTrue(LatticePayloadEncoding.LOG_FLOAT.logDomain());
+
+        byte[] bytes = new byte[4];
+        for (LatticePayloadEncoding encoding : LatticePayloadEncoding.values()) {
+            for (int i = 0; i < 100; i++) {
+                float score = randomFloat() + (float) Math.exp(-16);
+                encoding.encode(score, bytes, 0);
+                assertEquals(encoding + " " + score,
+                        Math.log(encoding.decode(bytes, 0)), encoding.decodeLog(bytes, 0), 0.00001);
+            }
+        }
+
+        for (int i = 0; i < 100; i++) {
+            float score = randomFloat() + (float) Math.exp(-16);
+            LatticePayloadEncoding.LOG_FLOAT.encode(score, bytes, 0);
+            assertEquals((float) Math.log(score), LatticePayloadEncoding.LOG_FLOAT.decodeLog(bytes, 0), 0.0f);
+        }
+        LatticePayloadEncoding.LOG_FLOAT.encode(0.0f, bytes, 0);
+        assertEquals(-16.0f, LatticePayloadEncoding.LOG_FLOAT.decodeLog(bytes, 0), 0.0f);
+    }
+
+    public void testQuantizedEncodingsPreserveOrder() {
+        for (LatticePayloadEncoding encoding : LatticePayloadEncoding.values()) {
+            byte[] bytes = new byte[encoding.numBytes()];
+            float a = randomFloat();
+            float b = randomFloat();
+            encoding.encode(Math.min(a, b), bytes, 0);
+            float lo = encoding.decode(bytes, 0);
+            encoding.encode(Math.max(a, b), bytes, 0);
+            float hi = encoding.decode(bytes, 0);
+            assertTrue(encoding + " " + a + " " + b, lo <= hi);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index;
+
+import com.eigendomain.eslatticeindex.plugin.LatticeIndexPlugin;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.analysis.AnalysisTestsHelper;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.test.ESTestCase.TestAnalysis;
+import org.elasticsearch.test.ESTokenStreamTestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.test.ESTestCase.randomFloat;
+import static org.elasticsearch.test.ESTestCase.randomIntBetween;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+
+public class LatticeShingleFilterTests extends ESTokenStreamTestCase {
+    public void testShinglesOfAdjacentBins() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.lat.type", "lattice")
+                .put("index.analysis.filter.lat.score_buckets", "0.8, 2")
+                .put("index.analysis.filter.shingles.type", "lattice_shingle")
+                .put("index.analysis.filter.shingles.min_path_score", 0.3f)
+                .build();
+        TestAnalysis analysis = createAnalyzer(settings);
+        TokenFilterFactory shingles = analysis.tokenFilter.get("shingles");
+        assertThat(shingles, instanceOf(LatticeShingleFilterFactory.class));
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        // the is duplicated by its score bucket, but its paths are only emitted once
+        tokenizer.setReader(new StringReader("the|0|0|0.9 quick|1|0|0.5 brick|1|1|0.4 fox|2|0|0.7"));
+        try (TokenStream in = shingles.create(analysis.tokenFilter.get("lat").create(tokenizer))) {
+            assertTokenStreamContents(
+                    in,
+                    new String[]{"the quick", "the quick fox", "the brick", "quick fox"},
+                    null,
+                    null,
+                    null,
+                    new int[]{1, 0, 0, 1},
+                    null,
+                    null,
+                    null,
+                    null,
+                    true,
+                    new byte[][]{
+                            PayloadHelper.encodeFloat(0.9f * 0.5f),
+                            PayloadHelper.encodeFloat(0.9f * 0.5f * 0.7f),
+                            PayloadHelper.encodeFloat(0.9f * 0.4f),
+                            PayloadHelper.encodeFloat(0.5f * 0.7f)
+                    }
+            );
+        }
+    }
+
+    public void testRegisteredPhrases() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.lat.type", "lattice")
+                .put("index.analysis.filter.shingles.type", "lattice_shingle")
+                .put("index.analysis.filter.shingles.max_shingle_size", 0)
+                .putList("index.analysis.filter.shingles.phrases", "quick  fox jumped", "the brick")
+                .build();
+        TestAnalysis analysis = createAnalyzer(settings);
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("the|0|0|0.9 quick|1|0|0.5 brick|1|1|0.4 fox|2|0|0.7 jumped|3|0|0.6"));
+        try (TokenStream in = analysis.tokenFilter.get("shingles").create(analysis.tokenFilter.get("lat")
+                .create(tokenizer))) {
+            // longer than any other shingle, and without the paths it starts with
+            assertTokenStreamContents(
+                    in,
+                    new String[]{"the brick", "quick fox jumped"},
+                    null,
+                    null,
+                    null,
+                    new int[]{1, 1},
+                    null,
+                    null,
+                    null,
+                    null,
+                    true,
+                    new byte[][]{
+                            PayloadHelper.encodeFloat(0.9f * 0.4f),
+                            PayloadHelper.encodeFloat(0.5f * 0.7f * 0.6f)
+                    }
+            );
+        }
+    }
+
+    public void testRandomLatticeMatchesEveryPath() throws IOException {
+        LatticePayloadEncoding encoding = LatticePayloadEncoding.FLOAT;
+        int maxShingleSize = randomIntBetween(2, 4);
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.lat.type", "lattice")
+                .put("index.analysis.filter.shingles.type", "lattice_shingle")
+                .put("index.analysis.filter.shingles.max_shingle_size", maxShingleSize)
+                .build();
+        TestAnalysis analysis = createAnalyzer(settings);
+
+        // every path through adjacent bins, by its start position, with its score
+        int numBins = randomIntBetween(1, 8);
+        List<List<String>> bins = new ArrayList<>();
+        List<List<Float>> scores = new ArrayList<>();
+        StringBuilder lattice = new StringBuilder();
+        for (int pos = 0; pos < numBins; pos++) {
+            List<String> words = new ArrayList<>();
+            List<Float> wordScores = new ArrayList<>();
+            int numArcs = randomIntBetween(1, 3);
+            for (int rank = 0; rank < numArcs; rank++) {
+                String word = "w" + pos + "r" + rank;
+                float score = randomFloat();
+                words.add(word);
+                wordScores.add(score);
+                lattice.append(word).append('|').append(pos).append('|').append(rank).append('|').append(score)
+                        .append(' ');
+            }
+            bins.add(words);
+            scores.add(wordScores);
+        }
+        Map<String, Float> expected = new HashMap<>();
+        for (int start = 0; start < numBins; start++) {
+            addPaths(bins, scores, start, start, "", 1.0f, maxShingleSize, expected);
+        }
+
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(lattice.toString()));
+        Map<String, Float> actual = new HashMap<>();
+        try (TokenStream in = analysis.tokenFilter.get("shingles")
+                .create(analysis.tokenFilter.get("lat").create(tokenizer))) {
+            CharTermAttribute termAtt = in.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute posIncAtt = in.addAttribute(PositionIncrementAttribute.class);
+            PayloadAttribute payAtt = in.addAttribute(PayloadAttribute.class);
+            in.reset();
+            int position = -1;
+            while (in.incrementToken()) {
+                position += posIncAtt.getPositionIncrement();
+                String shingle = termAtt.toString();
+                assertEquals(shingle, "w" + position, shingle.substring(0, shingle.indexOf('r')));
+                actual.put(shingle, encoding.decode(payAtt.getPayload().bytes, payAtt.getPayload().offset));
+            }
+            in.end();
+            // the stream ends at the last bin, whether or not a shingle starts there
+            assertEquals(numBins - 1, position + posIncAtt.getPositionIncrement());
+        }
+        assertEquals(expected, actual);
+    }
+
+    private static void addPaths(List<List<String>> bins, List<List<Float>> scores, int start, int pos, String prefix,
+                                 float score, int maxShingleSize, Map<String, Float> paths) {
+        if (pos >= bins.size() || pos - start >= maxShingleSize) {
+            return;
+        }
+        for (int i = 0; i < bins.get(pos).size(); i++) {
+            String path = prefix.isEmpty() ? bins.get(pos).get(i) : prefix + " " + bins.get(pos).get(i);
+            float pathScore = score * scores.get(pos).get(i);
+            if (pos > start) {
+                paths.put(path, pathScore);
+            }
+            addPaths(bins, scores, start, pos + 1, path, pathScore, maxShingleSize, paths);
+        }
+    }
+
+    public void testInvalidSettings() {
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class, () -> createAnalyzer(Settings.builder()
+                .put("index.analysis.filter.shingles.type", "lattice_shingle")
+                .put("index.analysis.filter.shingles.max_shingle_size", 1)
+                .build()));
+        assertEquals("'max_shingle_size' must be at least 2, or 0 to only emit 'phrases'", e.getMessage());
+        e = expectThrows(IllegalArgumentException.class, () -> createAnalyzer(Settings.builder()
+                .put("index.analysis.filter.shingles.type", "lattice_shingle")
+                .put("index.analysis.filter.shingles.min_path_score", -1)
+                .build()));
+        assertEquals("'min_path_score' must not be negative", e.getMessage());
+        e = expectThrows(IllegalArgumentException.class, () -> createAnalyzer(Settings.builder()
+                .put("index.analysis.filter.shingles.type", "lattice_shingle")
+                .putList("index.analysis.filter.shingles.phrases", "fox")
+                .build()));
+        assertEquals("'phrases' must have at least two words each, got [fox]", e.getMessage());
+    }
+
+    private TestAnalysis createAnalyzer(Settings filterSettings) throws IOException {
+        Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir())
+                .put(filterSettings)
+                .build();
+        return AnalysisTestsHelper.createTestAnalysisFromSettings(settings, new LatticeIndexPlugin(Settings.EMPTY));
+    }
+}
@@ -15,10 +15,29 @@
 package com.eigendomain.eslatticeindex.index;
 
 import com.eigendomain.eslatticeindex.plugin.LatticeIndexPlugin;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.core.WhitespaceTokenizer;
 import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermFrequencyAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
 import org.elasticsearch.Version;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.common.settings.Settings;
@@ -30,7 +49,16 @@ import org.elasticsearch.test.ESTokenStreamTestCase;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
+import static org.elasticsearch.test.ESTestCase.randomAlphaOfLengthBetween;
+import static org.elasticsearch.test.ESTestCase.randomBoolean;
+import static org.elasticsearch.test.ESTestCase.randomDouble;
+import static org.elasticsearch.test.ESTestCase.randomFloat;
+import static org.elasticsearch.test.ESTestCase.randomFrom;
+import static org.elasticsearch.test.ESTestCase.randomIntBetween;
 import static org.hamcrest.core.IsInstanceOf.instanceOf;
 
 public class LatticeTokenFilterTests extends ESTokenStreamTestCase {
@@ -192,12 +220,451 @@ public class LatticeTokenFilterTests extends ESTokenStreamTestCase {
         }
     }
 
+    public void testLatticeTokenFilterWithQuantizedPayloads() throws IOException {
+        LatticePayloadEncoding encoding = randomFrom(LatticePayloadEncoding.values());
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.my_filter.type", "lattice")
+                .put("index.analysis.filter.my_filter.score_buckets", "0.9, 2")
+                .put("index.analysis.filter.my_filter.payload_encoding", encoding.getName())
+                .build();
+        TestAnalysis analysis = createAnalyzer(settings);
+        TokenFilterFactory tokenFilter = analysis.tokenFilter.get("my_filter");
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("the|0|1|0.3 quick|1|0|0.9 brick|1|1|0.01"));
+        float[] scores = new float[]{0.3f, 0.9f, 0.9f, 0.01f};
+        byte[][] payloads = new byte[scores.length][];
+        for (int i = 0; i < scores.length; i++) {
+            payloads[i] = new byte[encoding.numBytes()];
+            encoding.encode(scores[i], payloads[i], 0);
+        }
+        try (TokenStream in = tokenFilter.create(tokenizer)) {
+            assertTokenStreamContents(
+                    in,
+                    new String[]{"the", "quick", "quick", "brick"},
+                    null,
+                    null,
+                    null,
+                    new int[]{1, 1, 0, 0},
+                    null,
+                    null,
+                    null,
+                    null,
+                    true,
+                    payloads
+            );
+        }
+    }
+
+    public void testRandomLatticeMatchesReferenceParsing() throws IOException {
+        boolean audio = randomBoolean();
+        float incSecs = 0.05f;
+        Settings.Builder builder = Settings.builder()
+                .put("index.analysis.filter.my_filter.type", "lattice")
+                .put("index.analysis.filter.my_filter.score_buckets", "0.9, 3, 0.5, 2");
+        if (audio) {
+            builder.put("index.analysis.filter.my_filter.lattice_format", "audio")
+                    .put("index.analysis.filter.my_filter.audio_position_increment_seconds", Float.toString(incSecs));
+        }
+        TestAnalysis analysis = createAnalyzer(builder.build());
+        TokenFilterFactory tokenFilter = analysis.tokenFilter.get("my_filter");
+
+        List<String> records = new ArrayList<>();
+        int numPositions = randomIntBetween(1, 50);
+        for (int pos = 0; pos < numPositions; pos++) {
+            int numArcs = randomIntBetween(1, 4);
+            String start = Float.toString(pos * 0.37f + 0.01f);
+            for (int rank = 0; rank < numArcs; rank++) {
+                String score = randomFrom(Float.toString(randomFloat()), "0.5", "1", "0.0001",
+                        String.format(Locale.ROOT, "%.9f", randomDouble()));
+                String record = randomAlphaOfLengthBetween(1, 40) + "|" + pos + "|" + rank + "|" + score;
+                if (audio) {
+                    record += "|" + start + "|" + (pos * 0.37f + 0.3f);
+                }
+                records.add(record);
+            }
+        }
+
+        // expected token stream computed with plain String parsing
+        List<String> tokens = new ArrayList<>();
+        List<Integer> posIncs = new ArrayList<>();
+        List<byte[]> payloads = new ArrayList<>();
+        String[] last = null;
+        for (String record : records) {
+            String[] fields = record.split("\\|");
+            float score = Float.parseFloat(fields[3]);
+            int posInc;
+            if (last == null) {
+                posInc = audio ? Math.max(1, (int) Math.floor(Float.parseFloat(fields[4]) / incSecs)) : 1;
+            } else if (Integer.parseInt(last[1]) == Integer.parseInt(fields[1])) {
+                posInc = 0;
+            } else if (audio) {
+                posInc = Math.max(1,
+                        (int) Math.floor((Float.parseFloat(fields[4]) - Float.parseFloat(last[4])) / incSecs));
+            } else {
+                posInc = 1;
+            }
+            int repeats = score >= 0.9f ? 3 : score >= 0.5f ? 2 : 1;
+            for (int i = 0; i < repeats; i++) {
+                tokens.add(fields[0]);
+                posIncs.add(i == 0 ? posInc : 0);
+                payloads.add(PayloadHelper.encodeFloat(score));
+            }
+            last = fields;
+        }
+
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(String.join(" ", records)));
+        try (TokenStream in = tokenFilter.create(tokenizer)) {
+            assertTokenStreamContents(
+                    in,
+                    tokens.toArray(new String[0]),
+                    null,
+                    null,
+                    null,
+                    posIncs.stream().mapToInt(Integer::intValue).toArray(),
+                    null,
+                    null,
+                    null,
+                    null,
+                    true,
+                    payloads.toArray(new byte[0][])
+            );
+        }
+    }
+
+    public void testLatticeTokenFilterWithTermFrequencyMode() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.my_filter.type", "lattice")
+                .put("index.analysis.filter.my_filter.score_buckets", "0.9, 5, 0.5, 3, 0.2, 2")
+                .put("index.analysis.filter.my_filter.score_frequency_mode", "term_frequency")
+                .build();
+        TestAnalysis analysis = createAnalyzer(settings);
+        TokenFilterFactory tokenFilter = analysis.tokenFilter.get("my_filter");
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("the|0|1|0.3 quick|1|0|0.9 brick|1|1|0.01 brown|2|0|1.0 fox|3|0|0.7 box|3|1|0.2"));
+        try (TokenStream in = tokenFilter.create(tokenizer)) {
+            assertTermFrequencies(in,
+                    new String[]{"the", "quick", "brick", "brown", "fox", "box"},
+                    new int[]{1, 1, 0, 1, 1, 0},
+                    new int[]{2, 5, 1, 5, 3, 2});
+        }
+    }
+
+    public void testLatticeTokenFilterWithFrequencyScale() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.my_filter.type", "lattice")
+                .put("index.analysis.filter.my_filter.score_frequency_scale", "10")
+                .put("index.analysis.filter.my_filter.score_frequency_mode", "term_frequency")
+                .build();
+        TestAnalysis analysis = createAnalyzer(settings);
+        TokenFilterFactory tokenFilter = analysis.tokenFilter.get("my_filter");
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("the|0|1|0.3 quick|1|0|0.96 brick|1|1|0.01 brown|2|0|1.0"));
+        try (TokenStream in = tokenFilter.create(tokenizer)) {
+            assertTermFrequencies(in,
+                    new String[]{"the", "quick", "brick", "brown"},
+                    new int[]{1, 1, 0, 1},
+                    new int[]{3, 10, 1, 10});
+        }
+    }
+
+    public void testInvalidFrequencySettings() throws IOException {
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class, () -> createAnalyzer(Settings.builder()
+                .put("index.analysis.filter.my_filter.type", "lattice")
+                .put("index.analysis.filter.my_filter.score_frequency_mode", "bogus")
+                .build()));
+        assertEquals("Invalid score frequency mode 'bogus'", e.getMessage());
+
+        e = expectThrows(IllegalArgumentException.class, () -> createAnalyzer(Settings.builder()
+                .put("index.analysis.filter.my_filter.type", "lattice")
+                .put("index.analysis.filter.my_filter.score_buckets", "0.9, 5")
+                .put("index.analysis.filter.my_filter.score_frequency_scale", "10")
+                .build()));
+        assertEquals("'score_frequency_scale' cannot be used together with 'score_buckets'", e.getMessage());
+    }
+
+    public void testTermFrequencyModeScoresLikeDuplicates() throws IOException {
+        String buckets = "0.9, 5, 0.5, 3, 0.2, 2";
+        TokenFilterFactory dupFilter = createAnalyzer(Settings.builder()
+                .put("index.analysis.filter.my_filter.type", "lattice")
+                .put("index.analysis.filter.my_filter.score_buckets", buckets)
+                .build()).tokenFilter.get("my_filter");
+        TokenFilterFactory tfFilter = createAnalyzer(Settings.builder()
+                .put("index.analysis.filter.my_filter.type", "lattice")
+                .put("index.analysis.filter.my_filter.score_buckets", buckets)
+                .put("index.analysis.filter.my_filter.score_frequency_mode", "term_frequency")
+                .build()).tokenFilter.get("my_filter");
+
+        String[] words = new String[]{"the", "quick", "brick", "brown", "fox", "box"};
+        List<String> docs = new ArrayList<>();
+        int numDocs = randomIntBetween(5, 30);
+        for (int d = 0; d < numDocs; d++) {
+            StringBuilder doc = new StringBuilder();
+            int numPositions = randomIntBetween(1, 20);
+            for (int pos = 0; pos < numPositions; pos++) {
+                int numArcs = randomIntBetween(1, 3);
+                for (int rank = 0; rank < numArcs; rank++) {
+                    doc.append(randomFrom(words)).append('|').append(pos).append('|').append(rank).append('|')
+                            .append(randomFloat()).append(' ');
+                }
+            }
+            docs.add(doc.toString());
+        }
+
+        // norms are omitted: duplicates and custom term frequencies count towards the field length differently
+        FieldType dupType = new FieldType(TextField.TYPE_NOT_STORED);
+        dupType.setOmitNorms(true);
+        FieldType tfType = new FieldType(TextField.TYPE_NOT_STORED);
+        tfType.setOmitNorms(true);
+        tfType.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+
+        try (Directory dupDir = indexLattices(dupFilter, dupType, docs);
+             Directory tfDir = indexLattices(tfFilter, tfType, docs);
+             DirectoryReader dupReader = DirectoryReader.open(dupDir);
+             DirectoryReader tfReader = DirectoryReader.open(tfDir)) {
+            for (String word : words) {
+                TermQuery query = new TermQuery(new Term("lattice", word));
+                TopDocs dupHits = new IndexSearcher(dupReader).search(query, numDocs);
+                TopDocs tfHits = new IndexSearcher(tfReader).search(query, numDocs);
+                assertEquals(dupHits.totalHits.value, tfHits.totalHits.value);
+                for (int i = 0; i < dupHits.scoreDocs.length; i++) {
+                    ScoreDoc dup = dupHits.scoreDocs[i];
+                    ScoreDoc tf = tfHits.scoreDocs[i];
+                    assertEquals(dup.score, tf.score, 0.0f);
+                    if (i == 0 || dupHits.scoreDocs[i - 1].score != dup.score) {
+                        assertEquals(dup.doc, tf.doc);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testLatticeTokenFilterWithPruning() throws IOException {
+        LatticeIndexPlugin plugin = new LatticeIndexPlugin(Settings.EMPTY);
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.my_filter.type", "lattice")
+                .put("index.analysis.filter.my_filter.max_rank", "1")
+                .put("index.analysis.filter.my_filter.min_score", "0.1")
+                .build();
+        TestAnalysis analysis = createAnalyzer(settings, plugin);
+        TokenFilterFactory tokenFilter = analysis.tokenFilter.get("my_filter");
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        // position 1 is pruned completely, "fox" keeps its unpruned position 3
+        tokenizer.setReader(new StringReader(
+                "the|0|0|0.9 a|0|1|0.5 an|0|2|0.4 quack|1|0|0.05 brown|2|0|0.8 crown|2|1|0.01 fox|3|0|1.0"));
+        try (TokenStream in = tokenFilter.create(tokenizer)) {
+            assertTokenStreamContents(in,
+                    new String[]{"the", "a", "brown", "fox"},
+                    new int[]{1, 0, 2, 1});
+        }
+        assertEquals(1, plugin.analysisStats().arcsPrunedByRank());
+        assertEquals(2, plugin.analysisStats().arcsPrunedByScore());
+    }
+
+    public void testRandomPruningKeepsPositions() throws IOException {
+        boolean audio = randomBoolean();
+        int maxRank = randomIntBetween(0, 3);
+        float minScore = randomFloat();
+        Settings.Builder builder = Settings.builder()
+                .put("index.analysis.filter.full.type", "lattice")
+                .put("index.analysis.filter.pruned.type", "lattice")
+                .put("index.analysis.filter.pruned.max_rank", maxRank)
+                .put("index.analysis.filter.pruned.min_score", minScore);
+        if (audio) {
+            for (String filter : new String[]{"full", "pruned"}) {
+                builder.put("index.analysis.filter." + filter + ".lattice_format", "audio")
+                        .put("index.analysis.filter." + filter + ".audio_position_increment_seconds", "0.05");
+            }
+        }
+        TestAnalysis analysis = createAnalyzer(builder.build());
+
+        StringBuilder text = new StringBuilder();
+        List<String> expectedTokens = new ArrayList<>();
+        int numPositions = randomIntBetween(1, 30);
+        float time = 0.0f;
+        for (int pos = 0; pos < numPositions; pos++) {
+            time += randomIntBetween(1, 10) * 0.1f;
+            int numArcs = randomIntBetween(1, 5);
+            for (int rank = 0; rank < numArcs; rank++) {
+                // unique tokens so pruned and unpruned streams can be lined up
+                String token = randomAlphaOfLengthBetween(1, 8) + pos + "_" + rank;
+                float score = randomFloat();
+                text.append(token).append('|').append(pos).append('|').append(rank).append('|').append(score);
+                if (audio) {
+                    text.append('|').append(time).append('|').append(time + 0.1f);
+                }
+                text.append(' ');
+                if (rank <= maxRank && score >= minScore) {
+                    expectedTokens.add(token);
+                }
+            }
+        }
+
+        List<String> fullTokens = new ArrayList<>();
+        List<Integer> fullPositions = new ArrayList<>();
+        collectPositions(analysis.tokenFilter.get("full"), text.toString(), fullTokens, fullPositions);
+        List<String> prunedTokens = new ArrayList<>();
+        List<Integer> prunedPositions = new ArrayList<>();
+        collectPositions(analysis.tokenFilter.get("pruned"), text.toString(), prunedTokens, prunedPositions);
+
+        assertEquals(expectedTokens, prunedTokens);
+        int full = 0;
+        for (int i = 0; i < prunedTokens.size(); i++) {
+            while (fullTokens.get(full).equals(prunedTokens.get(i)) == false) {
+                full++;
+            }
+            assertEquals(fullPositions.get(full), prunedPositions.get(i));
+            full++;
+        }
+    }
+
+    public void testRankFilterMatchesMaxRank() throws IOException {
+        int maxRank = randomIntBetween(0, 3);
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.full.type", "lattice")
+                .putList("index.analysis.filter.full.score_buckets", "0.5", "2")
+                .put("index.analysis.filter.pruned.type", "lattice")
+                .putList("index.analysis.filter.pruned.score_buckets", "0.5", "2")
+                .put("index.analysis.filter.pruned.max_rank", maxRank)
+                .build();
+        TestAnalysis analysis = createAnalyzer(settings);
+
+        StringBuilder text = new StringBuilder();
+        int numPositions = randomIntBetween(1, 30);
+        for (int pos = 0; pos < numPositions; pos++) {
+            int numArcs = randomIntBetween(1, 5);
+            for (int rank = 0; rank < numArcs; rank++) {
+                text.append(randomAlphaOfLengthBetween(1, 8)).append('|').append(pos).append('|').append(rank)
+                        .append('|').append(randomFloat()).append(' ');
+            }
+        }
+
+        // filtering the whole lattice by rank indexes the same tokens, at the same positions, as pruning it
+        List<String> prunedTokens = new ArrayList<>();
+        List<Integer> prunedPositions = new ArrayList<>();
+        collectPositions(analysis.tokenFilter.get("pruned"), text.toString(), prunedTokens, prunedPositions);
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(text.toString()));
+        List<String> filteredTokens = new ArrayList<>();
+        List<Integer> filteredPositions = new ArrayList<>();
+        collectPositions(new LatticeRankFilter(analysis.tokenFilter.get("full").create(tokenizer), maxRank),
+                filteredTokens, filteredPositions);
+        assertEquals(prunedTokens, filteredTokens);
+        assertEquals(prunedPositions, filteredPositions);
+    }
+
+    public void testLatticeTokenFilterWithEpsilons() throws IOException {
+        LatticeIndexPlugin plugin = new LatticeIndexPlugin(Settings.EMPTY);
+        Settings settings = Settings.builder()
+                .put("index.analysis.filter.my_filter.type", "lattice")
+                .put("index.analysis.filter.my_filter.epsilon_token", "<eps>")
+                .build();
+        TestAnalysis analysis = createAnalyzer(settings, plugin);
+        TokenFilterFactory tokenFilter = analysis.tokenFilter.get("my_filter");
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        // bin 1 keeps its position for "a", the epsilon only bins 2 and 4 take up no position
+        tokenizer.setReader(new StringReader(
+                "<eps>|0|0|0.6 the|0|1|0.4 <eps>|1|0|0.6 a|1|1|0.3 <eps>|2|0|1.0 fox|3|0|0.8 <eps>|4|0|0.7"));
+        try (TokenStream in = tokenFilter.create(tokenizer)) {
+            assertTokenStreamContents(in,
+                    new String[]{"the", "a", "fox"},
+                    new int[]{1, 1, 1});
+        }
+        assertEquals(4, plugin.analysisStats().epsilonArcsSkipped());
+
+        // epsilons in query text are dropped too
+        tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("the <eps> fox"));
+        try (TokenStream in = tokenFilter.create(tokenizer)) {
+            assertTokenStreamContents(in,
+                    new String[]{"the", "fox"},
+                    new int[]{1, 1});
+        }
+    }
+
+    public void testInvalidPruningSettings() throws IOException {
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class, () -> createAnalyzer(Settings.builder()
+                .put("index.analysis.filter.my_filter.type", "lattice")
+                .put("index.analysis.filter.my_filter.max_rank", "-2")
+                .build()));
+        assertEquals("'max_rank' must not be negative", e.getMessage());
+
+        e = expectThrows(IllegalArgumentException.class, () -> createAnalyzer(Settings.builder()
+                .put("index.analysis.filter.my_filter.type", "lattice")
+                .put("index.analysis.filter.my_filter.epsilon_token", "")
+                .build()));
+        assertEquals("'epsilon_token' must not be empty", e.getMessage());
+    }
+
+    private static void collectPositions(TokenFilterFactory filter, String text, List<String> tokens,
+                                         List<Integer> positions) throws IOException {
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(text));
+        collectPositions(filter.create(tokenizer), tokens, positions);
+    }
+
+    private static void collectPositions(TokenStream stream, List<String> tokens, List<Integer> positions)
+            throws IOException {
+        try (TokenStream in = stream) {
+            CharTermAttribute termAtt = in.getAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute posIncAtt = in.getAttribute(PositionIncrementAttribute.class);
+            in.reset();
+            int position = -1;
+            while (in.incrementToken()) {
+                position += posIncAtt.getPositionIncrement();
+                tokens.add(termAtt.toString());
+                positions.add(position);
+            }
+            in.end();
+        }
+    }
+
+    private static Directory indexLattices(TokenFilterFactory filter, FieldType fieldType, List<String> docs)
+            throws IOException {
+        Analyzer analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(tokenizer, filter.create(tokenizer));
+            }
+        };
+        Directory dir = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer))) {
+            for (String text : docs) {
+                Document doc = new Document();
+                doc.add(new Field("lattice", text, fieldType));
+                writer.addDocument(doc);
+            }
+        }
+        return dir;
+    }
+
+    private static void assertTermFrequencies(TokenStream in, String[] tokens, int[] posIncs, int[] freqs)
+            throws IOException {
+        CharTermAttribute termAtt = in.getAttribute(CharTermAttribute.class);
+        PositionIncrementAttribute posIncAtt = in.getAttribute(PositionIncrementAttribute.class);
+        TermFrequencyAttribute termFreqAtt = in.getAttribute(TermFrequencyAttribute.class);
+        in.reset();
+        for (int i = 0; i < tokens.length; i++) {
+            assertTrue("token " + i + " is missing", in.incrementToken());
+            assertEquals(tokens[i], termAtt.toString());
+            assertEquals(posIncs[i], posIncAtt.getPositionIncrement());
+            assertEquals(freqs[i], termFreqAtt.getTermFrequency());
+        }
+        assertFalse(in.incrementToken());
+        in.end();
+    }
+
     private TestAnalysis createAnalyzer(Settings filterSettings) throws IOException {
+        return createAnalyzer(filterSettings, new LatticeIndexPlugin(Settings.EMPTY));
+    }
+
+    private TestAnalysis createAnalyzer(Settings filterSettings, LatticeIndexPlugin plugin) throws IOException {
         Settings settings = Settings.builder()
                 .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
                 .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir())
                 .put(filterSettings)
                 .build();
-        return AnalysisTestsHelper.createTestAnalysisFromSettings(settings, new LatticeIndexPlugin());
+        return AnalysisTestsHelper.createTestAnalysisFromSettings(settings, plugin);
     }
 }
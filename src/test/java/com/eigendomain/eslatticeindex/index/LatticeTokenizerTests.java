@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index;
+
+import com.eigendomain.eslatticeindex.plugin.LatticeIndexPlugin;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.analysis.AnalysisTestsHelper;
+import org.elasticsearch.index.analysis.TokenizerFactory;
+import org.elasticsearch.test.ESTestCase.TestAnalysis;
+import org.elasticsearch.test.ESTokenStreamTestCase;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.elasticsearch.test.ESTestCase.randomAlphaOfLengthBetween;
+import static org.elasticsearch.test.ESTestCase.randomBoolean;
+import static org.elasticsearch.test.ESTestCase.randomFloat;
+import static org.elasticsearch.test.ESTestCase.randomFrom;
+import static org.elasticsearch.test.ESTestCase.randomIntBetween;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+
+public class LatticeTokenizerTests extends ESTokenStreamTestCase {
+    public void testDefaultLatticeTokenizer() throws IOException {
+        TestAnalysis analysis = createAnalyzer(Settings.EMPTY);
+
+        TokenizerFactory tokenizerFactory = analysis.tokenizer.get("lattice");
+        assertThat(tokenizerFactory, instanceOf(LatticeTokenizerFactory.class));
+    }
+
+    public void testLatticeTokenizerWithoutFields() throws IOException {
+        TestAnalysis analysis = createAnalyzer(Settings.EMPTY);
+        Tokenizer tokenizer = analysis.tokenizer.get("lattice").create();
+        tokenizer.setReader(new StringReader("the quick  brown\nfox"));
+        assertTokenStreamContents(tokenizer, new String[]{"the", "quick", "brown", "fox"},
+                new int[]{0, 4, 11, 17}, new int[]{3, 9, 16, 20}, 20);
+    }
+
+    public void testLatticeTokenizerWithBaseFields() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.tokenizer.my_tokenizer.type", "lattice")
+                .put("index.analysis.tokenizer.my_tokenizer.score_buckets", "0.9, 2")
+                .build();
+        TestAnalysis analysis = createAnalyzer(settings);
+        Tokenizer tokenizer = analysis.tokenizer.get("my_tokenizer").create();
+        tokenizer.setReader(new StringReader("the|0|1|0.3 quick|1|0|0.9 brick|1|1|0.01 brown|2|0|1.0"));
+        byte[] encode03 = PayloadHelper.encodeFloat(0.3f);
+        byte[] encode09 = PayloadHelper.encodeFloat(0.9f);
+        byte[] encode001 = PayloadHelper.encodeFloat(0.01f);
+        byte[] encode10 = PayloadHelper.encodeFloat(1.0f);
+        assertTokenStreamContents(
+                tokenizer,
+                new String[]{"the", "quick", "quick", "brick", "brown", "brown"},
+                new int[]{0, 12, 12, 26, 41, 41},
+                new int[]{11, 25, 25, 40, 54, 54},
+                null,
+                new int[]{1, 1, 0, 0, 1, 0},
+                null,
+                54,
+                null,
+                null,
+                true,
+                new byte[][]{encode03, encode09, encode09, encode001, encode10, encode10}
+        );
+    }
+
+    public void testLatticeTokenizerWithAudioFields() throws IOException {
+        Settings settings = Settings.builder()
+                .put("index.analysis.tokenizer.my_tokenizer.type", "lattice")
+                .put("index.analysis.tokenizer.my_tokenizer.lattice_format", "audio")
+                .put("index.analysis.tokenizer.my_tokenizer.audio_position_increment_seconds", "0.1")
+                .put("index.analysis.tokenizer.my_tokenizer.field_delimiter", ",")
+                .build();
+        TestAnalysis analysis = createAnalyzer(settings);
+        Tokenizer tokenizer = analysis.tokenizer.get("my_tokenizer").create();
+        tokenizer.setReader(new StringReader("the,0,1,0.3,1.0,0 quick,1,0,0.9,2.0,0.0 brick,1,1,0.01,2.0,0.0"));
+        assertTokenStreamContents(
+                tokenizer,
+                new String[]{"the", "quick", "brick"},
+                null,
+                null,
+                null,
+                new int[]{10, 10, 0},
+                null,
+                null,
+                null,
+                null,
+                true,
+                new byte[][]{
+                        PayloadHelper.encodeFloat(0.3f),
+                        PayloadHelper.encodeFloat(0.9f),
+                        PayloadHelper.encodeFloat(0.01f)}
+        );
+    }
+
+    public void testMalformedRecord() throws IOException {
+        TestAnalysis analysis = createAnalyzer(Settings.EMPTY);
+        Tokenizer tokenizer = analysis.tokenizer.get("lattice").create();
+        tokenizer.setReader(new StringReader("the|0|1|0.3 quick|1"));
+        tokenizer.reset();
+        assertTrue(tokenizer.incrementToken());
+        expectThrows(IOException.class, tokenizer::incrementToken);
+    }
+
+    public void testMatchesWhitespaceTokenizerAndFilter() throws IOException {
+        boolean audio = randomBoolean();
+        boolean prune = randomBoolean();
+        Settings.Builder builder = Settings.builder();
+        for (String component : new String[]{"filter.my_filter", "tokenizer.my_tokenizer"}) {
+            builder.put("index.analysis." + component + ".type", "lattice")
+                    .put("index.analysis." + component + ".score_buckets", "0.8, 3, 0.4, 2");
+            if (prune) {
+                builder.put("index.analysis." + component + ".max_rank", 1)
+                        .put("index.analysis." + component + ".min_score", 0.3f)
+                        .put("index.analysis." + component + ".epsilon_token", "<eps>");
+            }
+            if (audio) {
+                builder.put("index.analysis." + component + ".lattice_format", "audio")
+                        .put("index.analysis." + component + ".audio_position_increment_seconds", "0.02");
+            }
+        }
+        TestAnalysis analysis = createAnalyzer(builder.build());
+
+        // enough records to cross several reads of the tokenizer's io buffer
+        StringBuilder lattice = new StringBuilder();
+        int numPositions = randomIntBetween(1, 2000);
+        for (int pos = 0; pos < numPositions; pos++) {
+            int numArcs = randomIntBetween(1, 3);
+            for (int rank = 0; rank < numArcs; rank++) {
+                lattice.append(rarely() ? "<eps>" : randomAlphaOfLengthBetween(1, 20))
+                        .append('|').append(pos).append('|').append(rank).append('|').append(randomFloat());
+                if (audio) {
+                    lattice.append('|').append(pos * 0.11f).append('|').append(pos * 0.11f + 0.1f);
+                }
+                lattice.append(randomFrom(" ", "\n", "\t", "  ", " \r\n"));
+            }
+        }
+
+        Tokenizer whitespace = new WhitespaceTokenizer();
+        whitespace.setReader(new StringReader(lattice.toString()));
+        List<String> expected = drain(analysis.tokenFilter.get("my_filter").create(whitespace));
+
+        Tokenizer tokenizer = analysis.tokenizer.get("my_tokenizer").create();
+        tokenizer.setReader(new StringReader(lattice.toString()));
+        List<String> actual = drain(tokenizer);
+
+        assertEquals(expected, actual);
+    }
+
+    private static List<String> drain(TokenStream stream) throws IOException {
+        CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
+        PayloadAttribute payAtt = stream.addAttribute(PayloadAttribute.class);
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream in = stream) {
+            in.reset();
+            while (in.incrementToken()) {
+                BytesRef payload = payAtt.getPayload();
+                tokens.add(termAtt.toString() + "/" + posIncAtt.getPositionIncrement() + "/"
+                        + (payload == null ? null : payload.toString()));
+            }
+            in.end();
+        }
+        return tokens;
+    }
+
+    private TestAnalysis createAnalyzer(Settings settings) throws IOException {
+        Settings indexSettings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir())
+                .put(settings)
+                .build();
+        return AnalysisTestsHelper.createTestAnalysisFromSettings(indexSettings, new LatticeIndexPlugin(Settings.EMPTY));
+    }
+}
@@ -0,0 +1,815 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.index.query;
+
+import com.eigendomain.eslatticeindex.index.LatticePayloadEncoding;
+import com.eigendomain.eslatticeindex.plugin.LatticeIndexPlugin;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.payloads.PayloadDecoder;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.analysis.AnalysisTestsHelper;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LatticePayloadScoreQueryTests extends ESTestCase {
+    private static final String FIELD = "lattice";
+    private static final String[] WORDS = new String[]{"the", "quick", "brick", "brown", "fox", "box"};
+
+    public void testLogPayloadsScoreLikeFloatPayloads() throws IOException {
+        List<String> docs = randomLattices();
+        for (LatticePayloadEncoding encoding : new LatticePayloadEncoding[]{
+                LatticePayloadEncoding.LOG_FLOAT, LatticePayloadEncoding.LOG_16, LatticePayloadEncoding.LOG_8}) {
+            // every leaf of a span is off by at most a factor of (1 + maxError)
+            float tolerance = (float) Math.pow(1 + encoding.maxError(), 3) - 1 + 0.0001f;
+            assertSameScores(docs, encoding, tolerance);
+        }
+    }
+
+    public void testTermPayloadQueryScoresLikeSpanTermQuery() throws IOException {
+        List<String> docs = randomLattices();
+        for (LatticePayloadEncoding encoding : LatticePayloadEncoding.values()) {
+            try (Directory dir = indexLattices(encoding, docs);
+                 DirectoryReader reader = DirectoryReader.open(dir)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                for (int i = 0; i < 10; i++) {
+                    Term term = new Term(FIELD, randomFrom(WORDS));
+                    LatticePayloadScoreFunction function = randomFrom(new SumLatticePayloadFunction(1.0f),
+                            new MaxLatticePayloadFunction(randomFrom(0.0f, 0.5f)),
+                            new MinLatticePayloadFunction(randomFrom(0.0f, 0.5f)));
+                    PayloadDecoder decoder = encoding == LatticePayloadEncoding.FLOAT && randomBoolean()
+                            ? new FloatDecoder() : new LatticePayloadDecoder(encoding);
+                    boolean includeSpanScore = randomBoolean();
+                    float minSpanScore = randomBoolean() ? 0.0f : randomFloat();
+                    LatticePayloadScoreQuery spanQuery = new LatticePayloadScoreQuery(new SpanTermQuery(term), function,
+                            decoder, includeSpanScore, minSpanScore);
+                    LatticeTermPayloadQuery termQuery = new LatticeTermPayloadQuery(term, function, decoder,
+                            includeSpanScore, minSpanScore);
+
+                    TopDocs expected = searcher.search(spanQuery, reader.maxDoc());
+                    TopDocs actual = searcher.search(termQuery, reader.maxDoc());
+                    assertEquals(expected.totalHits.value, actual.totalHits.value);
+                    Map<Integer, Float> expectedScores = new HashMap<>();
+                    for (ScoreDoc hit : expected.scoreDocs) {
+                        expectedScores.put(hit.doc, hit.score);
+                    }
+                    for (ScoreDoc hit : actual.scoreDocs) {
+                        assertEquals(termQuery + " doc " + hit.doc, expectedScores.get(hit.doc), hit.score, 0.0f);
+                        assertEquals(hit.score, searcher.explain(termQuery, hit.doc).getValue().floatValue(), 0.0f);
+                    }
+                    assertEquals(searcher.count(spanQuery), searcher.count(termQuery));
+                }
+            }
+        }
+    }
+
+    public void testPhraseQueryMatchesLikeSpanNearQuery() throws IOException {
+        List<String> docs = randomLattices();
+        for (LatticePayloadEncoding encoding : LatticePayloadEncoding.values()) {
+            try (Directory dir = indexLattices(encoding, docs);
+                 DirectoryReader reader = DirectoryReader.open(dir)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                for (int i = 0; i < 10; i++) {
+                    Term[] terms = new Term[randomIntBetween(1, 4)];
+                    SpanNearQuery.Builder builder = new SpanNearQuery.Builder(FIELD, true);
+                    for (int t = 0; t < terms.length; t++) {
+                        terms[t] = new Term(FIELD, randomFrom(WORDS));
+                        builder.addClause(new SpanTermQuery(terms[t]));
+                    }
+                    int slop = randomIntBetween(0, 3);
+                    SpanQuery nearQuery = terms.length == 1 ? new SpanTermQuery(terms[0]) : builder.setSlop(slop).build();
+                    LatticePayloadScoreFunction function = randomFrom(new SumLatticePayloadFunction(1.0f),
+                            new MaxLatticePayloadFunction(randomFrom(0.0f, 0.5f)),
+                            new MinLatticePayloadFunction(randomFrom(0.0f, 0.5f)));
+                    PayloadDecoder decoder = new LatticePayloadDecoder(encoding);
+                    LatticePhraseQuery phraseQuery = new LatticePhraseQuery(terms, slop, function, decoder, false);
+
+                    Map<Integer, Float> expected = scores(reader, nearQuery, function, decoder);
+                    TopDocs actual = searcher.search(phraseQuery, reader.maxDoc());
+                    assertEquals(phraseQuery.toString(), expected.size(), actual.totalHits.value);
+                    assertEquals(expected.size(), searcher.count(phraseQuery));
+                    for (ScoreDoc hit : actual.scoreDocs) {
+                        // the span query scores the first path from each start, which is never better than the best
+                        assertTrue(phraseQuery + " doc " + hit.doc, expected.containsKey(hit.doc));
+                        assertTrue(phraseQuery + " doc " + hit.doc, hit.score >= expected.get(hit.doc) * 0.9999f);
+                        assertEquals(hit.score, searcher.explain(phraseQuery, hit.doc).getValue().floatValue(), 0.0f);
+                    }
+                }
+            }
+        }
+    }
+
+    public void testPhraseQueryScoresBestPath() throws IOException {
+        List<String> docs = new ArrayList<>();
+        docs.add("quick|0|0|0.9 brown|1|0|0.1 fox|1|1|0.6 brown|2|0|0.8 fox|3|0|0.9");
+        docs.add("quick|0|0|0.9 fox|1|0|0.9");
+        try (Directory dir = indexLattices(LatticePayloadEncoding.FLOAT, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            Term[] terms = new Term[]{new Term(FIELD, "quick"), new Term(FIELD, "brown"), new Term(FIELD, "fox")};
+            LatticePhraseQuery query = new LatticePhraseQuery(terms, 1, new MaxLatticePayloadFunction(0.0f),
+                    new FloatDecoder(), false);
+            TopDocs hits = searcher.search(query, 10);
+            assertEquals(1, hits.totalHits.value);
+            assertEquals(0, hits.scoreDocs[0].doc);
+            // quick brown fox through positions 0, 2 and 3 rather than 0, 1 and 3
+            assertEquals(10e4f * 0.9f * 0.8f * 0.9f, hits.scoreDocs[0].score, 0.1f);
+
+            query = new LatticePhraseQuery(terms, 0, new MaxLatticePayloadFunction(0.0f), new FloatDecoder(), false);
+            assertEquals(0, searcher.count(query));
+            query = new LatticePhraseQuery(new Term[]{terms[0], terms[2]}, 0, new MaxLatticePayloadFunction(0.0f),
+                    new FloatDecoder(), false);
+            assertEquals(2, searcher.count(query));
+            query = new LatticePhraseQuery(new Term[]{terms[2], terms[0]}, 3, new MaxLatticePayloadFunction(0.0f),
+                    new FloatDecoder(), false);
+            assertEquals(0, searcher.count(query));
+        }
+    }
+
+    public void testPhraseQueryWithAlternativesMatchesLikeSpanOrQuery() throws IOException {
+        List<String> docs = randomLattices();
+        LatticePayloadEncoding encoding = randomFrom(LatticePayloadEncoding.values());
+        try (Directory dir = indexLattices(encoding, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            for (int i = 0; i < 20; i++) {
+                Term[][] terms = new Term[randomIntBetween(1, 3)][];
+                SpanQuery[] clauses = new SpanQuery[terms.length];
+                for (int t = 0; t < terms.length; t++) {
+                    List<String> words = new ArrayList<>(Arrays.asList(WORDS));
+                    Collections.shuffle(words, random());
+                    terms[t] = new Term[randomIntBetween(1, 3)];
+                    SpanQuery[] alternatives = new SpanQuery[terms[t].length];
+                    for (int a = 0; a < terms[t].length; a++) {
+                        terms[t][a] = new Term(FIELD, words.get(a));
+                        alternatives[a] = new SpanTermQuery(terms[t][a]);
+                    }
+                    clauses[t] = alternatives.length == 1 ? alternatives[0] : new SpanOrQuery(alternatives);
+                }
+                int slop = randomIntBetween(0, 3);
+                SpanQuery spanQuery = clauses.length == 1 ? clauses[0] : new SpanNearQuery(clauses, slop, true);
+                LatticePayloadScoreFunction function = randomFrom(new SumLatticePayloadFunction(1.0f),
+                        new MaxLatticePayloadFunction(randomFrom(0.0f, 0.5f)),
+                        new MinLatticePayloadFunction(randomFrom(0.0f, 0.5f)));
+                PayloadDecoder decoder = new LatticePayloadDecoder(encoding);
+                LatticePhraseQuery phraseQuery = new LatticePhraseQuery(terms, slop, true, terms.length, 1.0f,
+                        function, decoder, false, 0.0f);
+
+                Map<Integer, Float> expected = scores(reader, spanQuery, function, decoder);
+                TopDocs actual = searcher.search(phraseQuery, reader.maxDoc());
+                assertEquals(phraseQuery.toString(), expected.size(), actual.totalHits.value);
+                assertEquals(expected.size(), searcher.count(phraseQuery));
+                for (ScoreDoc hit : actual.scoreDocs) {
+                    assertTrue(phraseQuery + " doc " + hit.doc, expected.containsKey(hit.doc));
+                    assertTrue(phraseQuery + " doc " + hit.doc, hit.score >= expected.get(hit.doc) * 0.9999f);
+                    assertEquals(hit.score, searcher.explain(phraseQuery, hit.doc).getValue().floatValue(), 0.0f);
+                }
+            }
+        }
+    }
+
+    public void testAlternativesScoreByTheirOwnPayloads() throws IOException {
+        List<String> docs = new ArrayList<>();
+        docs.add("fast|0|0|0.5 quick|0|1|0.9 fox|1|0|0.8");
+        docs.add("fast|0|0|0.5 fox|1|0|0.8");
+        docs.add("slow|0|0|0.5 fox|1|0|0.8");
+        try (Directory dir = indexLattices(LatticePayloadEncoding.FLOAT, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            Term[][] terms = new Term[][]{
+                    {new Term(FIELD, "quick"), new Term(FIELD, "fast")},
+                    {new Term(FIELD, "fox")}};
+            LatticePhraseQuery query = new LatticePhraseQuery(terms, 0, true, 2, 1.0f,
+                    new MaxLatticePayloadFunction(0.0f), new FloatDecoder(), false, 0.0f);
+            TopDocs hits = searcher.search(query, 10);
+            assertEquals(2, hits.totalHits.value);
+            // the better of the two alternatives at the first position
+            assertEquals(0, hits.scoreDocs[0].doc);
+            assertEquals(10e4f * 0.9f * 0.8f, hits.scoreDocs[0].score, 0.1f);
+            assertEquals(1, hits.scoreDocs[1].doc);
+            assertEquals(10e4f * 0.5f * 0.8f, hits.scoreDocs[1].score, 0.1f);
+
+            expectThrows(IllegalArgumentException.class, () -> new LatticePhraseQuery(
+                    new Term[][]{{new Term(FIELD, "fox"), new Term(FIELD, "fox")}}, 0, true, 1, 1.0f,
+                    new MaxLatticePayloadFunction(0.0f), new FloatDecoder(), false, 0.0f));
+        }
+    }
+
+    public void testExpansionsKeepTermsInMostDocs() throws IOException {
+        List<String> docs = new ArrayList<>();
+        docs.add("quick|0|0|0.9 fox|1|0|0.8");
+        docs.add("quack|0|0|0.6 fox|1|0|0.8");
+        docs.add("quack|0|0|0.7 box|1|0|0.8");
+        docs.add("quiet|0|0|0.5 fox|1|0|0.8");
+        docs.add("quiet|0|0|0.5 box|1|0|0.8");
+        docs.add("quiet|0|0|0.5 brown|1|0|0.8");
+        try (Directory dir = indexLattices(LatticePayloadEncoding.FLOAT, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            LatticePayloadScoreFunction function = new MaxLatticePayloadFunction(0.0f);
+            PayloadDecoder decoder = new FloatDecoder();
+            MultiTermQuery prefix = new PrefixQuery(new Term(FIELD, "qu"));
+            LatticePhraseQuery query = new LatticePhraseQuery(new Term[][]{{}, {new Term(FIELD, "fox")}},
+                    new MultiTermQuery[]{prefix, null}, 2, 0, true, 2, 1.0f, function, decoder, false, 0.0f);
+            Query rewritten = searcher.rewrite(query);
+            // quick is in the fewest docs
+            LatticePhraseQuery expected = new LatticePhraseQuery(new Term[][]{
+                    {new Term(FIELD, "quack"), new Term(FIELD, "quiet")}, {new Term(FIELD, "fox")}}, 0, true, 2, 1.0f,
+                    function, decoder, false, 0.0f);
+            assertEquals(expected, rewritten);
+
+            TopDocs hits = searcher.search(query, 10);
+            assertEquals(2, hits.totalHits.value);
+            assertEquals(1, hits.scoreDocs[0].doc);
+            assertEquals(10e4f * 0.6f * 0.8f, hits.scoreDocs[0].score, 0.1f);
+            assertEquals(3, hits.scoreDocs[1].doc);
+
+            // an expansion without matching terms leaves nothing to match
+            query = new LatticePhraseQuery(new Term[][]{{}, {new Term(FIELD, "fox")}},
+                    new MultiTermQuery[]{new PrefixQuery(new Term(FIELD, "zz")), null}, 2, 0, true, 2, 1.0f,
+                    new MaxLatticePayloadFunction(0.0f), new FloatDecoder(), false, 0.0f);
+            assertEquals(0, searcher.count(query));
+        }
+    }
+
+    public void testUnorderedPhraseQueryMatchesLikeSpanNearQuery() throws IOException {
+        List<String> docs = randomLattices();
+        LatticePayloadEncoding encoding = randomFrom(LatticePayloadEncoding.values());
+        try (Directory dir = indexLattices(encoding, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            for (int i = 0; i < 20; i++) {
+                Term[] terms = new Term[randomIntBetween(2, 4)];
+                SpanNearQuery.Builder builder = new SpanNearQuery.Builder(FIELD, false);
+                for (int t = 0; t < terms.length; t++) {
+                    terms[t] = new Term(FIELD, randomFrom(WORDS));
+                    builder.addClause(new SpanTermQuery(terms[t]));
+                }
+                int slop = randomIntBetween(0, 3);
+                LatticePayloadScoreFunction function = randomFrom(new SumLatticePayloadFunction(1.0f),
+                        new MaxLatticePayloadFunction(randomFrom(0.0f, 0.5f)),
+                        new MinLatticePayloadFunction(randomFrom(0.0f, 0.5f)));
+                PayloadDecoder decoder = new LatticePayloadDecoder(encoding);
+                LatticePhraseQuery phraseQuery = new LatticePhraseQuery(terms, slop, false, function, decoder,
+                        randomBoolean(), 0.0f);
+
+                Map<Integer, Float> expected = scores(reader, builder.setSlop(slop).build(), function, decoder);
+                TopDocs actual = searcher.search(phraseQuery, reader.maxDoc());
+                assertEquals(phraseQuery.toString(), expected.size(), actual.totalHits.value);
+                assertEquals(expected.size(), searcher.count(phraseQuery));
+                for (ScoreDoc hit : actual.scoreDocs) {
+                    assertTrue(phraseQuery + " doc " + hit.doc, expected.containsKey(hit.doc));
+                    assertEquals(hit.score, searcher.explain(phraseQuery, hit.doc).getValue().floatValue(), 0.0f);
+                }
+            }
+        }
+    }
+
+    public void testUnorderedPhraseQueryScoresBestInWindow() throws IOException {
+        List<String> docs = new ArrayList<>();
+        docs.add("fox|0|0|0.2 quick|1|0|0.9 fox|2|0|0.8 fox|2|1|0.1");
+        docs.add("quick|0|0|0.9 brown|1|0|0.9 brown|2|0|0.9 fox|3|0|0.9");
+        try (Directory dir = indexLattices(LatticePayloadEncoding.FLOAT, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            Term[] terms = new Term[]{new Term(FIELD, "quick"), new Term(FIELD, "fox")};
+            LatticePhraseQuery query = new LatticePhraseQuery(terms, 0, false, new MaxLatticePayloadFunction(0.0f),
+                    new FloatDecoder(), false, 0.0f);
+            TopDocs hits = searcher.search(query, 10);
+            assertEquals(1, hits.totalHits.value);
+            assertEquals(0, hits.scoreDocs[0].doc);
+            // quick at 1 and fox at 2 beat fox at 0 and quick at 1, and the worse fox at 2
+            assertEquals(10e4f * 0.9f * 0.8f, hits.scoreDocs[0].score, 0.1f);
+
+            // each combination is counted once, however many windows hold it
+            query = new LatticePhraseQuery(terms, 2, false, new SumLatticePayloadFunction(0.0f), new FloatDecoder(),
+                    false, 0.0f);
+            hits = searcher.search(query, 10);
+            assertEquals(2, hits.totalHits.value);
+            assertEquals(1, hits.scoreDocs[0].doc);
+            assertEquals(10e4f * 0.9f * 0.9f, hits.scoreDocs[0].score, 0.1f);
+        }
+    }
+
+    public void testPartialPhraseQueryScoresBestSubPhrase() throws IOException {
+        List<String> docs = randomLattices();
+        LatticePayloadEncoding encoding = randomFrom(LatticePayloadEncoding.values());
+        try (Directory dir = indexLattices(encoding, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            PayloadDecoder decoder = new LatticePayloadDecoder(encoding);
+            LatticePayloadScoreFunction function = new MaxLatticePayloadFunction(0.0f);
+            for (int i = 0; i < 10; i++) {
+                Term[] terms = new Term[randomIntBetween(2, 4)];
+                for (int t = 0; t < terms.length; t++) {
+                    terms[t] = new Term(FIELD, randomFrom(WORDS));
+                }
+                int slop = randomIntBetween(0, 3);
+                int minTermsMatched = randomIntBetween(1, terms.length - 1);
+                float penalty = randomFrom(0.5f, 1.0f);
+                LatticePhraseQuery query = new LatticePhraseQuery(terms, slop, true, minTermsMatched, penalty, function,
+                        decoder, false, 0.0f);
+
+                // as if each phrase with terms left out were searched on its own, and the best kept
+                Map<Integer, Float> expected = new HashMap<>();
+                for (int mask = 1; mask < 1 << terms.length; mask++) {
+                    int numMatched = Integer.bitCount(mask);
+                    if (numMatched < minTermsMatched) {
+                        continue;
+                    }
+                    Term[] subPhrase = new Term[numMatched];
+                    for (int t = 0, j = 0; t < terms.length; t++) {
+                        if ((mask & (1 << t)) != 0) {
+                            subPhrase[j++] = terms[t];
+                        }
+                    }
+                    float scale = (float) Math.pow(penalty, terms.length - numMatched);
+                    LatticePhraseQuery subQuery = new LatticePhraseQuery(subPhrase, slop, function, decoder, false);
+                    for (ScoreDoc hit : searcher.search(subQuery, reader.maxDoc()).scoreDocs) {
+                        expected.merge(hit.doc, hit.score * scale, Math::max);
+                    }
+                }
+
+                TopDocs actual = searcher.search(query, reader.maxDoc());
+                assertEquals(query.toString(), expected.size(), actual.totalHits.value);
+                assertEquals(expected.size(), searcher.count(query));
+                for (ScoreDoc hit : actual.scoreDocs) {
+                    assertTrue(query + " doc " + hit.doc, expected.containsKey(hit.doc));
+                    assertEquals(query + " doc " + hit.doc, expected.get(hit.doc), hit.score,
+                            expected.get(hit.doc) * 0.0001f);
+                    assertEquals(hit.score, searcher.explain(query, hit.doc).getValue().floatValue(), 0.0f);
+                }
+            }
+        }
+    }
+
+    public void testMinSpanScoreDropsSpans() throws IOException {
+        List<String> docs = new ArrayList<>();
+        docs.add("quick|0|0|0.9 fox|1|0|0.2");
+        docs.add("quick|0|0|0.9 fox|1|0|0.8");
+        docs.add("quick|0|0|0.3 fox|1|0|0.2 quick|2|0|0.9 fox|3|0|0.9");
+        LatticePayloadEncoding encoding = randomFrom(LatticePayloadEncoding.values());
+        try (Directory dir = indexLattices(encoding, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            Term quick = new Term(FIELD, "quick");
+            Term fox = new Term(FIELD, "fox");
+            PayloadDecoder decoder = new LatticePayloadDecoder(encoding);
+            for (LatticePayloadScoreFunction function : new LatticePayloadScoreFunction[]{
+                    new SumLatticePayloadFunction(1.0f), new MaxLatticePayloadFunction(0.0f)}) {
+                SpanQuery nearQuery = new SpanNearQuery.Builder(FIELD, true)
+                        .addClause(new SpanTermQuery(quick))
+                        .addClause(new SpanTermQuery(fox))
+                        .build();
+                Query[] queries = new Query[]{
+                        new LatticePayloadScoreQuery(nearQuery, function, decoder, randomBoolean(), 0.5f),
+                        new LatticePhraseQuery(new Term[]{quick, fox}, 0, function, decoder, randomBoolean(), 0.5f)};
+                for (Query query : queries) {
+                    // only paths scoring 0.9 * 0.8 or more are kept, and a doc's rejected spans don't count
+                    assertEquals(query.toString(), 2, searcher.count(query));
+                    TopDocs hits = searcher.search(query, 10);
+                    assertEquals(query.toString(), 2, hits.totalHits.value);
+                    for (ScoreDoc hit : hits.scoreDocs) {
+                        assertNotEquals(query.toString(), 0, hit.doc);
+                        assertEquals(hit.score, searcher.explain(query, hit.doc).getValue().floatValue(), 0.0f);
+                    }
+                }
+                assertEquals(2, searcher.count(new LatticePayloadScoreQuery(new SpanTermQuery(fox), function, decoder,
+                        false, 0.5f)));
+                assertEquals(2, searcher.count(new LatticeTermPayloadQuery(fox, function, decoder, false, 0.5f)));
+                assertEquals(3, searcher.count(new LatticeTermPayloadQuery(fox, function, decoder, false, 0.0f)));
+            }
+        }
+    }
+
+    public void testMinSpanScoreWaitsForUnboundedLeaves() throws IOException {
+        List<String> docs = new ArrayList<>();
+        // float payloads aren't clamped, so a leaf above 1 lifts the path back over the threshold
+        docs.add("quick|0|0|0.3 fox|1|0|3.0");
+        docs.add("quick|0|0|0.3 fox|1|0|1.0");
+        try (Directory dir = indexLattices(LatticePayloadEncoding.FLOAT, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            Term quick = new Term(FIELD, "quick");
+            Term fox = new Term(FIELD, "fox");
+            PayloadDecoder decoder = new FloatDecoder();
+            for (LatticePayloadScoreFunction function : new LatticePayloadScoreFunction[]{
+                    new SumLatticePayloadFunction(1.0f), new MaxLatticePayloadFunction(0.0f)}) {
+                SpanQuery nearQuery = new SpanNearQuery.Builder(FIELD, true)
+                        .addClause(new SpanTermQuery(quick))
+                        .addClause(new SpanTermQuery(fox))
+                        .build();
+                Query[] queries = new Query[]{
+                        new LatticePayloadScoreQuery(nearQuery, function, decoder, false, 0.5f),
+                        new LatticePhraseQuery(new Term[]{quick, fox}, 0, function, decoder, false, 0.5f),
+                        new LatticePhraseQuery(new Term[]{quick, fox}, 0, false, function, decoder, false, 0.5f),
+                        new LatticePhraseQuery(new Term[]{quick, fox}, 0, true, 1, 0.25f, function, decoder, false,
+                                0.5f)};
+                for (Query query : queries) {
+                    TopDocs hits = searcher.search(query, 10);
+                    assertEquals(query.toString(), 1, hits.totalHits.value);
+                    assertEquals(query.toString(), 0, hits.scoreDocs[0].doc);
+                }
+            }
+        }
+    }
+
+    public void testPosteriorIsExpectedCount() throws IOException {
+        List<String> docs = randomLattices();
+        try (Directory dir = indexLattices(LatticePayloadEncoding.FLOAT, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            for (int i = 0; i < 20; i++) {
+                String[] words = new String[randomIntBetween(1, 3)];
+                Term[] terms = new Term[words.length];
+                for (int t = 0; t < words.length; t++) {
+                    words[t] = randomFrom(WORDS);
+                    terms[t] = new Term(FIELD, words[t]);
+                }
+                int slop = randomIntBetween(0, 5);
+                LatticePhraseQuery query = new LatticePhraseQuery(terms, slop, new PosteriorLatticePayloadFunction(),
+                        new FloatDecoder(), false);
+                Map<Integer, Float> scores = new HashMap<>();
+                for (ScoreDoc hit : searcher.search(query, reader.maxDoc()).scoreDocs) {
+                    scores.put(hit.doc, hit.score);
+                }
+                // docs are indexed in order into a single segment
+                for (int d = 0; d < docs.size(); d++) {
+                    double expected = expectedCount(docs.get(d), words, slop);
+                    if (expected == 0) {
+                        assertFalse(query + " doc " + d, scores.containsKey(d));
+                    } else {
+                        assertEquals(query + " doc " + d, expected, scores.get(d), expected * 0.0001);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the sum, over every in order path through {@code lattice} matching {@code words} within {@code slop},
+     * of the product of the path's scores
+     */
+    private static double expectedCount(String lattice, String[] words, int slop) {
+        List<String[]> arcs = new ArrayList<>();
+        for (String arc : lattice.trim().split(" ")) {
+            arcs.add(arc.split("\\|"));
+        }
+        return expectedCount(arcs, words, slop, 0, -1, -1, 1.0);
+    }
+
+    private static double expectedCount(List<String[]> arcs, String[] words, int slop, int word, int start,
+                                        int previous, double score) {
+        if (word == words.length) {
+            return previous - start - (words.length - 1) <= slop ? score : 0;
+        }
+        double count = 0;
+        for (String[] arc : arcs) {
+            int position = Integer.parseInt(arc[1]);
+            if (arc[0].equals(words[word]) && position > previous) {
+                count += expectedCount(arcs, words, slop, word + 1, word == 0 ? position : start, position,
+                        score * Float.parseFloat(arc[3]));
+            }
+        }
+        return count;
+    }
+
+    public void testMaxScoreBoundsScores() throws IOException {
+        List<String> docs = randomLattices();
+        for (LatticePayloadEncoding encoding : LatticePayloadEncoding.values()) {
+            try (Directory dir = indexLattices(encoding, docs);
+                 DirectoryReader reader = DirectoryReader.open(dir)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                for (int i = 0; i < 20; i++) {
+                    SpanQuery spanQuery = randomSpanQuery();
+                    LatticePayloadScoreFunction function = randomFrom(new SumLatticePayloadFunction(1.0f),
+                            new MaxLatticePayloadFunction(randomFrom(0.0f, 0.5f, 1.0f)),
+                            new MinLatticePayloadFunction(randomFrom(0.0f, 0.5f, 1.0f)));
+                    LatticePayloadScoreQuery query = new LatticePayloadScoreQuery(spanQuery, function,
+                            new LatticePayloadDecoder(encoding), randomBoolean());
+                    Weight weight = searcher.createWeight(searcher.rewrite(query), ScoreMode.TOP_SCORES, 1.0f);
+                    // summed span scores have no bound
+                    boolean bounded = encoding.maxScore() <= 1.0f
+                            && function.getClass() != SumLatticePayloadFunction.class;
+                    for (LeafReaderContext ctx : reader.leaves()) {
+                        Scorer scorer = weight.scorer(ctx);
+                        if (scorer == null) {
+                            continue;
+                        }
+                        float maxScore = scorer.getMaxScore(DocIdSetIterator.NO_MORE_DOCS);
+                        assertEquals(query.toString(), bounded, maxScore != Float.POSITIVE_INFINITY);
+                        DocIdSetIterator it = scorer.iterator();
+                        while (it.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                            assertTrue(query + " doc " + it.docID(), scorer.score() <= maxScore);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public void testSkipsNonCompetitiveDocs() throws IOException {
+        int numDocs = randomIntBetween(20, 50);
+        List<String> docs = new ArrayList<>(Collections.nCopies(numDocs, "quick|0|0|1.0 fox|1|0|1.0"));
+        LatticePayloadEncoding encoding = randomFrom(LatticePayloadEncoding.LINEAR_8, LatticePayloadEncoding.LOG_16);
+        try (Directory dir = indexLattices(encoding, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            SpanQuery spanQuery = new SpanNearQuery.Builder(FIELD, true)
+                    .addClause(new SpanTermQuery(new Term(FIELD, "quick")))
+                    .addClause(new SpanTermQuery(new Term(FIELD, "fox")))
+                    .build();
+            LatticePayloadScoreQuery query = new LatticePayloadScoreQuery(spanQuery, new MaxLatticePayloadFunction(1.0f),
+                    new LatticePayloadDecoder(encoding), false);
+
+            // every doc scores the most any doc can, so nothing after the first page can compete
+            TopScoreDocCollector collector = TopScoreDocCollector.create(5, 5);
+            searcher.search(query, collector);
+            TopDocs topDocs = collector.topDocs();
+            assertEquals(5, topDocs.scoreDocs.length);
+            assertEquals(TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO, topDocs.totalHits.relation);
+            assertTrue(topDocs.totalHits.value < numDocs);
+
+            // counting all hits still visits every doc
+            assertEquals(numDocs, searcher.count(query));
+            assertEquals(numDocs, searcher.search(query, 5).totalHits.value);
+        }
+    }
+
+    public void testTermPayloadQueryBoundsScoresByImpacts() throws IOException {
+        List<String> docs = randomLattices();
+        LatticePayloadEncoding encoding = randomFrom(LatticePayloadEncoding.LINEAR_8, LatticePayloadEncoding.LINEAR_16,
+                LatticePayloadEncoding.LOG_8, LatticePayloadEncoding.LOG_16);
+        try (Directory dir = indexLattices(encoding, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            for (String word : WORDS) {
+                LatticePayloadScoreFunction function = randomFrom(new SumLatticePayloadFunction(1.0f),
+                        new MaxLatticePayloadFunction(0.0f), new PosteriorLatticePayloadFunction());
+                LatticeTermPayloadQuery query = new LatticeTermPayloadQuery(new Term(FIELD, word), function,
+                        new LatticePayloadDecoder(encoding), randomBoolean());
+                Weight weight = searcher.createWeight(searcher.rewrite(query), ScoreMode.TOP_SCORES, 1.0f);
+                for (LeafReaderContext ctx : reader.leaves()) {
+                    Scorer scorer = weight.scorer(ctx);
+                    if (scorer == null) {
+                        continue;
+                    }
+                    // sums over a term's positions are bounded by its frequency
+                    scorer.advanceShallow(0);
+                    float maxScore = scorer.getMaxScore(DocIdSetIterator.NO_MORE_DOCS);
+                    assertTrue(query.toString(), maxScore < Float.POSITIVE_INFINITY);
+                    DocIdSetIterator it = scorer.iterator();
+                    while (it.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                        scorer.advanceShallow(it.docID());
+                        assertTrue(query + " doc " + it.docID(), scorer.score() <= scorer.getMaxScore(it.docID()));
+                    }
+                }
+            }
+        }
+    }
+
+    public void testPhraseQueryBoundsScoresByImpacts() throws IOException {
+        List<String> docs = randomLattices();
+        LatticePayloadEncoding encoding = randomFrom(LatticePayloadEncoding.LINEAR_8, LatticePayloadEncoding.LINEAR_16,
+                LatticePayloadEncoding.LOG_8, LatticePayloadEncoding.LOG_16);
+        try (Directory dir = indexLattices(encoding, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            for (int i = 0; i < 20; i++) {
+                Term[] terms = new Term[randomIntBetween(2, 3)];
+                for (int t = 0; t < terms.length; t++) {
+                    terms[t] = new Term(FIELD, randomFrom(WORDS));
+                }
+                LatticePayloadScoreFunction function = randomFrom(new SumLatticePayloadFunction(1.0f),
+                        new MaxLatticePayloadFunction(0.0f), new PosteriorLatticePayloadFunction());
+                LatticePhraseQuery query = new LatticePhraseQuery(terms, randomIntBetween(0, 3), function,
+                        new LatticePayloadDecoder(encoding), randomBoolean());
+                Weight weight = searcher.createWeight(searcher.rewrite(query), ScoreMode.TOP_SCORES, 1.0f);
+                for (LeafReaderContext ctx : reader.leaves()) {
+                    Scorer scorer = weight.scorer(ctx);
+                    if (scorer == null) {
+                        continue;
+                    }
+                    // spans start at occurrences of the first term, so even summed spans are bounded by its frequency
+                    scorer.advanceShallow(0);
+                    assertTrue(query.toString(), scorer.getMaxScore(DocIdSetIterator.NO_MORE_DOCS)
+                            < Float.POSITIVE_INFINITY);
+                    DocIdSetIterator it = scorer.iterator();
+                    while (it.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                        scorer.advanceShallow(it.docID());
+                        assertTrue(query + " doc " + it.docID(), scorer.score() <= scorer.getMaxScore(it.docID()));
+                    }
+                }
+
+                // skipping non-competitive blocks doesn't change the top hits
+                TopScoreDocCollector pruned = TopScoreDocCollector.create(3, 3);
+                searcher.search(query, pruned);
+                TopScoreDocCollector exhaustive = TopScoreDocCollector.create(3, Integer.MAX_VALUE);
+                searcher.search(query, exhaustive);
+                ScoreDoc[] expected = exhaustive.topDocs().scoreDocs;
+                ScoreDoc[] actual = pruned.topDocs().scoreDocs;
+                assertEquals(query.toString(), expected.length, actual.length);
+                for (int d = 0; d < expected.length; d++) {
+                    assertEquals(query.toString(), expected[d].score, actual[d].score, expected[d].score * 0.0001f);
+                }
+            }
+        }
+    }
+
+    public void testBagOfWordsTopHits() throws IOException {
+        List<String> docs = randomLattices();
+        LatticePayloadEncoding encoding = randomFrom(LatticePayloadEncoding.LINEAR_8, LatticePayloadEncoding.LOG_16);
+        try (Directory dir = indexLattices(encoding, docs);
+             DirectoryReader reader = DirectoryReader.open(dir)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            for (int i = 0; i < 3; i++) {
+                builder.add(new LatticeTermPayloadQuery(new Term(FIELD, randomFrom(WORDS)),
+                        new PosteriorLatticePayloadFunction(), new LatticePayloadDecoder(encoding), false),
+                        BooleanClause.Occur.SHOULD);
+            }
+            BooleanQuery query = builder.build();
+
+            // skipping non-competitive docs doesn't change the top hits
+            TopScoreDocCollector pruned = TopScoreDocCollector.create(3, 3);
+            searcher.search(query, pruned);
+            TopScoreDocCollector exhaustive = TopScoreDocCollector.create(3, Integer.MAX_VALUE);
+            searcher.search(query, exhaustive);
+            ScoreDoc[] expected = exhaustive.topDocs().scoreDocs;
+            ScoreDoc[] actual = pruned.topDocs().scoreDocs;
+            assertEquals(expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i].score, actual[i].score, expected[i].score * 0.0001f);
+            }
+        }
+    }
+
+    public void testMinSpanLength() {
+        SpanTermQuery quick = new SpanTermQuery(new Term(FIELD, "quick"));
+        SpanTermQuery fox = new SpanTermQuery(new Term(FIELD, "fox"));
+        SpanQuery ordered = new SpanNearQuery(new SpanQuery[]{quick, fox, quick}, 2, true);
+        SpanQuery unordered = new SpanNearQuery(new SpanQuery[]{quick, fox}, 2, false);
+        assertEquals(1, LatticePayloadScoreQuery.minSpanLength(quick));
+        assertEquals(3, LatticePayloadScoreQuery.minSpanLength(ordered));
+        assertEquals(1, LatticePayloadScoreQuery.minSpanLength(unordered));
+        assertEquals(1, LatticePayloadScoreQuery.minSpanLength(new SpanOrQuery(ordered, unordered)));
+        assertEquals(3, LatticePayloadScoreQuery.minSpanLength(
+                new SpanNearQuery(new SpanQuery[]{ordered, unordered}, 0, false)));
+    }
+
+    private static SpanQuery randomSpanQuery() {
+        int numTerms = randomIntBetween(1, 3);
+        if (numTerms == 1) {
+            return new SpanTermQuery(new Term(FIELD, randomFrom(WORDS)));
+        }
+        SpanNearQuery.Builder builder = new SpanNearQuery.Builder(FIELD, randomBoolean()).setSlop(randomIntBetween(0, 3));
+        for (int t = 0; t < numTerms; t++) {
+            builder.addClause(new SpanTermQuery(new Term(FIELD, randomFrom(WORDS))));
+        }
+        return builder.build();
+    }
+
+    private void assertSameScores(List<String> docs, LatticePayloadEncoding encoding, float tolerance)
+            throws IOException {
+        try (Directory floatDir = indexLattices(LatticePayloadEncoding.FLOAT, docs);
+             Directory logDir = indexLattices(encoding, docs);
+             DirectoryReader floatReader = DirectoryReader.open(floatDir);
+             DirectoryReader logReader = DirectoryReader.open(logDir)) {
+            for (int i = 0; i < 20; i++) {
+                int numTerms = randomIntBetween(1, 3);
+                SpanQuery spanQuery;
+                if (numTerms == 1) {
+                    spanQuery = new SpanTermQuery(new Term(FIELD, randomFrom(WORDS)));
+                } else {
+                    SpanNearQuery.Builder builder = new SpanNearQuery.Builder(FIELD, true).setSlop(randomIntBetween(0, 3));
+                    for (int t = 0; t < numTerms; t++) {
+                        builder.addClause(new SpanTermQuery(new Term(FIELD, randomFrom(WORDS))));
+                    }
+                    spanQuery = builder.build();
+                }
+                LatticePayloadScoreFunction function = randomFrom(new SumLatticePayloadFunction(1.0f),
+                        new MaxLatticePayloadFunction(0.0f), new MinLatticePayloadFunction(1.0f));
+
+                Map<Integer, Float> floatScores = scores(floatReader, spanQuery, function, new FloatDecoder());
+                Map<Integer, Float> logScores = scores(logReader, spanQuery, function,
+                        new LatticePayloadDecoder(encoding));
+                assertEquals(floatScores.keySet(), logScores.keySet());
+                for (Map.Entry<Integer, Float> e : floatScores.entrySet()) {
+                    float expected = e.getValue();
+                    assertEquals(encoding + " " + spanQuery + " doc " + e.getKey(),
+                            expected, logScores.get(e.getKey()), expected * tolerance);
+                }
+            }
+        }
+    }
+
+    private static Map<Integer, Float> scores(DirectoryReader reader, SpanQuery spanQuery,
+                                              LatticePayloadScoreFunction function, PayloadDecoder decoder)
+            throws IOException {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        TopDocs hits = searcher.search(new LatticePayloadScoreQuery(spanQuery, function, decoder, false),
+                reader.maxDoc());
+        Map<Integer, Float> scores = new HashMap<>();
+        for (ScoreDoc hit : hits.scoreDocs) {
+            scores.put(hit.doc, hit.score);
+        }
+        return scores;
+    }
+
+    private static List<String> randomLattices() {
+        List<String> docs = new ArrayList<>();
+        int numDocs = randomIntBetween(5, 30);
+        for (int d = 0; d < numDocs; d++) {
+            StringBuilder doc = new StringBuilder();
+            int numPositions = randomIntBetween(1, 20);
+            for (int pos = 0; pos < numPositions; pos++) {
+                int numArcs = randomIntBetween(1, 3);
+                for (int rank = 0; rank < numArcs; rank++) {
+                    doc.append(randomFrom(WORDS)).append('|').append(pos).append('|').append(rank).append('|')
+                            .append(randomFloat() * 0.99f + 0.01f).append(' ');
+                }
+            }
+            docs.add(doc.toString());
+        }
+        return docs;
+    }
+
+    private Directory indexLattices(LatticePayloadEncoding encoding, List<String> docs) throws IOException {
+        Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(Environment.PATH_HOME_SETTING.getKey(), createTempDir())
+                .put("index.analysis.filter.my_filter.type", "lattice")
+                .put("index.analysis.filter.my_filter.payload_encoding", encoding.getName())
+                .build();
+        TokenFilterFactory filter = AnalysisTestsHelper.createTestAnalysisFromSettings(settings, new LatticeIndexPlugin(Settings.EMPTY))
+                .tokenFilter.get("my_filter");
+        Analyzer analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(tokenizer, filter.create(tokenizer));
+            }
+        };
+        Directory dir = new ByteBuffersDirectory();
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(analyzer))) {
+            for (String text : docs) {
+                Document doc = new Document();
+                doc.add(new Field(FIELD, text, TextField.TYPE_NOT_STORED));
+                writer.addDocument(doc);
+            }
+        }
+        return dir;
+    }
+}
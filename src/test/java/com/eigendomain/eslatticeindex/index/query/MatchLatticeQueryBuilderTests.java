@@ -18,15 +18,23 @@
 package com.eigendomain.eslatticeindex.index.query;
 
 import com.eigendomain.eslatticeindex.plugin.LatticeIndexPlugin;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FuzzyQuery;
 import org.apache.lucene.search.IndexOrDocValuesQuery;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.MultiTermQuery;
 import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.PointRangeQuery;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
 import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.index.query.Operator;
+import org.elasticsearch.index.query.QueryShardContext;
 import org.elasticsearch.index.query.QueryShardException;
 import org.elasticsearch.index.search.MatchQuery;
 import org.elasticsearch.plugins.Plugin;
@@ -57,7 +65,11 @@ public class MatchLatticeQueryBuilderTests extends AbstractQueryTestCase<MatchLa
             int terms = randomIntBetween(0, 3);
             StringBuilder builder = new StringBuilder();
             for (int i = 0; i < terms; i++) {
-                builder.append(randomAlphaOfLengthBetween(1, 10)).append(" ");
+                builder.append(randomAlphaOfLengthBetween(1, 10));
+                if (rarely()) {
+                    builder.append(randomFrom("*", "~", "~1"));
+                }
+                builder.append(" ");
             }
             value = builder.toString().trim();
         } else {
@@ -86,10 +98,50 @@ public class MatchLatticeQueryBuilderTests extends AbstractQueryTestCase<MatchLa
             query.includeSpanScore(randomBoolean());
         }
 
+        if (randomBoolean()) {
+            query.payloadFuncString(randomFrom("sum", "max", "min", "posterior"));
+        }
+
         if (randomBoolean()) {
             query.slopSeconds((float)randomDoubleBetween(0.5, 10, true));
         }
 
+        if (randomBoolean()) {
+            query.minSpanScore(randomFloat());
+        }
+
+        if (randomBoolean() && query.inOrder()) {
+            query.minimumTermsMatched(randomIntBetween(0, 3));
+        }
+
+        if (randomBoolean()) {
+            query.missingTermPenalty(randomFloat() * 0.9f + 0.1f);
+        }
+
+        if (randomBoolean()) {
+            query.operator(randomFrom(Operator.values()));
+        }
+
+        if (randomBoolean()) {
+            query.minimumShouldMatch(randomMinimumShouldMatch());
+        }
+
+        if (randomBoolean()) {
+            query.expandTerms(randomBoolean());
+        }
+
+        if (randomBoolean()) {
+            query.maxExpansions(randomIntBetween(1, 100));
+        }
+
+        if (randomBoolean()) {
+            query.cascade(randomBoolean());
+        }
+
+        if (randomBoolean()) {
+            query.cascadeMinHits(randomIntBetween(1, 100));
+        }
+
         return query;
     }
 
@@ -105,6 +157,8 @@ public class MatchLatticeQueryBuilderTests extends AbstractQueryTestCase<MatchLa
         assertThat(query, CoreMatchers.either(instanceOf(BooleanQuery.class))
                 .or(instanceOf(PhraseQuery.class))
                 .or(instanceOf(LatticePayloadScoreQuery.class))
+                .or(instanceOf(LatticeTermPayloadQuery.class))
+                .or(instanceOf(LatticePhraseQuery.class))
                 .or(instanceOf(PointRangeQuery.class))
                 .or(instanceOf(IndexOrDocValuesQuery.class))
                 .or(instanceOf(TermQuery.class))
@@ -117,6 +171,99 @@ public class MatchLatticeQueryBuilderTests extends AbstractQueryTestCase<MatchLa
 
         e = expectThrows(IllegalArgumentException.class, () -> new MatchLatticeQueryBuilder("fieldName", null));
         assertEquals("[match_lattice] requires query value", e.getMessage());
+
+        e = expectThrows(IllegalArgumentException.class,
+                () -> new MatchLatticeQueryBuilder("fieldName", "value").minSpanScore(-0.5f));
+        assertEquals("[match_lattice] requires min_span_score to be >= 0, got -0.5", e.getMessage());
+
+        e = expectThrows(IllegalArgumentException.class,
+                () -> new MatchLatticeQueryBuilder("fieldName", "value").maxExpansions(0));
+        assertEquals("[match_lattice] requires max_expansions to be >= 1, got 0", e.getMessage());
+
+        e = expectThrows(IllegalArgumentException.class,
+                () -> new MatchLatticeQueryBuilder("fieldName", "value").cascadeMinHits(0));
+        assertEquals("[match_lattice] requires cascade_min_hits to be >= 1, got 0", e.getMessage());
+    }
+
+    public void testAnalysisCache() throws IOException {
+        LatticeQueryAnalysisCache cache = new LatticeQueryAnalysisCache(1);
+        QueryShardContext context = createShardContext();
+        Query first = new MatchLatticeQueryBuilder(STRING_FIELD_NAME, "quick fox").analysisCache(cache).toQuery(context);
+        Query second = new MatchLatticeQueryBuilder(STRING_FIELD_NAME, "quick fox").analysisCache(cache).toQuery(context);
+        assertEquals(first, second);
+        assertEquals(new MatchLatticeQueryBuilder(STRING_FIELD_NAME, "quick fox").toQuery(context), first);
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+
+        // a different analyzer is a different entry, and pushes the first one out
+        new MatchLatticeQueryBuilder(STRING_FIELD_NAME, "quick fox").analyzerString("simple").analysisCache(cache)
+                .toQuery(context);
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+        assertEquals(1, cache.evictions());
+        assertEquals(1, cache.count());
+    }
+
+    public void testBagOfWords() throws IOException {
+        QueryShardContext context = createShardContext();
+        Query query = new MatchLatticeQueryBuilder(STRING_FIELD_NAME, "quick brown fox").minimumShouldMatch("2")
+                .toQuery(context);
+        assertThat(query, instanceOf(BooleanQuery.class));
+        BooleanQuery bq = (BooleanQuery) query;
+        assertEquals(2, bq.getMinimumNumberShouldMatch());
+        assertEquals(3, bq.clauses().size());
+        for (BooleanClause clause : bq.clauses()) {
+            assertEquals(BooleanClause.Occur.SHOULD, clause.getOccur());
+            assertThat(clause.getQuery(), instanceOf(LatticeTermPayloadQuery.class));
+        }
+
+        query = new MatchLatticeQueryBuilder(STRING_FIELD_NAME, "quick brown fox").operator(Operator.AND)
+                .toQuery(context);
+        assertThat(query, instanceOf(BooleanQuery.class));
+        for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+            assertEquals(BooleanClause.Occur.MUST, clause.getOccur());
+        }
+    }
+
+    public void testMinimumTermsMatched() throws IOException {
+        QueryShardContext context = createShardContext();
+        Query query = new MatchLatticeQueryBuilder(STRING_FIELD_NAME, "quick brown fox").minimumTermsMatched(2)
+                .missingTermPenalty(0.25f).toQuery(context);
+        assertThat(query, instanceOf(LatticePhraseQuery.class));
+        assertEquals(2, ((LatticePhraseQuery) query).getMinTermsMatched());
+        assertEquals(0.25f, ((LatticePhraseQuery) query).getMissingTermPenalty(), 0.0f);
+
+        // more than there are terms needs every term
+        query = new MatchLatticeQueryBuilder(STRING_FIELD_NAME, "quick brown fox").minimumTermsMatched(5)
+                .toQuery(context);
+        assertEquals(3, ((LatticePhraseQuery) query).getMinTermsMatched());
+
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> new MatchLatticeQueryBuilder(STRING_FIELD_NAME, "quick brown fox").minimumTermsMatched(2)
+                        .inOrder(false).toQuery(context));
+        assertEquals("[match_lattice] minimum_terms_matched requires in_order", e.getMessage());
+        expectThrows(IllegalArgumentException.class,
+                () -> new MatchLatticeQueryBuilder(STRING_FIELD_NAME, "quick").missingTermPenalty(0.0f));
+    }
+
+    public void testExpandTerms() throws IOException {
+        QueryShardContext context = createShardContext();
+        Query query = new MatchLatticeQueryBuilder(STRING_FIELD_NAME, "Qui* brown b?x fox~1").expandTerms(true)
+                .maxExpansions(10).toQuery(context);
+        assertThat(query, instanceOf(LatticePhraseQuery.class));
+        LatticePhraseQuery phraseQuery = (LatticePhraseQuery) query;
+        assertEquals(10, phraseQuery.getMaxExpansions());
+        MultiTermQuery[] expansions = phraseQuery.getExpansions();
+        assertEquals(4, expansions.length);
+        assertEquals(new PrefixQuery(new Term(STRING_FIELD_NAME, "qui")), expansions[0]);
+        assertNull(expansions[1]);
+        assertEquals(new WildcardQuery(new Term(STRING_FIELD_NAME, "b?x")), expansions[2]);
+        assertEquals(new FuzzyQuery(new Term(STRING_FIELD_NAME, "fox"), 1, 0, 10, true), expansions[3]);
+        assertEquals(new Term(STRING_FIELD_NAME, "brown"), phraseQuery.getTermArrays()[1][0]);
+
+        // without expand_terms the analyzer drops the wildcards
+        query = new MatchLatticeQueryBuilder(STRING_FIELD_NAME, "qui* brown").toQuery(context);
+        assertNull(((LatticePhraseQuery) query).getExpansions());
     }
 
     public void testBadAnalyzer() throws IOException {
@@ -144,6 +291,13 @@ public class MatchLatticeQueryBuilderTests extends AbstractQueryTestCase<MatchLa
                 "      \"include_span_score\" : true,\n" +
                 "      \"payload_function\" : \"sum\",\n" +
                 "      \"payload_length_norm_factor\" : 1.0,\n" +
+                "      \"min_span_score\" : 0.0,\n" +
+                "      \"minimum_terms_matched\" : 0,\n" +
+                "      \"missing_term_penalty\" : 0.5,\n" +
+                "      \"expand_terms\" : false,\n" +
+                "      \"max_expansions\" : 50,\n" +
+                "      \"cascade\" : false,\n" +
+                "      \"cascade_min_hits\" : 10,\n" +
                 "      \"boost\" : 1.0\n" +
                 "    }\n" +
                 "  }\n" +
@@ -164,6 +318,15 @@ public class MatchLatticeQueryBuilderTests extends AbstractQueryTestCase<MatchLa
                 "      \"include_span_score\" : false,\n" +
                 "      \"payload_function\" : \"max\",\n" +
                 "      \"payload_length_norm_factor\" : 0.5,\n" +
+                "      \"min_span_score\" : 0.25,\n" +
+                "      \"minimum_terms_matched\" : 3,\n" +
+                "      \"missing_term_penalty\" : 0.1,\n" +
+                "      \"expand_terms\" : true,\n" +
+                "      \"max_expansions\" : 20,\n" +
+                "      \"cascade\" : true,\n" +
+                "      \"cascade_min_hits\" : 5,\n" +
+                "      \"operator\" : \"OR\",\n" +
+                "      \"minimum_should_match\" : \"75%\",\n" +
                 "      \"boost\" : 1.0\n" +
                 "    }\n" +
                 "  }\n" +
@@ -175,6 +338,15 @@ public class MatchLatticeQueryBuilderTests extends AbstractQueryTestCase<MatchLa
         assertEquals(json, "this is a test", parsed.value());
         assertEquals(json, 2, parsed.slop());
         assertEquals(json, MatchQuery.ZeroTermsQuery.ALL, parsed.zeroTermsQuery());
+        assertEquals(json, 0.25f, parsed.minSpanScore(), 0.0f);
+        assertEquals(json, Operator.OR, parsed.operator());
+        assertEquals(json, "75%", parsed.minimumShouldMatch());
+        assertEquals(json, 3, parsed.minimumTermsMatched());
+        assertEquals(json, 0.1f, parsed.missingTermPenalty(), 0.0f);
+        assertTrue(json, parsed.expandTerms());
+        assertEquals(json, 20, parsed.maxExpansions());
+        assertTrue(json, parsed.cascade());
+        assertEquals(json, 5, parsed.cascadeMinHits());
     }
 
     public void testParseFailsWithMultipleFields() throws IOException {
@@ -0,0 +1,50 @@
+package com.eigendomain.eslatticeindex.index.query;
+
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Assert;
+
+public class PosteriorLatticePayloadFunctionTests extends ESTestCase {
+
+    public void testSpanScore() {
+        LatticePayloadScoreFunction function = new PosteriorLatticePayloadFunction();
+        float actual = function.spanScore(0, "", 1, 3, 0, 2, 0, (float) Math.log(0.06f));
+        Assert.assertEquals(0.06f, actual, 0.000001f);
+
+        actual = function.spanScore(0, "", 4, 6, 0, 2, actual, (float) Math.log(0.5f));
+        Assert.assertEquals(0.56f, actual, 0.000001f);
+    }
+
+    public void testCurrentLeafScore() {
+        LatticePayloadScoreFunction function = new PosteriorLatticePayloadFunction();
+        float actual = function.currentLeafScore(0, "", 1, 2, 0, 0, 0.6f);
+        Assert.assertEquals(Math.log(0.6f), actual, 0.000001f);
+
+        actual = function.currentLeafScore(0, "", 1, 2, 1, actual, 0.03f);
+        Assert.assertEquals(Math.log(0.6f * 0.03f), actual, 0.000001f);
+
+        // unlike the sum function there is no floor on a path's score, but a path through a 0 score still matches
+        actual = function.currentLeafScore(0, "", 1, 2, 3, -12.5f, 0.000001f);
+        Assert.assertEquals(-12.5f + Math.log(0.000001f), actual, 0.00001f);
+        actual = function.currentLeafScore(0, "", 1, 2, 3, -12.5f, 0.0f);
+        Assert.assertEquals(-Float.MAX_VALUE, actual, 0.0f);
+        Assert.assertEquals(0.0f, function.spanScore(0, "", 1, 2, 0, 1, 0, actual), 0.0f);
+    }
+
+    public void testSumPaths() {
+        for (int i = 0; i < 100; i++) {
+            float a = randomFloat();
+            float b = randomFloat();
+            Assert.assertEquals(Math.log(a + b),
+                    LatticePayloadScoreFunction.sumPaths((float) Math.log(a), (float) Math.log(b)), 0.00001f);
+        }
+        Assert.assertEquals(-2.0f, LatticePayloadScoreFunction.sumPaths(Float.NEGATIVE_INFINITY, -2.0f), 0.0f);
+        Assert.assertTrue(new PosteriorLatticePayloadFunction().sumsPaths());
+        Assert.assertFalse(new SumLatticePayloadFunction(1.0f).sumsPaths());
+    }
+
+    public void testDocScore() {
+        LatticePayloadScoreFunction function = new PosteriorLatticePayloadFunction();
+        Assert.assertEquals(0.0f, function.docScore(0, "", 0, 0.9987f), 0.0f);
+        Assert.assertEquals(0.12345f, function.docScore(0, "", 1, 0.12345f), 0.0f);
+    }
+}
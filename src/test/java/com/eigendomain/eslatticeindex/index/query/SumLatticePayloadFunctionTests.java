@@ -71,6 +71,20 @@ public class SumLatticePayloadFunctionTests extends ESTestCase {
         Assert.assertEquals(expected, actual, 0.000001f);
     }
 
+    public void testCurrentLeafLogScore() {
+        LatticePayloadScoreFunction function = new SumLatticePayloadFunction(1.0f);
+        for (int i = 0; i < 100; i++) {
+            float currentScore = -10 * randomFloat();
+            float payload = randomFloat();
+            Assert.assertEquals(
+                    function.currentLeafScore(0, "", 1, 2, 0, currentScore, payload),
+                    function.currentLeafLogScore(0, "", 1, 2, 0, currentScore, (float) Math.log(payload)),
+                    0.0f);
+        }
+        Assert.assertEquals(SumLatticePayloadFunction.MIN_LOG_SCORE,
+                function.currentLeafLogScore(0, "", 1, 2, 3, -12.5f, (float) Math.log(0.03f)), 0.000001f);
+    }
+
     public void testDocScore() {
         LatticePayloadScoreFunction function = new SumLatticePayloadFunction(1.0f);
 
@@ -17,17 +17,37 @@
 
 package com.eigendomain.eslatticeindex.mapper;
 
+import com.eigendomain.eslatticeindex.index.LatticePayloadEncoding;
+import com.eigendomain.eslatticeindex.index.query.LatticeCascadeQuery;
+import com.eigendomain.eslatticeindex.index.query.LatticeMaterializedPhraseQuery;
+import com.eigendomain.eslatticeindex.index.query.LatticePhraseQuery;
+import com.eigendomain.eslatticeindex.index.query.LatticeTermPayloadQuery;
+import com.eigendomain.eslatticeindex.index.query.MatchLatticeQueryBuilder;
 import com.eigendomain.eslatticeindex.mapper.LatticeFieldMapper.LatticeFieldType;
 import com.eigendomain.eslatticeindex.plugin.LatticeIndexPlugin;
+import org.apache.lucene.analysis.payloads.PayloadHelper;
 import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.search.join.ScoreMode;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.IndexableFieldType;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.spans.FieldMaskingSpanQuery;
+import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
 import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.compress.CompressedXContent;
@@ -39,14 +59,17 @@ import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.IndexService;
 import org.elasticsearch.index.VersionType;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.engine.Engine;
 import org.elasticsearch.index.mapper.DocumentMapper;
 import org.elasticsearch.index.mapper.DocumentMapperParser;
 import org.elasticsearch.index.mapper.MapperParsingException;
 import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.mapper.ParseContext;
 import org.elasticsearch.index.mapper.ParsedDocument;
 import org.elasticsearch.index.mapper.SourceToParse;
 import org.elasticsearch.index.mapper.TextFieldMapper;
+import org.elasticsearch.index.query.QueryShardContext;
 import org.elasticsearch.index.seqno.SequenceNumbers;
 import org.elasticsearch.index.shard.IndexShard;
 import org.elasticsearch.plugins.Plugin;
@@ -62,6 +85,8 @@ import java.util.Map;
 
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
 
 public class LatticeFieldMapperTests extends ESSingleNodeTestCase {
    private IndexService indexService;
@@ -73,6 +98,7 @@ public class LatticeFieldMapperTests extends ESSingleNodeTestCase {
                 .put("index.analysis.analyzer.lat_ana.tokenizer", "standard")
                 .put("index.analysis.analyzer.lat_ana.filter", "lat_filt")
                 .put("index.analysis.filter.lat_filt.type", "lattice")
+                .put("index.analysis.analyzer.lat_tok_ana.tokenizer", "lattice")
                 .build();
         indexService = createIndex("test", settings);
         parser = indexService.mapperService().documentMapperParser();
@@ -121,6 +147,7 @@ public class LatticeFieldMapperTests extends ESSingleNodeTestCase {
         LatticeFieldType latFieldType = (LatticeFieldType) fieldType;
         assertThat(latFieldType.audioPositionIncrementSeconds(), equalTo(0.01f));
         assertThat(latFieldType.latticeFormat(), equalTo("lattice"));
+        assertThat(latFieldType.payloadEncoding(), equalTo(LatticePayloadEncoding.FLOAT));
     }
 
     public void testExtraOptions() throws IOException {
@@ -152,6 +179,44 @@ public class LatticeFieldMapperTests extends ESSingleNodeTestCase {
         assertThat(latFieldType.latticeFormat(), equalTo("audio"));
     }
 
+    public void testPayloadEncoding() throws IOException {
+        String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field").field("type", getFieldType())
+                .field("payload_encoding", "log_16")
+                .endObject().endObject()
+                .endObject().endObject());
+
+        DocumentMapper mapper = parser.parse("type", new CompressedXContent(mapping));
+
+        assertEquals(mapping, mapper.mappingSource().toString());
+
+        LatticeFieldType latFieldType = ((LatticeFieldMapper) mapper.mappers().getMapper("field")).fieldType();
+        assertThat(latFieldType.payloadEncoding(), equalTo(LatticePayloadEncoding.LOG_16));
+        assertThat(latFieldType.clone().payloadEncoding(), equalTo(LatticePayloadEncoding.LOG_16));
+
+        String badMapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field").field("type", getFieldType())
+                .field("payload_encoding", "bogus")
+                .endObject().endObject()
+                .endObject().endObject());
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> parser.parse("type", new CompressedXContent(badMapping)));
+        assertThat(e.getMessage(), containsString("Invalid payload encoding 'bogus'"));
+
+        indexService.mapperService().merge("type", new CompressedXContent(mapping),
+                MapperService.MergeReason.MAPPING_UPDATE);
+        String changed = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field").field("type", getFieldType())
+                .field("payload_encoding", "float")
+                .endObject().endObject()
+                .endObject().endObject());
+        e = expectThrows(IllegalArgumentException.class,
+                () -> indexService.mapperService().merge("type", new CompressedXContent(changed),
+                        MapperService.MergeReason.MAPPING_UPDATE));
+        assertThat(e.getMessage(),
+                containsString("mapper [field] has different [payload_encoding], reindex to change it"));
+    }
+
     public void testEnableStore() throws IOException {
         String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
                 .startObject("properties").startObject("field").field("type", getFieldType()).field("store", true).endObject().endObject()
@@ -308,6 +373,657 @@ public class LatticeFieldMapperTests extends ESSingleNodeTestCase {
         }
     }
 
+    public void testChunkedValues() throws IOException {
+        String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field")
+                .field("type", getFieldType())
+                .field("analyzer", "lat_tok_ana")
+                .field("chunked_values", true)
+                .endObject().endObject()
+                .endObject().endObject());
+
+        DocumentMapper mapper = indexService.mapperService().merge("type",
+                new CompressedXContent(mapping), MapperService.MergeReason.MAPPING_UPDATE);
+
+        assertEquals(mapping, mapper.mappingSource().toString());
+
+        // chunks are joined as they are, so a token may be split across two of them
+        SourceToParse sourceToParse = new SourceToParse("test", "type", "1", BytesReference
+                .bytes(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .array("field", new String[]{"the|0|0|0.9 qu", "ick|1|0|0.5 ", "", "fox|2|0|0.7"})
+                        .endObject()),
+                XContentType.JSON);
+        ParsedDocument doc = mapper.parse(sourceToParse);
+
+        IndexableField[] fields = doc.rootDoc().getFields("field");
+        assertEquals(1, fields.length);
+
+        IndexShard shard = indexService.getShard(0);
+        shard.applyIndexOperationOnPrimary(Versions.MATCH_ANY, VersionType.INTERNAL,
+                sourceToParse, SequenceNumbers.UNASSIGNED_SEQ_NO, 0, IndexRequest.UNSET_AUTO_GENERATED_TIMESTAMP, false);
+        shard.refresh("test");
+        try (Engine.Searcher searcher = shard.acquireSearcher("test")) {
+            LeafReader leaf = searcher.getDirectoryReader().leaves().get(0).reader();
+            TermsEnum terms = leaf.terms("field").iterator();
+            String[] tokens = new String[]{"the", "quick", "fox"};
+            for (int i = 0; i < tokens.length; i++) {
+                assertTrue(terms.seekExact(new BytesRef(tokens[i])));
+                PostingsEnum postings = terms.postings(null, PostingsEnum.POSITIONS);
+                assertEquals(0, postings.nextDoc());
+                assertEquals(i, postings.nextPosition());
+            }
+        }
+
+        String changed = mapping.replace("\"chunked_values\":true", "\"chunked_values\":false");
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> indexService.mapperService().merge("type", new CompressedXContent(changed),
+                        MapperService.MergeReason.MAPPING_UPDATE));
+        assertThat(e.getMessage(),
+                containsString("mapper [field] has different [chunked_values], reindex to change it"));
+    }
+
+    public void testChunkedValuesNotStored() throws IOException {
+        String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field")
+                .field("type", getFieldType())
+                .field("store", true)
+                .field("chunked_values", true)
+                .endObject().endObject()
+                .endObject().endObject());
+
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> parser.parse("type", new CompressedXContent(mapping)));
+        assertThat(e.getMessage(), containsString("[chunked_values] cannot be used on stored [lattice] fields"));
+    }
+
+    public void testSegments() throws IOException {
+        String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("transcript").field("type", "nested")
+                .startObject("properties").startObject("field")
+                .field("type", getFieldType())
+                .field("analyzer", "lat_tok_ana")
+                .field("segment_max_positions", 3)
+                .field("segment_overlap_positions", 1)
+                .endObject().endObject()
+                .endObject().endObject()
+                .endObject().endObject());
+
+        DocumentMapper mapper = indexService.mapperService().merge("type",
+                new CompressedXContent(mapping), MapperService.MergeReason.MAPPING_UPDATE);
+
+        assertEquals(mapping, mapper.mappingSource().toString());
+
+        SourceToParse sourceToParse = new SourceToParse("test", "type", "1", BytesReference
+                .bytes(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .startObject("transcript")
+                        .field("field", "a|0|0|0.9 b|1|0|0.8 bb|1|1|0.2 c|2|0|0.7 d|3|0|0.6 e|4|0|0.5 f|5|0|0.4")
+                        .endObject()
+                        .endObject()),
+                XContentType.JSON);
+        ParsedDocument doc = mapper.parse(sourceToParse);
+
+        // the segments cover positions [0, 3), [2, 5) and [4, 6), nested documents come before the root document
+        assertEquals(4, doc.docs().size());
+        assertEquals(doc.rootDoc(), doc.docs().get(3));
+        Map<Long, String> segments = new HashMap<>();
+        for (ParseContext.Document segment : doc.docs().subList(0, 3)) {
+            segments.put(segment.getField("transcript.field._segment_start_position").numericValue().longValue(),
+                    segment.get("transcript.field"));
+            assertEquals(doc.rootDoc().getField("_id").binaryValue(), segment.getField("_id").binaryValue());
+            assertEquals("__transcript", segment.get("_type"));
+        }
+        assertEquals("a|0|0|0.9 b|1|0|0.8 bb|1|1|0.2 c|2|0|0.7 ", segments.get(0L));
+        assertEquals("c|2|0|0.7 d|3|0|0.6 e|4|0|0.5 ", segments.get(2L));
+        assertEquals("e|4|0|0.5 f|5|0|0.4", segments.get(4L));
+
+        assertNotNull(indexService.mapperService().fullName("transcript.field._segment_start_position"));
+        assertNull(indexService.mapperService().fullName("transcript.field._segment_start_seconds"));
+
+        client().prepareIndex("test", "type", "1").setSource(sourceToParse.source(), XContentType.JSON)
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE).get();
+        for (String phrase : new String[]{"a c", "c d", "d e", "e f"}) {
+            SearchResponse response = client().prepareSearch("test").setQuery(QueryBuilders.nestedQuery("transcript",
+                    new MatchLatticeQueryBuilder("transcript.field", phrase).slop(1), ScoreMode.Max)).get();
+            assertEquals(phrase, 1L, response.getHits().getTotalHits().value);
+        }
+        SearchResponse response = client().prepareSearch("test").setQuery(QueryBuilders.nestedQuery("transcript",
+                new MatchLatticeQueryBuilder("transcript.field", "a f").slop(5), ScoreMode.Max)).get();
+        assertEquals(0L, response.getHits().getTotalHits().value);
+
+        String changed = mapping.replace("\"segment_max_positions\":3", "\"segment_max_positions\":4");
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> indexService.mapperService().merge("type", new CompressedXContent(changed),
+                        MapperService.MergeReason.MAPPING_UPDATE));
+        assertThat(e.getMessage(), containsString(
+                "mapper [transcript.field] has different [segment_max_positions], reindex to change it"));
+
+        String delimiterChanged = mapping.replace("\"segment_overlap_positions\":1",
+                "\"segment_overlap_positions\":1,\"field_delimiter\":\":\"");
+        e = expectThrows(IllegalArgumentException.class,
+                () -> indexService.mapperService().merge("type", new CompressedXContent(delimiterChanged),
+                        MapperService.MergeReason.MAPPING_UPDATE));
+        assertThat(e.getMessage(), containsString(
+                "mapper [transcript.field] has different [field_delimiter], reindex to change it"));
+    }
+
+    public void testSegmentsOutsideNested() throws IOException {
+        String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field")
+                .field("type", getFieldType())
+                .field("segment_max_positions", 3)
+                .endObject().endObject()
+                .endObject().endObject());
+
+        DocumentMapper mapper = parser.parse("type", new CompressedXContent(mapping));
+        MapperParsingException e = expectThrows(MapperParsingException.class, () -> mapper.parse(
+                new SourceToParse("test", "type", "1", BytesReference.bytes(XContentFactory.jsonBuilder()
+                        .startObject().field("field", "a|0|0|0.9").endObject()), XContentType.JSON)));
+        assertThat(e.getCause().getMessage(), containsString("must be inside a [nested] object"));
+    }
+
+    public void testInvalidSegmentSettings() throws IOException {
+        assertInvalidMapping(Collections.singletonMap("segment_max_positions", 0),
+                "[segment_max_positions] must be positive");
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("segment_max_positions", 10);
+        settings.put("segment_overlap_positions", 10);
+        assertInvalidMapping(settings, "[segment_overlap_positions] must be less than [segment_max_positions]");
+        assertInvalidMapping(Collections.singletonMap("segment_max_seconds", 30),
+                "[segment_max_seconds] requires [lattice_format] [audio]");
+        settings = new HashMap<>();
+        settings.put("segment_max_positions", 10);
+        settings.put("chunked_values", true);
+        assertInvalidMapping(settings, "[chunked_values] cannot be used on segmented [lattice] fields");
+    }
+
+    private void assertInvalidMapping(Map<String, Object> fieldSettings, String message) throws IOException {
+        XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field").field("type", getFieldType());
+        for (Map.Entry<String, Object> setting : fieldSettings.entrySet()) {
+            mapping.field(setting.getKey(), setting.getValue());
+        }
+        mapping.endObject().endObject().endObject().endObject();
+        Exception e = expectThrows(Exception.class,
+                () -> parser.parse("type", new CompressedXContent(Strings.toString(mapping))));
+        assertThat(e.getMessage(), containsString(message));
+    }
+
+    public void testIndexPrefixes() throws IOException {
+        String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field")
+                .field("type", getFieldType())
+                .field("analyzer", "lat_tok_ana")
+                .startObject("index_prefixes").field("min_chars", 2).field("max_chars", 4).endObject()
+                .endObject().endObject()
+                .endObject().endObject());
+
+        DocumentMapper mapper = indexService.mapperService().merge("type",
+                new CompressedXContent(mapping), MapperService.MergeReason.MAPPING_UPDATE);
+
+        assertEquals(mapping, mapper.mappingSource().toString());
+        assertNotNull(indexService.mapperService().fullName("field._index_prefix"));
+
+        LatticeFieldType fieldType = (LatticeFieldType) indexService.mapperService().fullName("field");
+        assertNull(fieldType.indexedPrefixTerm("q"));
+        assertEquals(new Term("field._index_prefix", "qui"), fieldType.indexedPrefixTerm("qui"));
+        assertNull(fieldType.indexedPrefixTerm("quick"));
+        assertThat(fieldType.spanPrefixQuery("qui", null, null), instanceOf(FieldMaskingSpanQuery.class));
+        assertThat(fieldType.spanPrefixQuery("quick", null, null), instanceOf(SpanMultiTermQueryWrapper.class));
+
+        SourceToParse sourceToParse = new SourceToParse("test", "type", "1", BytesReference
+                .bytes(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .field("field", "a|0|0|0.9 quick|1|0|0.5 quiet|1|1|0.3 fox|2|0|0.7")
+                        .endObject()),
+                XContentType.JSON);
+        IndexShard shard = indexService.getShard(0);
+        shard.applyIndexOperationOnPrimary(Versions.MATCH_ANY, VersionType.INTERNAL,
+                sourceToParse, SequenceNumbers.UNASSIGNED_SEQ_NO, 0, IndexRequest.UNSET_AUTO_GENERATED_TIMESTAMP, false);
+        shard.refresh("test");
+        try (Engine.Searcher searcher = shard.acquireSearcher("test")) {
+            LeafReader leaf = searcher.getDirectoryReader().leaves().get(0).reader();
+            TermsEnum terms = leaf.terms("field").iterator();
+            assertTrue(terms.seekExact(new BytesRef("quick")));
+            PostingsEnum quick = terms.postings(null, PostingsEnum.PAYLOADS);
+            assertEquals(0, quick.nextDoc());
+            assertEquals(1, quick.nextPosition());
+
+            // both arcs at position 1 share their prefixes, each with its own payload
+            TermsEnum prefixes = leaf.terms("field._index_prefix").iterator();
+            assertTrue(prefixes.seekExact(new BytesRef("qui")));
+            PostingsEnum qui = prefixes.postings(null, PostingsEnum.PAYLOADS);
+            assertEquals(0, qui.nextDoc());
+            assertEquals(2, qui.freq());
+            assertEquals(1, qui.nextPosition());
+            assertEquals(quick.getPayload(), qui.getPayload());
+            assertEquals(1, qui.nextPosition());
+
+            assertTrue(prefixes.seekExact(new BytesRef("fox")));
+            PostingsEnum fox = prefixes.postings(null, PostingsEnum.POSITIONS);
+            assertEquals(0, fox.nextDoc());
+            assertEquals(2, fox.nextPosition());
+            assertFalse(prefixes.seekExact(new BytesRef("a")));
+            assertFalse(prefixes.seekExact(new BytesRef("quick")));
+        }
+
+        client().prepareIndex("test", "type", "1").setSource(sourceToParse.source(), XContentType.JSON)
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE).get();
+        for (String text : new String[]{"qu*", "a qui*", "quie* fox", "qu* f*"}) {
+            SearchResponse response = client().prepareSearch("test")
+                    .setQuery(new MatchLatticeQueryBuilder("field", text).expandTerms(true)).get();
+            assertEquals(text, 1L, response.getHits().getTotalHits().value);
+        }
+        SearchResponse response = client().prepareSearch("test")
+                .setQuery(new MatchLatticeQueryBuilder("field", "fox qu*").expandTerms(true)).get();
+        assertEquals(0L, response.getHits().getTotalHits().value);
+    }
+
+    public void testInvalidIndexPrefixes() throws IOException {
+        assertInvalidMapping(Collections.singletonMap("index_prefixes", Collections.singletonMap("min_chars", 0)),
+                "[index_prefixes] min_chars must be at least 1, got 0");
+        assertInvalidMapping(Collections.singletonMap("index_prefixes", Collections.singletonMap("max_chars", 21)),
+                "[index_prefixes] max_chars must be at most 20, got 21");
+        assertInvalidMapping(Collections.singletonMap("index_prefixes", Collections.singletonMap("max_chars", 1)),
+                "[index_prefixes] max_chars [1] must be at least min_chars [2]");
+        assertInvalidMapping(Collections.singletonMap("index_prefixes", Collections.singletonMap("min", 1)),
+                "unsupported parameters");
+
+        String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field").field("type", getFieldType())
+                .endObject().endObject().endObject().endObject());
+        indexService.mapperService().merge("type", new CompressedXContent(mapping),
+                MapperService.MergeReason.MAPPING_UPDATE);
+        String withPrefixes = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field").field("type", getFieldType())
+                .startObject("index_prefixes").endObject()
+                .endObject().endObject().endObject().endObject());
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> indexService.mapperService().merge("type", new CompressedXContent(withPrefixes),
+                        MapperService.MergeReason.MAPPING_UPDATE));
+        assertThat(e.getMessage(), containsString("mapper [field] has different [index_prefixes] settings"));
+    }
+
+    public void testIndexPhrases() throws IOException {
+        String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field")
+                .field("type", getFieldType())
+                .field("analyzer", "lat_tok_ana")
+                .startObject("index_phrases").field("max_shingle_size", 2).field("min_path_score", 0.0f).endObject()
+                .endObject().endObject()
+                .endObject().endObject());
+
+        DocumentMapper mapper = indexService.mapperService().merge("type",
+                new CompressedXContent(mapping), MapperService.MergeReason.MAPPING_UPDATE);
+
+        assertEquals(mapping, mapper.mappingSource().toString());
+        assertNotNull(indexService.mapperService().fullName("field._index_phrase"));
+
+        SourceToParse sourceToParse = new SourceToParse("test", "type", "1", BytesReference
+                .bytes(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .array("field", "a|0|0|0.9 quick|1|0|0.5 quiet|1|1|0.3 fox|2|0|0.7", "jumped|0|0|0.8")
+                        .endObject()),
+                XContentType.JSON);
+        IndexShard shard = indexService.getShard(0);
+        shard.applyIndexOperationOnPrimary(Versions.MATCH_ANY, VersionType.INTERNAL,
+                sourceToParse, SequenceNumbers.UNASSIGNED_SEQ_NO, 0, IndexRequest.UNSET_AUTO_GENERATED_TIMESTAMP, false);
+        shard.refresh("test");
+        try (Engine.Searcher searcher = shard.acquireSearcher("test")) {
+            LeafReader leaf = searcher.getDirectoryReader().leaves().get(0).reader();
+            TermsEnum phrases = leaf.terms("field._index_phrase").iterator();
+            String[] shingles = new String[]{"a quick", "a quiet", "quick fox", "quiet fox"};
+            int[] positions = new int[]{0, 0, 1, 1};
+            float[] scores = new float[]{0.9f * 0.5f, 0.9f * 0.3f, 0.5f * 0.7f, 0.3f * 0.7f};
+            for (int i = 0; i < shingles.length; i++) {
+                assertTrue(shingles[i], phrases.seekExact(new BytesRef(shingles[i])));
+                PostingsEnum postings = phrases.postings(null, PostingsEnum.PAYLOADS);
+                assertEquals(0, postings.nextDoc());
+                assertEquals(1, postings.freq());
+                assertEquals(positions[i], postings.nextPosition());
+                assertEquals(new BytesRef(PayloadHelper.encodeFloat(scores[i])), postings.getPayload());
+            }
+            // longer than max_shingle_size, or across the gap between values
+            assertFalse(phrases.seekExact(new BytesRef("a quick fox")));
+            assertFalse(phrases.seekExact(new BytesRef("fox jumped")));
+        }
+
+        QueryShardContext context = indexService.newQueryShardContext(0, null, () -> 0L, null);
+        Query query = new MatchLatticeQueryBuilder("field", "quick fox").toQuery(context);
+        assertThat(query, instanceOf(LatticeTermPayloadQuery.class));
+        assertEquals(new Term("field._index_phrase", "quick fox"), ((LatticeTermPayloadQuery) query).getTerm());
+        assertThat(new MatchLatticeQueryBuilder("field", "a quick fox").toQuery(context),
+                instanceOf(LatticePhraseQuery.class));
+        assertThat(new MatchLatticeQueryBuilder("field", "a fox").slop(1).toQuery(context),
+                instanceOf(LatticePhraseQuery.class));
+
+        client().prepareIndex("test", "type", "1").setSource(sourceToParse.source(), XContentType.JSON)
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE).get();
+        for (String phrase : new String[]{"quiet fox", "a quick fox"}) {
+            SearchResponse response = client().prepareSearch("test")
+                    .setQuery(new MatchLatticeQueryBuilder("field", phrase)).get();
+            assertEquals(phrase, 1L, response.getHits().getTotalHits().value);
+        }
+        for (String phrase : new String[]{"a fox", "fox jumped"}) {
+            SearchResponse response = client().prepareSearch("test")
+                    .setQuery(new MatchLatticeQueryBuilder("field", phrase)).get();
+            assertEquals(phrase, 0L, response.getHits().getTotalHits().value);
+        }
+    }
+
+    public void testIndexPhrasesScoreAsPhrases() throws IOException {
+        // the same lattices in a field with index_phrases and in one without, where phrases are matched by position
+        String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties")
+                .startObject("field").field("type", getFieldType()).field("analyzer", "lat_tok_ana")
+                .startObject("index_phrases").field("max_shingle_size", 3).field("min_path_score", 0.0f).endObject()
+                .endObject()
+                .startObject("plain").field("type", getFieldType()).field("analyzer", "lat_tok_ana").endObject()
+                .endObject().endObject().endObject());
+        indexService.mapperService().merge("type", new CompressedXContent(mapping),
+                MapperService.MergeReason.MAPPING_UPDATE);
+
+        String[] lattices = new String[]{
+                "a|0|0|0.9 quick|1|0|0.5 quiet|1|1|0.3 fox|2|0|0.7",
+                "the|0|0|0.9 quick|1|0|0.6 fox|2|0|0.4 a|3|0|0.8 quick|4|0|0.9 fox|5|0|0.95",
+                "a|0|0|0.2 quick|1|0|0.2 fox|2|0|0.2 jumped|3|0|0.9 over|4|0|0.9"};
+        IndexShard shard = indexService.getShard(0);
+        for (int i = 0; i < lattices.length; i++) {
+            SourceToParse sourceToParse = new SourceToParse("test", "type", Integer.toString(i), BytesReference
+                    .bytes(XContentFactory.jsonBuilder().startObject()
+                            .field("field", lattices[i])
+                            .field("plain", lattices[i])
+                            .endObject()),
+                    XContentType.JSON);
+            shard.applyIndexOperationOnPrimary(Versions.MATCH_ANY, VersionType.INTERNAL, sourceToParse,
+                    SequenceNumbers.UNASSIGNED_SEQ_NO, 0, IndexRequest.UNSET_AUTO_GENERATED_TIMESTAMP, false);
+        }
+        shard.refresh("test");
+
+        QueryShardContext context = indexService.newQueryShardContext(0, null, () -> 0L, null);
+        try (Engine.Searcher searcher = shard.acquireSearcher("test")) {
+            IndexSearcher indexSearcher = new IndexSearcher(searcher.getDirectoryReader());
+            for (String phrase : new String[]{"quick fox", "a quick fox"}) {
+                for (String function : new String[]{"sum", "max", "min"}) {
+                    for (boolean includeSpanScore : new boolean[]{false, true}) {
+                        String message = phrase + " " + function + " " + includeSpanScore;
+                        Query indexed = new MatchLatticeQueryBuilder("field", phrase).payloadFuncString(function)
+                                .includeSpanScore(includeSpanScore).toQuery(context);
+                        assertThat(message, indexed, instanceOf(LatticeTermPayloadQuery.class));
+                        Query plain = new MatchLatticeQueryBuilder("plain", phrase).payloadFuncString(function)
+                                .includeSpanScore(includeSpanScore).toQuery(context);
+                        assertThat(message, plain, instanceOf(LatticePhraseQuery.class));
+                        assertSameScores(message, indexSearcher, plain, indexed);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Asserts that both queries match the same docs with the same scores
+     */
+    static void assertSameScores(String message, IndexSearcher searcher, Query expected, Query actual)
+            throws IOException {
+        TopDocs expectedDocs = searcher.search(expected, 10);
+        TopDocs actualDocs = searcher.search(actual, 10);
+        assertThat(message, expectedDocs.scoreDocs.length, greaterThan(0));
+        assertEquals(message, expectedDocs.scoreDocs.length, actualDocs.scoreDocs.length);
+        Map<Integer, Float> expectedScores = new HashMap<>();
+        for (ScoreDoc scoreDoc : expectedDocs.scoreDocs) {
+            expectedScores.put(scoreDoc.doc, scoreDoc.score);
+        }
+        for (ScoreDoc scoreDoc : actualDocs.scoreDocs) {
+            Float expectedScore = expectedScores.get(scoreDoc.doc);
+            assertNotNull(message + " doc " + scoreDoc.doc, expectedScore);
+            assertEquals(message + " doc " + scoreDoc.doc, expectedScore, scoreDoc.score, expectedScore * 1e-5f);
+        }
+    }
+
+    public void testInvalidIndexPhrases() throws IOException {
+        assertInvalidMapping(Collections.singletonMap("index_phrases", Collections.singletonMap("max_shingle_size", 5)),
+                "[index_phrases] max_shingle_size must be between 2 and 4, got 5");
+        assertInvalidMapping(Collections.singletonMap("index_phrases", Collections.singletonMap("min_path_score", -1)),
+                "[index_phrases] min_path_score must not be negative, got -1.0");
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("index_phrases", Collections.emptyMap());
+        settings.put("lattice_format", "audio");
+        assertInvalidMapping(settings, "[index_phrases] requires [lattice_format] [lattice]");
+        settings = new HashMap<>();
+        settings.put("index_phrases", Collections.emptyMap());
+        settings.put("index_options", "freqs");
+        assertInvalidMapping(settings, "[index_phrases] requires positions on field [field]");
+    }
+
+    public void testMaterializedPhrases() throws IOException {
+        String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field")
+                .field("type", getFieldType())
+                .field("analyzer", "lat_tok_ana")
+                .array("materialized_phrases", "a quick fox")
+                .endObject().endObject()
+                .endObject().endObject());
+
+        DocumentMapper mapper = indexService.mapperService().merge("type",
+                new CompressedXContent(mapping), MapperService.MergeReason.MAPPING_UPDATE);
+
+        assertEquals(mapping, mapper.mappingSource().toString());
+        assertNotNull(indexService.mapperService().fullName("field._index_phrase"));
+
+        SourceToParse sourceToParse = new SourceToParse("test", "type", "1", BytesReference
+                .bytes(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .field("field", "a|0|0|0.9 quick|1|0|0.5 quiet|1|1|0.3 fox|2|0|0.7")
+                        .endObject()),
+                XContentType.JSON);
+        IndexShard shard = indexService.getShard(0);
+        shard.applyIndexOperationOnPrimary(Versions.MATCH_ANY, VersionType.INTERNAL,
+                sourceToParse, SequenceNumbers.UNASSIGNED_SEQ_NO, 0, IndexRequest.UNSET_AUTO_GENERATED_TIMESTAMP, false);
+        shard.refresh("test");
+        try (Engine.Searcher searcher = shard.acquireSearcher("test")) {
+            LeafReader leaf = searcher.getDirectoryReader().leaves().get(0).reader();
+            TermsEnum phrases = leaf.terms("field._index_phrase").iterator();
+            assertTrue(phrases.seekExact(new BytesRef("a quick fox")));
+            PostingsEnum postings = phrases.postings(null, PostingsEnum.PAYLOADS);
+            assertEquals(0, postings.nextDoc());
+            assertEquals(1, postings.freq());
+            assertEquals(0, postings.nextPosition());
+            assertEquals(new BytesRef(PayloadHelper.encodeFloat(0.9f * 0.5f * 0.7f)), postings.getPayload());
+            // only the registered phrase is materialized, not the paths it starts with or other paths
+            assertFalse(phrases.seekExact(new BytesRef("a quick")));
+            assertFalse(phrases.seekExact(new BytesRef("a quiet fox")));
+        }
+
+        QueryShardContext context = indexService.newQueryShardContext(0, null, () -> 0L, null);
+        Query query = new MatchLatticeQueryBuilder("field", "a quick fox").toQuery(context);
+        assertThat(query, instanceOf(LatticeMaterializedPhraseQuery.class));
+        try (Engine.Searcher searcher = shard.acquireSearcher("test")) {
+            // every doc was indexed with the phrase
+            Query rewritten = new IndexSearcher(searcher.getDirectoryReader()).rewrite(query);
+            assertThat(rewritten, instanceOf(LatticeTermPayloadQuery.class));
+            assertEquals(new Term("field._index_phrase", "a quick fox"),
+                    ((LatticeTermPayloadQuery) rewritten).getTerm());
+        }
+        assertThat(new MatchLatticeQueryBuilder("field", "quick fox").toQuery(context),
+                instanceOf(LatticePhraseQuery.class));
+
+        // phrases can be added, only the docs indexed from now on have their terms
+        String added = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field")
+                .field("type", getFieldType())
+                .field("analyzer", "lat_tok_ana")
+                .array("materialized_phrases", "a quick fox", "quick fox")
+                .endObject().endObject()
+                .endObject().endObject());
+        mapper = indexService.mapperService().merge("type", new CompressedXContent(added),
+                MapperService.MergeReason.MAPPING_UPDATE);
+        assertEquals(added, mapper.mappingSource().toString());
+        sourceToParse = new SourceToParse("test", "type", "2", BytesReference
+                .bytes(XContentFactory.jsonBuilder()
+                        .startObject()
+                        .field("field", "the|0|0|0.9 quick|1|0|0.5 fox|2|0|0.7")
+                        .endObject()),
+                XContentType.JSON);
+        shard.applyIndexOperationOnPrimary(Versions.MATCH_ANY, VersionType.INTERNAL, sourceToParse,
+                SequenceNumbers.UNASSIGNED_SEQ_NO, 0, IndexRequest.UNSET_AUTO_GENERATED_TIMESTAMP, false);
+        shard.refresh("test");
+        try (Engine.Searcher searcher = shard.acquireSearcher("test")) {
+            IndexSearcher indexSearcher = new IndexSearcher(searcher.getDirectoryReader());
+            assertEquals(1, indexSearcher.count(new TermQuery(new Term("field._index_phrase", "quick fox"))));
+            context = indexService.newQueryShardContext(0, null, () -> 0L, null);
+            query = new MatchLatticeQueryBuilder("field", "quick fox").toQuery(context);
+            assertThat(query, instanceOf(LatticeMaterializedPhraseQuery.class));
+            // the first doc by phrase, the second by the phrase's term
+            assertEquals(2, indexSearcher.count(query));
+            assertThat(indexSearcher.rewrite(query), instanceOf(BooleanQuery.class));
+        }
+
+        String reordered = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field")
+                .field("type", getFieldType())
+                .field("analyzer", "lat_tok_ana")
+                .array("materialized_phrases", "quick fox", "a quick fox")
+                .endObject().endObject()
+                .endObject().endObject());
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> indexService.mapperService().merge("type", new CompressedXContent(reordered),
+                        MapperService.MergeReason.MAPPING_UPDATE));
+        assertThat(e.getMessage(), containsString("mapper [field] has different [materialized_phrases], "
+                + "phrases can only be added to the end of the list"));
+    }
+
+    public void testMaterializedPhrasesScoreAsPhrases() throws IOException {
+        String lattice = "the|0|0|0.9 quick|1|0|0.6 fox|2|0|0.4 a|3|0|0.8 quick|4|0|0.9 quiet|4|1|0.1 fox|5|0|0.95";
+        IndexShard shard = indexService.getShard(0);
+        // the first doc is indexed before the phrase is materialized, the second after, with the same lattice
+        String[][] phrases = new String[][]{{"a quick fox"}, {"a quick fox", "quick fox"}};
+        for (int i = 0; i < phrases.length; i++) {
+            String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                    .startObject("properties").startObject("field")
+                    .field("type", getFieldType())
+                    .field("analyzer", "lat_tok_ana")
+                    .array("materialized_phrases", phrases[i])
+                    .endObject().endObject()
+                    .endObject().endObject());
+            indexService.mapperService().merge("type", new CompressedXContent(mapping),
+                    MapperService.MergeReason.MAPPING_UPDATE);
+            SourceToParse sourceToParse = new SourceToParse("test", "type", Integer.toString(i), BytesReference
+                    .bytes(XContentFactory.jsonBuilder().startObject().field("field", lattice).endObject()),
+                    XContentType.JSON);
+            shard.applyIndexOperationOnPrimary(Versions.MATCH_ANY, VersionType.INTERNAL, sourceToParse,
+                    SequenceNumbers.UNASSIGNED_SEQ_NO, 0, IndexRequest.UNSET_AUTO_GENERATED_TIMESTAMP, false);
+        }
+        shard.refresh("test");
+
+        QueryShardContext context = indexService.newQueryShardContext(0, null, () -> 0L, null);
+        try (Engine.Searcher searcher = shard.acquireSearcher("test")) {
+            IndexSearcher indexSearcher = new IndexSearcher(searcher.getDirectoryReader());
+            for (String function : new String[]{"sum", "max", "min"}) {
+                for (boolean includeSpanScore : new boolean[]{false, true}) {
+                    String message = function + " " + includeSpanScore;
+                    Query query = new MatchLatticeQueryBuilder("field", "quick fox").payloadFuncString(function)
+                            .includeSpanScore(includeSpanScore).toQuery(context);
+                    assertThat(message, query, instanceOf(LatticeMaterializedPhraseQuery.class));
+                    assertThat(message, indexSearcher.rewrite(query), instanceOf(BooleanQuery.class));
+                    // the unmarked doc by the phrase query, the marked one by the phrase's term
+                    TopDocs topDocs = indexSearcher.search(query, 10);
+                    assertEquals(message, 2, topDocs.scoreDocs.length);
+                    float score = topDocs.scoreDocs[0].score;
+                    assertEquals(message, score, topDocs.scoreDocs[1].score, score * 1e-5f);
+                }
+            }
+        }
+    }
+
+    public void testInvalidMaterializedPhrases() throws IOException {
+        assertInvalidMapping(Collections.singletonMap("materialized_phrases", Collections.singletonList("fox")),
+                "[materialized_phrases] phrase [fox] must have at least two words");
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("materialized_phrases", Collections.singletonList("quick fox"));
+        settings.put("lattice_format", "audio");
+        assertInvalidMapping(settings, "[materialized_phrases] requires [lattice_format] [lattice]");
+    }
+
+    public void testRankTiers() throws IOException {
+        String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field")
+                .field("type", getFieldType())
+                .field("analyzer", "lat_tok_ana")
+                .array("rank_tiers", 0, 1)
+                .endObject().endObject()
+                .endObject().endObject());
+
+        DocumentMapper mapper = indexService.mapperService().merge("type",
+                new CompressedXContent(mapping), MapperService.MergeReason.MAPPING_UPDATE);
+
+        assertEquals(mapping, mapper.mappingSource().toString());
+        assertNotNull(indexService.mapperService().fullName("field._rank_0"));
+        assertNotNull(indexService.mapperService().fullName("field._rank_1"));
+
+        String[] docs = new String[]{
+                "a|0|0|0.9 quick|1|0|0.5 quiet|1|1|0.3 fox|2|0|0.7 box|2|2|0.1",
+                "a|0|0|0.9 quiet|1|0|0.6 quick|1|1|0.4 fox|2|0|0.7"
+        };
+        IndexShard shard = indexService.getShard(0);
+        for (int i = 0; i < docs.length; i++) {
+            SourceToParse sourceToParse = new SourceToParse("test", "type", Integer.toString(i), BytesReference
+                    .bytes(XContentFactory.jsonBuilder().startObject().field("field", docs[i]).endObject()),
+                    XContentType.JSON);
+            shard.applyIndexOperationOnPrimary(Versions.MATCH_ANY, VersionType.INTERNAL, sourceToParse,
+                    SequenceNumbers.UNASSIGNED_SEQ_NO, 0, IndexRequest.UNSET_AUTO_GENERATED_TIMESTAMP, false);
+        }
+        shard.refresh("test");
+        try (Engine.Searcher searcher = shard.acquireSearcher("test")) {
+            IndexSearcher indexSearcher = new IndexSearcher(searcher.getDirectoryReader());
+            // the best arcs, at the positions they have in the whole lattice
+            assertEquals(1, indexSearcher.count(new TermQuery(new Term("field._rank_0", "quick"))));
+            assertEquals(2, indexSearcher.count(new TermQuery(new Term("field._rank_1", "quick"))));
+            assertEquals(0, indexSearcher.count(new TermQuery(new Term("field._rank_1", "box"))));
+            assertEquals(1, indexSearcher.count(new TermQuery(new Term("field", "box"))));
+            assertEquals(1, indexSearcher.count(new PhraseQuery("field._rank_0", "a", "quick", "fox")));
+        }
+
+        QueryShardContext context = indexService.newQueryShardContext(0, null, () -> 0L, null);
+        Query query = new MatchLatticeQueryBuilder("field", "quick fox").cascade(true).cascadeMinHits(2)
+                .toQuery(context);
+        assertThat(query, instanceOf(LatticeCascadeQuery.class));
+        Query[] tiers = ((LatticeCascadeQuery) query).getTiers();
+        assertEquals(3, tiers.length);
+        assertEquals("field._rank_0", ((LatticePhraseQuery) tiers[0]).getField());
+        assertEquals("field._rank_1", ((LatticePhraseQuery) tiers[1]).getField());
+        assertEquals("field", ((LatticePhraseQuery) tiers[2]).getField());
+        assertThat(new MatchLatticeQueryBuilder("field", "quick fox").toQuery(context),
+                instanceOf(LatticePhraseQuery.class));
+
+        // the top tier has enough hits on its own, or the cascade falls through to the tier with both
+        assertEquals(1L, client().prepareSearch("test").setQuery(new MatchLatticeQueryBuilder("field", "quick fox")
+                .cascade(true).cascadeMinHits(1)).get().getHits().getTotalHits().value);
+        assertEquals(2L, client().prepareSearch("test").setQuery(new MatchLatticeQueryBuilder("field", "quick fox")
+                .cascade(true).cascadeMinHits(2)).get().getHits().getTotalHits().value);
+        assertEquals(1L, client().prepareSearch("test").setQuery(new MatchLatticeQueryBuilder("field", "box")
+                .cascade(true).cascadeMinHits(1)).get().getHits().getTotalHits().value);
+
+        String changed = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
+                .startObject("properties").startObject("field")
+                .field("type", getFieldType())
+                .field("analyzer", "lat_tok_ana")
+                .array("rank_tiers", 0)
+                .endObject().endObject()
+                .endObject().endObject());
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> indexService.mapperService().merge("type", new CompressedXContent(changed),
+                        MapperService.MergeReason.MAPPING_UPDATE));
+        assertThat(e.getMessage(), containsString("mapper [field] has different [rank_tiers] settings"));
+    }
+
+    public void testInvalidRankTiers() throws IOException {
+        assertInvalidMapping(Collections.singletonMap("rank_tiers", Arrays.asList(2, 1)),
+                "[rank_tiers] must be ascending ranks of at least 0, got [2, 1]");
+        assertInvalidMapping(Collections.singletonMap("rank_tiers", Collections.singletonList(-1)),
+                "[rank_tiers] must be ascending ranks of at least 0, got [-1]");
+    }
+
     public void testSearchAnalyzerSerialization() throws IOException {
         String mapping = Strings.toString(XContentFactory.jsonBuilder().startObject().startObject("type")
                 .startObject("properties")
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.eigendomain.eslatticeindex.mapper;
+
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.List;
+
+public class LatticeSegmenterTests extends ESTestCase {
+    public void testSegmentBySeconds() {
+        LatticeSegmenter segmenter = new LatticeSegmenter('|', true, true, 2.0f, 0.5f);
+        String lattice = "a|0|0|0.9|0.0|0.4 b|1|0|0.9|0.5|1.4 c|2|0|0.9|1.6|2.0 cc|2|1|0.1|1.6|2.0 "
+                + "d|3|0|0.9|2.1|3.0 e|4|0|0.9|3.9|4.5";
+        List<LatticeSegmenter.Segment> segments = segmenter.segment(lattice);
+        assertEquals(3, segments.size());
+        // [0.0, 2.0), then from the first bin at or after 1.5: [1.6, 3.6), then from 3.1: [3.9, 5.9)
+        assertSegment(lattice, segments.get(0), "a|0|0|0.9|0.0|0.4 b|1|0|0.9|0.5|1.4 c|2|0|0.9|1.6|2.0 "
+                + "cc|2|1|0.1|1.6|2.0 ", 0, 0.0f);
+        assertSegment(lattice, segments.get(1), "c|2|0|0.9|1.6|2.0 cc|2|1|0.1|1.6|2.0 d|3|0|0.9|2.1|3.0 ", 2, 1.6f);
+        assertSegment(lattice, segments.get(2), "e|4|0|0.9|3.9|4.5", 4, 3.9f);
+    }
+
+    public void testSegmentByPositionsWithoutOverlap() {
+        LatticeSegmenter segmenter = new LatticeSegmenter('|', false, false, 2, 0);
+        String lattice = "  a|0|0|0.9 plain b|1|0|0.9 c|2|0|0.9 d|7|0|0.9 ";
+        List<LatticeSegmenter.Segment> segments = segmenter.segment(lattice);
+        assertEquals(3, segments.size());
+        assertSegment(lattice, segments.get(0), "  a|0|0|0.9 plain b|1|0|0.9 ", 0, 0.0f);
+        assertSegment(lattice, segments.get(1), "c|2|0|0.9 ", 2, 0.0f);
+        assertSegment(lattice, segments.get(2), "d|7|0|0.9 ", 7, 0.0f);
+    }
+
+    public void testRandomSegmentsCoverEveryBin() {
+        int maxPositions = randomIntBetween(1, 20);
+        int overlap = randomIntBetween(0, maxPositions - 1);
+        LatticeSegmenter segmenter = new LatticeSegmenter('|', false, false, maxPositions, overlap);
+        StringBuilder lattice = new StringBuilder();
+        int numPositions = randomIntBetween(1, 200);
+        for (int pos = 0; pos < numPositions; pos++) {
+            for (int rank = randomIntBetween(0, 2); rank >= 0; rank--) {
+                lattice.append("w|").append(pos).append('|').append(rank).append("|0.5 ");
+            }
+        }
+        List<LatticeSegmenter.Segment> segments = segmenter.segment(lattice.toString());
+        assertEquals(0, segments.get(0).startOffset());
+        assertEquals(lattice.length(), segments.get(segments.size() - 1).endOffset());
+        for (int i = 0; i < segments.size(); i++) {
+            LatticeSegmenter.Segment segment = segments.get(i);
+            int endPosition = i + 1 < segments.size() ? segments.get(i + 1).startPosition() + overlap : numPositions;
+            assertEquals(Math.min(numPositions, segment.startPosition() + maxPositions), endPosition);
+            if (i > 0) {
+                // the next segment starts inside this one, overlapping it by the requested number of positions
+                assertTrue(segment.startOffset() <= segments.get(i - 1).endOffset());
+            }
+        }
+    }
+
+    public void testMalformedPosition() {
+        LatticeSegmenter segmenter = new LatticeSegmenter('|', false, false, 10, 0);
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+                () -> segmenter.segment("a|0|0|0.9 b|x|0|0.9"));
+        assertEquals("Failed to parse lattice token: b|x|0|0.9", e.getMessage());
+    }
+
+    private static void assertSegment(String lattice, LatticeSegmenter.Segment segment, String text,
+                                      int startPosition, float startSeconds) {
+        assertEquals(text, lattice.substring(segment.startOffset(), segment.endOffset()));
+        assertEquals(startPosition, segment.startPosition());
+        assertEquals(startSeconds, segment.startSeconds(), 0.0f);
+    }
+}
@@ -0,0 +1,112 @@
+#!/usr/bin/env bash
+
+# Indexes large generated lattice documents, first as a single string value and then as an array of chunks with
+# "chunked_values": true, sampling the node's heap usage while each runs and printing the peak and docs/sec of each.
+#
+# usage: bench_chunked_values.sh [num_docs] [doc_mb] [chunk_kb]
+
+ES=${ES:-http://localhost:9200}
+NUM_DOCS=${1:-10}
+DOC_MB=${2:-50}
+CHUNK_KB=${3:-1024}
+
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+curl -s -XGET "$ES/_cluster/health?wait_for_status=yellow&timeout=120s" > /dev/null
+
+# one lattice of about DOC_MB megabytes, written as a single string and as chunks of about CHUNK_KB kilobytes
+awk -v bytes="$((DOC_MB * 1048576))" -v chunk="$((CHUNK_KB * 1024))" -v dir="$WORK" 'BEGIN {
+    srand(42);
+    split("the quick brown fox jumped over lazy dog box brick sat on mat cat hat a an to of and", words, " ");
+    single = dir "/single.json";
+    chunked = dir "/chunked.json";
+    printf "{\"lattices\":\"" > single;
+    printf "{\"lattices\":[\"" > chunked;
+    written = 0;
+    in_chunk = 0;
+    for (p = 0; written < bytes; p++) {
+        arcs = 1 + int(rand() * 4);
+        remaining = 1.0;
+        for (r = 0; r < arcs; r++) {
+            score = (r == arcs - 1) ? remaining : remaining * rand();
+            remaining -= score;
+            arc = sprintf("%s|%d|%d|%.4f ", words[1 + int(rand() * 20)], p, r, score);
+            printf "%s", arc > single;
+            if (in_chunk >= chunk) {
+                printf "\",\"" > chunked;
+                in_chunk = 0;
+            }
+            printf "%s", arc > chunked;
+            in_chunk += length(arc);
+            written += length(arc);
+        }
+    }
+    printf "\"}\n" > single;
+    printf "\"]}\n" > chunked;
+}'
+
+heap_used() {
+    curl -s "$ES/_nodes/_local/stats/jvm" | grep -o '"heap_used_in_bytes":[0-9]*' | head -1 | cut -d: -f2
+}
+
+bench() {
+    local index=$1
+    local chunked=$2
+    local doc=$3
+
+    curl -s -XDELETE "$ES/$index" > /dev/null
+    curl -s -H 'Content-Type: application/json' -XPUT "$ES/$index" -d '{
+  "settings": {
+    "index": {
+      "number_of_shards": 1,
+      "number_of_replicas": 0,
+      "refresh_interval": -1
+    },
+    "analysis": {
+      "analyzer": {
+        "lat_ana": {
+          "type": "custom",
+          "tokenizer": "lattice"
+        }
+      }
+    }
+  },
+  "mappings": {
+    "properties": {
+      "lattices": {
+        "type": "lattice",
+        "analyzer": "lat_ana",
+        "chunked_values": '"$chunked"'
+      }
+    }
+  }
+}' > /dev/null
+
+    # sample the heap in the background while indexing
+    local samples="$WORK/heap_$index"
+    : > "$samples"
+    (while true; do heap_used >> "$samples"; sleep 0.2; done) &
+    local sampler=$!
+
+    local start end
+    start=$(date +%s.%N)
+    for ((d = 0; d < NUM_DOCS; d++)); do
+        curl -s -H 'Content-Type: application/json' -XPOST "$ES/$index/_doc" --data-binary "@$doc" > /dev/null
+    done
+    curl -s -XPOST "$ES/$index/_refresh" > /dev/null
+    end=$(date +%s.%N)
+    kill "$sampler" 2> /dev/null
+    wait "$sampler" 2> /dev/null
+
+    local peak
+    peak=$(sort -n "$samples" | tail -1)
+    awk -v name="$index" -v docs="$NUM_DOCS" -v s="$start" -v e="$end" -v peak="$peak" 'BEGIN {
+        printf "%-16s %8.2f docs/sec %10.1f MB peak heap\n", name, docs / (e - s), peak / 1048576
+    }'
+    curl -s -XDELETE "$ES/$index" > /dev/null
+}
+
+echo "$NUM_DOCS docs of ${DOC_MB}MB, ${CHUNK_KB}KB chunks"
+bench bench_single false "$WORK/single.json"
+bench bench_chunked true "$WORK/chunked.json"
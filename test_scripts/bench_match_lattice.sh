@@ -0,0 +1,135 @@
+#!/usr/bin/env bash
+
+# Indexes the same generated lattices with several payload_encodings, then runs match_lattice queries against each
+# and prints the mean query time and the young GCs the node ran per 1000 queries, a proxy for the bytes allocated
+# per query.  Run it against builds of the plugin before and after a scoring change to compare them.
+#
+# usage: bench_match_lattice.sh [num_docs] [positions_per_doc] [num_queries]
+
+ES=${ES:-http://localhost:9200}
+NUM_DOCS=${1:-20000}
+NUM_POSITIONS=${2:-200}
+NUM_QUERIES=${3:-2000}
+BATCH=500
+ENCODINGS="float linear_8 log_8"
+QUERIES=("fox" "quick" "quick fox" "the lazy dog" "brown fox jumped")
+
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+curl -s -XGET "$ES/_cluster/health?wait_for_status=yellow&timeout=120s" > /dev/null
+
+# one bulk file per batch, each doc a confusion network of 1-4 arcs per position with scores summing to ~1
+awk -v docs="$NUM_DOCS" -v positions="$NUM_POSITIONS" -v batch="$BATCH" -v dir="$WORK" 'BEGIN {
+    srand(42);
+    split("the quick brown fox jumped over lazy dog box brick sat on mat cat hat a an to of and", words, " ");
+    for (d = 0; d < docs; d++) {
+        file = sprintf("%s/bulk_%06d.ndjson", dir, int(d / batch));
+        printf "{\"index\":{}}\n{\"lattices\":\"" >> file;
+        for (p = 0; p < positions; p++) {
+            arcs = 1 + int(rand() * 4);
+            remaining = 1.0;
+            for (r = 0; r < arcs; r++) {
+                score = (r == arcs - 1) ? remaining : remaining * rand();
+                remaining -= score;
+                printf "%s|%d|%d|%.4f ", words[1 + int(rand() * 20)], p, r, score >> file;
+            }
+        }
+        printf "\"}\n" >> file;
+        if (d % batch == batch - 1) close(file);
+    }
+}'
+
+young_gc() {
+    curl -s "$ES/_nodes/_local/stats/jvm" | grep -o '"young":{"collection_count":[0-9]*,"collection_time_in_millis":[0-9]*' \
+        | head -1 | grep -o '[0-9]*' | tr '\n' ' '
+}
+
+bench() {
+    local index=$1
+    local encoding=$2
+
+    curl -s -XDELETE "$ES/$index" > /dev/null
+    curl -s -H 'Content-Type: application/json' -XPUT "$ES/$index" -d '{
+  "settings": {
+    "index": {
+      "number_of_shards": 1,
+      "number_of_replicas": 0,
+      "refresh_interval": -1
+    },
+    "analysis": {
+      "analyzer": {
+        "lat_ana": {
+          "type": "custom",
+          "tokenizer": "lat_tok"
+        }
+      },
+      "tokenizer": {
+        "lat_tok": {
+          "type": "lattice",
+          "payload_encoding": "'"$encoding"'"
+        }
+      }
+    }
+  },
+  "mappings": {
+    "properties": {
+      "lattices": {
+        "type": "lattice",
+        "analyzer": "lat_ana",
+        "payload_encoding": "'"$encoding"'"
+      }
+    }
+  }
+}' > /dev/null
+    for f in "$WORK"/bulk_*.ndjson; do
+        curl -s -H 'Content-Type: application/x-ndjson' -XPOST "$ES/$index/_bulk" --data-binary "@$f" > /dev/null
+    done
+    curl -s -XPOST "$ES/$index/_forcemerge?max_num_segments=1" > /dev/null
+    curl -s -XPOST "$ES/$index/_refresh" > /dev/null
+
+    # warm up, then time queries with the request cache off so every one is scored
+    local q took_total=0
+    for ((q = 0; q < 200; q++)); do
+        query "$index" "${QUERIES[$((q % ${#QUERIES[@]}))]}" > /dev/null
+    done
+    local gc_before gc_after start end
+    gc_before=$(young_gc)
+    start=$(date +%s.%N)
+    for ((q = 0; q < NUM_QUERIES; q++)); do
+        took=$(query "$index" "${QUERIES[$((q % ${#QUERIES[@]}))]}" | grep -o '"took":[0-9]*' | cut -d: -f2)
+        took_total=$((took_total + took))
+    done
+    end=$(date +%s.%N)
+    gc_after=$(young_gc)
+
+    awk -v name="$index" -v queries="$NUM_QUERIES" -v took="$took_total" -v s="$start" -v e="$end" \
+        -v before="$gc_before" -v after="$gc_after" 'BEGIN {
+        split(before, b, " ");
+        split(after, a, " ");
+        printf "%-20s %8.2f ms mean took %8.1f queries/sec %8.2f young GCs and %8.1f GC ms per 1000 queries\n",
+            name, took / queries, queries / (e - s), (a[1] - b[1]) * 1000 / queries, (a[2] - b[2]) * 1000 / queries
+    }'
+    curl -s -XDELETE "$ES/$index" > /dev/null
+}
+
+query() {
+    curl -s -H 'Content-Type: application/json' -XGET "$ES/$1/_search?request_cache=false" -d '{
+  "size": 10,
+  "track_total_hits": false,
+  "query": {
+    "match_lattice": {
+      "lattices": {
+        "query": "'"$2"'",
+        "slop": 2,
+        "payload_function": "sum"
+      }
+    }
+  }
+}'
+}
+
+echo "$NUM_DOCS docs of $NUM_POSITIONS positions, $NUM_QUERIES queries"
+for encoding in $ENCODINGS; do
+    bench "bench_$encoding" "$encoding"
+done
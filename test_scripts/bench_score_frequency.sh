@@ -0,0 +1,101 @@
+#!/usr/bin/env bash
+
+# Indexes the same generated lattices with score_frequency_mode=duplicate and score_frequency_mode=term_frequency
+# and prints docs/sec and the force merged index size of each.
+#
+# usage: bench_score_frequency.sh [num_docs] [positions_per_doc]
+
+ES=${ES:-http://localhost:9200}
+NUM_DOCS=${1:-20000}
+NUM_POSITIONS=${2:-200}
+BATCH=500
+BUCKETS='[0.9, 72, 0.8, 64, 0.7, 56, 0.6, 48, 0.5, 40, 0.4, 32, 0.2, 16, 0.1, 8, 0.01, 2]'
+
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+curl -s -XGET "$ES/_cluster/health?wait_for_status=yellow&timeout=120s" > /dev/null
+
+# one bulk file per batch, each doc a confusion network of 1-4 arcs per position with scores summing to ~1
+awk -v docs="$NUM_DOCS" -v positions="$NUM_POSITIONS" -v batch="$BATCH" -v dir="$WORK" 'BEGIN {
+    srand(42);
+    split("the quick brown fox jumped over lazy dog box brick sat on mat cat hat a an to of and", words, " ");
+    for (d = 0; d < docs; d++) {
+        file = sprintf("%s/bulk_%06d.ndjson", dir, int(d / batch));
+        printf "{\"index\":{}}\n{\"lattices\":\"" >> file;
+        for (p = 0; p < positions; p++) {
+            arcs = 1 + int(rand() * 4);
+            remaining = 1.0;
+            for (r = 0; r < arcs; r++) {
+                score = (r == arcs - 1) ? remaining : remaining * rand();
+                remaining -= score;
+                printf "%s|%d|%d|%.4f ", words[1 + int(rand() * 20)], p, r, score >> file;
+            }
+        }
+        printf "\"}\n" >> file;
+        if (d % batch == batch - 1) close(file);
+    }
+}'
+
+bench() {
+    local index=$1
+    local mode=$2
+    local index_options=$3
+
+    curl -s -XDELETE "$ES/$index" > /dev/null
+    curl -s -H 'Content-Type: application/json' -XPUT "$ES/$index" -d '{
+  "settings": {
+    "index": {
+      "number_of_shards": 1,
+      "number_of_replicas": 0,
+      "refresh_interval": -1
+    },
+    "analysis": {
+      "analyzer": {
+        "lat_ana": {
+          "type": "custom",
+          "tokenizer": "lat_tok",
+          "filter": ["lowercase", "porter_stem"]
+        }
+      },
+      "tokenizer": {
+        "lat_tok": {
+          "type": "lattice",
+          "score_buckets": '"$BUCKETS"',
+          "score_frequency_mode": "'"$mode"'"
+        }
+      }
+    }
+  },
+  "mappings": {
+    "properties": {
+      "lattices": {
+        "type": "lattice",
+        "analyzer": "lat_ana",
+        "index_options": "'"$index_options"'",
+        "norms": false
+      }
+    }
+  }
+}' > /dev/null
+
+    local start end
+    start=$(date +%s.%N)
+    for f in "$WORK"/bulk_*.ndjson; do
+        curl -s -H 'Content-Type: application/x-ndjson' -XPOST "$ES/$index/_bulk" --data-binary "@$f" > /dev/null
+    done
+    curl -s -XPOST "$ES/$index/_refresh" > /dev/null
+    end=$(date +%s.%N)
+    curl -s -XPOST "$ES/$index/_forcemerge?max_num_segments=1" > /dev/null
+
+    local size
+    size=$(curl -s "$ES/$index/_stats/store" | grep -o '"size_in_bytes":[0-9]*' | head -1 | cut -d: -f2)
+    awk -v mode="$mode" -v docs="$NUM_DOCS" -v s="$start" -v e="$end" -v size="$size" 'BEGIN {
+        printf "%-16s %10.1f docs/sec %12.1f MB\n", mode, docs / (e - s), size / 1048576
+    }'
+    curl -s -XDELETE "$ES/$index" > /dev/null
+}
+
+echo "$NUM_DOCS docs, $NUM_POSITIONS positions per doc"
+bench bench_duplicate duplicate positions
+bench bench_term_frequency term_frequency freqs
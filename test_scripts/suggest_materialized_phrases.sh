@@ -0,0 +1,73 @@
+#!/usr/bin/env bash
+
+# Ranks the phrases of the match_lattice queries in a search slow log by the total time of the queries they were in,
+# and prints the most expensive of each field as a "materialized_phrases" list to add to its mapping.  Enable the
+# slow log on an index with, for example:
+#
+#   curl -XPUT "$ES/my_index/_settings" -H 'Content-Type: application/json' \
+#       -d '{"index.search.slowlog.threshold.query.info": "200ms"}'
+#
+# usage: suggest_materialized_phrases.sh [top_n] [slow_log_file ...]   (reads stdin without files)
+
+TOP_N=${1:-20}
+[ $# -gt 0 ] && shift
+
+awk '
+/took_millis\[/ && /"match_lattice"/ {
+    if (match($0, /took_millis\[[0-9]+\]/) == 0) {
+        next;
+    }
+    took = substr($0, RSTART + 12, RLENGTH - 13) + 0;
+    rest = $0;
+    # every match_lattice clause of the query, as written by its builder
+    while (match(rest, /"match_lattice":\{"[^"]+":\{"query":"[^"]*"/)) {
+        clause = substr(rest, RSTART, RLENGTH);
+        rest = substr(rest, RSTART + RLENGTH);
+        split(clause, parts, "\"");
+        field = parts[4];
+        phrase = tolower(parts[8]);
+        gsub(/[ \t]+/, " ", phrase);
+        gsub(/^ | $/, "", phrase);
+        # single words are already a single term
+        if (split(phrase, words, " ") < 2) {
+            continue;
+        }
+        key = field SUBSEP phrase;
+        total[key] += took;
+        count[key]++;
+    }
+}
+END {
+    for (key in total) {
+        split(key, parts, SUBSEP);
+        printf "%s\t%s\t%d\t%d\n", parts[1], parts[2], total[key], count[key];
+    }
+}' "$@" | sort -t$'\t' -k1,1 -k3,3nr | awk -F'\t' -v top_n="$TOP_N" '
+function flush() {
+    if (n == 0) {
+        return;
+    }
+    printf "%s: total_millis queries phrase\n", field;
+    for (i = 1; i <= n; i++) {
+        printf "  %8d %6d  %s\n", millis[i], queries[i], phrases[i];
+    }
+    printf "\"materialized_phrases\": [";
+    for (i = 1; i <= n; i++) {
+        printf "%s\n  \"%s\"", (i == 1 ? "" : ","), phrases[i];
+    }
+    printf "\n]\n\n";
+}
+$1 != field {
+    flush();
+    field = $1;
+    n = 0;
+}
+n < top_n {
+    n++;
+    phrases[n] = $2;
+    millis[n] = $3;
+    queries[n] = $4;
+}
+END {
+    flush();
+}'